@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Compares enqueuing and finding messages on a loaded queue, with and without its index.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class MessageQueuePerfTest {
+    private static final int QUEUED_MESSAGES = 500;
+    private static final int WHATS = 50;
+    // Far enough that none of the queued messages are delivered during the test.
+    private static final long DELAY_MS = 60 * 60 * 1000;
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private HandlerThread mThread;
+    private Handler mHandler;
+
+    @Before
+    public void setUp() {
+        mThread = new HandlerThread("MessageQueuePerfTest");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    @After
+    public void tearDown() {
+        mThread.quit();
+        mThread = null;
+        mHandler = null;
+    }
+
+    private void fillQueue(boolean indexed) {
+        if (indexed) {
+            mThread.getLooper().getQueue().enableIndexing();
+        }
+        for (int i = 0; i < QUEUED_MESSAGES; i++) {
+            mHandler.sendEmptyMessageDelayed(i % WHATS, DELAY_MS + i);
+        }
+    }
+
+    private void sendAndRemove() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        int i = 0;
+        while (state.keepRunning()) {
+            // Spread the messages over the queue, after most of it on average.
+            mHandler.sendEmptyMessageDelayed(WHATS, DELAY_MS + (i * 7919) % QUEUED_MESSAGES);
+            mHandler.removeMessages(WHATS);
+            i++;
+        }
+    }
+
+    private void hasMessages() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mHandler.hasMessages(WHATS);
+        }
+    }
+
+    @Test
+    public void timeSendAndRemove() {
+        fillQueue(false);
+        sendAndRemove();
+    }
+
+    @Test
+    public void timeSendAndRemove_indexed() {
+        fillQueue(true);
+        sendAndRemove();
+    }
+
+    @Test
+    public void timeHasMessages() {
+        fillQueue(false);
+        hasMessages();
+    }
+
+    @Test
+    public void timeHasMessages_indexed() {
+        fillQueue(true);
+        hasMessages();
+    }
+
+    @Test
+    public void timeSendAtFrontAndRemove_indexed() {
+        fillQueue(true);
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mHandler.sendMessageAtFrontOfQueue(mHandler.obtainMessage(WHATS));
+            mHandler.removeMessages(WHATS);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package android.text;
+
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.filters.LargeTest;
+import android.text.style.UnderlineSpan;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized.Parameters;
+import org.junit.runners.Parameterized;
+
+/**
+ * Compares {@link SpannableRopeBuilder} with {@link SpannableStringBuilder} on large documents.
+ * Each document has a span every 100 chars.
+ */
+@LargeTest
+@RunWith(Parameterized.class)
+public class SpannableRopeBuilderPerfTest {
+
+    @Parameters(name = "{0}")
+    public static Collection cases() {
+        return Arrays.asList(new Object[][] {
+            { "SSB_1MB", false, 1 << 20 },
+            { "SSB_5MB", false, 5 << 20 },
+            { "SSB_20MB", false, 20 << 20 },
+            { "Rope_1MB", true, 1 << 20 },
+            { "Rope_5MB", true, 5 << 20 },
+            { "Rope_20MB", true, 20 << 20 },
+        });
+    }
+
+    private static final int SPAN_INTERVAL = 100;
+
+    private final boolean mRope;
+    private final int mLength;
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    public SpannableRopeBuilderPerfTest(String key, boolean rope, int length) {
+        mRope = rope;
+        mLength = length;
+    }
+
+    private Editable createText() {
+        final char[] chars = new char[mLength];
+        for (int i = 0; i < mLength; i++) {
+            chars[i] = (i % 80) == 79 ? '\n' : (char) ('a' + (i % 26));
+        }
+        final String text = new String(chars);
+        final Editable editable = mRope
+                ? new SpannableRopeBuilder(text) : new SpannableStringBuilder(text);
+        for (int i = 0; i + 10 < mLength; i += SPAN_INTERVAL) {
+            editable.setSpan(new UnderlineSpan(), i, i + 10, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        }
+        return editable;
+    }
+
+    @Test
+    public void testInsert() {
+        final Editable editable = createText();
+        final Random random = new Random(0);
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            // Jump around the document, as a find-and-replace would.
+            editable.insert(random.nextInt(editable.length()), "x");
+        }
+    }
+
+    @Test
+    public void testDelete() {
+        final Editable editable = createText();
+        final Random random = new Random(0);
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            final int start = random.nextInt(editable.length() - 1);
+            editable.delete(start, start + 1);
+            state.pauseTiming();
+            editable.insert(start, "y");
+            state.resumeTiming();
+        }
+    }
+
+    @Test
+    public void testGetSpans() {
+        final Editable editable = createText();
+        final Random random = new Random(0);
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            // About a screen of text.
+            final int start = random.nextInt(editable.length() - 2000);
+            editable.getSpans(start, start + 2000, UnderlineSpan.class);
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.util.perftests;
+
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.filters.LargeTest;
+import android.util.ConcurrentLruCache;
+import android.util.LruCache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Random;
+
+/**
+ * Measures the latency of cache operations on one thread while other threads use the same
+ * cache, comparing {@link LruCache} with {@link ConcurrentLruCache}.
+ */
+@LargeTest
+@RunWith(Parameterized.class)
+public class LruCachePerfTest {
+    private static final int MAX_SIZE = 512;
+    private static final int KEY_COUNT = 1024;
+
+    @Parameters(name = "{0}")
+    public static Collection cases() {
+        return Arrays.asList(new Object[][] {
+            { "LruCache_1thread", false, 1 },
+            { "LruCache_2threads", false, 2 },
+            { "LruCache_4threads", false, 4 },
+            { "LruCache_8threads", false, 8 },
+            { "ConcurrentLruCache_1thread", true, 1 },
+            { "ConcurrentLruCache_2threads", true, 2 },
+            { "ConcurrentLruCache_4threads", true, 4 },
+            { "ConcurrentLruCache_8threads", true, 8 },
+        });
+    }
+
+    /** The operations shared by both caches. */
+    private interface Cache {
+        String get(Integer key);
+        String put(Integer key, String value);
+    }
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private final boolean mConcurrent;
+    private final int mThreadCount;
+    private final String[] mValues = new String[KEY_COUNT];
+    private Cache mCache;
+    private Thread[] mBackgroundThreads;
+    private volatile boolean mRunning;
+
+    public LruCachePerfTest(String key, boolean concurrent, int threadCount) {
+        mConcurrent = concurrent;
+        mThreadCount = threadCount;
+        for (int i = 0; i < KEY_COUNT; i++) {
+            mValues[i] = "value" + i;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        if (mConcurrent) {
+            final ConcurrentLruCache<Integer, String> cache = new ConcurrentLruCache<>(MAX_SIZE);
+            mCache = new Cache() {
+                public String get(Integer key) { return cache.get(key); }
+                public String put(Integer key, String value) { return cache.put(key, value); }
+            };
+        } else {
+            final LruCache<Integer, String> cache = new LruCache<>(MAX_SIZE);
+            mCache = new Cache() {
+                public String get(Integer key) { return cache.get(key); }
+                public String put(Integer key, String value) { return cache.put(key, value); }
+            };
+        }
+        for (int i = 0; i < MAX_SIZE; i++) {
+            mCache.put(i, mValues[i]);
+        }
+
+        // The measured thread is one of the threads using the cache.
+        mRunning = true;
+        mBackgroundThreads = new Thread[mThreadCount - 1];
+        for (int i = 0; i < mBackgroundThreads.length; i++) {
+            final int seed = i + 1;
+            mBackgroundThreads[i] = new Thread(() -> {
+                final Random random = new Random(seed);
+                while (mRunning) {
+                    access(random);
+                }
+            });
+            mBackgroundThreads[i].start();
+        }
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        mRunning = false;
+        for (Thread thread : mBackgroundThreads) {
+            thread.join();
+        }
+    }
+
+    /** Reads a random key, and puts it back on a miss; about half of the reads miss. */
+    private void access(Random random) {
+        final int key = random.nextInt(KEY_COUNT);
+        if (mCache.get(key) == null) {
+            mCache.put(key, mValues[key]);
+        }
+    }
+
+    @Test
+    public void testGetPut() {
+        final Random random = new Random(0);
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            access(random);
+        }
+    }
+
+    @Test
+    public void testGetHit() {
+        final Random random = new Random(0);
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            // Keys accessed by all threads, so mostly hits.
+            mCache.get(random.nextInt(MAX_SIZE / 4));
+        }
+    }
+}
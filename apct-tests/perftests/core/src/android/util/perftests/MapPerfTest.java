@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.util.perftests;
+
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.filters.LargeTest;
+import android.util.ArrayMap;
+import android.util.IntObjectMap;
+import android.util.SparseArray;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Compares lookups, and removals followed by insertions, in the maps keyed by integers, from
+ * tens to hundreds of thousands of entries.
+ */
+@LargeTest
+@RunWith(Parameterized.class)
+public class MapPerfTest {
+    private static final String[] KINDS = {
+        "ArrayMap", "ArrayMapHashed", "HashMap", "SparseArray", "IntObjectMap",
+    };
+    private static final int[] SIZES = { 8, 100, 1000, 10000, 100000 };
+
+    @Parameters(name = "{0}_{1}")
+    public static Collection cases() {
+        final ArrayList<Object[]> cases = new ArrayList<>();
+        for (String kind : KINDS) {
+            for (int size : SIZES) {
+                cases.add(new Object[] { kind, size });
+            }
+        }
+        return cases;
+    }
+
+    /** The operations shared by all the maps. */
+    private interface IntMap {
+        Object get(int index);
+        void put(int index);
+        void remove(int index);
+    }
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private final String mKind;
+    private final int mSize;
+    private final Integer[] mKeys;
+    private final int[] mOrder;
+    private IntMap mMap;
+
+    public MapPerfTest(String kind, int size) {
+        mKind = kind;
+        mSize = size;
+        final Random random = new Random(0);
+        mKeys = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            mKeys[i] = random.nextInt();
+        }
+        // Visit the keys in a random order, so that lookups don't hit the same cache lines.
+        mOrder = new int[Math.min(size, 1024)];
+        for (int i = 0; i < mOrder.length; i++) {
+            mOrder[i] = random.nextInt(size);
+        }
+    }
+
+    @Before
+    public void setUp() {
+        final Integer[] keys = mKeys;
+        switch (mKind) {
+            case "ArrayMap":
+            case "ArrayMapHashed": {
+                final ArrayMap<Integer, Integer> map = new ArrayMap<>();
+                if (mKind.equals("ArrayMapHashed")) {
+                    map.enableHashing();
+                }
+                mMap = new IntMap() {
+                    public Object get(int index) { return map.get(keys[index]); }
+                    public void put(int index) { map.put(keys[index], keys[index]); }
+                    public void remove(int index) { map.remove(keys[index]); }
+                };
+                break;
+            }
+            case "HashMap": {
+                final HashMap<Integer, Integer> map = new HashMap<>();
+                mMap = new IntMap() {
+                    public Object get(int index) { return map.get(keys[index]); }
+                    public void put(int index) { map.put(keys[index], keys[index]); }
+                    public void remove(int index) { map.remove(keys[index]); }
+                };
+                break;
+            }
+            case "SparseArray": {
+                final SparseArray<Integer> map = new SparseArray<>();
+                mMap = new IntMap() {
+                    public Object get(int index) { return map.get(keys[index]); }
+                    public void put(int index) { map.put(keys[index], keys[index]); }
+                    public void remove(int index) { map.remove(keys[index]); }
+                };
+                break;
+            }
+            case "IntObjectMap": {
+                final IntObjectMap<Integer> map = new IntObjectMap<>();
+                mMap = new IntMap() {
+                    public Object get(int index) { return map.get(keys[index]); }
+                    public void put(int index) { map.put(keys[index], keys[index]); }
+                    public void remove(int index) { map.remove(keys[index]); }
+                };
+                break;
+            }
+            default:
+                throw new IllegalArgumentException(mKind);
+        }
+        for (int i = 0; i < mSize; i++) {
+            mMap.put(i);
+        }
+    }
+
+    @Test
+    public void timeGet() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final int[] order = mOrder;
+        int i = 0;
+        while (state.keepRunning()) {
+            mMap.get(order[i]);
+            i = (i + 1) % order.length;
+        }
+    }
+
+    @Test
+    public void timeRemoveAndPut() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final int[] order = mOrder;
+        int i = 0;
+        while (state.keepRunning()) {
+            mMap.remove(order[i]);
+            mMap.put(order[i]);
+            i = (i + 1) % order.length;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.util.perftests;
+
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.android.internal.util.BinaryXmlSerializer;
+import com.android.internal.util.FastXmlSerializer;
+import com.android.internal.util.XmlUtils;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlSerializer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compares {@link FastXmlSerializer} with {@link BinaryXmlSerializer} on a document shaped like
+ * a packages.xml with a few hundred packages installed.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class XmlPerfTest {
+    private static final int PACKAGE_COUNT = 400;
+    private static final int PERMISSIONS_PER_PACKAGE = 12;
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private static void writePackages(XmlSerializer out) throws IOException {
+        out.startDocument(null, true);
+        out.startTag(null, "packages");
+        for (int i = 0; i < PACKAGE_COUNT; i++) {
+            out.startTag(null, "package");
+            out.attribute(null, "name", "com.example.package" + i);
+            out.attribute(null, "codePath", "/data/app/com.example.package" + i + "-1");
+            out.attribute(null, "nativeLibraryPath",
+                    "/data/app/com.example.package" + i + "-1/lib");
+            XmlUtils.writeIntAttribute(out, "flags", 0x38c8be44);
+            XmlUtils.writeLongAttribute(out, "ft", 1500000000000L + i);
+            XmlUtils.writeLongAttribute(out, "it", 1500000000000L);
+            XmlUtils.writeLongAttribute(out, "ut", 1500000000000L + i);
+            XmlUtils.writeIntAttribute(out, "version", 100 + i);
+            XmlUtils.writeIntAttribute(out, "userId", 10000 + i);
+            out.startTag(null, "perms");
+            for (int j = 0; j < PERMISSIONS_PER_PACKAGE; j++) {
+                out.startTag(null, "item");
+                out.attribute(null, "name", "android.permission.PERMISSION_" + j);
+                XmlUtils.writeBooleanAttribute(out, "granted", true);
+                XmlUtils.writeIntAttribute(out, "flags", 0);
+                out.endTag(null, "item");
+            }
+            out.endTag(null, "perms");
+            out.endTag(null, "package");
+        }
+        out.endTag(null, "packages");
+        out.endDocument();
+    }
+
+    private static byte[] write(XmlSerializer out) throws IOException {
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        out.setOutput(stream, StandardCharsets.UTF_8.name());
+        writePackages(out);
+        return stream.toByteArray();
+    }
+
+    private static int read(byte[] data) throws Exception {
+        final XmlPullParser in = XmlUtils.resolvePullParser(new ByteArrayInputStream(data));
+        int sum = 0;
+        int type;
+        while ((type = in.next()) != XmlPullParser.END_DOCUMENT) {
+            if (type == XmlPullParser.START_TAG && "package".equals(in.getName())) {
+                sum += XmlUtils.readIntAttribute(in, "userId");
+                sum += (int) XmlUtils.readLongAttribute(in, "ft");
+                sum += in.getAttributeValue(null, "name").length();
+            } else if (type == XmlPullParser.START_TAG && "item".equals(in.getName())) {
+                sum += XmlUtils.readBooleanAttribute(in, "granted") ? 1 : 0;
+            }
+        }
+        return sum;
+    }
+
+    @Test
+    public void timeWrite_fast() throws Exception {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            write(new FastXmlSerializer());
+        }
+    }
+
+    @Test
+    public void timeWrite_binary() throws Exception {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            write(new BinaryXmlSerializer());
+        }
+    }
+
+    @Test
+    public void timeRead_fast() throws Exception {
+        final byte[] data = write(new FastXmlSerializer());
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            read(data);
+        }
+    }
+
+    @Test
+    public void timeRead_binary() throws Exception {
+        final byte[] data = write(new BinaryXmlSerializer());
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            read(data);
+        }
+    }
+}
@@ -6260,6 +6260,7 @@ public class Activity extends ContextThemeWrapper
         }
 
         mHandler.getLooper().dump(new PrintWriterPrinter(writer), prefix);
+        LayoutInflater.dumpStats(prefix, writer);
 
         final AutofillManager afm = getAutofillManager();
         if (afm != null) {
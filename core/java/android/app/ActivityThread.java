@@ -46,6 +46,7 @@ import android.content.res.CompatibilityInfo;
 import android.content.res.Configuration;
 import android.content.res.Resources;
 import android.content.res.Resources.Theme;
+import android.content.res.ResourcesImpl;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteDebug;
 import android.database.sqlite.SQLiteDebug.DbStats;
@@ -1205,6 +1206,16 @@ public final class ActivityThread {
                     "OpenSSL Sockets:", openSslSocketCount);
             printRow(pw, ONE_COUNT_COLUMN, "WebViews:", webviewInstanceCount);
 
+            final long[] resCacheStats = mResourcesManager.collectCacheStats();
+            pw.println(" ");
+            pw.println(" Resource Caches");
+            printRow(pw, TWO_COUNT_COLUMNS,
+                    "Hits:", resCacheStats[ResourcesImpl.CACHE_STAT_HITS],
+                    "Misses:", resCacheStats[ResourcesImpl.CACHE_STAT_MISSES]);
+            printRow(pw, TWO_COUNT_COLUMNS,
+                    "Cleared:", resCacheStats[ResourcesImpl.CACHE_STAT_CLEARED],
+                    "Retained:", resCacheStats[ResourcesImpl.CACHE_STAT_RETAINED]);
+
             // SQLite mem info
             pw.println(" ");
             pw.println(" SQL");
@@ -140,6 +140,23 @@ public class ResourcesManager {
         }
     }
 
+    /**
+     * Returns the hit, miss, cleared and retained entry counts of the resource caches of all
+     * live {@link ResourcesImpl}s, indexed by the {@code ResourcesImpl.CACHE_STAT_} constants.
+     */
+    public long[] collectCacheStats() {
+        final long[] stats = new long[ResourcesImpl.CACHE_STAT_COUNT];
+        synchronized (this) {
+            for (int i = mResourceImpls.size() - 1; i >= 0; i--) {
+                final ResourcesImpl impl = mResourceImpls.valueAt(i).get();
+                if (impl != null) {
+                    impl.collectCacheStats(stats);
+                }
+            }
+        }
+        return stats;
+    }
+
     public Configuration getConfiguration() {
         synchronized (this) {
             return mResConfiguration;
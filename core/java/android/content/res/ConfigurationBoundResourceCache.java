@@ -47,4 +47,9 @@ public class ConfigurationBoundResourceCache<T> extends ThemedResourceCache<Cons
     public boolean shouldInvalidateEntry(ConstantState<T> entry, @Config int configChanges) {
         return Configuration.needNewResources(configChanges, entry.getChangingConfigurations());
     }
+
+    @Override
+    public int getChangingConfigurations(ConstantState<T> entry) {
+        return entry.getChangingConfigurations();
+    }
 }
@@ -44,4 +44,9 @@ class DrawableCache extends ThemedResourceCache<Drawable.ConstantState> {
     public boolean shouldInvalidateEntry(Drawable.ConstantState entry, int configChanges) {
         return Configuration.needNewResources(configChanges, entry.getChangingConfigurations());
     }
+
+    @Override
+    public int getChangingConfigurations(Drawable.ConstantState entry) {
+        return entry.getChangingConfigurations();
+    }
 }
@@ -342,6 +342,29 @@ public class ResourcesImpl {
         return mStateListAnimatorCache;
     }
 
+    /** Index of the cache hit count in the array filled by {@link #collectCacheStats}. */
+    public static final int CACHE_STAT_HITS = ThemedResourceCache.STAT_HITS;
+    /** Index of the cache miss count in the array filled by {@link #collectCacheStats}. */
+    public static final int CACHE_STAT_MISSES = ThemedResourceCache.STAT_MISSES;
+    /** Index of the count of entries found garbage collected. */
+    public static final int CACHE_STAT_CLEARED = ThemedResourceCache.STAT_CLEARED;
+    /** Index of the count of entries currently kept strongly reachable. */
+    public static final int CACHE_STAT_RETAINED = ThemedResourceCache.STAT_RETAINED;
+    /** Size of the array filled by {@link #collectCacheStats}. */
+    public static final int CACHE_STAT_COUNT = ThemedResourceCache.STAT_COUNT;
+
+    /**
+     * Adds the statistics of the drawable, color, animator and state list animator caches to
+     * {@code stats}, indexed by the {@code CACHE_STAT_} constants.
+     */
+    public void collectCacheStats(long[] stats) {
+        mDrawableCache.collectStats(stats);
+        mColorDrawableCache.collectStats(stats);
+        mComplexColorCache.collectStats(stats);
+        mAnimatorCache.collectStats(stats);
+        mStateListAnimatorCache.collectStats(stats);
+    }
+
     public void updateConfiguration(Configuration config, DisplayMetrics metrics,
                                     CompatibilityInfo compat) {
         Trace.traceBegin(Trace.TRACE_TAG_RESOURCES, "ResourcesImpl#updateConfiguration");
@@ -605,9 +628,9 @@ public class ResourcesImpl {
             // unresolved theme attributes.
             final Drawable.ConstantState cs;
             if (isColorDrawable) {
-                cs = sPreloadedColorDrawables.get(key);
+                cs = getPreloaded(sPreloadedColorDrawables, key);
             } else {
-                cs = sPreloadedDrawables[mConfiguration.getLayoutDirection()].get(key);
+                cs = getPreloaded(sPreloadedDrawables[mConfiguration.getLayoutDirection()], key);
             }
 
             Drawable dr;
@@ -682,6 +705,26 @@ public class ResourcesImpl {
         }
     }
 
+    /**
+     * The zygote may preload drawables and colors on several threads, so the preload caches are
+     * only read and written under {@link #sSync} while preloading. Once preloading is finished,
+     * they are never written again and can be read without locking.
+     */
+    private <T> T getPreloaded(LongSparseArray<T> cache, long key) {
+        if (mPreloading) {
+            synchronized (sSync) {
+                return cache.get(key);
+            }
+        }
+        return cache.get(key);
+    }
+
+    private static <T> void putPreloaded(LongSparseArray<T> cache, long key, T value) {
+        synchronized (sSync) {
+            cache.put(key, value);
+        }
+    }
+
     private void cacheDrawable(TypedValue value, boolean isColorDrawable, DrawableCache caches,
             Resources.Theme theme, boolean usesTheme, long key, Drawable dr) {
         final Drawable.ConstantState cs = dr.getConstantState();
@@ -693,7 +736,7 @@ public class ResourcesImpl {
             final int changingConfigs = cs.getChangingConfigurations();
             if (isColorDrawable) {
                 if (verifyPreloadConfig(changingConfigs, 0, value.resourceId, "drawable")) {
-                    sPreloadedColorDrawables.put(key, cs);
+                    putPreloaded(sPreloadedColorDrawables, key, cs);
                 }
             } else {
                 if (verifyPreloadConfig(
@@ -701,11 +744,12 @@ public class ResourcesImpl {
                     if ((changingConfigs & ActivityInfo.CONFIG_LAYOUT_DIRECTION) == 0) {
                         // If this resource does not vary based on layout direction,
                         // we can put it in all of the preload maps.
-                        sPreloadedDrawables[0].put(key, cs);
-                        sPreloadedDrawables[1].put(key, cs);
+                        putPreloaded(sPreloadedDrawables[0], key, cs);
+                        putPreloaded(sPreloadedDrawables[1], key, cs);
                     } else {
                         // Otherwise, only in the layout dir we loaded it for.
-                        sPreloadedDrawables[mConfiguration.getLayoutDirection()].put(key, cs);
+                        putPreloaded(sPreloadedDrawables[mConfiguration.getLayoutDirection()],
+                                key, cs);
                     }
                 }
             }
@@ -920,7 +964,7 @@ public class ResourcesImpl {
         }
 
         final android.content.res.ConstantState<ComplexColor> factory =
-                sPreloadedComplexColors.get(key);
+                getPreloaded(sPreloadedComplexColors, key);
 
         if (factory != null) {
             complexColor = factory.newInstance(wrapper, theme);
@@ -935,7 +979,7 @@ public class ResourcesImpl {
             if (mPreloading) {
                 if (verifyPreloadConfig(complexColor.getChangingConfigurations(),
                         0, value.resourceId, "color")) {
-                    sPreloadedComplexColors.put(key, complexColor.getConstantState());
+                    putPreloaded(sPreloadedComplexColors, key, complexColor.getConstantState());
                 }
             } else {
                 cache.put(key, theme, complexColor.getConstantState());
@@ -1019,7 +1063,7 @@ public class ResourcesImpl {
     private ColorStateList getColorStateListFromInt(@NonNull TypedValue value, long key) {
         ColorStateList csl;
         final android.content.res.ConstantState<ComplexColor> factory =
-                sPreloadedComplexColors.get(key);
+                getPreloaded(sPreloadedComplexColors, key);
         if (factory != null) {
             return (ColorStateList) factory.newInstance();
         }
@@ -1029,7 +1073,7 @@ public class ResourcesImpl {
         if (mPreloading) {
             if (verifyPreloadConfig(value.changingConfigurations, 0, value.resourceId,
                     "color")) {
-                sPreloadedComplexColors.put(key, csl.getConstantState());
+                putPreloaded(sPreloadedComplexColors, key, csl.getConstantState());
             }
         }
 
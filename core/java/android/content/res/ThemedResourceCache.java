@@ -21,20 +21,67 @@ import android.annotation.Nullable;
 import android.content.pm.ActivityInfo.Config;
 import android.content.res.Resources.Theme;
 import android.content.res.Resources.ThemeKey;
-import android.util.LongSparseArray;
 import android.util.ArrayMap;
+import android.util.LongSparseArray;
 
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 
 /**
  * Data structure used for caching data against themes.
+ * <p>
+ * Entries are spread by key over a few independently locked stripes, so that threads loading
+ * different resources don't contend. Each stripe keeps its most recently used entries strongly
+ * reachable, so that they survive the gap between an activity being destroyed and recreated,
+ * and remembers which configuration changes affect its entries, so that configuration changes
+ * only scan the entries they may invalidate.
  *
  * @param <T> type of data to cache
  */
 abstract class ThemedResourceCache<T> {
-    private ArrayMap<ThemeKey, LongSparseArray<WeakReference<T>>> mThemedEntries;
-    private LongSparseArray<WeakReference<T>> mUnthemedEntries;
-    private LongSparseArray<WeakReference<T>> mNullThemedEntries;
+    /** Number of stripes; must be a power of two. */
+    private static final int STRIPE_COUNT = 4;
+
+    /** Number of most recently used entries kept strongly reachable by each stripe. */
+    private static final int STRONG_ENTRIES_PER_STRIPE = 4;
+
+    /** Indices of the counters filled by {@link #collectStats}. */
+    static final int STAT_HITS = 0;
+    static final int STAT_MISSES = 1;
+    static final int STAT_CLEARED = 2;
+    static final int STAT_RETAINED = 3;
+    static final int STAT_COUNT = 4;
+
+    private final Stripe<T>[] mStripes;
+
+    /** The entries cached against a single theme. */
+    private static final class Entries<T> {
+        final LongSparseArray<WeakReference<T>> refs = new LongSparseArray<>(1);
+
+        /** Union of the configuration changes that affect the entries. */
+        @Config int changingConfigurations;
+    }
+
+    private static final class Stripe<T> {
+        ArrayMap<ThemeKey, Entries<T>> themedEntries;
+        Entries<T> unthemedEntries;
+        Entries<T> nullThemedEntries;
+
+        /** Most recently used entries first. */
+        final ArrayList<T> strongEntries = new ArrayList<>(STRONG_ENTRIES_PER_STRIPE);
+
+        long hitCount;
+        long missCount;
+        long clearedCount;
+    }
+
+    @SuppressWarnings("unchecked")
+    ThemedResourceCache() {
+        mStripes = new Stripe[STRIPE_COUNT];
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+            mStripes[i] = new Stripe<>();
+        }
+    }
 
     /**
      * Adds a new theme-dependent entry to the cache.
@@ -63,15 +110,18 @@ abstract class ThemedResourceCache<T> {
             return;
         }
 
-        synchronized (this) {
-            final LongSparseArray<WeakReference<T>> entries;
+        final Stripe<T> stripe = getStripe(key);
+        synchronized (stripe) {
+            final Entries<T> entries;
             if (!usesTheme) {
-                entries = getUnthemedLocked(true);
+                entries = getUnthemedLocked(stripe, true);
             } else {
-                entries = getThemedLocked(theme, true);
+                entries = getThemedLocked(stripe, theme, true);
             }
             if (entries != null) {
-                entries.put(key, new WeakReference<>(entry));
+                entries.refs.put(key, new WeakReference<>(entry));
+                entries.changingConfigurations |= getChangingConfigurations(entry);
+                retainLocked(stripe, entry);
             }
         }
     }
@@ -89,27 +139,63 @@ abstract class ThemedResourceCache<T> {
         // exclusive, so we'll give priority to whichever one we think we'll
         // hit first. Since most of the framework drawables are themed, that's
         // probably going to be the themed cache.
-        synchronized (this) {
-            final LongSparseArray<WeakReference<T>> themedEntries = getThemedLocked(theme, false);
+        final Stripe<T> stripe = getStripe(key);
+        synchronized (stripe) {
+            final Entries<T> themedEntries = getThemedLocked(stripe, theme, false);
             if (themedEntries != null) {
-                final WeakReference<T> themedEntry = themedEntries.get(key);
-                if (themedEntry != null) {
-                    return themedEntry.get();
+                final int index = themedEntries.refs.indexOfKey(key);
+                if (index >= 0) {
+                    return getEntryLocked(stripe, themedEntries, index);
                 }
             }
 
-            final LongSparseArray<WeakReference<T>> unthemedEntries = getUnthemedLocked(false);
+            final Entries<T> unthemedEntries = getUnthemedLocked(stripe, false);
             if (unthemedEntries != null) {
-                final WeakReference<T> unthemedEntry = unthemedEntries.get(key);
-                if (unthemedEntry != null) {
-                    return unthemedEntry.get();
+                final int index = unthemedEntries.refs.indexOfKey(key);
+                if (index >= 0) {
+                    return getEntryLocked(stripe, unthemedEntries, index);
                 }
             }
+
+            stripe.missCount++;
         }
 
         return null;
     }
 
+    private T getEntryLocked(Stripe<T> stripe, Entries<T> entries, int index) {
+        final T entry = entries.refs.valueAt(index).get();
+        if (entry == null) {
+            entries.refs.removeAt(index);
+            stripe.clearedCount++;
+            stripe.missCount++;
+            return null;
+        }
+        stripe.hitCount++;
+        retainLocked(stripe, entry);
+        return entry;
+    }
+
+    /**
+     * Keeps the entry strongly reachable as one of the most recently used of its stripe.
+     */
+    private void retainLocked(Stripe<T> stripe, T entry) {
+        final ArrayList<T> strongEntries = stripe.strongEntries;
+        for (int i = 0; i < strongEntries.size(); i++) {
+            if (strongEntries.get(i) == entry) {
+                if (i == 0) {
+                    return;
+                }
+                strongEntries.remove(i);
+                break;
+            }
+        }
+        if (strongEntries.size() == STRONG_ENTRIES_PER_STRIPE) {
+            strongEntries.remove(STRONG_ENTRIES_PER_STRIPE - 1);
+        }
+        strongEntries.add(0, entry);
+    }
+
     /**
      * Prunes cache entries that have been invalidated by a configuration
      * change.
@@ -120,6 +206,21 @@ abstract class ThemedResourceCache<T> {
         prune(configChanges);
     }
 
+    /**
+     * Adds the hit, miss, cleared weak reference and strongly retained entry counts of this
+     * cache to {@code stats}, indexed by the {@code STAT_} constants.
+     */
+    void collectStats(long[] stats) {
+        for (Stripe<T> stripe : mStripes) {
+            synchronized (stripe) {
+                stats[STAT_HITS] += stripe.hitCount;
+                stats[STAT_MISSES] += stripe.missCount;
+                stats[STAT_CLEARED] += stripe.clearedCount;
+                stats[STAT_RETAINED] += stripe.strongEntries.size();
+            }
+        }
+    }
+
     /**
      * Returns whether a cached entry has been invalidated by a configuration
      * change.
@@ -130,6 +231,21 @@ abstract class ThemedResourceCache<T> {
      */
     protected abstract boolean shouldInvalidateEntry(@NonNull T entry, int configChanges);
 
+    /**
+     * Returns the configuration changes that may invalidate a cached entry. Configuration
+     * changes that don't intersect any of the entries cached against a theme don't need to
+     * inspect them.
+     *
+     * @param entry a cached entry
+     * @return a bitmask of configuration changes
+     */
+    @Config
+    protected abstract int getChangingConfigurations(@NonNull T entry);
+
+    private Stripe<T> getStripe(long key) {
+        return mStripes[(int) (key ^ (key >>> 32)) & (STRIPE_COUNT - 1)];
+    }
+
     /**
      * Returns the cached data for the specified theme, optionally creating a
      * new entry if one does not already exist.
@@ -141,29 +257,29 @@ abstract class ThemedResourceCache<T> {
      *         empty and {@code create} was {@code false}
      */
     @Nullable
-    private LongSparseArray<WeakReference<T>> getThemedLocked(@Nullable Theme t, boolean create) {
+    private Entries<T> getThemedLocked(Stripe<T> stripe, @Nullable Theme t, boolean create) {
         if (t == null) {
-            if (mNullThemedEntries == null && create) {
-                mNullThemedEntries = new LongSparseArray<>(1);
+            if (stripe.nullThemedEntries == null && create) {
+                stripe.nullThemedEntries = new Entries<>();
             }
-            return mNullThemedEntries;
+            return stripe.nullThemedEntries;
         }
 
-        if (mThemedEntries == null) {
+        if (stripe.themedEntries == null) {
             if (create) {
-                mThemedEntries = new ArrayMap<>(1);
+                stripe.themedEntries = new ArrayMap<>(1);
             } else {
                 return null;
             }
         }
 
         final ThemeKey key = t.getKey();
-        LongSparseArray<WeakReference<T>> cache = mThemedEntries.get(key);
+        Entries<T> cache = stripe.themedEntries.get(key);
         if (cache == null && create) {
-            cache = new LongSparseArray<>(1);
+            cache = new Entries<>();
 
             final ThemeKey keyClone = key.clone();
-            mThemedEntries.put(keyClone, cache);
+            stripe.themedEntries.put(keyClone, cache);
         }
 
         return cache;
@@ -178,11 +294,11 @@ abstract class ThemedResourceCache<T> {
      *         empty and {@code create} was {@code false}
      */
     @Nullable
-    private LongSparseArray<WeakReference<T>> getUnthemedLocked(boolean create) {
-        if (mUnthemedEntries == null && create) {
-            mUnthemedEntries = new LongSparseArray<>(1);
+    private Entries<T> getUnthemedLocked(Stripe<T> stripe, boolean create) {
+        if (stripe.unthemedEntries == null && create) {
+            stripe.unthemedEntries = new Entries<>();
         }
-        return mUnthemedEntries;
+        return stripe.unthemedEntries;
     }
 
     /**
@@ -194,37 +310,61 @@ abstract class ThemedResourceCache<T> {
      * @return {@code true} if the cache is completely empty after pruning
      */
     private boolean prune(@Config int configChanges) {
-        synchronized (this) {
-            if (mThemedEntries != null) {
-                for (int i = mThemedEntries.size() - 1; i >= 0; i--) {
-                    if (pruneEntriesLocked(mThemedEntries.valueAt(i), configChanges)) {
-                        mThemedEntries.removeAt(i);
+        boolean empty = true;
+        for (Stripe<T> stripe : mStripes) {
+            synchronized (stripe) {
+                if (stripe.themedEntries != null) {
+                    for (int i = stripe.themedEntries.size() - 1; i >= 0; i--) {
+                        if (pruneEntriesLocked(stripe.themedEntries.valueAt(i), configChanges)) {
+                            stripe.themedEntries.removeAt(i);
+                        }
                     }
                 }
-            }
 
-            pruneEntriesLocked(mNullThemedEntries, configChanges);
-            pruneEntriesLocked(mUnthemedEntries, configChanges);
+                pruneEntriesLocked(stripe.nullThemedEntries, configChanges);
+                pruneEntriesLocked(stripe.unthemedEntries, configChanges);
+
+                if (configChanges != 0) {
+                    final ArrayList<T> strongEntries = stripe.strongEntries;
+                    for (int i = strongEntries.size() - 1; i >= 0; i--) {
+                        if (shouldInvalidateEntry(strongEntries.get(i), configChanges)) {
+                            strongEntries.remove(i);
+                        }
+                    }
+                }
 
-            return mThemedEntries == null && mNullThemedEntries == null
-                    && mUnthemedEntries == null;
+                empty &= stripe.themedEntries == null && stripe.nullThemedEntries == null
+                        && stripe.unthemedEntries == null;
+            }
         }
+        return empty;
     }
 
-    private boolean pruneEntriesLocked(@Nullable LongSparseArray<WeakReference<T>> entries,
-            @Config int configChanges) {
+    private boolean pruneEntriesLocked(@Nullable Entries<T> entries, @Config int configChanges) {
         if (entries == null) {
             return true;
         }
 
-        for (int i = entries.size() - 1; i >= 0; i--) {
-            final WeakReference<T> ref = entries.valueAt(i);
-            if (ref == null || pruneEntryLocked(ref.get(), configChanges)) {
-                entries.removeAt(i);
+        // Nothing cached against this theme depends on what changed. Cleared references are
+        // left to be dropped when they are looked up.
+        if (configChanges != 0
+                && !Configuration.needNewResources(configChanges, entries.changingConfigurations)) {
+            return entries.refs.size() == 0;
+        }
+
+        int changingConfigurations = 0;
+        for (int i = entries.refs.size() - 1; i >= 0; i--) {
+            final WeakReference<T> ref = entries.refs.valueAt(i);
+            final T entry = ref != null ? ref.get() : null;
+            if (pruneEntryLocked(entry, configChanges)) {
+                entries.refs.removeAt(i);
+            } else {
+                changingConfigurations |= getChangingConfigurations(entry);
             }
         }
+        entries.changingConfigurations = changingConfigurations;
 
-        return entries.size() == 0;
+        return entries.refs.size() == 0;
     }
 
     private boolean pruneEntryLocked(@Nullable T entry, @Config int configChanges) {
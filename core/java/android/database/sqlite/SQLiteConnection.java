@@ -103,6 +103,11 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
     private final PreparedStatementCache mPreparedStatementCache;
     private PreparedStatement mPreparedStatementPool;
 
+    // Statement cache counters at the last working set check, see
+    // isPreparedStatementCacheThrashing().
+    private int mLastCheckedCacheMissCount;
+    private int mLastCheckedCacheEvictionCount;
+
     // The recent operations log.
     private final OperationLog mRecentOperations = new OperationLog();
 
@@ -451,6 +456,35 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
         return mPreparedStatementCache.get(sql) != null;
     }
 
+    // Called by SQLiteConnectionPool only.
+    // Returns the maximum number of statements the prepared statement cache holds.
+    int getPreparedStatementCacheMaxSize() {
+        return mPreparedStatementCache.maxSize();
+    }
+
+    // Called by SQLiteConnectionPool only.
+    // Changes the prepared statement cache size without touching the configuration,
+    // the next reconfigure() goes back to the configured size.
+    void resizePreparedStatementCache(int maxSize) {
+        mPreparedStatementCache.resize(maxSize);
+    }
+
+    // Called by SQLiteConnectionPool only.
+    // Returns true if, since the last call, the prepared statement cache has missed at least
+    // as many statements as it can hold and most of those misses pushed out another cached
+    // statement, meaning that the working set of statements doesn't fit in the cache.
+    boolean isPreparedStatementCacheThrashing() {
+        final int misses = mPreparedStatementCache.missCount() - mLastCheckedCacheMissCount;
+        if (misses < mPreparedStatementCache.maxSize()) {
+            return false;
+        }
+        final int evictions = mPreparedStatementCache.evictionCount()
+                - mLastCheckedCacheEvictionCount;
+        mLastCheckedCacheMissCount = mPreparedStatementCache.missCount();
+        mLastCheckedCacheEvictionCount = mPreparedStatementCache.evictionCount();
+        return evictions * 2 >= misses;
+    }
+
     /**
      * Gets the unique id of this connection.
      * @return The connection id.
@@ -1078,6 +1112,13 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
         printer.println("  isPrimaryConnection: " + mIsPrimaryConnection);
         printer.println("  onlyAllowReadOnlyOperations: " + mOnlyAllowReadOnlyOperations);
 
+        printer.println("  Prepared statement cache stats: size="
+                + mPreparedStatementCache.size()
+                + ", maxSize=" + mPreparedStatementCache.maxSize()
+                + ", hits=" + mPreparedStatementCache.hitCount()
+                + ", misses=" + mPreparedStatementCache.missCount()
+                + ", evictions=" + mPreparedStatementCache.evictionCount());
+
         mRecentOperations.dump(printer, verbose);
 
         if (verbose) {
@@ -82,6 +82,23 @@ public final class SQLiteConnectionPool implements Closeable {
     // and logging a message about the connection pool being busy.
     private static final long CONNECTION_POOL_BUSY_MILLIS = 30 * 1000; // 30 seconds
 
+    // Number of non-primary connection acquisitions over which the adaptive mode decides
+    // whether to grow or shrink the pool.
+    private static final int ADAPTIVE_WINDOW_SIZE = 64;
+
+    // The adaptive mode grows the pool when at least this fraction (1/n) of the acquisitions
+    // in a window had to wait, or when they waited at least ADAPTIVE_GROW_WAIT_MILLIS in total.
+    private static final int ADAPTIVE_GROW_WAIT_RATIO = 4;
+    private static final long ADAPTIVE_GROW_WAIT_MILLIS = 100;
+
+    // Maximum number of connections the adaptive mode adds on top of the configured size.
+    private static final int ADAPTIVE_MAX_EXTRA_CONNECTIONS = 4;
+
+    // Upper bounds in milliseconds of the connection wait time histogram buckets.  The last
+    // bucket holds all the waits that are longer.
+    private static final long[] WAIT_TIME_BUCKET_BOUNDS_MILLIS =
+            { 0, 1, 4, 16, 64, 256, 1024 };
+
     private final CloseGuard mCloseGuard = CloseGuard.get();
 
     private final Object mLock = new Object();
@@ -102,6 +119,34 @@ public final class SQLiteConnectionPool implements Closeable {
     @GuardedBy("mLock")
     private IdleConnectionHandler mIdleConnectionHandler;
 
+    // Adaptive mode state, see SQLiteGlobal.isAdaptiveConnectionPoolEnabled().
+    @GuardedBy("mLock")
+    private boolean mAdaptiveMode;
+    @GuardedBy("mLock")
+    private int mBaseConnectionPoolSize;
+    @GuardedBy("mLock")
+    private int mAdaptiveSqlCacheSize;
+    @GuardedBy("mLock")
+    private int mWindowAcquisitionCount;
+    @GuardedBy("mLock")
+    private int mWindowWaitCount;
+    @GuardedBy("mLock")
+    private long mWindowWaitMillis;
+    @GuardedBy("mLock")
+    private int mPoolGrowCount;
+    @GuardedBy("mLock")
+    private int mPoolShrinkCount;
+    @GuardedBy("mLock")
+    private int mStatementCacheGrowCount;
+
+    // Connection acquisition statistics, reported by dump().
+    @GuardedBy("mLock")
+    private long mAcquisitionCount;
+    @GuardedBy("mLock")
+    private long mWaitCount;
+    @GuardedBy("mLock")
+    private final long[] mWaitTimeHistogram = new long[WAIT_TIME_BUCKET_BOUNDS_MILLIS.length + 1];
+
     // Describes what should happen to an acquired connection when it is returned to the pool.
     enum AcquiredConnectionStatus {
         // The connection should be returned to the pool as usual.
@@ -156,6 +201,7 @@ public final class SQLiteConnectionPool implements Closeable {
 
     private SQLiteConnectionPool(SQLiteDatabaseConfiguration configuration) {
         mConfiguration = new SQLiteDatabaseConfiguration(configuration);
+        mAdaptiveMode = SQLiteGlobal.isAdaptiveConnectionPoolEnabled();
         setMaxConnectionPoolSizeLocked();
         // If timeout is set, setup idle connection handler
         // In case of MAX_VALUE - idle connections are never closed
@@ -434,9 +480,28 @@ public final class SQLiteConnectionPool implements Closeable {
             closeConnectionAndLogExceptionsLocked(connection);
             return false;
         }
+        if (mAdaptiveMode) {
+            adaptPreparedStatementCacheLocked(connection);
+        }
         return true;
     }
 
+    // Can't throw.
+    // Grows the prepared statement cache of the database when the released connection
+    // shows that the working set of statements doesn't fit, and brings the connection up to
+    // the current size.  Reconfiguring the pool goes back to the configured size.
+    private void adaptPreparedStatementCacheLocked(SQLiteConnection connection) {
+        if (connection.isPreparedStatementCacheThrashing()
+                && mAdaptiveSqlCacheSize < SQLiteDatabase.MAX_SQL_CACHE_SIZE) {
+            mAdaptiveSqlCacheSize = Math.min(mAdaptiveSqlCacheSize * 2,
+                    SQLiteDatabase.MAX_SQL_CACHE_SIZE);
+            mStatementCacheGrowCount += 1;
+        }
+        if (connection.getPreparedStatementCacheMaxSize() < mAdaptiveSqlCacheSize) {
+            connection.resizePreparedStatementCache(mAdaptiveSqlCacheSize);
+        }
+    }
+
     /**
      * Returns true if the session should yield the connection due to
      * contention over available database connections.
@@ -667,6 +732,7 @@ public final class SQLiteConnectionPool implements Closeable {
                 connection = tryAcquirePrimaryConnectionLocked(connectionFlags); // might throw
             }
             if (connection != null) {
+                onConnectionAcquiredLocked(wantPrimaryConnection, false /*waited*/, 0);
                 return connection;
             }
 
@@ -735,6 +801,8 @@ public final class SQLiteConnectionPool implements Closeable {
                     if (connection != null || ex != null) {
                         recycleConnectionWaiterLocked(waiter);
                         if (connection != null) {
+                            onConnectionAcquiredLocked(wantPrimaryConnection, true /*waited*/,
+                                    SystemClock.uptimeMillis() - waiter.mStartTime);
                             return connection;
                         }
                         throw ex; // rethrow!
@@ -1011,6 +1079,75 @@ public final class SQLiteConnectionPool implements Closeable {
             // For now, enabling connection pooling and using WAL are the same thing in the API.
             mMaxConnectionPoolSize = 1;
         }
+        mBaseConnectionPoolSize = mMaxConnectionPoolSize;
+        mAdaptiveSqlCacheSize = mConfiguration.maxSqlCacheSize;
+        resetAdaptiveWindowLocked();
+    }
+
+    // Can't throw.
+    private void onConnectionAcquiredLocked(boolean wantPrimaryConnection, boolean waited,
+            long waitMillis) {
+        mAcquisitionCount += 1;
+        if (waited) {
+            mWaitCount += 1;
+        }
+        int bucket = 0;
+        while (bucket < WAIT_TIME_BUCKET_BOUNDS_MILLIS.length
+                && waitMillis > WAIT_TIME_BUCKET_BOUNDS_MILLIS[bucket]) {
+            bucket += 1;
+        }
+        mWaitTimeHistogram[bucket] += 1;
+
+        // Only the read connections scale, waiting for the primary connection is
+        // unaffected by the pool size.
+        if (!mAdaptiveMode || wantPrimaryConnection || mBaseConnectionPoolSize < 2) {
+            return;
+        }
+        mWindowAcquisitionCount += 1;
+        if (waited) {
+            mWindowWaitCount += 1;
+            mWindowWaitMillis += waitMillis;
+        }
+        if (mWindowAcquisitionCount < ADAPTIVE_WINDOW_SIZE) {
+            return;
+        }
+
+        final int maxPoolSize = mBaseConnectionPoolSize + Math.min(mBaseConnectionPoolSize,
+                ADAPTIVE_MAX_EXTRA_CONNECTIONS);
+        if (mWindowWaitCount * ADAPTIVE_GROW_WAIT_RATIO >= mWindowAcquisitionCount
+                || mWindowWaitMillis >= ADAPTIVE_GROW_WAIT_MILLIS) {
+            if (mMaxConnectionPoolSize < maxPoolSize) {
+                mMaxConnectionPoolSize += 1;
+                mPoolGrowCount += 1;
+                // Let the waiters open the connection that is now allowed.
+                wakeConnectionWaitersLocked();
+            }
+        } else if (mWindowWaitCount == 0 && mMaxConnectionPoolSize > mBaseConnectionPoolSize) {
+            mMaxConnectionPoolSize -= 1;
+            mPoolShrinkCount += 1;
+            closeExcessConnectionsAndLogExceptionsLocked();
+        }
+        resetAdaptiveWindowLocked();
+    }
+
+    private void resetAdaptiveWindowLocked() {
+        mWindowAcquisitionCount = 0;
+        mWindowWaitCount = 0;
+        mWindowWaitMillis = 0;
+    }
+
+    /**
+     * Enables or disables the adaptive mode, in which the number of read connections of a
+     * WAL database grows and shrinks with the observed connection wait times and prepared
+     * statement caches grow with the working set of statements.
+     */
+    @VisibleForTesting
+    public void setAdaptiveModeEnabled(boolean enabled) {
+        synchronized (mLock) {
+            mAdaptiveMode = enabled;
+            setMaxConnectionPoolSizeLocked();
+            closeExcessConnectionsAndLogExceptionsLocked();
+        }
     }
 
     /**
@@ -1076,6 +1213,26 @@ public final class SQLiteConnectionPool implements Closeable {
             printer.println("Connection pool for " + mConfiguration.path + ":");
             printer.println("  Open: " + mIsOpen);
             printer.println("  Max connections: " + mMaxConnectionPoolSize);
+            if (mAdaptiveMode) {
+                printer.println("  Adaptive mode: baseConnections=" + mBaseConnectionPoolSize
+                        + ", grows=" + mPoolGrowCount
+                        + ", shrinks=" + mPoolShrinkCount
+                        + ", statementCacheSize=" + mAdaptiveSqlCacheSize
+                        + ", statementCacheGrows=" + mStatementCacheGrowCount);
+            }
+            printer.println("  Connection acquisitions: " + mAcquisitionCount
+                    + ", waited: " + mWaitCount);
+            StringBuilder histogram = new StringBuilder("  Connection wait times (ms):");
+            for (int i = 0; i < mWaitTimeHistogram.length; i++) {
+                if (i < WAIT_TIME_BUCKET_BOUNDS_MILLIS.length) {
+                    histogram.append(" <=").append(WAIT_TIME_BUCKET_BOUNDS_MILLIS[i]);
+                } else {
+                    histogram.append(" >")
+                            .append(WAIT_TIME_BUCKET_BOUNDS_MILLIS[i - 1]);
+                }
+                histogram.append('=').append(mWaitTimeHistogram[i]);
+            }
+            printer.println(histogram.toString());
             if (mConfiguration.isLookasideConfigSet()) {
                 printer.println("  Lookaside config: sz=" + mConfiguration.lookasideSlotSize
                         + " cnt=" + mConfiguration.lookasideSlotCount);
@@ -127,6 +127,14 @@ public final class SQLiteGlobal {
         return Math.max(2, value);
     }
 
+    /**
+     * Returns true if connection pools should adapt the number of WAL read connections and the
+     * size of prepared statement caches to the observed load.
+     */
+    public static boolean isAdaptiveConnectionPoolEnabled() {
+        return SystemProperties.getBoolean("debug.sqlite.adaptive_pool", false);
+    }
+
     /**
      * The default number of milliseconds that SQLite connection is allowed to be idle before it
      * is closed and removed from the pool.
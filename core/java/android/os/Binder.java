@@ -22,6 +22,7 @@ import android.util.ExceptionUtils;
 import android.util.Log;
 import android.util.Slog;
 
+import com.android.internal.os.BinderCallsStats;
 import com.android.internal.util.FastPrintWriter;
 import com.android.internal.util.FunctionalUtils;
 import com.android.internal.util.FunctionalUtils.ThrowingRunnable;
@@ -136,6 +137,20 @@ public class Binder implements IBinder {
         return sTransactionTracker;
     }
 
+    /**
+     * Counts the incoming calls of this process, if set.
+     */
+    private static volatile BinderCallsStats sCallsStats = null;
+
+    /**
+     * Sets the stats to count the incoming calls of this process with, or null to stop.
+     *
+     * @hide
+     */
+    public static void setCallsStats(@Nullable BinderCallsStats callsStats) {
+        sCallsStats = callsStats;
+    }
+
     /** {@hide} */
     static volatile boolean sWarnOnBlocking = false;
 
@@ -690,6 +705,9 @@ public class Binder implements IBinder {
         // Log any exceptions as warnings, don't silently suppress them.
         // If the call was FLAG_ONEWAY then these exceptions disappear into the ether.
         final boolean tracingEnabled = Binder.isTracingEnabled();
+        final BinderCallsStats callsStats = sCallsStats;
+        final BinderCallsStats.CallSession callSession =
+                callsStats != null ? callsStats.callStarted(this, code) : null;
         try {
             if (tracingEnabled) {
                 Trace.traceBegin(Trace.TRACE_TAG_ALWAYS, getClass().getName() + ":" + code);
@@ -714,6 +732,9 @@ public class Binder implements IBinder {
             if (tracingEnabled) {
                 Trace.traceEnd(Trace.TRACE_TAG_ALWAYS);
             }
+            if (callSession != null) {
+                callsStats.callEnded(callSession);
+            }
         }
         checkParcel(this, code, reply, "Unreasonably large binder reply buffer");
         reply.recycle();
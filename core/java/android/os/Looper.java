@@ -80,6 +80,9 @@ public final class Looper {
     /* If set, the looper will show a warning log if a message dispatch takes longer than time. */
     private long mSlowDispatchThresholdMs;
 
+    /* If set, counts the messages dispatched by the looper. */
+    private LooperProfiler mProfiler;
+
      /** Initialize the current thread as a looper.
       * This gives you a chance to create handlers that then reference
       * this looper, before actually starting the loop. Be sure to call
@@ -153,12 +156,18 @@ public final class Looper {
             }
 
             final long slowDispatchThresholdMs = me.mSlowDispatchThresholdMs;
+            final LooperProfiler profiler = me.mProfiler;
 
             final long traceTag = me.mTraceTag;
             if (traceTag != 0 && Trace.isTagEnabled(traceTag)) {
                 Trace.traceBegin(traceTag, msg.target.getTraceName(msg));
             }
-            final long start = (slowDispatchThresholdMs == 0) ? 0 : SystemClock.uptimeMillis();
+            final long start = (slowDispatchThresholdMs == 0 && profiler == null)
+                    ? 0 : SystemClock.uptimeMillis();
+            final long startNanos = (profiler == null) ? 0 : System.nanoTime();
+            if (profiler != null) {
+                profiler.dispatchStarting(msg, start);
+            }
             final long end;
             try {
                 msg.target.dispatchMessage(msg);
@@ -168,6 +177,9 @@ public final class Looper {
                     Trace.traceEnd(traceTag);
                 }
             }
+            if (profiler != null) {
+                profiler.dispatchFinished(msg, start, System.nanoTime() - startNanos);
+            }
             if (slowDispatchThresholdMs > 0) {
                 final long time = end - start;
                 if (time > slowDispatchThresholdMs) {
@@ -248,6 +260,20 @@ public final class Looper {
         mSlowDispatchThresholdMs = slowDispatchThresholdMs;
     }
 
+    /**
+     * Sets a profiler to count the messages dispatched by this looper, or null to stop.
+     *
+     * {@hide}
+     */
+    public void setProfiler(@Nullable LooperProfiler profiler) {
+        mProfiler = profiler;
+    }
+
+    /** {@hide} */
+    public @Nullable LooperProfiler getProfiler() {
+        return mProfiler;
+    }
+
     /**
      * Quits the looper.
      * <p>
@@ -333,6 +359,10 @@ public final class Looper {
         proto.write(LooperProto.THREAD_ID, mThread.getId());
         proto.write(LooperProto.IDENTITY_HASH_CODE, System.identityHashCode(this));
         mQueue.writeToProto(proto, LooperProto.QUEUE);
+        final LooperProfiler profiler = mProfiler;
+        if (profiler != null) {
+            profiler.writeToProto(proto, LooperProto.PROFILER);
+        }
         proto.end(looperToken);
     }
 
@@ -0,0 +1,344 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import android.util.TimeUtils;
+import android.util.proto.ProtoOutputStream;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+/**
+ * Aggregates the messages dispatched by a {@link Looper}, by handler class and by callback class
+ * or what, as {@link Handler#getMessageName} names them: how many, how long they took to
+ * dispatch, and how late they were dispatched.
+ *
+ * <p>Durations are counted in histograms of power-of-two buckets, in fixed-size arrays, so that
+ * recording a dispatch doesn't allocate. Once {@link #MAX_ENTRIES} kinds of messages have been
+ * seen, the others are all counted together.
+ *
+ * @see Looper#setProfiler
+ * @hide
+ */
+public final class LooperProfiler {
+    /** Most kinds of messages counted separately. */
+    public static final int MAX_ENTRIES = 256;
+
+    /**
+     * Buckets of the histograms. Dispatch bucket i > 0 counts durations in
+     * [64 << i, 128 << i) microseconds, and delay bucket i > 0 in [1 << (i - 1), 1 << i)
+     * milliseconds; the last buckets count anything longer.
+     */
+    public static final int BUCKETS = 16;
+
+    private static final int DISPATCH_BUCKET_SHIFT = 7;
+    private static final int TABLE_SIZE = MAX_ENTRIES * 2;
+    private static final int OVERFLOW = MAX_ENTRIES;
+
+    // Entries, by index; the one at OVERFLOW counts the kinds that didn't fit.
+    private final Class<?>[] mHandlerClasses = new Class<?>[MAX_ENTRIES];
+    private final Class<?>[] mCallbackClasses = new Class<?>[MAX_ENTRIES];
+    private final int[] mWhats = new int[MAX_ENTRIES];
+    private final long[] mCounts = new long[MAX_ENTRIES + 1];
+    private final long[] mTotalDispatchMicros = new long[MAX_ENTRIES + 1];
+    private final long[] mMaxDispatchMicros = new long[MAX_ENTRIES + 1];
+    private final long[] mTotalDelayMillis = new long[MAX_ENTRIES + 1];
+    private final long[] mMaxDelayMillis = new long[MAX_ENTRIES + 1];
+    private final int[] mDispatchHistograms = new int[(MAX_ENTRIES + 1) * BUCKETS];
+    private final int[] mDelayHistograms = new int[(MAX_ENTRIES + 1) * BUCKETS];
+    private int mEntryCount;
+
+    // Open addressing table of entry indexes plus one, zero for free slots.
+    private final int[] mTable = new int[TABLE_SIZE];
+
+    private long mStartUptimeMillis = SystemClock.uptimeMillis();
+
+    // The message being dispatched, if any.
+    private Message mCurrentMessage;
+    private long mCurrentStartUptimeMillis;
+
+    /**
+     * Called by the looper before it dispatches a message.
+     */
+    void dispatchStarting(Message msg, long uptimeMillis) {
+        synchronized (this) {
+            mCurrentMessage = msg;
+            mCurrentStartUptimeMillis = uptimeMillis;
+        }
+    }
+
+    /**
+     * Called by the looper after it dispatched a message, before the message is recycled.
+     *
+     * @param startUptimeMillis when the looper started to dispatch the message
+     * @param dispatchNanos how long the dispatch took
+     */
+    void dispatchFinished(Message msg, long startUptimeMillis, long dispatchNanos) {
+        // Messages sent at the front of the queue have no due time.
+        final long delayMillis = msg.when != 0 ? Math.max(0, startUptimeMillis - msg.when) : 0;
+        final long dispatchMicros = dispatchNanos / 1000;
+        final Class<?> handlerClass = msg.target.getClass();
+        final Class<?> callbackClass = msg.callback != null ? msg.callback.getClass() : null;
+        final int what = callbackClass != null ? 0 : msg.what;
+
+        synchronized (this) {
+            mCurrentMessage = null;
+            final int index = indexOfLocked(handlerClass, callbackClass, what);
+            mCounts[index]++;
+            mTotalDispatchMicros[index] += dispatchMicros;
+            mMaxDispatchMicros[index] = Math.max(mMaxDispatchMicros[index], dispatchMicros);
+            mTotalDelayMillis[index] += delayMillis;
+            mMaxDelayMillis[index] = Math.max(mMaxDelayMillis[index], delayMillis);
+            mDispatchHistograms[index * BUCKETS
+                    + bucketOf(dispatchMicros >> DISPATCH_BUCKET_SHIFT)]++;
+            mDelayHistograms[index * BUCKETS + bucketOf(delayMillis)]++;
+        }
+    }
+
+    private int indexOfLocked(Class<?> handlerClass, Class<?> callbackClass, int what) {
+        int hash = System.identityHashCode(handlerClass) * 31
+                + (callbackClass != null ? System.identityHashCode(callbackClass) : what);
+        hash ^= hash >>> 16;
+        int slot = hash & (TABLE_SIZE - 1);
+        for (;;) {
+            final int index = mTable[slot] - 1;
+            if (index < 0) {
+                break;
+            }
+            if (mHandlerClasses[index] == handlerClass && mCallbackClasses[index] == callbackClass
+                    && mWhats[index] == what) {
+                return index;
+            }
+            slot = (slot + 1) & (TABLE_SIZE - 1);
+        }
+        if (mEntryCount == MAX_ENTRIES) {
+            return OVERFLOW;
+        }
+        final int index = mEntryCount++;
+        mHandlerClasses[index] = handlerClass;
+        mCallbackClasses[index] = callbackClass;
+        mWhats[index] = what;
+        mTable[slot] = index + 1;
+        return index;
+    }
+
+    private static int bucketOf(long value) {
+        return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value));
+    }
+
+    /**
+     * Describes the message being dispatched, if any, and for how long it has been.
+     *
+     * @return the description, or null if the looper isn't dispatching a message
+     */
+    public String describeCurrentDispatch() {
+        synchronized (this) {
+            if (mCurrentMessage == null) {
+                return null;
+            }
+            // The message isn't recycled before dispatchFinished(), which needs the lock. Don't
+            // call Handler#getMessageName here, which may be overridden to take other locks.
+            final Message msg = mCurrentMessage;
+            return msg.target.getClass().getName() + " " + (msg.callback != null
+                    ? msg.callback.getClass().getName() : "0x" + Integer.toHexString(msg.what))
+                    + " for " + (SystemClock.uptimeMillis() - mCurrentStartUptimeMillis) + "ms";
+        }
+    }
+
+    /** Forgets what was counted so far. */
+    public void reset() {
+        synchronized (this) {
+            Arrays.fill(mHandlerClasses, null);
+            Arrays.fill(mCallbackClasses, null);
+            Arrays.fill(mCounts, 0);
+            Arrays.fill(mTotalDispatchMicros, 0);
+            Arrays.fill(mMaxDispatchMicros, 0);
+            Arrays.fill(mTotalDelayMillis, 0);
+            Arrays.fill(mMaxDelayMillis, 0);
+            Arrays.fill(mDispatchHistograms, 0);
+            Arrays.fill(mDelayHistograms, 0);
+            Arrays.fill(mTable, 0);
+            mEntryCount = 0;
+            mStartUptimeMillis = SystemClock.uptimeMillis();
+        }
+    }
+
+    /**
+     * Returns a copy of the counts, taken under the lock so that printing them doesn't hold up
+     * the looper, whose dispatches need the lock.
+     */
+    private LooperProfiler snapshot() {
+        final LooperProfiler copy = new LooperProfiler();
+        synchronized (this) {
+            System.arraycopy(mHandlerClasses, 0, copy.mHandlerClasses, 0, mEntryCount);
+            System.arraycopy(mCallbackClasses, 0, copy.mCallbackClasses, 0, mEntryCount);
+            System.arraycopy(mWhats, 0, copy.mWhats, 0, mEntryCount);
+            System.arraycopy(mCounts, 0, copy.mCounts, 0, mCounts.length);
+            System.arraycopy(mTotalDispatchMicros, 0, copy.mTotalDispatchMicros, 0,
+                    mTotalDispatchMicros.length);
+            System.arraycopy(mMaxDispatchMicros, 0, copy.mMaxDispatchMicros, 0,
+                    mMaxDispatchMicros.length);
+            System.arraycopy(mTotalDelayMillis, 0, copy.mTotalDelayMillis, 0,
+                    mTotalDelayMillis.length);
+            System.arraycopy(mMaxDelayMillis, 0, copy.mMaxDelayMillis, 0,
+                    mMaxDelayMillis.length);
+            System.arraycopy(mDispatchHistograms, 0, copy.mDispatchHistograms, 0,
+                    mDispatchHistograms.length);
+            System.arraycopy(mDelayHistograms, 0, copy.mDelayHistograms, 0,
+                    mDelayHistograms.length);
+            copy.mEntryCount = mEntryCount;
+            copy.mStartUptimeMillis = mStartUptimeMillis;
+        }
+        return copy;
+    }
+
+    /**
+     * Prints the kinds of messages that took the most time to dispatch first.
+     *
+     * @param maxEntries most kinds of messages to print
+     */
+    public void dump(PrintWriter pw, String prefix, int maxEntries) {
+        snapshot().dumpSnapshot(pw, prefix, maxEntries);
+    }
+
+    private void dumpSnapshot(PrintWriter pw, String prefix, int maxEntries) {
+        pw.print(prefix);
+        pw.print("Dispatches in the last ");
+        TimeUtils.formatDuration(SystemClock.uptimeMillis() - mStartUptimeMillis, pw);
+        pw.print(": ");
+        pw.print(mEntryCount);
+        pw.println(" kinds of messages");
+        pw.print(prefix);
+        pw.println("  (count, total/max dispatch ms, dispatch ms p50/p90/p99,"
+                + " mean/max delay ms)");
+
+        final Integer[] order = sortedByDispatchTime();
+        for (int i = 0; i < order.length && i < maxEntries; i++) {
+            final int index = order[i];
+            pw.print(prefix);
+            pw.print("  ");
+            pw.print(entryName(index));
+            pw.print(": ");
+            pw.print(mCounts[index]);
+            pw.print(", ");
+            pw.print(mTotalDispatchMicros[index] / 1000);
+            pw.print("/");
+            pw.print(mMaxDispatchMicros[index] / 1000);
+            pw.print(", <");
+            pw.print(dispatchPercentileBound(index, 50));
+            pw.print("/<");
+            pw.print(dispatchPercentileBound(index, 90));
+            pw.print("/<");
+            pw.print(dispatchPercentileBound(index, 99));
+            pw.print(", ");
+            pw.print(mTotalDelayMillis[index] / mCounts[index]);
+            pw.print("/");
+            pw.println(mMaxDelayMillis[index]);
+        }
+    }
+
+    /** Writes the counts as a {@link LooperProfilerProto}. */
+    public void writeToProto(ProtoOutputStream proto, long fieldId) {
+        snapshot().writeSnapshotToProto(proto, fieldId);
+    }
+
+    private void writeSnapshotToProto(ProtoOutputStream proto, long fieldId) {
+        final long token = proto.start(fieldId);
+        proto.write(LooperProfilerProto.DURATION_MS,
+                SystemClock.uptimeMillis() - mStartUptimeMillis);
+        for (int index = 0; index <= MAX_ENTRIES; index++) {
+            if (mCounts[index] == 0) {
+                continue;
+            }
+            final long entryToken = proto.start(LooperProfilerProto.ENTRIES);
+            if (index == OVERFLOW) {
+                proto.write(LooperProfilerProto.Entry.IS_OVERFLOW, true);
+            } else {
+                proto.write(LooperProfilerProto.Entry.HANDLER_CLASS,
+                        mHandlerClasses[index].getName());
+                if (mCallbackClasses[index] != null) {
+                    proto.write(LooperProfilerProto.Entry.CALLBACK_CLASS,
+                            mCallbackClasses[index].getName());
+                } else {
+                    proto.write(LooperProfilerProto.Entry.WHAT, mWhats[index]);
+                }
+            }
+            proto.write(LooperProfilerProto.Entry.COUNT, mCounts[index]);
+            proto.write(LooperProfilerProto.Entry.TOTAL_DISPATCH_MICROS,
+                    mTotalDispatchMicros[index]);
+            proto.write(LooperProfilerProto.Entry.MAX_DISPATCH_MICROS,
+                    mMaxDispatchMicros[index]);
+            proto.write(LooperProfilerProto.Entry.TOTAL_DELAY_MS, mTotalDelayMillis[index]);
+            proto.write(LooperProfilerProto.Entry.MAX_DELAY_MS, mMaxDelayMillis[index]);
+            for (int i = 0; i < BUCKETS; i++) {
+                proto.write(LooperProfilerProto.Entry.DISPATCH_HISTOGRAM,
+                        mDispatchHistograms[index * BUCKETS + i]);
+            }
+            for (int i = 0; i < BUCKETS; i++) {
+                proto.write(LooperProfilerProto.Entry.DELAY_HISTOGRAM,
+                        mDelayHistograms[index * BUCKETS + i]);
+            }
+            proto.end(entryToken);
+        }
+        proto.end(token);
+    }
+
+    private Integer[] sortedByDispatchTime() {
+        int count = 0;
+        for (int index = 0; index <= MAX_ENTRIES; index++) {
+            if (mCounts[index] != 0) {
+                count++;
+            }
+        }
+        final Integer[] order = new Integer[count];
+        count = 0;
+        for (int index = 0; index <= MAX_ENTRIES; index++) {
+            if (mCounts[index] != 0) {
+                order[count++] = index;
+            }
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(mTotalDispatchMicros[b],
+                mTotalDispatchMicros[a]));
+        return order;
+    }
+
+    private String entryName(int index) {
+        if (index == OVERFLOW) {
+            return "(other)";
+        }
+        return mHandlerClasses[index].getName() + " " + (mCallbackClasses[index] != null
+                ? mCallbackClasses[index].getName() : "0x" + Integer.toHexString(mWhats[index]));
+    }
+
+    /**
+     * Returns the upper bound, in milliseconds, of the dispatch bucket under which the given
+     * percentage of the dispatches fall.
+     */
+    private String dispatchPercentileBound(int index, int percent) {
+        final long target = (mCounts[index] * percent + 99) / 100;
+        long seen = 0;
+        for (int i = 0; i < BUCKETS - 1; i++) {
+            seen += mDispatchHistograms[index * BUCKETS + i];
+            if (seen >= target) {
+                final long boundMicros = 1L << (DISPATCH_BUCKET_SHIFT + i);
+                return boundMicros < 1000 ? String.format("%.3f", boundMicros / 1000f)
+                        : Long.toString(boundMicros / 1000);
+            }
+        }
+        return "inf";
+    }
+}
@@ -109,6 +109,15 @@ public final class Message implements Parcelable {
     // sometimes we store linked lists of these things
     /*package*/ Message next;
 
+    // Links of the index of the queue, if it has one; see MessageIndex. The levels array is
+    // kept across recycling.
+    /*package*/ long queueSeq;
+    /*package*/ Message[] skipNext;
+    /*package*/ int skipLevels;
+    /*package*/ MessageIndex.Chain chain;
+    /*package*/ Message chainPrev;
+    /*package*/ Message chainNext;
+
     private static final Object sPoolSync = new Object();
     private static Message sPool;
     private static int sPoolSize = 0;
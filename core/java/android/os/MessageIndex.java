@@ -0,0 +1,289 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import android.util.SparseArray;
+
+import java.util.IdentityHashMap;
+
+/**
+ * Index of the messages of a {@link MessageQueue}, so that heavily loaded queues don't have to
+ * walk their whole list to insert or find a message.
+ *
+ * <p>The list of the queue, linked by {@link Message#next}, is the bottom level of a skip list
+ * ordered by time, then by the order of insertion; messages at time 0 go before the others, as
+ * at the front of the queue. The messages of each target and what are also linked in a chain,
+ * for {@link Handler#hasMessages} and {@link Handler#removeMessages}.
+ *
+ * <p>Not thread safe; the queue guards it with its lock.
+ */
+final class MessageIndex {
+    private static final int MAX_LEVEL = 16;
+
+    /** The messages of a target and what, in no particular order. */
+    static final class Chain {
+        final Handler target;
+        final int what;
+        Message head;
+
+        Chain(Handler target, int what) {
+            this.target = target;
+            this.what = what;
+        }
+    }
+
+    // Heads of the levels above the list of the queue.
+    private final Message[] mHeads = new Message[MAX_LEVEL - 1];
+    private int mLevels;
+    private final Message[] mUpdate = new Message[MAX_LEVEL];
+    // Keyed by identity, as the queue matches targets by identity and handlers may override
+    // equals() and hashCode().
+    private final IdentityHashMap<Handler, SparseArray<Chain>> mChains = new IdentityHashMap<>();
+    private long mNextSeq = 1;
+    private long mNextFrontSeq = -1;
+    private int mRandom = 0x2545f491;
+
+    /**
+     * Indexes the messages already in the list, which must be empty of indexed messages.
+     */
+    void build(Message head) {
+        final Message[] tails = new Message[MAX_LEVEL - 1];
+        for (Message p = head; p != null; p = p.next) {
+            p.queueSeq = mNextSeq++;
+            final int levels = randomLevels();
+            if (levels > 0 && (p.skipNext == null || p.skipNext.length < levels)) {
+                p.skipNext = new Message[levels];
+            }
+            p.skipLevels = levels;
+            for (int i = 0; i < levels; i++) {
+                p.skipNext[i] = null;
+                if (tails[i] == null) {
+                    mHeads[i] = p;
+                } else {
+                    tails[i].skipNext[i] = p;
+                }
+                tails[i] = p;
+            }
+            mLevels = Math.max(mLevels, levels);
+            if (p.target != null) {
+                addToChain(p);
+            }
+        }
+    }
+
+    /**
+     * Inserts the message at its time and returns the new head of the list.
+     */
+    Message insert(Message head, Message msg) {
+        msg.queueSeq = msg.when == 0 ? mNextFrontSeq-- : mNextSeq++;
+        findPredecessors(head, msg);
+
+        final int levels = randomLevels();
+        if (levels > mLevels) {
+            for (int i = mLevels; i < levels; i++) {
+                mUpdate[i + 1] = null;
+            }
+            mLevels = levels;
+        }
+        if (levels > 0 && (msg.skipNext == null || msg.skipNext.length < levels)) {
+            msg.skipNext = new Message[levels];
+        }
+        msg.skipLevels = levels;
+        for (int i = 0; i < levels; i++) {
+            final Message prev = mUpdate[i + 1];
+            if (prev == null) {
+                msg.skipNext[i] = mHeads[i];
+                mHeads[i] = msg;
+            } else {
+                msg.skipNext[i] = prev.skipNext[i];
+                prev.skipNext[i] = msg;
+            }
+        }
+
+        if (msg.target != null) {
+            addToChain(msg);
+        }
+
+        final Message prev = mUpdate[0];
+        clearUpdate();
+        if (prev == null) {
+            msg.next = head;
+            return msg;
+        }
+        msg.next = prev.next;
+        prev.next = msg;
+        return head;
+    }
+
+    /**
+     * Removes the message, which must be in the list, and returns the new head of the list.
+     * The message is not recycled.
+     */
+    Message remove(Message head, Message msg) {
+        findPredecessors(head, msg);
+        for (int i = 0; i < msg.skipLevels; i++) {
+            final Message prev = mUpdate[i + 1];
+            if (prev == null) {
+                mHeads[i] = msg.skipNext[i];
+            } else {
+                prev.skipNext[i] = msg.skipNext[i];
+            }
+            msg.skipNext[i] = null;
+        }
+        msg.skipLevels = 0;
+        while (mLevels > 0 && mHeads[mLevels - 1] == null) {
+            mLevels--;
+        }
+
+        if (msg.chain != null) {
+            removeFromChain(msg);
+        }
+
+        final Message prev = mUpdate[0];
+        clearUpdate();
+        if (prev == null) {
+            head = msg.next;
+        } else {
+            prev.next = msg.next;
+        }
+        msg.next = null;
+        return head;
+    }
+
+    /** Forgets all the messages, when the queue drops them all. */
+    void clear(Message head) {
+        for (Message p = head; p != null; p = p.next) {
+            for (int i = 0; i < p.skipLevels; i++) {
+                p.skipNext[i] = null;
+            }
+            p.skipLevels = 0;
+            p.chain = null;
+            p.chainPrev = null;
+            p.chainNext = null;
+        }
+        for (int i = 0; i < mHeads.length; i++) {
+            mHeads[i] = null;
+        }
+        mLevels = 0;
+        mChains.clear();
+    }
+
+    /** Returns the messages of the target with the given what, linked by chainNext. */
+    Message getMessages(Handler target, int what) {
+        final SparseArray<Chain> chains = mChains.get(target);
+        if (chains == null) {
+            return null;
+        }
+        final Chain chain = chains.get(what);
+        return chain != null ? chain.head : null;
+    }
+
+    /** Returns the chains of the target, or null if it has no messages. */
+    SparseArray<Chain> getChains(Handler target) {
+        return mChains.get(target);
+    }
+
+    private static boolean isBefore(Message a, Message b) {
+        return a.when < b.when || (a.when == b.when && a.queueSeq < b.queueSeq);
+    }
+
+    /**
+     * Sets mUpdate[i] to the last message before msg in level i, or null for the head.
+     */
+    private void findPredecessors(Message head, Message msg) {
+        Message prev = null;
+        for (int i = mLevels; i > 0; i--) {
+            Message next = prev == null ? mHeads[i - 1] : prev.skipNext[i - 1];
+            while (next != null && isBefore(next, msg)) {
+                prev = next;
+                next = next.skipNext[i - 1];
+            }
+            mUpdate[i] = prev;
+        }
+        Message next = prev == null ? head : prev.next;
+        while (next != null && isBefore(next, msg)) {
+            prev = next;
+            next = next.next;
+        }
+        mUpdate[0] = prev;
+    }
+
+    private void clearUpdate() {
+        for (int i = 0; i < mUpdate.length; i++) {
+            mUpdate[i] = null;
+        }
+    }
+
+    /** Returns how many levels above the list a new message takes, one more with odds 1/4. */
+    private int randomLevels() {
+        // xorshift
+        int x = mRandom;
+        x ^= x << 13;
+        x ^= x >>> 17;
+        x ^= x << 5;
+        mRandom = x;
+        int levels = 0;
+        while ((x & 3) == 0 && levels < MAX_LEVEL - 1) {
+            levels++;
+            x >>>= 2;
+        }
+        return levels;
+    }
+
+    private void addToChain(Message msg) {
+        SparseArray<Chain> chains = mChains.get(msg.target);
+        if (chains == null) {
+            chains = new SparseArray<>(2);
+            mChains.put(msg.target, chains);
+        }
+        Chain chain = chains.get(msg.what);
+        if (chain == null) {
+            chain = new Chain(msg.target, msg.what);
+            chains.put(msg.what, chain);
+        }
+        msg.chain = chain;
+        msg.chainNext = chain.head;
+        if (chain.head != null) {
+            chain.head.chainPrev = msg;
+        }
+        chain.head = msg;
+    }
+
+    private void removeFromChain(Message msg) {
+        final Chain chain = msg.chain;
+        if (msg.chainPrev != null) {
+            msg.chainPrev.chainNext = msg.chainNext;
+        } else {
+            chain.head = msg.chainNext;
+        }
+        if (msg.chainNext != null) {
+            msg.chainNext.chainPrev = msg.chainPrev;
+        }
+        msg.chain = null;
+        msg.chainPrev = null;
+        msg.chainNext = null;
+
+        if (chain.head == null) {
+            // Don't keep the handler alive once it has no messages.
+            final SparseArray<Chain> chains = mChains.get(chain.target);
+            chains.remove(chain.what);
+            if (chains.size() == 0) {
+                mChains.remove(chain.target);
+            }
+        }
+    }
+}
@@ -77,10 +77,12 @@ import com.android.internal.util.ArrayUtils;
 import com.android.internal.widget.ILockSettings;
 
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.net.URISyntaxException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Locale;
@@ -1464,6 +1466,47 @@ public final class Settings {
      */
     public static final String CALL_METHOD_GET_GLOBAL = "GET_global";
 
+    /**
+     * @hide - Private call() method on SettingsProvider to read several settings from the
+     * 'system' table at once.
+     *
+     * @see #CALL_METHOD_NAMES_KEY
+     */
+    public static final String CALL_METHOD_GET_BATCH_SYSTEM = "GET_BATCH_system";
+
+    /**
+     * @hide - Private call() method on SettingsProvider to read several settings from the
+     * 'secure' table at once.
+     *
+     * @see #CALL_METHOD_NAMES_KEY
+     */
+    public static final String CALL_METHOD_GET_BATCH_SECURE = "GET_BATCH_secure";
+
+    /**
+     * @hide - Private call() method on SettingsProvider to read several settings from the
+     * 'global' table at once.
+     *
+     * @see #CALL_METHOD_NAMES_KEY
+     */
+    public static final String CALL_METHOD_GET_BATCH_GLOBAL = "GET_BATCH_global";
+
+    /**
+     * @hide - String array argument extra to the batch call()-based requests with the names
+     * of the settings to read, or absent to read the whole table. The response maps this key
+     * to the names that were read and {@link #CALL_METHOD_VALUES_KEY} to their values, in the
+     * same order, along with the {@link #CALL_METHOD_GENERATION_KEY} of the table at the time
+     * of the read. Names the provider could not read in bulk are omitted from the response.
+     */
+    public static final String CALL_METHOD_NAMES_KEY = "_names";
+
+    /**
+     * @hide - String array extra with the values in the response of batch call()-based
+     * requests.
+     *
+     * @see #CALL_METHOD_NAMES_KEY
+     */
+    public static final String CALL_METHOD_VALUES_KEY = "_values";
+
     /**
      * @hide - Specifies that the caller of the fast-path call()-based flow tracks
      * the settings generation in order to cache values locally. If this key is
@@ -1692,6 +1735,17 @@ public final class Settings {
         }
     }
 
+    /**
+     * Dumps the hit, miss and prefetch counts of this process' settings caches.
+     *
+     * @hide
+     */
+    public static void dumpCacheStats(PrintWriter pw) {
+        System.sNameValueCache.dumpCacheStats(pw);
+        Secure.sNameValueCache.dumpCacheStats(pw);
+        Global.sNameValueCache.dumpCacheStats(pw);
+    }
+
     public static class SettingNotFoundException extends AndroidException {
         public SettingNotFoundException(String msg) {
             super(msg);
@@ -1739,6 +1793,10 @@ public final class Settings {
             mCurrentGeneration = generation;
         }
 
+        public int getCurrentGeneration() {
+            return mCurrentGeneration;
+        }
+
         public boolean isGenerationChanged() {
             final int currentGeneration = readCurrentGeneration();
             if (currentGeneration >= 0) {
@@ -1823,15 +1881,26 @@ public final class Settings {
         // for the fast path of retrieving settings.
         private final String mCallGetCommand;
         private final String mCallSetCommand;
+        private final String mCallGetBatchCommand;
 
         @GuardedBy("this")
         private GenerationTracker mGenerationTracker;
 
+        @GuardedBy("this")
+        private long mCacheHitCount;
+
+        @GuardedBy("this")
+        private long mCacheMissCount;
+
+        @GuardedBy("this")
+        private long mPrefetchCount;
+
         public NameValueCache(Uri uri, String getCommand, String setCommand,
-                ContentProviderHolder providerHolder) {
+                String getBatchCommand, ContentProviderHolder providerHolder) {
             mUri = uri;
             mCallGetCommand = getCommand;
             mCallSetCommand = setCommand;
+            mCallGetBatchCommand = getBatchCommand;
             mProviderHolder = providerHolder;
         }
 
@@ -1869,9 +1938,11 @@ public final class Settings {
                             }
                             mValues.clear();
                         } else if (mValues.containsKey(name)) {
+                            mCacheHitCount++;
                             return mValues.get(name);
                         }
                     }
+                    mCacheMissCount++;
                 }
             } else {
                 if (LOCAL_LOGV) Log.v(TAG, "get setting for user " + userHandle
@@ -1929,37 +2000,7 @@ public final class Settings {
                         if (isSelf) {
                             synchronized (NameValueCache.this) {
                                 if (needsGenerationTracker) {
-                                    MemoryIntArray array = b.getParcelable(
-                                            CALL_METHOD_TRACK_GENERATION_KEY);
-                                    final int index = b.getInt(
-                                            CALL_METHOD_GENERATION_INDEX_KEY, -1);
-                                    if (array != null && index >= 0) {
-                                        final int generation = b.getInt(
-                                                CALL_METHOD_GENERATION_KEY, 0);
-                                        if (DEBUG) {
-                                            Log.i(TAG, "Received generation tracker for type:"
-                                                    + mUri.getPath() + " in package:"
-                                                    + cr.getPackageName() + " and user:"
-                                                    + userHandle + " with index:" + index);
-                                        }
-                                        if (mGenerationTracker != null) {
-                                            mGenerationTracker.destroy();
-                                        }
-                                        mGenerationTracker = new GenerationTracker(array, index,
-                                                generation, () -> {
-                                            synchronized (NameValueCache.this) {
-                                                Log.e(TAG, "Error accessing generation"
-                                                        + " tracker - removing");
-                                                if (mGenerationTracker != null) {
-                                                    GenerationTracker generationTracker =
-                                                            mGenerationTracker;
-                                                    mGenerationTracker = null;
-                                                    generationTracker.destroy();
-                                                    mValues.clear();
-                                                }
-                                            }
-                                        });
-                                    }
+                                    installGenerationTrackerLocked(b, cr, userHandle);
                                 }
                                 mValues.put(name, value);
                             }
@@ -2017,6 +2058,152 @@ public final class Settings {
             }
         }
 
+        @GuardedBy("this")
+        private void installGenerationTrackerLocked(Bundle b, ContentResolver cr,
+                int userHandle) {
+            MemoryIntArray array = b.getParcelable(CALL_METHOD_TRACK_GENERATION_KEY);
+            final int index = b.getInt(CALL_METHOD_GENERATION_INDEX_KEY, -1);
+            if (array != null && index >= 0) {
+                final int generation = b.getInt(CALL_METHOD_GENERATION_KEY, 0);
+                if (DEBUG) {
+                    Log.i(TAG, "Received generation tracker for type:" + mUri.getPath()
+                            + " in package:" + cr.getPackageName() + " and user:"
+                            + userHandle + " with index:" + index);
+                }
+                if (mGenerationTracker != null) {
+                    mGenerationTracker.destroy();
+                }
+                mGenerationTracker = new GenerationTracker(array, index, generation, () -> {
+                    synchronized (NameValueCache.this) {
+                        Log.e(TAG, "Error accessing generation tracker - removing");
+                        if (mGenerationTracker != null) {
+                            GenerationTracker generationTracker = mGenerationTracker;
+                            mGenerationTracker = null;
+                            generationTracker.destroy();
+                            mValues.clear();
+                        }
+                    }
+                });
+            }
+        }
+
+        /**
+         * Reads the given settings, or the whole table if {@code names} is null, from the
+         * provider in a single call and caches their values, so that subsequent
+         * {@link #getStringForUser} calls for them don't need to make a call each. Values are
+         * only cached if the table did not change while they were read.
+         */
+        public void prefetchStringsForUser(ContentResolver cr, String[] names,
+                final int userHandle) {
+            // Only our own user's values are cached.
+            if (mCallGetBatchCommand == null || userHandle != UserHandle.myUserId()) {
+                return;
+            }
+
+            final Bundle args = new Bundle();
+            boolean needsGenerationTracker = false;
+            synchronized (NameValueCache.this) {
+                if (mGenerationTracker == null) {
+                    needsGenerationTracker = true;
+                    args.putString(CALL_METHOD_TRACK_GENERATION_KEY, null);
+                } else if (names != null) {
+                    if (mGenerationTracker.isGenerationChanged()) {
+                        mValues.clear();
+                    }
+                    // Skip the names that are already cached.
+                    ArrayList<String> uncached = null;
+                    for (int i = 0; i < names.length; i++) {
+                        if (!mValues.containsKey(names[i])) {
+                            if (uncached == null) {
+                                uncached = new ArrayList<>(names.length - i);
+                            }
+                            uncached.add(names[i]);
+                        }
+                    }
+                    if (uncached == null) {
+                        return;
+                    }
+                    names = uncached.toArray(new String[uncached.size()]);
+                }
+            }
+            if (names != null) {
+                args.putStringArray(CALL_METHOD_NAMES_KEY, names);
+            }
+
+            final Bundle b;
+            try {
+                IContentProvider cp = mProviderHolder.getProvider(cr);
+                // Same workaround as in getStringForUser().
+                if (Settings.isInSystemServer() && Binder.getCallingUid() != Process.myUid()) {
+                    final long token = Binder.clearCallingIdentity();
+                    try {
+                        b = cp.call(cr.getPackageName(), mCallGetBatchCommand, null, args);
+                    } finally {
+                        Binder.restoreCallingIdentity(token);
+                    }
+                } else {
+                    b = cp.call(cr.getPackageName(), mCallGetBatchCommand, null, args);
+                }
+            } catch (RemoteException e) {
+                Log.w(TAG, "Can't prefetch keys from " + mUri, e);
+                return;
+            }
+            if (b == null) {
+                // Not supported by the remote side; values will be read one by one.
+                return;
+            }
+
+            final String[] readNames = b.getStringArray(CALL_METHOD_NAMES_KEY);
+            final String[] readValues = b.getStringArray(CALL_METHOD_VALUES_KEY);
+            if (readNames == null || readValues == null || readNames.length != readValues.length
+                    || !b.containsKey(CALL_METHOD_GENERATION_KEY)) {
+                return;
+            }
+            final int generation = b.getInt(CALL_METHOD_GENERATION_KEY);
+
+            synchronized (NameValueCache.this) {
+                if (needsGenerationTracker && mGenerationTracker == null) {
+                    installGenerationTrackerLocked(b, cr, userHandle);
+                }
+                if (mGenerationTracker == null) {
+                    return;
+                }
+                if (mGenerationTracker.isGenerationChanged()) {
+                    mValues.clear();
+                }
+                if (mGenerationTracker.getCurrentGeneration() != generation) {
+                    // The table changed since the values were read; don't cache stale data.
+                    return;
+                }
+                for (int i = 0; i < readNames.length; i++) {
+                    mValues.put(readNames[i], readValues[i]);
+                }
+                mPrefetchCount++;
+            }
+            if (LOCAL_LOGV) {
+                Log.v(TAG, "prefetched " + readNames.length + " keys from " + mUri);
+            }
+        }
+
+        public void dumpCacheStats(PrintWriter pw) {
+            // Every settings read takes this lock, so print from a copy.
+            final long hitCount;
+            final long missCount;
+            final long prefetchCount;
+            final int cachedCount;
+            synchronized (NameValueCache.this) {
+                hitCount = mCacheHitCount;
+                missCount = mCacheMissCount;
+                prefetchCount = mPrefetchCount;
+                cachedCount = mValues.size();
+            }
+            pw.print(mUri.getLastPathSegment());
+            pw.print(": hits="); pw.print(hitCount);
+            pw.print(" misses="); pw.print(missCount);
+            pw.print(" prefetches="); pw.print(prefetchCount);
+            pw.print(" cached="); pw.println(cachedCount);
+        }
+
         public void clearGenerationTrackerForTest() {
             synchronized (NameValueCache.this) {
                 if (mGenerationTracker != null) {
@@ -2072,6 +2259,7 @@ public final class Settings {
                 CONTENT_URI,
                 CALL_METHOD_GET_SYSTEM,
                 CALL_METHOD_PUT_SYSTEM,
+                CALL_METHOD_GET_BATCH_SYSTEM,
                 sProviderHolder);
 
         private static final HashSet<String> MOVED_TO_SECURE;
@@ -2214,6 +2402,24 @@ public final class Settings {
             outKeySet.addAll(MOVED_TO_GLOBAL);
         }
 
+        /**
+         * Reads the given settings, or the whole table if {@code names} is null, in a single
+         * call to the settings provider and caches them, so that subsequent lookups of any of
+         * them don't need a call of their own. Useful during startup, when many settings are
+         * read in a row.
+         *
+         * @hide
+         */
+        public static void prefetchStringsForUser(ContentResolver resolver, String[] names,
+                int userHandle) {
+            sNameValueCache.prefetchStringsForUser(resolver, names, userHandle);
+        }
+
+        /** @hide */
+        public static void prefetchStrings(ContentResolver resolver, String... names) {
+            prefetchStringsForUser(resolver, names, UserHandle.myUserId());
+        }
+
         /** @hide */
         public static void clearProviderForTest() {
             sProviderHolder.clearProviderForTest();
@@ -4866,6 +5072,7 @@ public final class Settings {
                 CONTENT_URI,
                 CALL_METHOD_GET_SECURE,
                 CALL_METHOD_PUT_SECURE,
+                CALL_METHOD_GET_BATCH_SECURE,
                 sProviderHolder);
 
         private static ILockSettings sLockSettings = null;
@@ -5000,6 +5207,24 @@ public final class Settings {
             outKeySet.addAll(MOVED_TO_GLOBAL);
         }
 
+        /**
+         * Reads the given settings, or the whole table if {@code names} is null, in a single
+         * call to the settings provider and caches them, so that subsequent lookups of any of
+         * them don't need a call of their own. Useful during startup, when many settings are
+         * read in a row.
+         *
+         * @hide
+         */
+        public static void prefetchStringsForUser(ContentResolver resolver, String[] names,
+                int userHandle) {
+            sNameValueCache.prefetchStringsForUser(resolver, names, userHandle);
+        }
+
+        /** @hide */
+        public static void prefetchStrings(ContentResolver resolver, String... names) {
+            prefetchStringsForUser(resolver, names, UserHandle.myUserId());
+        }
+
         /** @hide */
         public static void clearProviderForTest() {
             sProviderHolder.clearProviderForTest();
@@ -10775,6 +11000,7 @@ public final class Settings {
                     CONTENT_URI,
                     CALL_METHOD_GET_GLOBAL,
                     CALL_METHOD_PUT_GLOBAL,
+                    CALL_METHOD_GET_BATCH_GLOBAL,
                     sProviderHolder);
 
         // Certain settings have been moved from global to the per-user secure namespace
@@ -10789,6 +11015,24 @@ public final class Settings {
             outKeySet.addAll(MOVED_TO_SECURE);
         }
 
+        /**
+         * Reads the given settings, or the whole table if {@code names} is null, in a single
+         * call to the settings provider and caches them, so that subsequent lookups of any of
+         * them don't need a call of their own. Useful during startup, when many settings are
+         * read in a row.
+         *
+         * @hide
+         */
+        public static void prefetchStringsForUser(ContentResolver resolver, String[] names,
+                int userHandle) {
+            sNameValueCache.prefetchStringsForUser(resolver, names, userHandle);
+        }
+
+        /** @hide */
+        public static void prefetchStrings(ContentResolver resolver, String... names) {
+            prefetchStringsForUser(resolver, names, UserHandle.myUserId());
+        }
+
         /** @hide */
         public static void clearProviderForTest() {
             sProviderHolder.clearProviderForTest();
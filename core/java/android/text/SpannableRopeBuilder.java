@@ -0,0 +1,1604 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.text;
+
+import android.annotation.Nullable;
+import android.graphics.BaseCanvas;
+import android.graphics.Paint;
+import android.util.Log;
+
+import com.android.internal.util.ArrayUtils;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+
+/**
+ * Text whose content and markup can both be changed, like {@link SpannableStringBuilder}, but
+ * suited to very large documents.
+ * <p>
+ * The text is held in a balanced tree of chunks (a rope) instead of a single gap buffer, so an
+ * edit copies at most a chunk of text, however far it is from the previous one. Spans are kept
+ * sorted by start offset in fixed-size buckets that each carry a pending offset shift, so an
+ * edit only updates the spans that overlap it and moves the buckets after it as a whole.
+ * <p>
+ * Span flags, {@link TextWatcher}s, {@link SpanWatcher}s and {@link InputFilter}s behave as
+ * they do with {@link SpannableStringBuilder}, so this can be returned from an
+ * {@link Editable.Factory} given to a {@link android.widget.TextView}. For short text,
+ * {@link SpannableStringBuilder} remains the better choice.
+ */
+public class SpannableRopeBuilder implements CharSequence, GetChars, Spannable, Editable,
+        Appendable, GraphicsOperations {
+    private static final String TAG = "SpannableRopeBuilder";
+
+    /** Maximum number of chars held by a leaf of the rope. */
+    private static final int LEAF_SIZE = 1024;
+
+    /** Maximum number of spans held by a bucket; full buckets are split in two. */
+    private static final int BUCKET_SIZE = 64;
+
+    private static final InputFilter[] NO_FILTERS = new InputFilter[0];
+
+    private static final int MARK = 1;
+    private static final int POINT = 2;
+    private static final int PARAGRAPH = 3;
+
+    private static final int START_MASK = 0xF0;
+    private static final int END_MASK = 0x0F;
+    private static final int START_SHIFT = 4;
+
+    // These bits are not (currently) used by SPANNED flags
+    private static final int SPAN_ADDED = 0x800;
+    private static final int SPAN_START_AT_START = 0x1000;
+    private static final int SPAN_START_AT_END = 0x2000;
+    private static final int SPAN_END_AT_START = 0x4000;
+    private static final int SPAN_END_AT_END = 0x8000;
+    private static final int SPAN_START_END_MASK = 0xF000;
+
+    private static final Comparator<Span> START_COMPARATOR = (a, b) -> a.start - b.start;
+
+    private static final Comparator<Span> PRIORITY_COMPARATOR =
+            (a, b) -> (b.flags & SPAN_PRIORITY) - (a.flags & SPAN_PRIORITY);
+
+    private static final Comparator<Span> PRIORITY_ORDER_COMPARATOR = (a, b) -> {
+        final int priority = (b.flags & SPAN_PRIORITY) - (a.flags & SPAN_PRIORITY);
+        return priority != 0 ? priority : a.order - b.order;
+    };
+
+    /**
+     * A node of the rope. Leaves hold up to {@link #LEAF_SIZE} chars; internal nodes always
+     * have two children and are kept AVL balanced. Every node belongs to a single tree, so
+     * nodes are modified in place.
+     */
+    private static final class Node {
+        char[] chars;
+        Node left;
+        Node right;
+        int length;
+        int height;
+
+        Node(char[] chars, int length) {
+            this.chars = chars;
+            this.length = length;
+        }
+
+        Node(Node left, Node right) {
+            this.left = left;
+            this.right = right;
+            update();
+        }
+
+        boolean isLeaf() {
+            return chars != null;
+        }
+
+        void update() {
+            length = left.length + right.length;
+            height = 1 + Math.max(left.height, right.height);
+        }
+    }
+
+    private static final class Span {
+        final Object what;
+        final int order;
+        // Offsets relative to the shift of the bucket.
+        int start;
+        int end;
+        int flags;
+        Bucket bucket;
+
+        Span(Object what, int start, int end, int flags, int order) {
+            this.what = what;
+            this.start = start;
+            this.end = end;
+            this.flags = flags;
+            this.order = order;
+        }
+    }
+
+    private static final class Bucket {
+        final Span[] spans = new Span[BUCKET_SIZE];
+        int count;
+        // Added to the offsets of all spans of the bucket.
+        int shift;
+        // Largest end offset of the spans of the bucket, relative to the shift.
+        int maxEnd;
+
+        int firstStart() {
+            return spans[0].start + shift;
+        }
+
+        /** Folds the shift into the offsets of the spans. */
+        void applyShift() {
+            if (shift != 0) {
+                for (int i = 0; i < count; i++) {
+                    spans[i].start += shift;
+                    spans[i].end += shift;
+                }
+                maxEnd += shift;
+                shift = 0;
+            }
+        }
+
+        void updateMaxEnd() {
+            int max = 0;
+            for (int i = 0; i < count; i++) {
+                max = Math.max(max, spans[i].end);
+            }
+            maxEnd = max;
+        }
+    }
+
+    private InputFilter[] mFilters = NO_FILTERS;
+
+    private Node mRoot;
+
+    // The leaf last used by charAt(), and its offset; cleared whenever the text changes.
+    private Node mCharAtLeaf;
+    private int mCharAtLeafStart;
+
+    private final ArrayList<Bucket> mBuckets = new ArrayList<>();
+    private final IdentityHashMap<Object, Span> mSpans = new IdentityHashMap<>();
+    private int mSpanInsertCount;
+    private int mSpanWatcherCount;
+    // Whether change() left SPAN_ADDED or boundary flags for sendToSpanWatchers() to clear.
+    private boolean mHasChangeFlags;
+
+    // Running maximum of the span ends by bucket, or null if it needs to be rebuilt.
+    private int[] mMaxEnds;
+
+    // Scratch storage for span queries and edits; never held across callbacks.
+    private Span[] mTmpSpans = new Span[BUCKET_SIZE];
+    private final Node[] mTmpSplit = new Node[2];
+
+    private int mTextWatcherDepth;
+
+    /**
+     * Create a new SpannableRopeBuilder with empty contents
+     */
+    public SpannableRopeBuilder() {
+        this("");
+    }
+
+    /**
+     * Create a new SpannableRopeBuilder containing a copy of the
+     * specified text, including its spans if any.
+     */
+    public SpannableRopeBuilder(CharSequence text) {
+        this(text, 0, text.length());
+    }
+
+    /**
+     * Create a new SpannableRopeBuilder containing a copy of the
+     * specified slice of the specified text, including its spans if any.
+     */
+    public SpannableRopeBuilder(CharSequence text, int start, int end) {
+        if (end - start < 0) throw new StringIndexOutOfBoundsException();
+
+        mRoot = build(text, start, end);
+
+        if (text instanceof Spanned) {
+            final Spanned sp = (Spanned) text;
+            final Object[] spans = sp.getSpans(start, end, Object.class);
+
+            for (int i = 0; i < spans.length; i++) {
+                if (spans[i] instanceof NoCopySpan) {
+                    continue;
+                }
+
+                int st = sp.getSpanStart(spans[i]) - start;
+                int en = sp.getSpanEnd(spans[i]) - start;
+                final int fl = sp.getSpanFlags(spans[i]);
+
+                st = Math.max(0, Math.min(st, end - start));
+                en = Math.max(0, Math.min(en, end - start));
+
+                setSpan(false, spans[i], st, en, fl, false/*enforceParagraph*/);
+            }
+        }
+    }
+
+    public static SpannableRopeBuilder valueOf(CharSequence source) {
+        if (source instanceof SpannableRopeBuilder) {
+            return (SpannableRopeBuilder) source;
+        } else {
+            return new SpannableRopeBuilder(source);
+        }
+    }
+
+    /**
+     * Return the char at the specified offset within the buffer.
+     */
+    public char charAt(int where) {
+        final int len = length();
+        if (where < 0) {
+            throw new IndexOutOfBoundsException("charAt: " + where + " < 0");
+        } else if (where >= len) {
+            throw new IndexOutOfBoundsException("charAt: " + where + " >= length " + len);
+        }
+
+        Node leaf = mCharAtLeaf;
+        if (leaf == null || where < mCharAtLeafStart
+                || where >= mCharAtLeafStart + leaf.length) {
+            leaf = mRoot;
+            int leafStart = 0;
+            while (!leaf.isLeaf()) {
+                if (where - leafStart < leaf.left.length) {
+                    leaf = leaf.left;
+                } else {
+                    leafStart += leaf.left.length;
+                    leaf = leaf.right;
+                }
+            }
+            mCharAtLeaf = leaf;
+            mCharAtLeafStart = leafStart;
+        }
+        return leaf.chars[where - mCharAtLeafStart];
+    }
+
+    /**
+     * Return the number of chars in the buffer.
+     */
+    public int length() {
+        return mRoot != null ? mRoot.length : 0;
+    }
+
+    // Documentation from interface
+    public SpannableRopeBuilder insert(int where, CharSequence tb, int start, int end) {
+        return replace(where, where, tb, start, end);
+    }
+
+    // Documentation from interface
+    public SpannableRopeBuilder insert(int where, CharSequence tb) {
+        return replace(where, where, tb, 0, tb.length());
+    }
+
+    // Documentation from interface
+    public SpannableRopeBuilder delete(int start, int end) {
+        return replace(start, end, "", 0, 0);
+    }
+
+    // Documentation from interface
+    public void clear() {
+        replace(0, length(), "", 0, 0);
+        mSpanInsertCount = 0;
+    }
+
+    // Documentation from interface
+    public void clearSpans() {
+        // Remove the spans from the end, so that the remaining ones stay consistent for the
+        // span watchers notified in between.
+        while (!mBuckets.isEmpty()) {
+            final Bucket bucket = mBuckets.get(mBuckets.size() - 1);
+            final Span span = bucket.spans[bucket.count - 1];
+            final int start = span.start + bucket.shift;
+            final int end = span.end + bucket.shift;
+            mSpans.remove(span.what);
+            removeFromBucket(span);
+            if (span.what instanceof SpanWatcher) {
+                mSpanWatcherCount--;
+            }
+
+            sendSpanRemoved(span.what, start, end);
+        }
+        mSpanInsertCount = 0;
+    }
+
+    // Documentation from interface
+    public SpannableRopeBuilder append(CharSequence text) {
+        final int length = length();
+        return replace(length, length, text, 0, text.length());
+    }
+
+    /**
+     * Appends the character sequence {@code text} and spans {@code what} over the appended part.
+     * See {@link Spanned} for an explanation of what the flags mean.
+     * @param text the character sequence to append.
+     * @param what the object to be spanned over the appended text.
+     * @param flags see {@link Spanned}.
+     * @return this {@code SpannableRopeBuilder}.
+     */
+    public SpannableRopeBuilder append(CharSequence text, Object what, int flags) {
+        final int start = length();
+        append(text);
+        setSpan(what, start, length(), flags);
+        return this;
+    }
+
+    // Documentation from interface
+    public SpannableRopeBuilder append(CharSequence text, int start, int end) {
+        final int length = length();
+        return replace(length, length, text, start, end);
+    }
+
+    // Documentation from interface
+    public SpannableRopeBuilder append(char text) {
+        return append(String.valueOf(text));
+    }
+
+    // Documentation from interface
+    public SpannableRopeBuilder replace(int start, int end, CharSequence tb) {
+        return replace(start, end, tb, 0, tb.length());
+    }
+
+    // Documentation from interface
+    public SpannableRopeBuilder replace(final int start, final int end,
+            CharSequence tb, int tbstart, int tbend) {
+        checkRange("replace", start, end);
+
+        final int filtercount = mFilters.length;
+        for (int i = 0; i < filtercount; i++) {
+            final CharSequence repl = mFilters[i].filter(tb, tbstart, tbend, this, start, end);
+
+            if (repl != null) {
+                tb = repl;
+                tbstart = 0;
+                tbend = repl.length();
+            }
+        }
+
+        final int origLen = end - start;
+        final int newLen = tbend - tbstart;
+
+        if (origLen == 0 && newLen == 0 && !hasNonExclusiveExclusiveSpanAt(tb, tbstart)) {
+            // This is a no-op iif there are no spans in tb that would be added (with a 0-length)
+            // Early exit so that the text watchers do not get notified
+            return this;
+        }
+
+        final TextWatcher[] textWatchers = getSpans(start, start + origLen, TextWatcher.class);
+        sendBeforeTextChanged(textWatchers, start, origLen, newLen);
+
+        // Try to keep the cursor / selection at the same relative position during
+        // a text replacement. If replaced or replacement text length is zero, this
+        // is already taken care of.
+        final boolean adjustSelection = origLen != 0 && newLen != 0;
+        int selectionStart = 0;
+        int selectionEnd = 0;
+        if (adjustSelection) {
+            selectionStart = Selection.getSelectionStart(this);
+            selectionEnd = Selection.getSelectionEnd(this);
+        }
+
+        change(start, end, tb, tbstart, tbend);
+
+        if (adjustSelection) {
+            if (selectionStart > start && selectionStart < end) {
+                final long diff = selectionStart - start;
+                final int offset = Math.toIntExact(diff * newLen / origLen);
+                selectionStart = start + offset;
+
+                setSpan(false, Selection.SELECTION_START, selectionStart, selectionStart,
+                        Spanned.SPAN_POINT_POINT, true/*enforceParagraph*/);
+            }
+            if (selectionEnd > start && selectionEnd < end) {
+                final long diff = selectionEnd - start;
+                final int offset = Math.toIntExact(diff * newLen / origLen);
+                selectionEnd = start + offset;
+
+                setSpan(false, Selection.SELECTION_END, selectionEnd, selectionEnd,
+                        Spanned.SPAN_POINT_POINT, true/*enforceParagraph*/);
+            }
+        }
+
+        sendTextChanged(textWatchers, start, origLen, newLen);
+        sendAfterTextChanged(textWatchers);
+
+        // Span watchers need to be called after text watchers, which may update the layout
+        sendToSpanWatchers(start, end, newLen - origLen);
+
+        return this;
+    }
+
+    private static boolean hasNonExclusiveExclusiveSpanAt(CharSequence text, int offset) {
+        if (text instanceof Spanned) {
+            final Spanned spanned = (Spanned) text;
+            final Object[] spans = spanned.getSpans(offset, offset, Object.class);
+            for (int i = 0; i < spans.length; i++) {
+                if (spanned.getSpanFlags(spans[i]) != Spanned.SPAN_EXCLUSIVE_EXCLUSIVE) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns whether the bucket may hold spans affected by replacing [start, end).
+     */
+    private static boolean isAffected(Bucket bucket, int start, int end) {
+        return bucket.maxEnd + bucket.shift >= start && bucket.firstStart() <= end;
+    }
+
+    private void change(int start, int end, CharSequence cs, int csStart, int csEnd) {
+        // Can be negative
+        final int replacedLength = end - start;
+        final int replacementLength = csEnd - csStart;
+        final int nbNewChars = replacementLength - replacedLength;
+        final int oldLength = length();
+
+        // Move paragraph spans out of the replaced range, and remember which spans are at its
+        // boundaries for sendToSpanWatchers().
+        final boolean trackBoundaries = mSpanWatcherCount > 0;
+        buckets:
+        for (int b = 0; b < mBuckets.size(); b++) {
+            final Bucket bucket = mBuckets.get(b);
+            if (bucket.firstStart() > end) {
+                break;
+            }
+            if (!isAffected(bucket, start, end)) {
+                continue;
+            }
+            for (int i = 0; i < bucket.count; i++) {
+                final Span span = bucket.spans[i];
+                int spanStart = span.start + bucket.shift;
+                int spanEnd = span.end + bucket.shift;
+
+                if ((span.flags & SPAN_PARAGRAPH) == SPAN_PARAGRAPH) {
+                    final int ost = spanStart;
+                    final int oen = spanEnd;
+
+                    if (spanStart > start && spanStart <= end) {
+                        for (spanStart = end; spanStart < oldLength; spanStart++)
+                            if (spanStart > end && charAt(spanStart - 1) == '\n')
+                                break;
+                    }
+
+                    if (spanEnd > start && spanEnd <= end) {
+                        for (spanEnd = end; spanEnd < oldLength; spanEnd++)
+                            if (spanEnd > end && charAt(spanEnd - 1) == '\n')
+                                break;
+                    }
+
+                    if (spanStart != ost || spanEnd != oen) {
+                        // Moving the span may reorganize the buckets, so start over; the span
+                        // is left alone on the next pass.
+                        setSpan(false, span.what, spanStart, spanEnd, span.flags,
+                                true/*enforceParagraph*/);
+                        b = -1;
+                        continue buckets;
+                    }
+                }
+
+                if (trackBoundaries) {
+                    int flags = 0;
+                    if (spanStart == start) flags |= SPAN_START_AT_START;
+                    else if (spanStart == end + nbNewChars) flags |= SPAN_START_AT_END;
+                    if (spanEnd == start) flags |= SPAN_END_AT_START;
+                    else if (spanEnd == end + nbNewChars) flags |= SPAN_END_AT_END;
+                    span.flags |= flags;
+                    mHasChangeFlags = true;
+                }
+            }
+        }
+
+        final boolean textIsRemoved = replacementLength == 0;
+        // The removal pass needs to be done before the text is updated in order to broadcast
+        // the correct previous positions to the correct intersecting SpanWatchers
+        if (replacedLength > 0) { // no need for span fixup on pure insertion
+            while (removeSpanForChange(start, end, textIsRemoved)) {
+                // keep deleting spans as needed, and restart after every deletion because
+                // the span watchers may have changed the spans.
+            }
+        }
+
+        replaceText(start, end, cs, csStart, csEnd);
+        mMaxEnds = null;
+
+        final boolean atEnd = end == oldLength;
+        int firstTouched = -1;
+        int lastTouched = -1;
+        for (int b = 0; b < mBuckets.size(); b++) {
+            final Bucket bucket = mBuckets.get(b);
+            if (bucket.firstStart() > end) {
+                bucket.shift += nbNewChars;
+                continue;
+            }
+            if (bucket.maxEnd + bucket.shift < start) {
+                continue;
+            }
+            bucket.applyShift();
+            for (int i = 0; i < bucket.count; i++) {
+                final Span span = bucket.spans[i];
+                span.start = updatedBound(span.start, (span.flags & START_MASK) >> START_SHIFT,
+                        start, end, replacementLength, atEnd);
+                span.end = updatedBound(span.end, span.flags & END_MASK,
+                        start, end, replacementLength, atEnd);
+            }
+            bucket.updateMaxEnd();
+            if (firstTouched < 0) {
+                firstTouched = b;
+            }
+            lastTouched = b;
+        }
+        if (firstTouched >= 0) {
+            sortBuckets(firstTouched, lastTouched);
+        }
+
+        if (cs instanceof Spanned) {
+            final Spanned sp = (Spanned) cs;
+            final Object[] spans = sp.getSpans(csStart, csEnd, Object.class);
+
+            for (int i = 0; i < spans.length; i++) {
+                int st = sp.getSpanStart(spans[i]);
+                int en = sp.getSpanEnd(spans[i]);
+
+                if (st < csStart) st = csStart;
+                if (en > csEnd) en = csEnd;
+
+                // Add span only if this object is not yet used as a span in this string
+                if (getSpanStart(spans[i]) < 0) {
+                    final int copySpanStart = st - csStart + start;
+                    final int copySpanEnd = en - csStart + start;
+                    final int copySpanFlags = sp.getSpanFlags(spans[i]) | SPAN_ADDED;
+                    mHasChangeFlags = true;
+
+                    setSpan(false, spans[i], copySpanStart, copySpanEnd, copySpanFlags,
+                            false/*enforceParagraph*/);
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes the first SPAN_EXCLUSIVE_EXCLUSIVE span that would become empty by replacing
+     * [start, end), and returns whether one was found.
+     */
+    private boolean removeSpanForChange(int start, int end, boolean textIsRemoved) {
+        for (int b = 0; b < mBuckets.size(); b++) {
+            final Bucket bucket = mBuckets.get(b);
+            if (bucket.firstStart() > end) {
+                break;
+            }
+            if (!isAffected(bucket, start, end)) {
+                continue;
+            }
+            for (int i = 0; i < bucket.count; i++) {
+                final Span span = bucket.spans[i];
+                final int spanStart = span.start + bucket.shift;
+                final int spanEnd = span.end + bucket.shift;
+                // A PARAGRAPH end at the end of the text stays after the replacement.
+                final boolean endInRange = spanEnd < end || (spanEnd == end
+                        && ((span.flags & END_MASK) != PARAGRAPH || end != length()));
+                if ((span.flags & Spanned.SPAN_EXCLUSIVE_EXCLUSIVE) ==
+                        Spanned.SPAN_EXCLUSIVE_EXCLUSIVE &&
+                        spanStart >= start && spanStart < end &&
+                        spanEnd >= start && endInRange &&
+                        // The following condition indicates that the span would become empty
+                        (textIsRemoved || spanStart > start || spanEnd < end)) {
+                    removeSpan(span.what);
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the offset a span bound moves to when [start, end) is replaced by
+     * {@code newLength} chars, following the rules of {@link SpannableStringBuilder}.
+     */
+    private static int updatedBound(int offset, int flag, int start, int end, int newLength,
+            boolean atEnd) {
+        if (offset < start) {
+            return offset;
+        }
+        final int newEnd = start + newLength;
+        if (offset > end) {
+            return offset + newEnd - end;
+        }
+        if (start == end) {
+            // Pure insertion: only POINTs, and PARAGRAPHs at the end of the text, move.
+            return flag == POINT || (flag == PARAGRAPH && atEnd) ? newEnd : start;
+        }
+        final boolean textIsRemoved = newLength == 0;
+        if (flag == POINT) {
+            // A POINT located inside the replaced range should be moved to the end of the
+            // replaced text.
+            // The exception is when the point is at the start of the range and we are doing a
+            // text replacement (as opposed to a deletion): the point stays there.
+            return textIsRemoved || offset > start ? newEnd : start;
+        } else if (flag == PARAGRAPH) {
+            // Paragraph bounds inside the range were moved past it by change(), unless the
+            // range reaches the end of the text.
+            return atEnd || offset > start ? newEnd : start;
+        } else { // MARK
+            // MARKs should be moved to the start, with the exception of a mark located at the
+            // end of the range, which stays at the end of the replaced text.
+            return textIsRemoved || offset < end ? start : newEnd;
+        }
+    }
+
+    /**
+     * Restores the ordering of the spans of the given range of buckets after their offsets
+     * were updated. Only the spans that started within the replaced range move relative to
+     * the others, so sorting the spans of the touched buckets together is enough.
+     */
+    private void sortBuckets(int first, int last) {
+        int total = 0;
+        for (int b = first; b <= last; b++) {
+            mBuckets.get(b).applyShift();
+            total += mBuckets.get(b).count;
+        }
+        final Span[] spans = obtainTmpSpans(total);
+        int n = 0;
+        for (int b = first; b <= last; b++) {
+            final Bucket bucket = mBuckets.get(b);
+            System.arraycopy(bucket.spans, 0, spans, n, bucket.count);
+            n += bucket.count;
+        }
+        // Stable, so spans starting at the same offset keep their order.
+        Arrays.sort(spans, 0, n, START_COMPARATOR);
+        n = 0;
+        for (int b = first; b <= last; b++) {
+            final Bucket bucket = mBuckets.get(b);
+            System.arraycopy(spans, n, bucket.spans, 0, bucket.count);
+            for (int i = 0; i < bucket.count; i++) {
+                bucket.spans[i].bucket = bucket;
+            }
+            n += bucket.count;
+            bucket.updateMaxEnd();
+        }
+        Arrays.fill(spans, 0, n, null);
+    }
+
+    private void sendToSpanWatchers(int replaceStart, int replaceEnd, int nbNewChars) {
+        if (mSpanWatcherCount == 0) {
+            // Nobody to notify; only drop the flags set by change(), if any.
+            if (mHasChangeFlags) {
+                clearChangeFlags();
+            }
+            return;
+        }
+        mHasChangeFlags = false;
+
+        // Span watchers may change the spans; iterate defensively, like SpannableStringBuilder.
+        for (int b = 0; b < mBuckets.size(); b++) {
+            final Bucket bucket = mBuckets.get(b);
+            for (int i = 0; i < bucket.count; i++) {
+                final Span span = bucket.spans[i];
+                final int spanFlags = span.flags;
+
+                // This loop handles only modified (not added) spans.
+                if ((spanFlags & SPAN_ADDED) != 0) continue;
+                final int spanStart = span.start + bucket.shift;
+                final int spanEnd = span.end + bucket.shift;
+
+                final int newReplaceEnd = replaceEnd + nbNewChars;
+                boolean spanChanged = false;
+
+                int previousSpanStart = spanStart;
+                if (spanStart > newReplaceEnd) {
+                    if (nbNewChars != 0) {
+                        previousSpanStart -= nbNewChars;
+                        spanChanged = true;
+                    }
+                } else if (spanStart >= replaceStart) {
+                    // No change if span start was already at replace interval boundaries
+                    // before replace
+                    if ((spanStart != replaceStart ||
+                            ((spanFlags & SPAN_START_AT_START) != SPAN_START_AT_START)) &&
+                            (spanStart != newReplaceEnd ||
+                            ((spanFlags & SPAN_START_AT_END) != SPAN_START_AT_END))) {
+                        spanChanged = true;
+                    }
+                }
+
+                int previousSpanEnd = spanEnd;
+                if (spanEnd > newReplaceEnd) {
+                    if (nbNewChars != 0) {
+                        previousSpanEnd -= nbNewChars;
+                        spanChanged = true;
+                    }
+                } else if (spanEnd >= replaceStart) {
+                    // No change if span end was already at replace interval boundaries before
+                    // replace
+                    if ((spanEnd != replaceStart ||
+                            ((spanFlags & SPAN_END_AT_START) != SPAN_END_AT_START)) &&
+                            (spanEnd != newReplaceEnd ||
+                            ((spanFlags & SPAN_END_AT_END) != SPAN_END_AT_END))) {
+                        spanChanged = true;
+                    }
+                }
+
+                span.flags &= ~SPAN_START_END_MASK;
+                if (spanChanged) {
+                    sendSpanChanged(span.what, previousSpanStart, previousSpanEnd, spanStart,
+                            spanEnd);
+                }
+            }
+        }
+
+        // Handle added spans
+        for (int b = 0; b < mBuckets.size(); b++) {
+            final Bucket bucket = mBuckets.get(b);
+            for (int i = 0; i < bucket.count; i++) {
+                final Span span = bucket.spans[i];
+                if ((span.flags & SPAN_ADDED) != 0) {
+                    span.flags &= ~SPAN_ADDED;
+                    sendSpanAdded(span.what, span.start + bucket.shift, span.end + bucket.shift);
+                }
+            }
+        }
+    }
+
+    private void clearChangeFlags() {
+        mHasChangeFlags = false;
+        for (int b = 0; b < mBuckets.size(); b++) {
+            final Bucket bucket = mBuckets.get(b);
+            for (int i = 0; i < bucket.count; i++) {
+                bucket.spans[i].flags &= ~(SPAN_START_END_MASK | SPAN_ADDED);
+            }
+        }
+    }
+
+    /**
+     * Mark the specified range of text with the specified object.
+     * The flags determine how the span will behave when text is
+     * inserted at the start or end of the span's range.
+     */
+    public void setSpan(Object what, int start, int end, int flags) {
+        setSpan(true, what, start, end, flags, true/*enforceParagraph*/);
+    }
+
+    private void setSpan(boolean send, Object what, int start, int end, int flags,
+            boolean enforceParagraph) {
+        checkRange("setSpan", start, end);
+
+        final int flagsStart = (flags & START_MASK) >> START_SHIFT;
+        if (isInvalidParagraph(start, flagsStart)) {
+            if (!enforceParagraph) {
+                // do not set the span
+                return;
+            }
+            throw new RuntimeException("PARAGRAPH span must start at paragraph boundary"
+                    + " (" + start + " follows " + charAt(start - 1) + ")");
+        }
+
+        final int flagsEnd = flags & END_MASK;
+        if (isInvalidParagraph(end, flagsEnd)) {
+            if (!enforceParagraph) {
+                // do not set the span
+                return;
+            }
+            throw new RuntimeException("PARAGRAPH span must end at paragraph boundary"
+                    + " (" + end + " follows " + charAt(end - 1) + ")");
+        }
+
+        // 0-length Spanned.SPAN_EXCLUSIVE_EXCLUSIVE
+        if (flagsStart == POINT && flagsEnd == MARK && start == end) {
+            if (send) {
+                Log.e(TAG, "SPAN_EXCLUSIVE_EXCLUSIVE spans cannot have a zero length");
+            }
+            // Silently ignore invalid spans when they are created from this class.
+            return;
+        }
+
+        Span span = mSpans.get(what);
+        if (span != null) {
+            final int ostart = span.start + span.bucket.shift;
+            final int oend = span.end + span.bucket.shift;
+            removeFromBucket(span);
+            span.start = start;
+            span.end = end;
+            span.flags = flags;
+            addToBucket(span);
+
+            if (send) {
+                sendSpanChanged(what, ostart, oend, start, end);
+            }
+            return;
+        }
+
+        span = new Span(what, start, end, flags, mSpanInsertCount++);
+        mSpans.put(what, span);
+        addToBucket(span);
+        if (what instanceof SpanWatcher) {
+            mSpanWatcherCount++;
+        }
+
+        if (send) {
+            sendSpanAdded(what, start, end);
+        }
+    }
+
+    private boolean isInvalidParagraph(int index, int flag) {
+        return flag == PARAGRAPH && index != 0 && index != length() && charAt(index - 1) != '\n';
+    }
+
+    /**
+     * Inserts the span, whose offsets are absolute, after the spans starting at or before it.
+     */
+    private void addToBucket(Span span) {
+        mMaxEnds = null;
+        int lo = 0;
+        int hi = mBuckets.size() - 1;
+        // Find the last bucket whose first span starts at or before the span.
+        while (lo <= hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (mBuckets.get(mid).firstStart() <= span.start) {
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        final int index = Math.max(hi, 0);
+        Bucket bucket;
+        if (mBuckets.isEmpty()) {
+            bucket = new Bucket();
+            mBuckets.add(bucket);
+        } else {
+            bucket = mBuckets.get(index);
+            if (bucket.count == BUCKET_SIZE) {
+                splitBucket(index);
+                if (mBuckets.get(index + 1).firstStart() <= span.start) {
+                    bucket = mBuckets.get(index + 1);
+                }
+            }
+        }
+
+        bucket.applyShift();
+        int i = bucket.count;
+        while (i > 0 && bucket.spans[i - 1].start > span.start) {
+            i--;
+        }
+        System.arraycopy(bucket.spans, i, bucket.spans, i + 1, bucket.count - i);
+        bucket.spans[i] = span;
+        bucket.count++;
+        bucket.maxEnd = bucket.count == 1 ? span.end : Math.max(bucket.maxEnd, span.end);
+        span.bucket = bucket;
+    }
+
+    private void splitBucket(int index) {
+        final Bucket bucket = mBuckets.get(index);
+        bucket.applyShift();
+        final Bucket next = new Bucket();
+        final int half = bucket.count / 2;
+        next.count = bucket.count - half;
+        System.arraycopy(bucket.spans, half, next.spans, 0, next.count);
+        Arrays.fill(bucket.spans, half, bucket.count, null);
+        bucket.count = half;
+        for (int i = 0; i < next.count; i++) {
+            next.spans[i].bucket = next;
+        }
+        bucket.updateMaxEnd();
+        next.updateMaxEnd();
+        mBuckets.add(index + 1, next);
+    }
+
+    private void removeFromBucket(Span span) {
+        mMaxEnds = null;
+        final Bucket bucket = span.bucket;
+        bucket.applyShift();
+        for (int i = 0; i < bucket.count; i++) {
+            if (bucket.spans[i] == span) {
+                System.arraycopy(bucket.spans, i + 1, bucket.spans, i, bucket.count - i - 1);
+                bucket.spans[--bucket.count] = null;
+                break;
+            }
+        }
+        span.bucket = null;
+        if (bucket.count == 0) {
+            mBuckets.remove(bucket);
+        } else {
+            bucket.updateMaxEnd();
+        }
+    }
+
+    /**
+     * Remove the specified markup object from the buffer.
+     */
+    public void removeSpan(Object what) {
+        final Span span = mSpans.remove(what);
+        if (span != null) {
+            final int start = span.start + span.bucket.shift;
+            final int end = span.end + span.bucket.shift;
+            removeFromBucket(span);
+            if (what instanceof SpanWatcher) {
+                mSpanWatcherCount--;
+            }
+            sendSpanRemoved(what, start, end);
+        }
+    }
+
+    /**
+     * Return the buffer offset of the beginning of the specified
+     * markup object, or -1 if it is not attached to this buffer.
+     */
+    public int getSpanStart(Object what) {
+        final Span span = mSpans.get(what);
+        return span == null ? -1 : span.start + span.bucket.shift;
+    }
+
+    /**
+     * Return the buffer offset of the end of the specified
+     * markup object, or -1 if it is not attached to this buffer.
+     */
+    public int getSpanEnd(Object what) {
+        final Span span = mSpans.get(what);
+        return span == null ? -1 : span.end + span.bucket.shift;
+    }
+
+    /**
+     * Return the flags of the end of the specified
+     * markup object, or 0 if it is not attached to this buffer.
+     */
+    public int getSpanFlags(Object what) {
+        final Span span = mSpans.get(what);
+        return span == null ? 0 : span.flags;
+    }
+
+    /**
+     * Return an array of the spans of the specified type that overlap
+     * the specified range of the buffer.  The kind may be Object.class to get
+     * a list of all the spans regardless of type.
+     */
+    public <T> T[] getSpans(int queryStart, int queryEnd, @Nullable Class<T> kind) {
+        return getSpans(queryStart, queryEnd, kind, true);
+    }
+
+    /**
+     * Return an array of the spans of the specified type that overlap
+     * the specified range of the buffer.  The kind may be Object.class to get
+     * a list of all the spans regardless of type.
+     *
+     * @param queryStart Start index.
+     * @param queryEnd End index.
+     * @param kind Class type to search for.
+     * @param sortByInsertionOrder If true the results are sorted by the insertion order.
+     * @param <T>
+     * @return Array of the spans. Empty array if no results are found.
+     *
+     * @hide
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T[] getSpans(int queryStart, int queryEnd, @Nullable Class<T> kind,
+            boolean sortByInsertionOrder) {
+        if (kind == null) return (T[]) ArrayUtils.emptyArray(Object.class);
+        if (mBuckets.isEmpty()) return ArrayUtils.emptyArray(kind);
+
+        int count = 0;
+        for (int b = firstBucketEndingAfter(queryStart - 1); b < mBuckets.size(); b++) {
+            final Bucket bucket = mBuckets.get(b);
+            if (bucket.firstStart() > queryEnd) {
+                break;
+            }
+            if (bucket.maxEnd + bucket.shift < queryStart) {
+                continue;
+            }
+            for (int i = 0; i < bucket.count; i++) {
+                final Span span = bucket.spans[i];
+                final int spanStart = span.start + bucket.shift;
+                if (spanStart > queryEnd) {
+                    break;
+                }
+                final int spanEnd = span.end + bucket.shift;
+                if (spanEnd >= queryStart &&
+                        (spanStart == spanEnd || queryStart == queryEnd ||
+                            (spanStart != queryEnd && spanEnd != queryStart)) &&
+                        (Object.class == kind || kind.isInstance(span.what))) {
+                    if (count == mTmpSpans.length) {
+                        mTmpSpans = Arrays.copyOf(mTmpSpans, count * 2);
+                    }
+                    mTmpSpans[count++] = span;
+                }
+            }
+        }
+        if (count == 0) {
+            return ArrayUtils.emptyArray(kind);
+        }
+
+        final Span[] spans = mTmpSpans;
+        // Priority spans always come first; both sorts are stable.
+        Arrays.sort(spans, 0, count,
+                sortByInsertionOrder ? PRIORITY_ORDER_COMPARATOR : PRIORITY_COMPARATOR);
+        final T[] ret = (T[]) Array.newInstance(kind, count);
+        for (int i = 0; i < count; i++) {
+            ret[i] = (T) spans[i].what;
+            spans[i] = null;
+        }
+        return ret;
+    }
+
+    /**
+     * Return the next offset after <code>start</code> but less than or
+     * equal to <code>limit</code> where a span of the specified type
+     * begins or ends.
+     */
+    public int nextSpanTransition(int start, int limit, Class kind) {
+        if (kind == null) {
+            kind = Object.class;
+        }
+        for (int b = firstBucketEndingAfter(start); b < mBuckets.size(); b++) {
+            final Bucket bucket = mBuckets.get(b);
+            if (bucket.firstStart() >= limit) {
+                break;
+            }
+            if (bucket.maxEnd + bucket.shift <= start) {
+                continue;
+            }
+            for (int i = 0; i < bucket.count; i++) {
+                final Span span = bucket.spans[i];
+                final int st = span.start + bucket.shift;
+                if (st >= limit) {
+                    break;
+                }
+                final int en = span.end + bucket.shift;
+                if (st > start && kind.isInstance(span.what))
+                    limit = st;
+                if (en > start && en < limit && kind.isInstance(span.what))
+                    limit = en;
+            }
+        }
+        return limit;
+    }
+
+    /**
+     * Return a new CharSequence containing a copy of the specified
+     * range of this buffer, including the overlapping spans.
+     */
+    public CharSequence subSequence(int start, int end) {
+        return new SpannableRopeBuilder(this, start, end);
+    }
+
+    /**
+     * Copy the specified range of chars from this buffer into the
+     * specified array, beginning at the specified offset.
+     */
+    public void getChars(int start, int end, char[] dest, int destoff) {
+        checkRange("getChars", start, end);
+        if (start < end) {
+            getChars(mRoot, start, end, dest, destoff);
+        }
+    }
+
+    /**
+     * Return a String containing a copy of the chars in this buffer.
+     */
+    @Override
+    public String toString() {
+        final int len = length();
+        final char[] buf = new char[len];
+
+        getChars(0, len, buf, 0);
+        return new String(buf);
+    }
+
+    /**
+     * Returns the depth of TextWatcher callbacks. Returns 0 when the object is not handling
+     * TextWatchers. A return value greater than 1 implies that a TextWatcher caused a change that
+     * recursively triggered a TextWatcher.
+     */
+    public int getTextWatcherDepth() {
+        return mTextWatcherDepth;
+    }
+
+    // Documentation from interface
+    public void setFilters(InputFilter[] filters) {
+        if (filters == null) {
+            throw new IllegalArgumentException();
+        }
+
+        mFilters = filters;
+    }
+
+    // Documentation from interface
+    public InputFilter[] getFilters() {
+        return mFilters;
+    }
+
+    // Same as SpannableStringInternal
+    @Override
+    public boolean equals(Object o) {
+        if (o instanceof Spanned &&
+                toString().equals(o.toString())) {
+            final Spanned other = (Spanned) o;
+            // Check span data
+            final Object[] otherSpans = other.getSpans(0, other.length(), Object.class);
+            if (mSpans.size() == otherSpans.length) {
+                int j = 0;
+                for (int b = 0; b < mBuckets.size(); b++) {
+                    final Bucket bucket = mBuckets.get(b);
+                    for (int i = 0; i < bucket.count; i++, j++) {
+                        final Object thisSpan = bucket.spans[i].what;
+                        final Object otherSpan = otherSpans[j];
+                        if (thisSpan == this) {
+                            if (other != otherSpan ||
+                                    getSpanStart(thisSpan) != other.getSpanStart(otherSpan) ||
+                                    getSpanEnd(thisSpan) != other.getSpanEnd(otherSpan) ||
+                                    getSpanFlags(thisSpan) != other.getSpanFlags(otherSpan)) {
+                                return false;
+                            }
+                        } else if (!thisSpan.equals(otherSpan) ||
+                                getSpanStart(thisSpan) != other.getSpanStart(otherSpan) ||
+                                getSpanEnd(thisSpan) != other.getSpanEnd(otherSpan) ||
+                                getSpanFlags(thisSpan) != other.getSpanFlags(otherSpan)) {
+                            return false;
+                        }
+                    }
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Same as SpannableStringInternal
+    @Override
+    public int hashCode() {
+        int hash = toString().hashCode();
+        hash = hash * 31 + mSpans.size();
+        for (int b = 0; b < mBuckets.size(); b++) {
+            final Bucket bucket = mBuckets.get(b);
+            for (int i = 0; i < bucket.count; i++) {
+                final Object span = bucket.spans[i].what;
+                if (span != this) {
+                    hash = hash * 31 + span.hashCode();
+                }
+                hash = hash * 31 + getSpanStart(span);
+                hash = hash * 31 + getSpanEnd(span);
+                hash = hash * 31 + getSpanFlags(span);
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Don't call this yourself -- exists for Canvas to use internally.
+     * {@hide}
+     */
+    @Override
+    public void drawText(BaseCanvas c, int start, int end, float x, float y, Paint p) {
+        checkRange("drawText", start, end);
+
+        final char[] buf = TextUtils.obtain(end - start);
+        getChars(start, end, buf, 0);
+        c.drawText(buf, 0, end - start, x, y, p);
+        TextUtils.recycle(buf);
+    }
+
+    /**
+     * Don't call this yourself -- exists for Canvas to use internally.
+     * {@hide}
+     */
+    @Override
+    public void drawTextRun(BaseCanvas c, int start, int end, int contextStart, int contextEnd,
+            float x, float y, boolean isRtl, Paint p) {
+        checkRange("drawTextRun", start, end);
+
+        final int contextLen = contextEnd - contextStart;
+        final char[] buf = TextUtils.obtain(contextLen);
+        getChars(contextStart, contextEnd, buf, 0);
+        c.drawTextRun(buf, start - contextStart, end - start, 0, contextLen, x, y, isRtl, p);
+        TextUtils.recycle(buf);
+    }
+
+    /**
+     * Don't call this yourself -- exists for Paint to use internally.
+     * {@hide}
+     */
+    public float measureText(int start, int end, Paint p) {
+        checkRange("measureText", start, end);
+
+        final char[] buf = TextUtils.obtain(end - start);
+        getChars(start, end, buf, 0);
+        final float ret = p.measureText(buf, 0, end - start);
+        TextUtils.recycle(buf);
+        return ret;
+    }
+
+    /**
+     * Don't call this yourself -- exists for Paint to use internally.
+     * {@hide}
+     */
+    public int getTextWidths(int start, int end, float[] widths, Paint p) {
+        checkRange("getTextWidths", start, end);
+
+        final char[] buf = TextUtils.obtain(end - start);
+        getChars(start, end, buf, 0);
+        final int ret = p.getTextWidths(buf, 0, end - start, widths);
+        TextUtils.recycle(buf);
+        return ret;
+    }
+
+    /**
+     * Don't call this yourself -- exists for Paint to use internally.
+     * {@hide}
+     */
+    public float getTextRunAdvances(int start, int end, int contextStart, int contextEnd,
+            boolean isRtl, float[] advances, int advancesPos, Paint p) {
+        final int contextLen = contextEnd - contextStart;
+        final char[] buf = TextUtils.obtain(contextLen);
+        getChars(contextStart, contextEnd, buf, 0);
+        final float ret = p.getTextRunAdvances(buf, start - contextStart, end - start,
+                0, contextLen, isRtl, advances, advancesPos);
+        TextUtils.recycle(buf);
+        return ret;
+    }
+
+    /**
+     * Returns the next cursor position in the run.
+     *
+     * @see SpannableStringBuilder#getTextRunCursor
+     * @deprecated This is an internal method, refrain from using it in your code
+     */
+    @Deprecated
+    public int getTextRunCursor(int contextStart, int contextEnd, int dir, int offset,
+            int cursorOpt, Paint p) {
+        final int contextLen = contextEnd - contextStart;
+        final char[] buf = TextUtils.obtain(contextLen);
+        getChars(contextStart, contextEnd, buf, 0);
+        final int ret = p.getTextRunCursor(buf, 0, contextLen,
+                dir, offset - contextStart, cursorOpt) + contextStart;
+        TextUtils.recycle(buf);
+        return ret;
+    }
+
+    private void sendBeforeTextChanged(TextWatcher[] watchers, int start, int before, int after) {
+        mTextWatcherDepth++;
+        for (int i = 0; i < watchers.length; i++) {
+            watchers[i].beforeTextChanged(this, start, before, after);
+        }
+        mTextWatcherDepth--;
+    }
+
+    private void sendTextChanged(TextWatcher[] watchers, int start, int before, int after) {
+        mTextWatcherDepth++;
+        for (int i = 0; i < watchers.length; i++) {
+            watchers[i].onTextChanged(this, start, before, after);
+        }
+        mTextWatcherDepth--;
+    }
+
+    private void sendAfterTextChanged(TextWatcher[] watchers) {
+        mTextWatcherDepth++;
+        for (int i = 0; i < watchers.length; i++) {
+            watchers[i].afterTextChanged(this);
+        }
+        mTextWatcherDepth--;
+    }
+
+    private void sendSpanAdded(Object what, int start, int end) {
+        if (mSpanWatcherCount == 0) return;
+        final SpanWatcher[] recip = getSpans(start, end, SpanWatcher.class);
+        for (int i = 0; i < recip.length; i++) {
+            recip[i].onSpanAdded(this, what, start, end);
+        }
+    }
+
+    private void sendSpanRemoved(Object what, int start, int end) {
+        if (mSpanWatcherCount == 0) return;
+        final SpanWatcher[] recip = getSpans(start, end, SpanWatcher.class);
+        for (int i = 0; i < recip.length; i++) {
+            recip[i].onSpanRemoved(this, what, start, end);
+        }
+    }
+
+    private void sendSpanChanged(Object what, int oldStart, int oldEnd, int start, int end) {
+        if (mSpanWatcherCount == 0) return;
+        // The bounds of a possible SpanWatcher are guaranteed to be set before this method is
+        // called, so that the order of the span does not affect this broadcast.
+        final SpanWatcher[] spanWatchers = getSpans(Math.min(oldStart, start),
+                Math.min(Math.max(oldEnd, end), length()), SpanWatcher.class);
+        for (int i = 0; i < spanWatchers.length; i++) {
+            spanWatchers[i].onSpanChanged(this, what, oldStart, oldEnd, start, end);
+        }
+    }
+
+    private static String region(int start, int end) {
+        return "(" + start + " ... " + end + ")";
+    }
+
+    private void checkRange(final String operation, int start, int end) {
+        if (end < start) {
+            throw new IndexOutOfBoundsException(operation + " " +
+                    region(start, end) + " has end before start");
+        }
+
+        final int len = length();
+
+        if (start > len || end > len) {
+            throw new IndexOutOfBoundsException(operation + " " +
+                    region(start, end) + " ends beyond length " + len);
+        }
+
+        if (start < 0 || end < 0) {
+            throw new IndexOutOfBoundsException(operation + " " +
+                    region(start, end) + " starts before 0");
+        }
+    }
+
+    /**
+     * Returns the index of the first bucket holding a span that ends after the given offset.
+     * Spans in earlier buckets all end at or before it, so queries can start from there.
+     */
+    private int firstBucketEndingAfter(int offset) {
+        final int bucketCount = mBuckets.size();
+        if (mMaxEnds == null) {
+            // Running maximum of the span ends, rebuilt after the spans were changed.
+            mMaxEnds = new int[bucketCount];
+            int max = Integer.MIN_VALUE;
+            for (int b = 0; b < bucketCount; b++) {
+                final Bucket bucket = mBuckets.get(b);
+                max = Math.max(max, bucket.maxEnd + bucket.shift);
+                mMaxEnds[b] = max;
+            }
+        }
+        int lo = 0;
+        int hi = bucketCount - 1;
+        while (lo <= hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (mMaxEnds[mid] <= offset) {
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+
+    private Span[] obtainTmpSpans(int size) {
+        if (mTmpSpans.length < size) {
+            mTmpSpans = new Span[Math.max(size, mTmpSpans.length * 2)];
+        }
+        return mTmpSpans;
+    }
+
+    // Rope primitives
+
+    /**
+     * Replaces [start, end) of the text with the given chars. Edits that fit within a single
+     * leaf are made in place; others split the rope around the range and join the pieces.
+     */
+    private void replaceText(int start, int end, CharSequence cs, int csStart, int csEnd) {
+        mCharAtLeaf = null;
+        if (mRoot != null && replaceInLeaf(mRoot, start, end, cs, csStart, csEnd)) {
+            return;
+        }
+        final Node[] split = mTmpSplit;
+        split(mRoot, start, split);
+        final Node before = split[0];
+        split(split[1], end - start, split);
+        final Node after = split[1];
+        split[0] = split[1] = null;
+        mRoot = join(join(before, build(cs, csStart, csEnd)), after);
+    }
+
+    private static boolean replaceInLeaf(Node n, int start, int end, CharSequence cs,
+            int csStart, int csEnd) {
+        final int delta = (csEnd - csStart) - (end - start);
+        if (n.isLeaf()) {
+            final int newLength = n.length + delta;
+            if (newLength > LEAF_SIZE || newLength == 0) {
+                return false;
+            }
+            if (newLength > n.chars.length) {
+                n.chars = Arrays.copyOf(n.chars, Math.min(LEAF_SIZE,
+                        Math.max(newLength, n.chars.length * 2)));
+            }
+            System.arraycopy(n.chars, end, n.chars, end + delta, n.length - end);
+            TextUtils.getChars(cs, csStart, csEnd, n.chars, start);
+            n.length = newLength;
+            return true;
+        }
+        final int leftLength = n.left.length;
+        final boolean replaced;
+        if (end <= leftLength) {
+            replaced = replaceInLeaf(n.left, start, end, cs, csStart, csEnd);
+        } else if (start >= leftLength) {
+            replaced = replaceInLeaf(n.right, start - leftLength, end - leftLength,
+                    cs, csStart, csEnd);
+        } else {
+            return false;
+        }
+        if (replaced) {
+            n.length += delta;
+        }
+        return replaced;
+    }
+
+    /**
+     * Builds a balanced rope holding a copy of the given chars, or null if there are none.
+     */
+    private static Node build(CharSequence cs, int start, int end) {
+        final int length = end - start;
+        if (length == 0) {
+            return null;
+        }
+        if (length <= LEAF_SIZE) {
+            final char[] chars = new char[length];
+            TextUtils.getChars(cs, start, end, chars, 0);
+            return new Node(chars, length);
+        }
+        final int leaves = (length + LEAF_SIZE - 1) / LEAF_SIZE;
+        final int mid = start + (leaves / 2) * LEAF_SIZE;
+        return new Node(build(cs, start, mid), build(cs, mid, end));
+    }
+
+    /**
+     * Splits the rope at the given offset, storing the two halves (which may be null) in out.
+     */
+    private static void split(Node n, int offset, Node[] out) {
+        if (n == null || offset <= 0) {
+            out[0] = null;
+            out[1] = n;
+            return;
+        }
+        if (offset >= n.length) {
+            out[0] = n;
+            out[1] = null;
+            return;
+        }
+        if (n.isLeaf()) {
+            final char[] tail = Arrays.copyOfRange(n.chars, offset, n.length);
+            n.length = offset;
+            out[0] = n;
+            out[1] = new Node(tail, tail.length);
+            return;
+        }
+        final Node left = n.left;
+        final Node right = n.right;
+        if (offset < left.length) {
+            split(left, offset, out);
+            out[1] = join(out[1], right);
+        } else if (offset == left.length) {
+            out[0] = left;
+            out[1] = right;
+        } else {
+            split(right, offset - left.length, out);
+            out[0] = join(left, out[0]);
+        }
+    }
+
+    /**
+     * Concatenates two ropes, keeping the result balanced and merging small adjacent leaves.
+     */
+    private static Node join(Node a, Node b) {
+        if (a == null) return b;
+        if (b == null) return a;
+        if (b.isLeaf() && appendToLastLeaf(a, b)) {
+            return a;
+        }
+        if (a.isLeaf() && prependToFirstLeaf(b, a)) {
+            return b;
+        }
+        if (a.height > b.height + 1) {
+            a.right = join(a.right, b);
+            return rebalance(a);
+        }
+        if (b.height > a.height + 1) {
+            b.left = join(a, b.left);
+            return rebalance(b);
+        }
+        return new Node(a, b);
+    }
+
+    private static boolean appendToLastLeaf(Node n, Node leaf) {
+        if (n.isLeaf()) {
+            final int length = n.length + leaf.length;
+            if (length > LEAF_SIZE) {
+                return false;
+            }
+            if (length > n.chars.length) {
+                n.chars = Arrays.copyOf(n.chars, length);
+            }
+            System.arraycopy(leaf.chars, 0, n.chars, n.length, leaf.length);
+            n.length = length;
+            return true;
+        }
+        if (appendToLastLeaf(n.right, leaf)) {
+            n.length += leaf.length;
+            return true;
+        }
+        return false;
+    }
+
+    private static boolean prependToFirstLeaf(Node n, Node leaf) {
+        if (n.isLeaf()) {
+            final int length = n.length + leaf.length;
+            if (length > LEAF_SIZE) {
+                return false;
+            }
+            final char[] chars = length > n.chars.length ? new char[length] : n.chars;
+            System.arraycopy(n.chars, 0, chars, leaf.length, n.length);
+            System.arraycopy(leaf.chars, 0, chars, 0, leaf.length);
+            n.chars = chars;
+            n.length = length;
+            return true;
+        }
+        if (prependToFirstLeaf(n.left, leaf)) {
+            n.length += leaf.length;
+            return true;
+        }
+        return false;
+    }
+
+    private static Node rebalance(Node n) {
+        n.update();
+        final int balance = n.left.height - n.right.height;
+        if (balance > 1) {
+            if (n.left.left.height < n.left.right.height) {
+                n.left = rotateLeft(n.left);
+            }
+            return rotateRight(n);
+        }
+        if (balance < -1) {
+            if (n.right.right.height < n.right.left.height) {
+                n.right = rotateRight(n.right);
+            }
+            return rotateLeft(n);
+        }
+        return n;
+    }
+
+    private static Node rotateLeft(Node n) {
+        final Node r = n.right;
+        n.right = r.left;
+        n.update();
+        r.left = n;
+        r.update();
+        return r;
+    }
+
+    private static Node rotateRight(Node n) {
+        final Node l = n.left;
+        n.left = l.right;
+        n.update();
+        l.right = n;
+        l.update();
+        return l;
+    }
+
+    private static void getChars(Node n, int start, int end, char[] dest, int destoff) {
+        if (n.isLeaf()) {
+            System.arraycopy(n.chars, start, dest, destoff, end - start);
+            return;
+        }
+        final int leftLength = n.left.length;
+        if (start < leftLength) {
+            final int leftEnd = Math.min(end, leftLength);
+            getChars(n.left, start, leftEnd, dest, destoff);
+            destoff += leftEnd - start;
+        }
+        if (end > leftLength) {
+            getChars(n.right, Math.max(start, leftLength) - leftLength, end - leftLength,
+                    dest, destoff);
+        }
+    }
+}
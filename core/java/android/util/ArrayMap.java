@@ -44,6 +44,11 @@ import java.util.Set;
  * you have no control over this shrinking -- if you set a capacity and then remove an
  * item, it may reduce the capacity to better match the current size.  In the future an
  * explicit call to set the capacity should turn off this aggressive shrinking behavior.</p>
+ *
+ * <p>Maps that are expected to hold thousands of items can opt in to a hashed layout with
+ * {@link #enableHashing}: above {@link #HASHED_THRESHOLD} items, the entries are no longer kept
+ * sorted by hash code but indexed by a hash table, so that lookups, adds and removes take
+ * constant time. Removing an entry then moves the last entry to its index.</p>
  */
 public final class ArrayMap<K, V> implements Map<K, V> {
     private static final boolean DEBUG = false;
@@ -72,6 +77,14 @@ public final class ArrayMap<K, V> implements Map<K, V> {
      */
     private static final int CACHE_SIZE = 10;
 
+    /**
+     * Number of items above which a map with hashing enabled switches to the hashed layout.
+     * It stays hashed until it is emptied, so that the indices of the entries don't all change
+     * while removing entries during an iteration.
+     * @hide
+     */
+    public static final int HASHED_THRESHOLD = 256;
+
     /**
      * Special hash array value that indicates the container is immutable.
      */
@@ -99,6 +112,11 @@ public final class ArrayMap<K, V> implements Map<K, V> {
     int mSize;
     MapCollections<K, V> mCollections;
 
+    // Whether the map may switch to the hashed layout, and the hash table of the entries when it
+    // did, in which case they are not sorted by hash code.
+    boolean mHashingEnabled;
+    HashIndex mIndex;
+
     private static int binarySearchHashes(int[] hashes, int N, int hash) {
         try {
             return ContainerHelpers.binarySearch(hashes, N, hash);
@@ -119,6 +137,10 @@ public final class ArrayMap<K, V> implements Map<K, V> {
             return ~0;
         }
 
+        if (mIndex != null) {
+            return indexOfHashed(key, hash);
+        }
+
         int index = binarySearchHashes(mHashes, N, hash);
 
         // If the hash code wasn't found, then we have no entry for this key.
@@ -157,6 +179,10 @@ public final class ArrayMap<K, V> implements Map<K, V> {
             return ~0;
         }
 
+        if (mIndex != null) {
+            return indexOfHashed(null, 0);
+        }
+
         int index = binarySearchHashes(mHashes, N, 0);
 
         // If the hash code wasn't found, then we have no entry for this key.
@@ -187,6 +213,31 @@ public final class ArrayMap<K, V> implements Map<K, V> {
         return ~end;
     }
 
+    /**
+     * Looks up a key in the hashed layout. New entries always go at the end.
+     */
+    private int indexOfHashed(Object key, int hash) {
+        final int[] slots = mIndex.slots;
+        final int mask = mIndex.mask;
+        for (int slot = mIndex.firstSlot(hash); ; slot = (slot + 1) & mask) {
+            final int entry = slots[slot];
+            if (entry == 0) {
+                return ~mSize;
+            }
+            final int index = entry - 1;
+            if (mHashes[index] == hash) {
+                final Object other = mArray[index << 1];
+                if (key == null ? other == null : key.equals(other)) {
+                    return index;
+                }
+            }
+        }
+    }
+
+    private void startHashing() {
+        mIndex = new HashIndex(mHashes, mSize);
+    }
+
     private void allocArrays(final int size) {
         if (mHashes == EMPTY_IMMUTABLE_INTS) {
             throw new UnsupportedOperationException("ArrayMap is immutable");
@@ -297,10 +348,26 @@ public final class ArrayMap<K, V> implements Map<K, V> {
     public ArrayMap(ArrayMap<K, V> map) {
         this();
         if (map != null) {
+            mHashingEnabled = map.mHashingEnabled;
             putAll(map);
         }
     }
 
+    /**
+     * @hide
+     * Allows this map to switch to a hashed layout once it holds more than
+     * {@link #HASHED_THRESHOLD} items. The indices of the entries then no longer follow the
+     * hash codes of their keys, and removing an entry moves the last one to its index; code
+     * that removes entries while iterating by index must iterate backwards, or not advance
+     * after a removal.
+     */
+    public void enableHashing() {
+        mHashingEnabled = true;
+        if (mIndex == null && mSize > HASHED_THRESHOLD) {
+            startHashing();
+        }
+    }
+
     /**
      * Make the array map empty.  All storage is released.
      */
@@ -313,6 +380,7 @@ public final class ArrayMap<K, V> implements Map<K, V> {
             mHashes = EmptyArray.INT;
             mArray = EmptyArray.OBJECT;
             mSize = 0;
+            mIndex = null;
             freeArrays(ohashes, oarray, osize);
         }
         if (CONCURRENT_MODIFICATION_EXCEPTIONS && mSize > 0) {
@@ -332,6 +400,7 @@ public final class ArrayMap<K, V> implements Map<K, V> {
                 array[i] = null;
             }
             mSize = 0;
+            mIndex = null;
         }
     }
 
@@ -527,6 +596,11 @@ public final class ArrayMap<K, V> implements Map<K, V> {
         mArray[index<<1] = key;
         mArray[(index<<1)+1] = value;
         mSize++;
+        if (mIndex != null) {
+            mIndex.add(mHashes, mSize);
+        } else if (mHashingEnabled && mSize > HASHED_THRESHOLD) {
+            startHashing();
+        }
         return null;
     }
 
@@ -542,6 +616,11 @@ public final class ArrayMap<K, V> implements Map<K, V> {
         if (index >= mHashes.length) {
             throw new IllegalStateException("Array is full");
         }
+        if (mIndex != null) {
+            // Entries aren't sorted in the hashed layout.
+            put(key, value);
+            return;
+        }
         if (index > 0 && mHashes[index-1] > hash) {
             RuntimeException e = new RuntimeException("here");
             e.fillInStackTrace();
@@ -568,8 +647,8 @@ public final class ArrayMap<K, V> implements Map<K, V> {
      */
     public void validate() {
         final int N = mSize;
-        if (N <= 1) {
-            // There can't be dups.
+        if (N <= 1 || mIndex != null) {
+            // There can't be dups; the hashed layout is only filled by put().
             return;
         }
         int basehash = mHashes[0];
@@ -603,11 +682,17 @@ public final class ArrayMap<K, V> implements Map<K, V> {
     public void putAll(ArrayMap<? extends K, ? extends V> array) {
         final int N = array.mSize;
         ensureCapacity(mSize + N);
-        if (mSize == 0) {
+        // The entries of a hashed map can only be copied as is into a map that can be hashed.
+        if (mSize == 0 && (array.mIndex == null || mHashingEnabled)) {
             if (N > 0) {
                 System.arraycopy(array.mHashes, 0, mHashes, 0, N);
                 System.arraycopy(array.mArray, 0, mArray, 0, N<<1);
                 mSize = N;
+                if (array.mIndex != null) {
+                    mIndex = array.mIndex.copy();
+                } else if (mHashingEnabled && N > HASHED_THRESHOLD) {
+                    startHashing();
+                }
             }
         } else {
             for (int i=0; i<N; i++) {
@@ -638,6 +723,9 @@ public final class ArrayMap<K, V> implements Map<K, V> {
      * @return Returns the value that was stored at this index.
      */
     public V removeAt(int index) {
+        if (mIndex != null) {
+            return removeAtHashed(index);
+        }
         final Object old = mArray[(index << 1) + 1];
         final int osize = mSize;
         final int nsize;
@@ -697,6 +785,32 @@ public final class ArrayMap<K, V> implements Map<K, V> {
         return (V)old;
     }
 
+    private V removeAtHashed(int index) {
+        final Object old = mArray[(index << 1) + 1];
+        final int osize = mSize;
+        final int nsize = osize - 1;
+        mIndex.remove(mHashes, index);
+        if (index < nsize) {
+            // Move the last entry into the hole.
+            mIndex.move(mHashes[nsize], nsize, index);
+            mHashes[index] = mHashes[nsize];
+            mArray[index << 1] = mArray[nsize << 1];
+            mArray[(index << 1) + 1] = mArray[(nsize << 1) + 1];
+        }
+        mArray[nsize << 1] = null;
+        mArray[(nsize << 1) + 1] = null;
+        if (CONCURRENT_MODIFICATION_EXCEPTIONS && osize != mSize) {
+            throw new ConcurrentModificationException();
+        }
+        mSize = nsize;
+        if (nsize == 0) {
+            mIndex = null;
+        } else {
+            mIndex.trim(mHashes, nsize);
+        }
+        return (V)old;
+    }
+
     /**
      * Return the number of items in this array map.
      */
@@ -0,0 +1,462 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.util;
+
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A cache that holds strong references to a limited number of values, like
+ * {@link LruCache}, for caches that are shared by many threads.
+ *
+ * <p>{@link #get} does not take any lock: values are looked up in a concurrent
+ * map, and an access only marks the entry as recently used. Writes lock one of
+ * several shards, chosen by the hash of the key, so threads writing different
+ * keys rarely wait for each other. Each shard keeps its entries in insertion
+ * order; when the cache is full, the shards are visited in turn and the oldest
+ * entry of the shard that was not accessed since the shard was last visited is
+ * evicted, while accessed entries get a second chance (the "clock" algorithm).
+ * The eviction order is thus an approximation of least recently used.
+ *
+ * <p>{@link #sizeOf}, {@link #entryRemoved} and {@link #create} have the same
+ * contract as in {@link LruCache}. The size of an entry is computed once, when
+ * it is added.
+ *
+ * <p>This class is thread-safe. Unlike {@link LruCache}, synchronizing on the
+ * cache does not make a sequence of operations atomic.
+ *
+ * <p>This class does not allow null to be used as a key or value. A return
+ * value of null from {@link #get}, {@link #put} or {@link #remove} is
+ * unambiguous: the key was not in the cache.
+ */
+public class ConcurrentLruCache<K, V> {
+    private static final int MAX_SHARDS = 16;
+
+    // Shards compact their queue once this many removed entries are waiting in it.
+    private static final int MIN_REMOVED_TO_COMPACT = 16;
+
+    private static final class Node<K, V> {
+        final K key;
+        final V value;
+        final int size;
+        // Set by get(), cleared when the clock hand passes the entry.
+        volatile boolean referenced;
+        // Guarded by the shard; set when the entry was replaced or removed.
+        boolean removed;
+
+        Node(K key, V value, int size) {
+            this.key = key;
+            this.value = value;
+            this.size = size;
+        }
+    }
+
+    private static final class Shard<K, V> {
+        // Entries in insertion order; the head is where the clock hand points.
+        final ArrayDeque<Node<K, V>> queue = new ArrayDeque<>();
+        int removedCount;
+
+        void markRemoved(Node<K, V> node) {
+            node.removed = true;
+            removedCount++;
+            if (removedCount >= MIN_REMOVED_TO_COMPACT && removedCount > queue.size() / 2) {
+                queue.removeIf(n -> n.removed);
+                removedCount = 0;
+            }
+        }
+
+        /**
+         * Removes and returns the next entry to evict, or null if the shard is empty.
+         */
+        Node<K, V> evict() {
+            // Readers may keep marking entries, so give up on second chances after two laps.
+            int secondChances = 2 * queue.size();
+            Node<K, V> node;
+            while ((node = queue.pollFirst()) != null) {
+                if (node.removed) {
+                    removedCount--;
+                } else if (node.referenced && secondChances-- > 0) {
+                    node.referenced = false;
+                    queue.addLast(node);
+                } else {
+                    return node;
+                }
+            }
+            return null;
+        }
+    }
+
+    private final ConcurrentHashMap<K, Node<K, V>> map;
+    private final Shard<K, V>[] shards;
+    private final int shardMask;
+    private final AtomicInteger evictionCursor = new AtomicInteger();
+
+    /** Size of this cache in units. Not necessarily the number of elements. */
+    private final AtomicInteger size = new AtomicInteger();
+    private volatile int maxSize;
+
+    private final LongAdder putCount = new LongAdder();
+    private final LongAdder createCount = new LongAdder();
+    private final LongAdder evictionCount = new LongAdder();
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+
+    /**
+     * Creates a cache with a number of shards suited to the number of CPUs.
+     *
+     * @param maxSize for caches that do not override {@link #sizeOf}, this is
+     *     the maximum number of entries in the cache. For all other caches,
+     *     this is the maximum sum of the sizes of the entries in this cache.
+     */
+    public ConcurrentLruCache(int maxSize) {
+        this(maxSize, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param maxSize for caches that do not override {@link #sizeOf}, this is
+     *     the maximum number of entries in the cache. For all other caches,
+     *     this is the maximum sum of the sizes of the entries in this cache.
+     * @param concurrencyLevel the number of threads expected to write to the
+     *     cache at the same time. It is rounded up to a power of two, up to 16.
+     */
+    @SuppressWarnings("unchecked")
+    public ConcurrentLruCache(int maxSize, int concurrencyLevel) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        if (concurrencyLevel <= 0) {
+            throw new IllegalArgumentException("concurrencyLevel <= 0");
+        }
+        this.maxSize = maxSize;
+        int shardCount = 1;
+        while (shardCount < concurrencyLevel && shardCount < MAX_SHARDS) {
+            shardCount <<= 1;
+        }
+        this.shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard<>();
+        }
+        this.shardMask = shardCount - 1;
+        this.map = new ConcurrentHashMap<>(16, 0.75f, shardCount);
+    }
+
+    private Shard<K, V> shardFor(K key) {
+        final int hash = key.hashCode();
+        return shards[(hash ^ (hash >>> 16)) & shardMask];
+    }
+
+    /**
+     * Sets the size of the cache.
+     *
+     * @param maxSize The new maximum size.
+     */
+    public void resize(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+
+        this.maxSize = maxSize;
+        trimToSize(maxSize);
+    }
+
+    /**
+     * Returns the value for {@code key} if it exists in the cache or can be
+     * created by {@code #create}. If a value was returned, it is marked as
+     * recently used. This returns null if a value is not cached and cannot be
+     * created.
+     */
+    public final V get(K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+
+        final Node<K, V> node = map.get(key);
+        if (node != null) {
+            // Avoid writing to the shared entry when it is already marked.
+            if (!node.referenced) {
+                node.referenced = true;
+            }
+            hitCount.increment();
+            return node.value;
+        }
+        missCount.increment();
+
+        /*
+         * Attempt to create a value. This may take a long time, and the map
+         * may be different when create() returns. If a conflicting value was
+         * added to the map while create() was working, we leave that value in
+         * the map and release the created value.
+         */
+
+        final V createdValue = create(key);
+        if (createdValue == null) {
+            return null;
+        }
+
+        final Node<K, V> created = new Node<>(key, createdValue, safeSizeOf(key, createdValue));
+        final Shard<K, V> shard = shardFor(key);
+        final Node<K, V> existing;
+        synchronized (shard) {
+            createCount.increment();
+            existing = map.putIfAbsent(key, created);
+            if (existing == null) {
+                shard.queue.addLast(created);
+                size.addAndGet(created.size);
+            }
+        }
+
+        if (existing != null) {
+            entryRemoved(false, key, createdValue, existing.value);
+            return existing.value;
+        } else {
+            trimToSize(maxSize);
+            return createdValue;
+        }
+    }
+
+    /**
+     * Caches {@code value} for {@code key}.
+     *
+     * @return the previous value mapped by {@code key}.
+     */
+    public final V put(K key, V value) {
+        if (key == null || value == null) {
+            throw new NullPointerException("key == null || value == null");
+        }
+
+        final Node<K, V> node = new Node<>(key, value, safeSizeOf(key, value));
+        final Shard<K, V> shard = shardFor(key);
+        final Node<K, V> previous;
+        synchronized (shard) {
+            putCount.increment();
+            previous = map.put(key, node);
+            shard.queue.addLast(node);
+            size.addAndGet(node.size);
+            if (previous != null) {
+                shard.markRemoved(previous);
+                size.addAndGet(-previous.size);
+            }
+        }
+
+        if (previous != null) {
+            entryRemoved(false, key, previous.value, value);
+        }
+
+        trimToSize(maxSize);
+        return previous != null ? previous.value : null;
+    }
+
+    /**
+     * Evict entries until the total of remaining entries is at or below the
+     * requested size.
+     *
+     * @param maxSize the maximum size of the cache before returning. May be -1
+     *            to evict even 0-sized elements.
+     */
+    public void trimToSize(int maxSize) {
+        while (size.get() > maxSize) {
+            // Visit the shards in turn, so that they evict like a single clock.
+            Node<K, V> victim = null;
+            for (int i = 0; i < shards.length && victim == null; i++) {
+                final Shard<K, V> shard = shards[evictionCursor.getAndIncrement() & shardMask];
+                synchronized (shard) {
+                    victim = shard.evict();
+                    if (victim != null) {
+                        map.remove(victim.key, victim);
+                        size.addAndGet(-victim.size);
+                    }
+                }
+            }
+            if (victim == null) {
+                // Everything was evicted, possibly by other threads; entries added since then
+                // are trimmed by the threads that added them.
+                break;
+            }
+
+            evictionCount.increment();
+            entryRemoved(true, victim.key, victim.value, null);
+        }
+    }
+
+    /**
+     * Removes the entry for {@code key} if it exists.
+     *
+     * @return the previous value mapped by {@code key}.
+     */
+    public final V remove(K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+
+        final Shard<K, V> shard = shardFor(key);
+        final Node<K, V> previous;
+        synchronized (shard) {
+            previous = map.remove(key);
+            if (previous != null) {
+                shard.markRemoved(previous);
+                size.addAndGet(-previous.size);
+            }
+        }
+
+        if (previous != null) {
+            entryRemoved(false, key, previous.value, null);
+            return previous.value;
+        }
+        return null;
+    }
+
+    /**
+     * Called for entries that have been evicted or removed. This method is
+     * invoked when a value is evicted to make space, removed by a call to
+     * {@link #remove}, or replaced by a call to {@link #put}. The default
+     * implementation does nothing.
+     *
+     * <p>The method is called without synchronization: other threads may
+     * access the cache while this method is executing.
+     *
+     * @param evicted true if the entry is being removed to make space, false
+     *     if the removal was caused by a {@link #put} or {@link #remove}.
+     * @param newValue the new value for {@code key}, if it exists. If non-null,
+     *     this removal was caused by a {@link #put}. Otherwise it was caused by
+     *     an eviction or a {@link #remove}.
+     */
+    protected void entryRemoved(boolean evicted, K key, V oldValue, V newValue) {}
+
+    /**
+     * Called after a cache miss to compute a value for the corresponding key.
+     * Returns the computed value or null if no value can be computed. The
+     * default implementation returns null.
+     *
+     * <p>The method is called without synchronization: other threads may
+     * access the cache while this method is executing.
+     *
+     * <p>If a value for {@code key} exists in the cache when this method
+     * returns, the created value will be released with {@link #entryRemoved}
+     * and discarded. This can occur when multiple threads request the same key
+     * at the same time (causing multiple values to be created), or when one
+     * thread calls {@link #put} while another is creating a value for the same
+     * key.
+     */
+    protected V create(K key) {
+        return null;
+    }
+
+    private int safeSizeOf(K key, V value) {
+        int result = sizeOf(key, value);
+        if (result < 0) {
+            throw new IllegalStateException("Negative size: " + key + "=" + value);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the size of the entry for {@code key} and {@code value} in
+     * user-defined units.  The default implementation returns 1 so that size
+     * is the number of entries and max size is the maximum number of entries.
+     *
+     * <p>This is called once, before the entry is added to the cache.
+     */
+    protected int sizeOf(K key, V value) {
+        return 1;
+    }
+
+    /**
+     * Clear the cache, calling {@link #entryRemoved} on each removed entry.
+     */
+    public final void evictAll() {
+        trimToSize(-1); // -1 will evict 0-sized elements
+    }
+
+    /**
+     * For caches that do not override {@link #sizeOf}, this returns the number
+     * of entries in the cache. For all other caches, this returns the sum of
+     * the sizes of the entries in this cache.
+     */
+    public final int size() {
+        return size.get();
+    }
+
+    /**
+     * For caches that do not override {@link #sizeOf}, this returns the maximum
+     * number of entries in the cache. For all other caches, this returns the
+     * maximum sum of the sizes of the entries in this cache.
+     */
+    public final int maxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Returns the number of times {@link #get} returned a value that was
+     * already present in the cache.
+     */
+    public final int hitCount() {
+        return hitCount.intValue();
+    }
+
+    /**
+     * Returns the number of times {@link #get} returned null or required a new
+     * value to be created.
+     */
+    public final int missCount() {
+        return missCount.intValue();
+    }
+
+    /**
+     * Returns the number of times {@link #create(Object)} returned a value.
+     */
+    public final int createCount() {
+        return createCount.intValue();
+    }
+
+    /**
+     * Returns the number of times {@link #put} was called.
+     */
+    public final int putCount() {
+        return putCount.intValue();
+    }
+
+    /**
+     * Returns the number of values that have been evicted.
+     */
+    public final int evictionCount() {
+        return evictionCount.intValue();
+    }
+
+    /**
+     * Returns a copy of the current contents of the cache, in no particular
+     * order.
+     */
+    public final Map<K, V> snapshot() {
+        final LinkedHashMap<K, V> snapshot = new LinkedHashMap<>();
+        for (Node<K, V> node : map.values()) {
+            snapshot.put(node.key, node.value);
+        }
+        return snapshot;
+    }
+
+    @Override public final String toString() {
+        final int hits = hitCount();
+        final int accesses = hits + missCount();
+        final int hitPercent = accesses != 0 ? (100 * hits / accesses) : 0;
+        return String.format("ConcurrentLruCache[maxSize=%d,hits=%d,misses=%d,hitRate=%d%%]",
+                maxSize, hits, accesses - hits, hitPercent);
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.util;
+
+/**
+ * An open-addressed hash table of positions in a dense array of entries, used by the containers
+ * that keep their entries in arrays but want constant time lookups. The containers store the
+ * hash code of each entry, keep their entries packed at the start of their arrays, and probe
+ * {@link #slots} linearly from {@link #firstSlot} themselves, comparing keys:
+ * <pre>
+ *     for (int slot = index.firstSlot(hash); ; slot = (slot + 1) &amp; index.mask) {
+ *         final int entry = index.slots[slot];
+ *         if (entry == 0) return -1;
+ *         if (keys[entry - 1] == key) return entry - 1;
+ *     }
+ * </pre>
+ * The table is kept at most half full, and removals shift the following entries back instead
+ * of leaving tombstones, so probes stay short.
+ */
+final class HashIndex {
+    private static final int MIN_CAPACITY = 8;
+
+    /** The position of each entry plus one, or 0 for an empty slot. */
+    int[] slots;
+    int mask;
+
+    /**
+     * Creates a table indexing the first {@code size} entries with the given hash codes.
+     */
+    HashIndex(int[] hashes, int size) {
+        rebuild(hashes, size);
+    }
+
+    private HashIndex(HashIndex other) {
+        slots = other.slots.clone();
+        mask = other.mask;
+    }
+
+    HashIndex copy() {
+        return new HashIndex(this);
+    }
+
+    private static int spread(int hash) {
+        // Fibonacci hashing, so that sequential keys don't form long runs.
+        final int h = hash * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    int firstSlot(int hash) {
+        return spread(hash) & mask;
+    }
+
+    private void rebuild(int[] hashes, int size) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < size * 2) {
+            capacity <<= 1;
+        }
+        slots = new int[capacity];
+        mask = capacity - 1;
+        for (int i = 0; i < size; i++) {
+            insert(hashes[i], i);
+        }
+    }
+
+    private void insert(int hash, int index) {
+        int slot = firstSlot(hash);
+        while (slots[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        slots[slot] = index + 1;
+    }
+
+    private int slotOf(int hash, int index) {
+        int slot = firstSlot(hash);
+        while (slots[slot] != index + 1) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Indexes the entry that was just added at position {@code size - 1}.
+     */
+    void add(int[] hashes, int size) {
+        if (size * 2 > slots.length) {
+            rebuild(hashes, size);
+        } else {
+            insert(hashes[size - 1], size - 1);
+        }
+    }
+
+    /**
+     * Removes the entry at the given position from the table. The hash codes of the entries
+     * must not have changed yet.
+     */
+    void remove(int[] hashes, int index) {
+        int hole = slotOf(hashes[index], index);
+        int slot = (hole + 1) & mask;
+        int entry;
+        while ((entry = slots[slot]) != 0) {
+            // Move the entry back into the hole unless its probe sequence starts after the hole.
+            final int first = firstSlot(hashes[entry - 1]);
+            if (((slot - first) & mask) >= ((slot - hole) & mask)) {
+                slots[hole] = entry;
+                hole = slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        slots[hole] = 0;
+    }
+
+    /**
+     * Records that the entry with the given hash code moved from one position to another.
+     */
+    void move(int hash, int from, int to) {
+        slots[slotOf(hash, from)] = to + 1;
+    }
+
+    /**
+     * Shrinks the table if it became much larger than needed for {@code size} entries.
+     */
+    void trim(int[] hashes, int size) {
+        if (slots.length > MIN_CAPACITY && size * 8 < slots.length) {
+            rebuild(hashes, size);
+        }
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.util;
+
+import com.android.internal.util.ArrayUtils;
+import com.android.internal.util.GrowingArrayUtils;
+
+import libcore.util.EmptyArray;
+
+/**
+ * LongObjectMap maps longs to Objects, like {@link LongSparseArray}, but finds keys
+ * with a hash table instead of a binary search, so that lookups, insertions and
+ * removals take constant time however many mappings it holds. It uses about twice
+ * the memory of a {@link LongSparseArray}, which remains the better choice for
+ * containers of up to hundreds of mappings.
+ *
+ * <p>It is possible to iterate over the items in this container using
+ * {@link #keyAt(int)} and {@link #valueAt(int)}, in no particular order. Removing
+ * the mapping at an index moves the last mapping to that index, so mappings can
+ * be removed while iterating from the last index to the first.</p>
+ *
+ * @hide
+ */
+public class LongObjectMap<E> {
+    private long[] mKeys;
+    private int[] mHashes;
+    private Object[] mValues;
+    private int mSize;
+    private HashIndex mIndex;
+
+    /**
+     * Creates a new LongObjectMap containing no mappings.
+     */
+    public LongObjectMap() {
+        this(10);
+    }
+
+    /**
+     * Creates a new LongObjectMap containing no mappings that will not
+     * require any additional memory allocation to store the specified
+     * number of mappings, besides its hash table.
+     */
+    public LongObjectMap(int initialCapacity) {
+        if (initialCapacity == 0) {
+            mKeys = EmptyArray.LONG;
+            mHashes = EmptyArray.INT;
+            mValues = EmptyArray.OBJECT;
+        } else {
+            mKeys = ArrayUtils.newUnpaddedLongArray(initialCapacity);
+            mHashes = new int[mKeys.length];
+            mValues = new Object[mKeys.length];
+        }
+        mSize = 0;
+        mIndex = new HashIndex(mHashes, 0);
+    }
+
+    private static int hash(long key) {
+        return (int) (key ^ (key >>> 32));
+    }
+
+    /**
+     * Gets the Object mapped from the specified key, or <code>null</code>
+     * if no such mapping has been made.
+     */
+    public E get(long key) {
+        return get(key, null);
+    }
+
+    /**
+     * Gets the Object mapped from the specified key, or the specified Object
+     * if no such mapping has been made.
+     */
+    @SuppressWarnings("unchecked")
+    public E get(long key, E valueIfKeyNotFound) {
+        final int i = indexOfKey(key);
+        return i >= 0 ? (E) mValues[i] : valueIfKeyNotFound;
+    }
+
+    /**
+     * Returns the index for which {@link #keyAt} would return the
+     * specified key, or a negative number if the specified
+     * key is not mapped.
+     */
+    public int indexOfKey(long key) {
+        final int[] slots = mIndex.slots;
+        final int mask = mIndex.mask;
+        for (int slot = mIndex.firstSlot(hash(key)); ; slot = (slot + 1) & mask) {
+            final int entry = slots[slot];
+            if (entry == 0) {
+                return -1;
+            }
+            if (mKeys[entry - 1] == key) {
+                return entry - 1;
+            }
+        }
+    }
+
+    /**
+     * Adds a mapping from the specified key to the specified value,
+     * replacing the previous mapping from the specified key if there
+     * was one.
+     */
+    public void put(long key, E value) {
+        final int i = indexOfKey(key);
+        if (i >= 0) {
+            mValues[i] = value;
+            return;
+        }
+
+        mKeys = GrowingArrayUtils.append(mKeys, mSize, key);
+        mHashes = GrowingArrayUtils.append(mHashes, mSize, hash(key));
+        mValues = GrowingArrayUtils.append(mValues, mSize, value);
+        mSize++;
+        mIndex.add(mHashes, mSize);
+    }
+
+    /**
+     * Removes the mapping from the specified key, if there was any.
+     */
+    public void delete(long key) {
+        final int i = indexOfKey(key);
+        if (i >= 0) {
+            removeAt(i);
+        }
+    }
+
+    /**
+     * Alias for {@link #delete(long)}.
+     */
+    public void remove(long key) {
+        delete(key);
+    }
+
+    /**
+     * Removes the mapping at the specified index. The last mapping takes its
+     * index.
+     */
+    public void removeAt(int index) {
+        final int last = mSize - 1;
+        mIndex.remove(mHashes, index);
+        if (index != last) {
+            mIndex.move(mHashes[last], last, index);
+            mKeys[index] = mKeys[last];
+            mHashes[index] = mHashes[last];
+            mValues[index] = mValues[last];
+        }
+        mValues[last] = null;
+        mSize = last;
+        mIndex.trim(mHashes, mSize);
+    }
+
+    /**
+     * Returns the number of key-value mappings that this LongObjectMap
+     * currently stores.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Given an index in the range <code>0...size()-1</code>, returns
+     * the key from the <code>index</code>th key-value mapping that this
+     * LongObjectMap stores.
+     */
+    public long keyAt(int index) {
+        return mKeys[index];
+    }
+
+    /**
+     * Given an index in the range <code>0...size()-1</code>, returns
+     * the value from the <code>index</code>th key-value mapping that this
+     * LongObjectMap stores.
+     */
+    @SuppressWarnings("unchecked")
+    public E valueAt(int index) {
+        return (E) mValues[index];
+    }
+
+    /**
+     * Given an index in the range <code>0...size()-1</code>, sets a new
+     * value for the <code>index</code>th key-value mapping that this
+     * LongObjectMap stores.
+     */
+    public void setValueAt(int index, E value) {
+        mValues[index] = value;
+    }
+
+    /**
+     * Returns an index for which {@link #valueAt} would return the
+     * specified key, or a negative number if no keys map to the
+     * specified value.
+     * <p>Beware that this is a linear search, unlike lookups by key,
+     * and that multiple keys can map to the same value and this will
+     * find only one of them.
+     * <p>Note also that unlike most collections' {@code indexOf} methods,
+     * this method compares values using {@code ==} rather than {@code equals}.
+     */
+    public int indexOfValue(E value) {
+        for (int i = 0; i < mSize; i++) {
+            if (mValues[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Removes all key-value mappings from this LongObjectMap.
+     */
+    public void clear() {
+        final Object[] values = mValues;
+        for (int i = 0; i < mSize; i++) {
+            values[i] = null;
+        }
+        mSize = 0;
+        mIndex = new HashIndex(mHashes, 0);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>This implementation composes a string by iterating over its mappings. If
+     * this map contains itself as a value, the string "(this Map)"
+     * will appear in its place.
+     */
+    @Override
+    public String toString() {
+        if (size() <= 0) {
+            return "{}";
+        }
+
+        StringBuilder buffer = new StringBuilder(mSize * 28);
+        buffer.append('{');
+        for (int i=0; i<mSize; i++) {
+            if (i > 0) {
+                buffer.append(", ");
+            }
+            long key = keyAt(i);
+            buffer.append(key);
+            buffer.append('=');
+            Object value = valueAt(i);
+            if (value != this) {
+                buffer.append(value);
+            } else {
+                buffer.append("(this Map)");
+            }
+        }
+        buffer.append('}');
+        return buffer.toString();
+    }
+}
@@ -29,11 +29,13 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.os.Parcel;
 import android.os.Parcelable;
 import android.os.Process;
 import android.os.RemoteException;
 import android.text.style.AccessibilityClickableSpan;
 import android.text.style.ClickableSpan;
+import android.util.LongArray;
 import android.util.LongSparseArray;
 import android.util.Slog;
 import android.view.View.AttachInfo;
@@ -941,13 +943,106 @@ final class AccessibilityInteractionController {
      * This class encapsulates a prefetching strategy for the accessibility APIs for
      * querying window content. It is responsible to prefetch a batch of
      * AccessibilityNodeInfos in addition to the one for a requested node.
+     *
+     * The size of the batch adapts to the client: it grows while the client keeps coming back
+     * for nodes that the previous batch left out, as a screen reader walking a long list does,
+     * and shrinks back when it doesn't. It is also bounded so that the batch fits in a
+     * parcel budget, given the size of the nodes seen so far.
      */
     private class AccessibilityNodePrefetcher {
 
-        private static final int MAX_ACCESSIBILITY_NODE_INFO_BATCH_SIZE = 50;
+        private static final int MIN_ACCESSIBILITY_NODE_INFO_BATCH_SIZE = 50;
+
+        private static final int MAX_ACCESSIBILITY_NODE_INFO_BATCH_SIZE = 400;
+
+        private static final int PREFETCH_FLAGS = AccessibilityNodeInfo.FLAG_PREFETCH_PREDECESSORS
+                | AccessibilityNodeInfo.FLAG_PREFETCH_SIBLINGS
+                | AccessibilityNodeInfo.FLAG_PREFETCH_DESCENDANTS;
+
+        // Well under the limit of a binder transaction, which the batch shares with others.
+        private static final int MAX_BATCH_PARCEL_BYTES = 256 * 1024;
+
+        private static final int INITIAL_NODE_PARCEL_BYTES = 512;
+
+        // How often the size of a node is measured, in requests.
+        private static final int NODE_SIZE_SAMPLE_INTERVAL = 16;
 
         private final ArrayList<View> mTempViewList = new ArrayList<View>();
 
+        private final LongSparseArray<AccessibilityNodeInfo> mTempNodeMap =
+                new LongSparseArray<AccessibilityNodeInfo>();
+
+        // Nodes that the last batch referred to but left out because it was full.
+        private final LongArray mNodesLeftOut = new LongArray();
+
+        private int mBatchSize = MIN_ACCESSIBILITY_NODE_INFO_BATCH_SIZE;
+
+        // The limit of the current batch, from its size and the parcel budget.
+        private int mBatchLimit = MIN_ACCESSIBILITY_NODE_INFO_BATCH_SIZE;
+
+        private int mNodeParcelBytes = INITIAL_NODE_PARCEL_BYTES;
+
+        private int mRequestCount;
+
+        /**
+         * Grows the batch if the client asks for a node that the last batch left out, since a
+         * larger batch would have saved it this request, and shrinks it if the client went
+         * elsewhere.
+         */
+        private void adaptBatchSize(AccessibilityNodeInfo requested) {
+            if (mNodesLeftOut.size() > 0) {
+                if (mNodesLeftOut.indexOf(requested.getSourceNodeId()) >= 0) {
+                    mBatchSize = Math.min(mBatchSize * 2, MAX_ACCESSIBILITY_NODE_INFO_BATCH_SIZE);
+                } else {
+                    mBatchSize = Math.max(mBatchSize - mBatchSize / 4,
+                            MIN_ACCESSIBILITY_NODE_INFO_BATCH_SIZE);
+                }
+                mNodesLeftOut.clear();
+            }
+
+            if (mRequestCount++ % NODE_SIZE_SAMPLE_INTERVAL == 0) {
+                // Parceling recycles the node, so measure a copy.
+                final Parcel parcel = Parcel.obtain();
+                AccessibilityNodeInfo.obtain(requested).writeToParcel(parcel, 0);
+                mNodeParcelBytes = Math.max(1, (mNodeParcelBytes + parcel.dataSize()) / 2);
+                parcel.recycle();
+            }
+            mBatchLimit = Math.max(1, Math.min(mBatchSize,
+                    MAX_BATCH_PARCEL_BYTES / mNodeParcelBytes));
+        }
+
+        /**
+         * Remembers the nodes that the batch refers to, as parents or children, but doesn't
+         * contain, if it's full.
+         */
+        private void noteNodesLeftOut(List<AccessibilityNodeInfo> infos) {
+            if (infos.isEmpty() || infos.size() < mBatchLimit) {
+                return;
+            }
+            final LongSparseArray<AccessibilityNodeInfo> fetched = mTempNodeMap;
+            final int infoCount = infos.size();
+            for (int i = 0; i < infoCount; i++) {
+                final AccessibilityNodeInfo info = infos.get(i);
+                fetched.put(info.getSourceNodeId(), info);
+            }
+            for (int i = 0; i < infoCount; i++) {
+                final AccessibilityNodeInfo info = infos.get(i);
+                final long parentId = info.getParentNodeId();
+                if (parentId != AccessibilityNodeInfo.UNDEFINED_NODE_ID
+                        && fetched.get(parentId) == null) {
+                    mNodesLeftOut.add(parentId);
+                }
+                final int childCount = info.getChildCount();
+                for (int j = 0; j < childCount; j++) {
+                    final long childId = info.getChildId(j);
+                    if (fetched.get(childId) == null) {
+                        mNodesLeftOut.add(childId);
+                    }
+                }
+            }
+            fetched.clear();
+        }
+
         public void prefetchAccessibilityNodeInfos(View view, int virtualViewId, int fetchFlags,
                 List<AccessibilityNodeInfo> outInfos, Bundle arguments) {
             AccessibilityNodeProvider provider = view.getAccessibilityNodeProvider();
@@ -961,6 +1056,9 @@ final class AccessibilityInteractionController {
                         view.addExtraDataToAccessibilityNodeInfo(
                                 root, extraDataRequested, arguments);
                     }
+                    if ((fetchFlags & PREFETCH_FLAGS) != 0) {
+                        adaptBatchSize(root);
+                    }
                     outInfos.add(root);
                     if ((fetchFlags & AccessibilityNodeInfo.FLAG_PREFETCH_PREDECESSORS) != 0) {
                         prefetchPredecessorsOfRealNode(view, outInfos);
@@ -980,6 +1078,9 @@ final class AccessibilityInteractionController {
                         provider.addExtraDataToAccessibilityNodeInfo(
                                 virtualViewId, root, extraDataRequested, arguments);
                     }
+                    if ((fetchFlags & PREFETCH_FLAGS) != 0) {
+                        adaptBatchSize(root);
+                    }
                     outInfos.add(root);
                     if ((fetchFlags & AccessibilityNodeInfo.FLAG_PREFETCH_PREDECESSORS) != 0) {
                         prefetchPredecessorsOfVirtualNode(root, view, provider, outInfos);
@@ -992,6 +1093,9 @@ final class AccessibilityInteractionController {
                     }
                 }
             }
+            if ((fetchFlags & PREFETCH_FLAGS) != 0) {
+                noteNodesLeftOut(outInfos);
+            }
             if (ENFORCE_NODE_TREE_CONSISTENT) {
                 enforceNodeTreeConsistent(outInfos);
             }
@@ -1077,7 +1181,7 @@ final class AccessibilityInteractionController {
                 List<AccessibilityNodeInfo> outInfos) {
             ViewParent parent = view.getParentForAccessibility();
             while (parent instanceof View
-                    && outInfos.size() < MAX_ACCESSIBILITY_NODE_INFO_BATCH_SIZE) {
+                    && outInfos.size() < mBatchLimit) {
                 View parentView = (View) parent;
                 AccessibilityNodeInfo info = parentView.createAccessibilityNodeInfo();
                 if (info != null) {
@@ -1098,7 +1202,7 @@ final class AccessibilityInteractionController {
                     parentGroup.addChildrenForAccessibility(children);
                     final int childCount = children.size();
                     for (int i = 0; i < childCount; i++) {
-                        if (outInfos.size() >= MAX_ACCESSIBILITY_NODE_INFO_BATCH_SIZE) {
+                        if (outInfos.size() >= mBatchLimit) {
                             return;
                         }
                         View child = children.get(i);
@@ -1137,7 +1241,7 @@ final class AccessibilityInteractionController {
                 root.addChildrenForAccessibility(children);
                 final int childCount = children.size();
                 for (int i = 0; i < childCount; i++) {
-                    if (outInfos.size() >= MAX_ACCESSIBILITY_NODE_INFO_BATCH_SIZE) {
+                    if (outInfos.size() >= mBatchLimit) {
                         return;
                     }
                     View child = children.get(i);
@@ -1162,7 +1266,7 @@ final class AccessibilityInteractionController {
             } finally {
                 children.clear();
             }
-            if (outInfos.size() < MAX_ACCESSIBILITY_NODE_INFO_BATCH_SIZE) {
+            if (outInfos.size() < mBatchLimit) {
                 for (Map.Entry<View, AccessibilityNodeInfo> entry : addedChildren.entrySet()) {
                     View addedChild = entry.getKey();
                     AccessibilityNodeInfo virtualRoot = entry.getValue();
@@ -1184,7 +1288,7 @@ final class AccessibilityInteractionController {
             long parentNodeId = root.getParentNodeId();
             int accessibilityViewId = AccessibilityNodeInfo.getAccessibilityViewId(parentNodeId);
             while (accessibilityViewId != AccessibilityNodeInfo.UNDEFINED_ITEM_ID) {
-                if (outInfos.size() >= MAX_ACCESSIBILITY_NODE_INFO_BATCH_SIZE) {
+                if (outInfos.size() >= mBatchLimit) {
                     return;
                 }
                 final int virtualDescendantId =
@@ -1229,7 +1333,7 @@ final class AccessibilityInteractionController {
                 if (parent != null) {
                     final int childCount = parent.getChildCount();
                     for (int i = 0; i < childCount; i++) {
-                        if (outInfos.size() >= MAX_ACCESSIBILITY_NODE_INFO_BATCH_SIZE) {
+                        if (outInfos.size() >= mBatchLimit) {
                             return;
                         }
                         final long childNodeId = parent.getChildId(i);
@@ -1254,7 +1358,7 @@ final class AccessibilityInteractionController {
             final int initialOutInfosSize = outInfos.size();
             final int childCount = root.getChildCount();
             for (int i = 0; i < childCount; i++) {
-                if (outInfos.size() >= MAX_ACCESSIBILITY_NODE_INFO_BATCH_SIZE) {
+                if (outInfos.size() >= mBatchLimit) {
                     return;
                 }
                 final long childNodeId = root.getChildId(i);
@@ -1264,7 +1368,7 @@ final class AccessibilityInteractionController {
                     outInfos.add(child);
                 }
             }
-            if (outInfos.size() < MAX_ACCESSIBILITY_NODE_INFO_BATCH_SIZE) {
+            if (outInfos.size() < mBatchLimit) {
                 final int addedChildCount = outInfos.size() - initialOutInfosSize;
                 for (int i = 0; i < addedChildCount; i++) {
                     AccessibilityNodeInfo child = outInfos.get(initialOutInfosSize + i);
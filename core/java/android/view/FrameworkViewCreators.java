@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.view;
+
+import android.view.LayoutInflater.ViewCreator;
+import android.widget.AutoCompleteTextView;
+import android.widget.Button;
+import android.widget.CalendarView;
+import android.widget.CheckBox;
+import android.widget.CheckedTextView;
+import android.widget.Chronometer;
+import android.widget.DatePicker;
+import android.widget.EditText;
+import android.widget.ExpandableListView;
+import android.widget.FrameLayout;
+import android.widget.GridLayout;
+import android.widget.GridView;
+import android.widget.HorizontalScrollView;
+import android.widget.ImageButton;
+import android.widget.ImageSwitcher;
+import android.widget.ImageView;
+import android.widget.LinearLayout;
+import android.widget.ListView;
+import android.widget.MultiAutoCompleteTextView;
+import android.widget.NumberPicker;
+import android.widget.ProgressBar;
+import android.widget.QuickContactBadge;
+import android.widget.RadioButton;
+import android.widget.RadioGroup;
+import android.widget.RatingBar;
+import android.widget.RelativeLayout;
+import android.widget.ScrollView;
+import android.widget.SearchView;
+import android.widget.SeekBar;
+import android.widget.Space;
+import android.widget.Spinner;
+import android.widget.Switch;
+import android.widget.TabHost;
+import android.widget.TabWidget;
+import android.widget.TableLayout;
+import android.widget.TableRow;
+import android.widget.TextSwitcher;
+import android.widget.TextView;
+import android.widget.TimePicker;
+import android.widget.ToggleButton;
+import android.widget.Toolbar;
+import android.widget.VideoView;
+import android.widget.ViewAnimator;
+import android.widget.ViewFlipper;
+import android.widget.ViewSwitcher;
+
+import java.util.Map;
+
+/**
+ * The {@link ViewCreator}s of the framework views that are commonly found in layout files, so
+ * that inflating them does not go through reflection.
+ */
+final class FrameworkViewCreators {
+    private FrameworkViewCreators() {
+    }
+
+    static void register(Map<String, ViewCreator> creators) {
+        creators.put("android.view.View", View::new);
+        creators.put("android.view.ViewStub", ViewStub::new);
+        creators.put("android.view.SurfaceView", SurfaceView::new);
+        creators.put("android.view.TextureView", TextureView::new);
+
+        creators.put("android.widget.AutoCompleteTextView", AutoCompleteTextView::new);
+        creators.put("android.widget.Button", Button::new);
+        creators.put("android.widget.CalendarView", CalendarView::new);
+        creators.put("android.widget.CheckBox", CheckBox::new);
+        creators.put("android.widget.CheckedTextView", CheckedTextView::new);
+        creators.put("android.widget.Chronometer", Chronometer::new);
+        creators.put("android.widget.DatePicker", DatePicker::new);
+        creators.put("android.widget.EditText", EditText::new);
+        creators.put("android.widget.ExpandableListView", ExpandableListView::new);
+        creators.put("android.widget.FrameLayout", FrameLayout::new);
+        creators.put("android.widget.GridLayout", GridLayout::new);
+        creators.put("android.widget.GridView", GridView::new);
+        creators.put("android.widget.HorizontalScrollView", HorizontalScrollView::new);
+        creators.put("android.widget.ImageButton", ImageButton::new);
+        creators.put("android.widget.ImageSwitcher", ImageSwitcher::new);
+        creators.put("android.widget.ImageView", ImageView::new);
+        creators.put("android.widget.LinearLayout", LinearLayout::new);
+        creators.put("android.widget.ListView", ListView::new);
+        creators.put("android.widget.MultiAutoCompleteTextView", MultiAutoCompleteTextView::new);
+        creators.put("android.widget.NumberPicker", NumberPicker::new);
+        creators.put("android.widget.ProgressBar", ProgressBar::new);
+        creators.put("android.widget.QuickContactBadge", QuickContactBadge::new);
+        creators.put("android.widget.RadioButton", RadioButton::new);
+        creators.put("android.widget.RadioGroup", RadioGroup::new);
+        creators.put("android.widget.RatingBar", RatingBar::new);
+        creators.put("android.widget.RelativeLayout", RelativeLayout::new);
+        creators.put("android.widget.ScrollView", ScrollView::new);
+        creators.put("android.widget.SearchView", SearchView::new);
+        creators.put("android.widget.SeekBar", SeekBar::new);
+        creators.put("android.widget.Space", Space::new);
+        creators.put("android.widget.Spinner", Spinner::new);
+        creators.put("android.widget.Switch", Switch::new);
+        creators.put("android.widget.TabHost", TabHost::new);
+        creators.put("android.widget.TabWidget", TabWidget::new);
+        creators.put("android.widget.TableLayout", TableLayout::new);
+        creators.put("android.widget.TableRow", TableRow::new);
+        creators.put("android.widget.TextSwitcher", TextSwitcher::new);
+        creators.put("android.widget.TextView", TextView::new);
+        creators.put("android.widget.TimePicker", TimePicker::new);
+        creators.put("android.widget.ToggleButton", ToggleButton::new);
+        creators.put("android.widget.Toolbar", Toolbar::new);
+        creators.put("android.widget.VideoView", VideoView::new);
+        creators.put("android.widget.ViewAnimator", ViewAnimator::new);
+        creators.put("android.widget.ViewFlipper", ViewFlipper::new);
+        creators.put("android.widget.ViewSwitcher", ViewSwitcher::new);
+    }
+}
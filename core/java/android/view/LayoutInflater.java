@@ -26,6 +26,7 @@ import android.content.res.XmlResourceParser;
 import android.graphics.Canvas;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 import android.os.Trace;
 import android.util.AttributeSet;
 import android.util.Log;
@@ -39,8 +40,11 @@ import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.lang.reflect.Constructor;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.WeakHashMap;
 
 /**
  * Instantiates a layout XML file into its corresponding {@link android.view.View}
@@ -93,6 +97,39 @@ public abstract class LayoutInflater {
     private static final HashMap<String, Constructor<? extends View>> sConstructorMap =
             new HashMap<String, Constructor<? extends View>>();
 
+    /**
+     * Creators registered through {@link #registerViewCreator}, keyed by class name, and the
+     * creators resolved for the names passed to {@link #createView}, keyed like
+     * {@link #sConstructorMap}. Both are guarded by {@code sViewCreators}.
+     */
+    private static final HashMap<String, ViewCreator> sViewCreators = new HashMap<>();
+    private static final HashMap<String, ViewCreator> sResolvedViewCreators = new HashMap<>();
+
+    static {
+        FrameworkViewCreators.register(sViewCreators);
+    }
+
+    /**
+     * Prefixed class names that were not found by each class loader, so that probing the
+     * framework packages for a view does not repeat failed class loads.
+     */
+    private static final WeakHashMap<ClassLoader, HashSet<String>> sMissingClasses =
+            new WeakHashMap<>();
+
+    // Inflation statistics for the whole process, guarded by sStatsLock.
+    private static final Object sStatsLock = new Object();
+    private static long sInflateCount;
+    private static long sInflateTimeNanos;
+    private static long sViewCount;
+    private static long sCreatorViewCount;
+    private static long sMissingClassCount;
+
+    // Counts for this inflater that have not been added to the process statistics yet.
+    private int mInflateDepth;
+    private int mViewCount;
+    private int mCreatorViewCount;
+    private int mMissingClassCount;
+
     private HashMap<String, Boolean> mFilterMap;
 
     private TypedValue mTempValue;
@@ -165,6 +202,24 @@ public abstract class LayoutInflater {
         public View onCreateView(View parent, String name, Context context, AttributeSet attrs);
     }
 
+    /**
+     * Creates instances of a single {@link View} class without reflection. Registering one
+     * with {@link #registerViewCreator} spares {@link #createView} the reflective constructor
+     * lookup and invocation for that class.
+     */
+    public interface ViewCreator {
+        /**
+         * Creates the view, typically by calling its {@code (Context, AttributeSet)}
+         * constructor.
+         *
+         * @param context The context the view is being created in.
+         * @param attrs Inflation attributes as specified in XML file.
+         *
+         * @return View Newly created view; must not be null.
+         */
+        View createView(Context context, AttributeSet attrs);
+    }
+
     private static class FactoryMerger implements Factory2 {
         private final Factory mF1, mF2;
         private final Factory2 mF12, mF22;
@@ -221,6 +276,93 @@ public abstract class LayoutInflater {
         setFilter(original.mFilter);
     }
 
+    /**
+     * Registers a creator used instead of reflection to instantiate the view class of the
+     * given name, in every LayoutInflater of the process. Inflaters with a {@link Filter}
+     * keep loading classes reflectively, so that the filter sees them.
+     *
+     * @param className The fully qualified name of the view class, as found in layout files
+     * or passed to {@link #createView}.
+     * @param creator The creator for the class, or null to remove the one registered.
+     */
+    public static void registerViewCreator(String className, @Nullable ViewCreator creator) {
+        synchronized (sViewCreators) {
+            if (creator != null) {
+                sViewCreators.put(className, creator);
+            } else {
+                sViewCreators.remove(className);
+            }
+            sResolvedViewCreators.clear();
+        }
+    }
+
+    /**
+     * Returns the creator registered for the class the view name resolves to, or null.
+     */
+    private static ViewCreator getViewCreator(String name, String prefix) {
+        synchronized (sViewCreators) {
+            ViewCreator creator = sResolvedViewCreators.get(name);
+            if (creator == null) {
+                creator = sViewCreators.get(prefix != null ? (prefix + name) : name);
+                if (creator != null) {
+                    sResolvedViewCreators.put(name, creator);
+                }
+            }
+            return creator;
+        }
+    }
+
+    private boolean isKnownMissingClass(String className) {
+        synchronized (sMissingClasses) {
+            final HashSet<String> missing = sMissingClasses.get(mContext.getClassLoader());
+            return missing != null && missing.contains(className);
+        }
+    }
+
+    private void addMissingClass(String className) {
+        synchronized (sMissingClasses) {
+            final ClassLoader cl = mContext.getClassLoader();
+            HashSet<String> missing = sMissingClasses.get(cl);
+            if (missing == null) {
+                missing = new HashSet<>();
+                sMissingClasses.put(cl, missing);
+            }
+            missing.add(className);
+        }
+    }
+
+    private void recordInflate(long durationNanos) {
+        synchronized (sStatsLock) {
+            sInflateCount++;
+            sInflateTimeNanos += durationNanos;
+            sViewCount += mViewCount;
+            sCreatorViewCount += mCreatorViewCount;
+            sMissingClassCount += mMissingClassCount;
+        }
+        mViewCount = 0;
+        mCreatorViewCount = 0;
+        mMissingClassCount = 0;
+    }
+
+    /**
+     * Prints the inflation statistics of the process.
+     * {@hide}
+     */
+    public static void dumpStats(String prefix, PrintWriter pw) {
+        synchronized (sStatsLock) {
+            pw.print(prefix); pw.println("LayoutInflater:");
+            pw.print(prefix); pw.print("  inflates="); pw.print(sInflateCount);
+                    pw.print(" totalTime="); pw.print(sInflateTimeNanos / 1000000);
+                    pw.print("ms avgTime=");
+                    pw.print(sInflateCount > 0 ? sInflateTimeNanos / sInflateCount / 1000 : 0);
+                    pw.println("us");
+            pw.print(prefix); pw.print("  views="); pw.print(sViewCount);
+                    pw.print(" viaCreator="); pw.print(sCreatorViewCount);
+                    pw.print(" viaReflection="); pw.print(sViewCount - sCreatorViewCount);
+                    pw.print(" skippedClassLoads="); pw.println(sMissingClassCount);
+        }
+    }
+
     /**
      * Obtains the LayoutInflater from the given context.
      */
@@ -451,6 +593,7 @@ public abstract class LayoutInflater {
     public View inflate(XmlPullParser parser, @Nullable ViewGroup root, boolean attachToRoot) {
         synchronized (mConstructorArgs) {
             Trace.traceBegin(Trace.TRACE_TAG_VIEW, "inflate");
+            final long startNanos = mInflateDepth++ == 0 ? SystemClock.elapsedRealtimeNanos() : 0;
 
             final Context inflaterContext = mContext;
             final AttributeSet attrs = Xml.asAttributeSet(parser);
@@ -545,6 +688,9 @@ public abstract class LayoutInflater {
                 mConstructorArgs[0] = lastContext;
                 mConstructorArgs[1] = null;
 
+                if (--mInflateDepth == 0) {
+                    recordInflate(SystemClock.elapsedRealtimeNanos() - startNanos);
+                }
                 Trace.traceEnd(Trace.TRACE_TAG_VIEW);
             }
 
@@ -584,6 +730,10 @@ public abstract class LayoutInflater {
      * the first time createView() is called for a class of a particular name,
      * the latter every time there-after for that class name.
      *
+     * <p>
+     * Classes with a {@link ViewCreator} registered are instantiated through
+     * it instead of reflection, unless a {@link Filter} is set.
+     *
      * @param name The full name of the class to be instantiated.
      * @param attrs The XML attributes supplied for this instance.
      *
@@ -591,6 +741,13 @@ public abstract class LayoutInflater {
      */
     public final View createView(String name, String prefix, AttributeSet attrs)
             throws ClassNotFoundException, InflateException {
+        if (mFilter == null) {
+            final ViewCreator creator = getViewCreator(name, prefix);
+            if (creator != null) {
+                return createViewWithCreator(creator, name, prefix, attrs);
+            }
+        }
+
         Constructor<? extends View> constructor = sConstructorMap.get(name);
         if (constructor != null && !verifyClassLoader(constructor)) {
             constructor = null;
@@ -603,8 +760,21 @@ public abstract class LayoutInflater {
 
             if (constructor == null) {
                 // Class not found in the cache, see if it's real, and try to add it
-                clazz = mContext.getClassLoader().loadClass(
-                        prefix != null ? (prefix + name) : name).asSubclass(View.class);
+                final String className = prefix != null ? (prefix + name) : name;
+                if (prefix != null && isKnownMissingClass(className)) {
+                    // Already probed for this prefix; don't ask the class loader again.
+                    mMissingClassCount++;
+                    throw new ClassNotFoundException(className);
+                }
+                try {
+                    clazz = mContext.getClassLoader().loadClass(className)
+                            .asSubclass(View.class);
+                } catch (ClassNotFoundException e) {
+                    if (prefix != null) {
+                        addMissingClass(className);
+                    }
+                    throw e;
+                }
 
                 if (mFilter != null && clazz != null) {
                     boolean allowed = mFilter.onLoadClass(clazz);
@@ -651,6 +821,7 @@ public abstract class LayoutInflater {
                 viewStub.setLayoutInflater(cloneInContext((Context) args[0]));
             }
             mConstructorArgs[0] = lastContext;
+            mViewCount++;
             return view;
 
         } catch (NoSuchMethodException e) {
@@ -679,6 +850,33 @@ public abstract class LayoutInflater {
         }
     }
 
+    private View createViewWithCreator(ViewCreator creator, String name, String prefix,
+            AttributeSet attrs) {
+        Trace.traceBegin(Trace.TRACE_TAG_VIEW, name);
+        try {
+            final Context context = mConstructorArgs[0] != null
+                    ? (Context) mConstructorArgs[0] : mContext;
+            final View view = creator.createView(context, attrs);
+            if (view instanceof ViewStub) {
+                // Use the same context when inflating ViewStub later.
+                final ViewStub viewStub = (ViewStub) view;
+                viewStub.setLayoutInflater(cloneInContext(context));
+            }
+            mViewCount++;
+            mCreatorViewCount++;
+            return view;
+        } catch (InflateException e) {
+            throw e;
+        } catch (Exception e) {
+            final InflateException ie = new InflateException(attrs.getPositionDescription()
+                    + ": Error inflating class " + (prefix != null ? (prefix + name) : name), e);
+            ie.setStackTrace(EMPTY_STACK_TRACE);
+            throw ie;
+        } finally {
+            Trace.traceEnd(Trace.TRACE_TAG_VIEW);
+        }
+    }
+
     /**
      * Throw an exception because the specified class is not allowed to be inflated.
      */
@@ -22,6 +22,7 @@ import android.util.Log;
 import android.util.LongArray;
 import android.util.LongSparseArray;
 import android.util.SparseArray;
+import android.util.SparseIntArray;
 
 import com.android.internal.annotations.VisibleForTesting;
 
@@ -80,6 +81,18 @@ public final class AccessibilityCache {
     private final SparseArray<AccessibilityWindowInfo> mTempWindowArray =
             new SparseArray<>();
 
+    // The generation of a window changes whenever some of its nodes are evicted or a subtree of
+    // it starts refreshing, so that a refresh made without the lock can tell if it is stale.
+    // Generations only grow, and the windows missing here have mClearedGeneration.
+    private final SparseIntArray mWindowGenerations = new SparseIntArray();
+    private int mClearedGeneration;
+    private int mLastGeneration;
+
+    private long mNodeHitCount;
+    private long mNodeMissCount;
+    private long mRefreshedSubTreeCount;
+    private long mEvictedNodeCount;
+
     public AccessibilityCache(AccessibilityNodeRefresher nodeRefresher) {
         mAccessibilityNodeRefresher = nodeRefresher;
     }
@@ -126,6 +139,7 @@ public final class AccessibilityCache {
      * @param event An event.
      */
     public void onAccessibilityEvent(AccessibilityEvent event) {
+        SubTreeRefresh subTreeRefresh = null;
         synchronized (mLock) {
             final int eventType = event.getEventType();
             switch (eventType) {
@@ -165,7 +179,7 @@ public final class AccessibilityCache {
                         final long sourceId = event.getSourceNodeId();
                         if ((event.getContentChangeTypes()
                                 & AccessibilityEvent.CONTENT_CHANGE_TYPE_SUBTREE) != 0) {
-                            clearSubTreeLocked(windowId, sourceId);
+                            subTreeRefresh = startSubTreeRefreshLocked(windowId, sourceId);
                         } else {
                             refreshCachedNodeLocked(windowId, sourceId);
                         }
@@ -183,6 +197,11 @@ public final class AccessibilityCache {
             }
         }
 
+        if (subTreeRefresh != null) {
+            finishSubTreeRefresh(subTreeRefresh,
+                    mAccessibilityNodeRefresher.fetchSubTree(subTreeRefresh.root));
+        }
+
         if (CHECK_INTEGRITY) {
             checkIntegrity();
         }
@@ -210,6 +229,112 @@ public final class AccessibilityCache {
         clearSubTreeLocked(windowId, sourceId);
     }
 
+    /**
+     * Starts refreshing a subtree whose structure changed. The root is fetched again along
+     * with the descendants the app prefetches with it, in a single request, and only the cached
+     * nodes of the subtree that didn't come back with it are evicted, rather than the whole
+     * subtree. The request is synchronous, so it is made without holding the lock.
+     *
+     * @return The refresh to finish without the lock, or null if the root isn't cached.
+     */
+    private SubTreeRefresh startSubTreeRefreshLocked(int windowId, long rootNodeId) {
+        LongSparseArray<AccessibilityNodeInfo> nodes = mNodeCache.get(windowId);
+        if (nodes == null) {
+            return null;
+        }
+        final AccessibilityNodeInfo root = nodes.get(rootNodeId);
+        // If the source is not in the cache - nothing to do.
+        if (root == null) {
+            return null;
+        }
+
+        final LongArray subTreeIds = new LongArray();
+        collectSubTreeLocked(nodes, rootNodeId, subTreeIds);
+        // Any refresh of the window still in flight is now stale.
+        bumpWindowGenerationLocked(windowId);
+        return new SubTreeRefresh(AccessibilityNodeInfo.obtain(root), subTreeIds,
+                getWindowGenerationLocked(windowId));
+    }
+
+    /**
+     * Merges the nodes fetched for a subtree refresh, and recycles them. If the window changed
+     * since the refresh started, they may be older than what is cached now, so they are
+     * dropped and the whole subtree is evicted, as it is when the request fails.
+     */
+    private void finishSubTreeRefresh(SubTreeRefresh refresh,
+            List<AccessibilityNodeInfo> refreshedNodes) {
+        final int windowId = refresh.root.getWindowId();
+        final long rootNodeId = refresh.root.getSourceNodeId();
+        refresh.root.recycle();
+        synchronized (mLock) {
+            try {
+                if (refreshedNodes == null || refreshedNodes.isEmpty()
+                        || getWindowGenerationLocked(windowId) != refresh.generation) {
+                    clearSubTreeLocked(windowId, rootNodeId);
+                    return;
+                }
+                mRefreshedSubTreeCount++;
+
+                final int refreshedCount = refreshedNodes.size();
+                final LongArray refreshedIds = new LongArray(refreshedCount);
+                for (int i = 0; i < refreshedCount; i++) {
+                    final AccessibilityNodeInfo refreshed = refreshedNodes.get(i);
+                    refreshedIds.add(refreshed.getSourceNodeId());
+                    add(refreshed);
+                }
+                bumpWindowGenerationLocked(windowId);
+
+                // Adding the refreshed nodes may have evicted some of the others, or all the
+                // window.
+                final LongSparseArray<AccessibilityNodeInfo> nodes = mNodeCache.get(windowId);
+                if (nodes == null) {
+                    return;
+                }
+                final LongArray subTreeIds = refresh.subTreeIds;
+                final int subTreeSize = subTreeIds.size();
+                for (int i = 0; i < subTreeSize; i++) {
+                    final long nodeId = subTreeIds.get(i);
+                    if (refreshedIds.indexOf(nodeId) < 0) {
+                        final AccessibilityNodeInfo stale = nodes.get(nodeId);
+                        if (stale != null) {
+                            nodes.remove(nodeId);
+                            stale.recycle();
+                            mEvictedNodeCount++;
+                        }
+                    }
+                }
+            } finally {
+                if (refreshedNodes != null) {
+                    final int refreshedCount = refreshedNodes.size();
+                    for (int i = 0; i < refreshedCount; i++) {
+                        refreshedNodes.get(i).recycle();
+                    }
+                }
+            }
+        }
+    }
+
+    private void bumpWindowGenerationLocked(int windowId) {
+        mWindowGenerations.put(windowId, ++mLastGeneration);
+    }
+
+    private int getWindowGenerationLocked(int windowId) {
+        return mWindowGenerations.get(windowId, mClearedGeneration);
+    }
+
+    private void collectSubTreeLocked(LongSparseArray<AccessibilityNodeInfo> nodes,
+            long rootNodeId, LongArray outIds) {
+        final AccessibilityNodeInfo current = nodes.get(rootNodeId);
+        if (current == null || outIds.indexOf(rootNodeId) >= 0) {
+            return;
+        }
+        outIds.add(rootNodeId);
+        final int childCount = current.getChildCount();
+        for (int i = 0; i < childCount; i++) {
+            collectSubTreeLocked(nodes, current.getChildId(i), outIds);
+        }
+    }
+
     /**
      * Gets a cached {@link AccessibilityNodeInfo} given the id of the hosting
      * window and the accessibility id of the node.
@@ -222,6 +347,7 @@ public final class AccessibilityCache {
         synchronized(mLock) {
             LongSparseArray<AccessibilityNodeInfo> nodes = mNodeCache.get(windowId);
             if (nodes == null) {
+                mNodeMissCount++;
                 return null;
             }
             AccessibilityNodeInfo info = nodes.get(accessibilityNodeId);
@@ -229,6 +355,9 @@ public final class AccessibilityCache {
                 // Return a copy since the client calls to AccessibilityNodeInfo#recycle()
                 // will wipe the data of the cached info.
                 info = AccessibilityNodeInfo.obtain(info);
+                mNodeHitCount++;
+            } else {
+                mNodeMissCount++;
             }
             if (DEBUG) {
                 Log.i(LOG_TAG, "get(" + accessibilityNodeId + ") = " + info);
@@ -345,6 +474,34 @@ public final class AccessibilityCache {
         }
     }
 
+    /** Returns how many times {@link #getNode} found the node in the cache. */
+    public long getNodeHitCount() {
+        synchronized (mLock) {
+            return mNodeHitCount;
+        }
+    }
+
+    /** Returns how many times {@link #getNode} didn't find the node in the cache. */
+    public long getNodeMissCount() {
+        synchronized (mLock) {
+            return mNodeMissCount;
+        }
+    }
+
+    /** Returns how many subtrees were refreshed in place after their structure changed. */
+    public long getRefreshedSubTreeCount() {
+        synchronized (mLock) {
+            return mRefreshedSubTreeCount;
+        }
+    }
+
+    /** Returns how many nodes were evicted because a refresh of their subtree left them out. */
+    public long getEvictedNodeCount() {
+        synchronized (mLock) {
+            return mEvictedNodeCount;
+        }
+    }
+
     /**
      * Clears the cache.
      */
@@ -362,6 +519,9 @@ public final class AccessibilityCache {
 
             mAccessibilityFocus = AccessibilityNodeInfo.UNDEFINED_ITEM_ID;
             mInputFocus = AccessibilityNodeInfo.UNDEFINED_ITEM_ID;
+
+            mWindowGenerations.clear();
+            mClearedGeneration = ++mLastGeneration;
         }
     }
 
@@ -386,6 +546,7 @@ public final class AccessibilityCache {
         if (nodes == null) {
             return;
         }
+        bumpWindowGenerationLocked(windowId);
         // Recycle the nodes before clearing the cache.
         final int nodeCount = nodes.size();
         for (int i = nodeCount - 1; i >= 0; i--) {
@@ -408,7 +569,8 @@ public final class AccessibilityCache {
             Log.i(LOG_TAG, "Clearing cached subtree.");
         }
         LongSparseArray<AccessibilityNodeInfo> nodes = mNodeCache.get(windowId);
-        if (nodes != null) {
+        if (nodes != null && nodes.get(rootNodeId) != null) {
+            bumpWindowGenerationLocked(windowId);
             clearSubTreeRecursiveLocked(nodes, rootNodeId);
         }
     }
@@ -556,10 +718,38 @@ public final class AccessibilityCache {
         }
     }
 
+    /** A subtree refresh in flight. */
+    private static final class SubTreeRefresh {
+        // A copy of the cached root, which the refresh recycles.
+        final AccessibilityNodeInfo root;
+        // The ids of the cached nodes of the subtree when the refresh started.
+        final LongArray subTreeIds;
+        final int generation;
+
+        SubTreeRefresh(AccessibilityNodeInfo root, LongArray subTreeIds, int generation) {
+            this.root = root;
+            this.subTreeIds = subTreeIds;
+            this.generation = generation;
+        }
+    }
+
     // Layer of indirection included to break dependency chain for testing
     public static class AccessibilityNodeRefresher {
         public boolean refreshNode(AccessibilityNodeInfo info, boolean bypassCache) {
             return info.refresh(null, bypassCache);
         }
+
+        /**
+         * Fetches the node again, along with the descendants that the app prefetches with it,
+         * without going through the cache.
+         *
+         * @return The fetched nodes, which the caller recycles, or null if the request failed.
+         */
+        public List<AccessibilityNodeInfo> fetchSubTree(AccessibilityNodeInfo root) {
+            return AccessibilityInteractionClient.getInstance()
+                    .fetchAccessibilityNodeInfosByAccessibilityId(root.getConnectionId(),
+                            root.getWindowId(), root.getSourceNodeId(),
+                            AccessibilityNodeInfo.FLAG_PREFETCH_DESCENDANTS);
+        }
     }
 }
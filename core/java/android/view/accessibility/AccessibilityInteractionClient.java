@@ -310,6 +310,54 @@ public final class AccessibilityInteractionClient
         return null;
     }
 
+    /**
+     * Fetches an {@link AccessibilityNodeInfo} by accessibility id along with the nodes
+     * prefetched with it, without looking them up in the cache or adding them to it.
+     *
+     * @param connectionId The id of a connection for interacting with the system.
+     * @param accessibilityWindowId A unique window id.
+     * @param accessibilityNodeId A unique view id or virtual descendant id.
+     * @param prefetchFlags flags to guide prefetching.
+     * @return The fetched nodes, which the caller recycles, starting with the requested one.
+     *     Empty if the node wasn't found, or null if the request failed.
+     */
+    public List<AccessibilityNodeInfo> fetchAccessibilityNodeInfosByAccessibilityId(
+            int connectionId, int accessibilityWindowId, long accessibilityNodeId,
+            int prefetchFlags) {
+        try {
+            IAccessibilityServiceConnection connection = getConnection(connectionId);
+            if (connection != null) {
+                final int interactionId = mInteractionIdCounter.getAndIncrement();
+                final long identityToken = Binder.clearCallingIdentity();
+                final boolean success = connection.findAccessibilityNodeInfoByAccessibilityId(
+                        accessibilityWindowId, accessibilityNodeId, interactionId, this,
+                        prefetchFlags, Thread.currentThread().getId(), null);
+                Binder.restoreCallingIdentity(identityToken);
+                if (success) {
+                    List<AccessibilityNodeInfo> infos = getFindAccessibilityNodeInfosResultAndClear(
+                            interactionId);
+                    if (infos != null) {
+                        final int infosCount = infos.size();
+                        for (int i = 0; i < infosCount; i++) {
+                            AccessibilityNodeInfo info = infos.get(i);
+                            info.setConnectionId(connectionId);
+                            info.setSealed(true);
+                        }
+                    }
+                    return infos;
+                }
+            } else {
+                if (DEBUG) {
+                    Log.w(LOG_TAG, "No connection for connection id: " + connectionId);
+                }
+            }
+        } catch (RemoteException re) {
+            Log.e(LOG_TAG, "Error while calling remote"
+                    + " fetchAccessibilityNodeInfosByAccessibilityId", re);
+        }
+        return null;
+    }
+
     /**
      * Finds an {@link AccessibilityNodeInfo} by View id. The search is performed in
      * the window whose id is specified and starts from the node whose accessibility
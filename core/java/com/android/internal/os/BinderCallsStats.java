@@ -0,0 +1,392 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.os;
+
+import android.os.Binder;
+import android.os.SystemClock;
+import android.os.UserHandle;
+import android.service.bindercalls.BinderCallsStatsServiceDumpProto;
+import android.util.SparseLongArray;
+import android.util.TimeUtils;
+import android.util.proto.ProtoOutputStream;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+/**
+ * Counts the incoming binder calls of a process by interface descriptor, transaction code and
+ * calling uid. Every call is counted, and the CPU time and latency of one call in
+ * {@link #getSamplingInterval()} are measured, per binder thread, so that it can be left on.
+ *
+ * <p>The counts are kept in arrays allocated up front; once {@link #MAX_ENTRIES} kinds of
+ * calls have been seen, the others are all counted together.
+ *
+ * @see Binder#setCallsStats
+ */
+public final class BinderCallsStats {
+    /** Most kinds of calls counted separately. */
+    public static final int MAX_ENTRIES = 1024;
+
+    public static final int DEFAULT_SAMPLING_INTERVAL = 16;
+
+    private static final int TABLE_SIZE = MAX_ENTRIES * 2;
+    private static final int OVERFLOW = MAX_ENTRIES;
+
+    private static final BinderCallsStats sInstance = new BinderCallsStats();
+
+    /** The call being dispatched by a binder thread. */
+    public static final class CallSession {
+        String descriptor;
+        int code;
+        int callingUid;
+        boolean sampled;
+        long startCpuMicros;
+        long startNanos;
+    }
+
+    /** The calls a binder thread is dispatching; incoming calls may nest in outgoing ones. */
+    private static final class ThreadState {
+        CallSession[] sessions = new CallSession[0];
+        int depth;
+        int callsUntilSample;
+    }
+
+    private final ThreadLocal<ThreadState> mThreadState = ThreadLocal.withInitial(
+            ThreadState::new);
+
+    private final Object mLock = new Object();
+
+    @GuardedBy("mLock")
+    private final String[] mDescriptors = new String[MAX_ENTRIES];
+    @GuardedBy("mLock")
+    private final int[] mCodes = new int[MAX_ENTRIES];
+    @GuardedBy("mLock")
+    private final int[] mUids = new int[MAX_ENTRIES];
+    @GuardedBy("mLock")
+    private final long[] mCallCounts = new long[MAX_ENTRIES + 1];
+    @GuardedBy("mLock")
+    private final long[] mSampledCounts = new long[MAX_ENTRIES + 1];
+    @GuardedBy("mLock")
+    private final long[] mCpuMicros = new long[MAX_ENTRIES + 1];
+    @GuardedBy("mLock")
+    private final long[] mMaxCpuMicros = new long[MAX_ENTRIES + 1];
+    @GuardedBy("mLock")
+    private final long[] mLatencyMicros = new long[MAX_ENTRIES + 1];
+    @GuardedBy("mLock")
+    private final long[] mMaxLatencyMicros = new long[MAX_ENTRIES + 1];
+    @GuardedBy("mLock")
+    private int mEntryCount;
+    // Open addressing table of entry indexes plus one, zero for free slots.
+    @GuardedBy("mLock")
+    private final int[] mTable = new int[TABLE_SIZE];
+    @GuardedBy("mLock")
+    private long mStartUptimeMillis = SystemClock.uptimeMillis();
+
+    private volatile int mSamplingInterval = DEFAULT_SAMPLING_INTERVAL;
+
+    @VisibleForTesting
+    public BinderCallsStats() {
+    }
+
+    public static BinderCallsStats getInstance() {
+        return sInstance;
+    }
+
+    public int getSamplingInterval() {
+        return mSamplingInterval;
+    }
+
+    /**
+     * Sets how many calls a binder thread makes for one that is timed; 1 times them all.
+     */
+    public void setSamplingInterval(int samplingInterval) {
+        if (samplingInterval < 1) {
+            throw new IllegalArgumentException("Sampling interval must be at least 1");
+        }
+        mSamplingInterval = samplingInterval;
+    }
+
+    /**
+     * Called on the binder thread before it dispatches a call to the binder.
+     *
+     * @return the session to pass to {@link #callEnded}
+     */
+    public CallSession callStarted(Binder binder, int code) {
+        final ThreadState state = mThreadState.get();
+        if (state.depth == state.sessions.length) {
+            state.sessions = Arrays.copyOf(state.sessions, state.depth + 1);
+            state.sessions[state.depth] = new CallSession();
+        }
+        final CallSession s = state.sessions[state.depth++];
+        final String descriptor = binder.getInterfaceDescriptor();
+        s.descriptor = descriptor != null ? descriptor : binder.getClass().getName();
+        s.code = code;
+        s.callingUid = Binder.getCallingUid();
+        if (--state.callsUntilSample <= 0) {
+            state.callsUntilSample = mSamplingInterval;
+            s.sampled = true;
+            s.startCpuMicros = SystemClock.currentThreadTimeMicro();
+            s.startNanos = System.nanoTime();
+        } else {
+            s.sampled = false;
+        }
+        return s;
+    }
+
+    /**
+     * Called on the binder thread once the call returned, or threw.
+     */
+    public void callEnded(CallSession s) {
+        long cpuMicros = 0;
+        long latencyMicros = 0;
+        if (s.sampled) {
+            cpuMicros = SystemClock.currentThreadTimeMicro() - s.startCpuMicros;
+            latencyMicros = (System.nanoTime() - s.startNanos) / 1000;
+        }
+        synchronized (mLock) {
+            final int index = indexOfLocked(s.descriptor, s.code, s.callingUid);
+            mCallCounts[index]++;
+            if (s.sampled) {
+                mSampledCounts[index]++;
+                mCpuMicros[index] += cpuMicros;
+                mMaxCpuMicros[index] = Math.max(mMaxCpuMicros[index], cpuMicros);
+                mLatencyMicros[index] += latencyMicros;
+                mMaxLatencyMicros[index] = Math.max(mMaxLatencyMicros[index], latencyMicros);
+            }
+        }
+        s.descriptor = null;
+        mThreadState.get().depth--;
+    }
+
+    @GuardedBy("mLock")
+    private int indexOfLocked(String descriptor, int code, int uid) {
+        int hash = (descriptor.hashCode() * 31 + code) * 31 + uid;
+        hash ^= hash >>> 16;
+        int slot = hash & (TABLE_SIZE - 1);
+        for (;;) {
+            final int index = mTable[slot] - 1;
+            if (index < 0) {
+                break;
+            }
+            if (mCodes[index] == code && mUids[index] == uid
+                    && (mDescriptors[index] == descriptor
+                            || mDescriptors[index].equals(descriptor))) {
+                return index;
+            }
+            slot = (slot + 1) & (TABLE_SIZE - 1);
+        }
+        if (mEntryCount == MAX_ENTRIES) {
+            return OVERFLOW;
+        }
+        final int index = mEntryCount++;
+        mDescriptors[index] = descriptor;
+        mCodes[index] = code;
+        mUids[index] = uid;
+        mTable[slot] = index + 1;
+        return index;
+    }
+
+    /** Forgets the calls counted so far. */
+    public void reset() {
+        synchronized (mLock) {
+            Arrays.fill(mDescriptors, null);
+            Arrays.fill(mCallCounts, 0);
+            Arrays.fill(mSampledCounts, 0);
+            Arrays.fill(mCpuMicros, 0);
+            Arrays.fill(mMaxCpuMicros, 0);
+            Arrays.fill(mLatencyMicros, 0);
+            Arrays.fill(mMaxLatencyMicros, 0);
+            Arrays.fill(mTable, 0);
+            mEntryCount = 0;
+            mStartUptimeMillis = SystemClock.uptimeMillis();
+        }
+    }
+
+    /** Returns the CPU time of the calls of the entry, extrapolated from the sampled ones. */
+    @GuardedBy("mLock")
+    private long estimatedCpuMicrosLocked(int index) {
+        return mSampledCounts[index] == 0 ? 0
+                : mCpuMicros[index] * mCallCounts[index] / mSampledCounts[index];
+    }
+
+    @GuardedBy("mLock")
+    private Integer[] sortedByCpuLocked() {
+        final Integer[] order = new Integer[mEntryCount + (mCallCounts[OVERFLOW] != 0 ? 1 : 0)];
+        for (int i = 0; i < mEntryCount; i++) {
+            order[i] = i;
+        }
+        if (order.length > mEntryCount) {
+            order[mEntryCount] = OVERFLOW;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(estimatedCpuMicrosLocked(b),
+                estimatedCpuMicrosLocked(a)));
+        return order;
+    }
+
+    /**
+     * Returns a copy of the counts, taken under the lock so that printing them doesn't hold up
+     * the binder threads, whose calls need the lock.
+     */
+    private BinderCallsStats snapshot() {
+        final BinderCallsStats copy = new BinderCallsStats();
+        copy.mSamplingInterval = mSamplingInterval;
+        synchronized (mLock) {
+            System.arraycopy(mDescriptors, 0, copy.mDescriptors, 0, mEntryCount);
+            System.arraycopy(mCodes, 0, copy.mCodes, 0, mEntryCount);
+            System.arraycopy(mUids, 0, copy.mUids, 0, mEntryCount);
+            System.arraycopy(mCallCounts, 0, copy.mCallCounts, 0, mCallCounts.length);
+            System.arraycopy(mSampledCounts, 0, copy.mSampledCounts, 0, mSampledCounts.length);
+            System.arraycopy(mCpuMicros, 0, copy.mCpuMicros, 0, mCpuMicros.length);
+            System.arraycopy(mMaxCpuMicros, 0, copy.mMaxCpuMicros, 0, mMaxCpuMicros.length);
+            System.arraycopy(mLatencyMicros, 0, copy.mLatencyMicros, 0, mLatencyMicros.length);
+            System.arraycopy(mMaxLatencyMicros, 0, copy.mMaxLatencyMicros, 0,
+                    mMaxLatencyMicros.length);
+            copy.mEntryCount = mEntryCount;
+            copy.mStartUptimeMillis = mStartUptimeMillis;
+        }
+        return copy;
+    }
+
+    /**
+     * Prints the kinds of calls that took the most CPU time first, then the CPU time by uid.
+     *
+     * @param maxEntries most kinds of calls to print
+     */
+    public void dump(PrintWriter pw, int maxEntries) {
+        final BinderCallsStats copy = snapshot();
+        // Nothing else sees the copy, so holding its lock while printing blocks no one.
+        synchronized (copy.mLock) {
+            copy.dumpLocked(pw, maxEntries);
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void dumpLocked(PrintWriter pw, int maxEntries) {
+        pw.print("Binder calls in the last ");
+        TimeUtils.formatDuration(SystemClock.uptimeMillis() - mStartUptimeMillis, pw);
+        pw.print(", timing 1 call in ");
+        pw.println(mSamplingInterval);
+
+        long totalCalls = 0;
+        long totalCpuMicros = 0;
+        final SparseLongArray uidCpuMicros = new SparseLongArray();
+        for (int index = 0; index <= MAX_ENTRIES; index++) {
+            final long cpuMicros = estimatedCpuMicrosLocked(index);
+            totalCalls += mCallCounts[index];
+            totalCpuMicros += cpuMicros;
+            if (index != OVERFLOW && mCallCounts[index] != 0) {
+                uidCpuMicros.put(mUids[index], uidCpuMicros.get(mUids[index]) + cpuMicros);
+            }
+        }
+        pw.print("  Total: ");
+        pw.print(totalCalls);
+        pw.print(" calls, ");
+        pw.print(totalCpuMicros / 1000);
+        pw.println("ms CPU (estimated)");
+
+        pw.println();
+        pw.println("Calls (descriptor#code uid: calls, est. CPU ms,"
+                + " mean/max CPU us, mean/max latency us):");
+        final Integer[] order = sortedByCpuLocked();
+        for (int i = 0; i < order.length && i < maxEntries; i++) {
+            final int index = order[i];
+            pw.print("  ");
+            if (index == OVERFLOW) {
+                pw.print("(other)");
+            } else {
+                pw.print(mDescriptors[index]);
+                pw.print("#");
+                pw.print(mCodes[index]);
+                pw.print(" ");
+                UserHandle.formatUid(pw, mUids[index]);
+            }
+            pw.print(": ");
+            pw.print(mCallCounts[index]);
+            pw.print(", ");
+            pw.print(estimatedCpuMicrosLocked(index) / 1000);
+            final long sampled = mSampledCounts[index];
+            pw.print(", ");
+            pw.print(sampled == 0 ? 0 : mCpuMicros[index] / sampled);
+            pw.print("/");
+            pw.print(mMaxCpuMicros[index]);
+            pw.print(", ");
+            pw.print(sampled == 0 ? 0 : mLatencyMicros[index] / sampled);
+            pw.print("/");
+            pw.println(mMaxLatencyMicros[index]);
+        }
+        if (order.length > maxEntries) {
+            pw.print("  ... ");
+            pw.print(order.length - maxEntries);
+            pw.println(" more, use -a to show all");
+        }
+
+        pw.println();
+        pw.println("Estimated CPU ms by calling uid:");
+        for (int i = 0; i < uidCpuMicros.size(); i++) {
+            pw.print("  ");
+            UserHandle.formatUid(pw, uidCpuMicros.keyAt(i));
+            pw.print(": ");
+            pw.println(uidCpuMicros.valueAt(i) / 1000);
+        }
+    }
+
+    /** Writes the counts as a {@link BinderCallsStatsServiceDumpProto}. */
+    public void writeToProto(ProtoOutputStream proto) {
+        final BinderCallsStats copy = snapshot();
+        synchronized (copy.mLock) {
+            copy.writeToProtoLocked(proto);
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void writeToProtoLocked(ProtoOutputStream proto) {
+        proto.write(BinderCallsStatsServiceDumpProto.DURATION_MS,
+                SystemClock.uptimeMillis() - mStartUptimeMillis);
+        proto.write(BinderCallsStatsServiceDumpProto.SAMPLING_INTERVAL, mSamplingInterval);
+        for (int index = 0; index <= MAX_ENTRIES; index++) {
+            if (mCallCounts[index] == 0) {
+                continue;
+            }
+            final long token = proto.start(BinderCallsStatsServiceDumpProto.CALLS);
+            if (index == OVERFLOW) {
+                proto.write(BinderCallsStatsServiceDumpProto.Call.IS_OVERFLOW, true);
+            } else {
+                proto.write(BinderCallsStatsServiceDumpProto.Call.DESCRIPTOR,
+                        mDescriptors[index]);
+                proto.write(BinderCallsStatsServiceDumpProto.Call.CODE, mCodes[index]);
+                proto.write(BinderCallsStatsServiceDumpProto.Call.CALLING_UID,
+                        mUids[index]);
+            }
+            proto.write(BinderCallsStatsServiceDumpProto.Call.CALL_COUNT,
+                    mCallCounts[index]);
+            proto.write(BinderCallsStatsServiceDumpProto.Call.SAMPLED_CALL_COUNT,
+                    mSampledCounts[index]);
+            proto.write(BinderCallsStatsServiceDumpProto.Call.SAMPLED_CPU_MICROS,
+                    mCpuMicros[index]);
+            proto.write(BinderCallsStatsServiceDumpProto.Call.MAX_CPU_MICROS,
+                    mMaxCpuMicros[index]);
+            proto.write(BinderCallsStatsServiceDumpProto.Call.SAMPLED_LATENCY_MICROS,
+                    mLatencyMicros[index]);
+            proto.write(BinderCallsStatsServiceDumpProto.Call.MAX_LATENCY_MICROS,
+                    mMaxLatencyMicros[index]);
+            proto.end(token);
+        }
+    }
+}
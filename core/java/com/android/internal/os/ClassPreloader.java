@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.os;
+
+import android.os.Trace;
+import android.util.ArrayMap;
+import android.util.Log;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Loads and initializes the classes listed in the preloaded-classes file on several threads,
+ * and measures how long each class took to initialize.
+ *
+ * <p>The classes are partitioned by package: the classes of a package are initialized in the
+ * order of the list on a single thread, and the packages are spread over the threads. The core
+ * libraries, which everything else depends on, are initialized first on the calling thread, so
+ * that the static initializers of the other packages rarely wait for one another. Two static
+ * initializers in different packages that each need the other's class could still deadlock, so
+ * this is only done when asked for more than one thread. With one thread, the classes are
+ * initialized in the order of the list.
+ *
+ * <p>All the threads have exited when {@link #preload} returns, as the zygote can't fork while
+ * it has other threads.
+ */
+public final class ClassPreloader {
+    private static final String TAG = "Zygote";
+
+    /** Packages of the core libraries, which are initialized before any other group. */
+    private static final String[] CORE_PREFIXES = {
+        "java.", "javax.", "sun.", "libcore.", "dalvik.", "org.apache.harmony.", "android.icu.",
+    };
+
+    private final String[] mClasses;
+    private final long[] mInitNanos;
+    private final AtomicInteger mLoaded = new AtomicInteger();
+    private volatile Throwable mFailure;
+
+    public ClassPreloader(List<String> classes) {
+        mClasses = classes.toArray(new String[classes.size()]);
+        mInitNanos = new long[mClasses.length];
+    }
+
+    /**
+     * Returns the groups of class indices that can be initialized independently. The first group
+     * holds the core library classes, and the others one package each, in the order in which the
+     * packages first appear in the list.
+     */
+    @VisibleForTesting
+    public List<int[]> partition() {
+        final ArrayList<Integer> core = new ArrayList<>();
+        final ArrayMap<String, ArrayList<Integer>> packages = new ArrayMap<>();
+        final ArrayList<ArrayList<Integer>> ordered = new ArrayList<>();
+        for (int i = 0; i < mClasses.length; i++) {
+            final String name = mClasses[i];
+            if (isCoreClass(name)) {
+                core.add(i);
+                continue;
+            }
+            final int dot = name.lastIndexOf('.');
+            final String pkg = dot < 0 ? "" : name.substring(0, dot);
+            ArrayList<Integer> group = packages.get(pkg);
+            if (group == null) {
+                group = new ArrayList<>();
+                packages.put(pkg, group);
+                ordered.add(group);
+            }
+            group.add(i);
+        }
+
+        final ArrayList<int[]> groups = new ArrayList<>(ordered.size() + 1);
+        groups.add(toArray(core));
+        for (int i = 0; i < ordered.size(); i++) {
+            groups.add(toArray(ordered.get(i)));
+        }
+        return groups;
+    }
+
+    private static boolean isCoreClass(String name) {
+        for (String prefix : CORE_PREFIXES) {
+            if (name.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int[] toArray(ArrayList<Integer> list) {
+        final int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+
+    /**
+     * Initializes all the classes, using up to {@code threadCount} threads including the calling
+     * one, and returns the number of classes that were found.
+     */
+    public int preload(int threadCount) {
+        if (threadCount <= 1) {
+            for (int i = 0; i < mClasses.length && mFailure == null; i++) {
+                preloadClass(i);
+            }
+            rethrowFailure();
+            return mLoaded.get();
+        }
+
+        final List<int[]> groups = partition();
+        preloadGroup(groups.get(0));
+        rethrowFailure();
+
+        final AtomicInteger nextGroup = new AtomicInteger(1);
+        final Runnable worker = () -> {
+            int group;
+            while (mFailure == null && (group = nextGroup.getAndIncrement()) < groups.size()) {
+                preloadGroup(groups.get(group));
+            }
+        };
+
+        final Thread[] threads = new Thread[Math.max(0,
+                Math.min(threadCount, groups.size() - 1) - 1)];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(worker, "ZygotePreload-" + (i + 1));
+            threads[i].start();
+        }
+        worker.run();
+        for (Thread thread : threads) {
+            ZygoteInit.joinUninterruptibly(thread);
+        }
+        rethrowFailure();
+        return mLoaded.get();
+    }
+
+    private void preloadGroup(int[] group) {
+        for (int index : group) {
+            if (mFailure != null) {
+                return;
+            }
+            preloadClass(index);
+        }
+    }
+
+    private void preloadClass(int index) {
+        final String name = mClasses[index];
+        Trace.traceBegin(Trace.TRACE_TAG_DALVIK, name);
+        final long start = System.nanoTime();
+        try {
+            // Load and explicitly initialize the given class. Use
+            // Class.forName(String, boolean, ClassLoader) to avoid repeated stack lookups
+            // (to derive the caller's class-loader). Use true to force initialization, and
+            // null for the boot classpath class-loader.
+            Class.forName(name, true, null);
+            mLoaded.incrementAndGet();
+        } catch (ClassNotFoundException e) {
+            Log.w(TAG, "Class not found for preloading: " + name);
+        } catch (UnsatisfiedLinkError e) {
+            Log.w(TAG, "Problem preloading " + name + ": " + e);
+        } catch (Throwable t) {
+            Log.e(TAG, "Error preloading " + name + ".", t);
+            mFailure = t;
+        } finally {
+            mInitNanos[index] = System.nanoTime() - start;
+            Trace.traceEnd(Trace.TRACE_TAG_DALVIK);
+        }
+    }
+
+    private void rethrowFailure() {
+        final Throwable t = mFailure;
+        if (t == null) {
+            return;
+        }
+        if (t instanceof Error) {
+            throw (Error) t;
+        }
+        if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        }
+        throw new RuntimeException(t);
+    }
+
+    /**
+     * Returns how long it took to load and initialize the class at the given index of the list.
+     * A class may have been initialized earlier as a dependency of another one, in which case
+     * its cost is counted in the other class; with several threads, this also includes the time
+     * spent waiting for another thread to initialize a class.
+     */
+    public long getInitNanos(int index) {
+        return mInitNanos[index];
+    }
+
+    /**
+     * Logs the classes that took the longest to initialize, so that the preloaded-classes list
+     * can be reordered to start the most expensive ones first.
+     */
+    public void logSlowest(int count) {
+        final long[] order = new long[mClasses.length];
+        for (int i = 0; i < order.length; i++) {
+            // Sort by decreasing cost: microseconds in the upper bits, index in the lower ones.
+            order[i] = (-(mInitNanos[i] / 1000) << 24) | i;
+        }
+        Arrays.sort(order);
+        final StringBuilder sb = new StringBuilder("Slowest preloaded classes:");
+        for (int i = 0; i < Math.min(count, order.length); i++) {
+            final int index = (int) (order[i] & 0xffffff);
+            sb.append("\n  ").append(mClasses[index]).append(": ")
+                    .append(mInitNanos[index] / 1000).append("us");
+        }
+        Log.i(TAG, sb.toString());
+    }
+}
@@ -68,6 +68,9 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.security.Security;
 import java.security.Provider;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 /**
  * Startup class for the zygote process.
@@ -87,6 +90,17 @@ public class ZygoteInit {
     private static final String PROPERTY_DISABLE_OPENGL_PRELOADING = "ro.zygote.disable_gl_preload";
     private static final String PROPERTY_GFX_DRIVER = "ro.gfx.driver.0";
     private static final String PROPERTY_RUNNING_IN_CONTAINER = "ro.boot.container";
+    private static final String PROPERTY_PRELOAD_THREADS = "ro.zygote.preload_threads";
+
+    /**
+     * Default number of threads that preload classes, unless set by the property above. Serial,
+     * as the static initializers of different packages may depend on each other and deadlock
+     * when run in parallel, until the list is partitioned by measured dependencies.
+     */
+    private static final int DEFAULT_PRELOAD_THREADS = 1;
+
+    /** Number of the slowest preloaded classes that are logged. */
+    private static final int PRELOAD_SLOWEST_LOGGED = 20;
 
     private static final int LOG_BOOT_PROGRESS_PRELOAD_START = 3020;
     private static final int LOG_BOOT_PROGRESS_PRELOAD_END = 3030;
@@ -278,7 +292,7 @@ public class ZygoteInit {
             BufferedReader br
                 = new BufferedReader(new InputStreamReader(is), 256);
 
-            int count = 0;
+            final ArrayList<String> classes = new ArrayList<>();
             String line;
             while ((line = br.readLine()) != null) {
                 // Skip comments and blank lines.
@@ -286,38 +300,17 @@ public class ZygoteInit {
                 if (line.startsWith("#") || line.equals("")) {
                     continue;
                 }
-
-                Trace.traceBegin(Trace.TRACE_TAG_DALVIK, line);
-                try {
-                    if (false) {
-                        Log.v(TAG, "Preloading " + line + "...");
-                    }
-                    // Load and explicitly initialize the given class. Use
-                    // Class.forName(String, boolean, ClassLoader) to avoid repeated stack lookups
-                    // (to derive the caller's class-loader). Use true to force initialization, and
-                    // null for the boot classpath class-loader (could as well cache the
-                    // class-loader of this class in a variable).
-                    Class.forName(line, true, null);
-                    count++;
-                } catch (ClassNotFoundException e) {
-                    Log.w(TAG, "Class not found for preloading: " + line);
-                } catch (UnsatisfiedLinkError e) {
-                    Log.w(TAG, "Problem preloading " + line + ": " + e);
-                } catch (Throwable t) {
-                    Log.e(TAG, "Error preloading " + line + ".", t);
-                    if (t instanceof Error) {
-                        throw (Error) t;
-                    }
-                    if (t instanceof RuntimeException) {
-                        throw (RuntimeException) t;
-                    }
-                    throw new RuntimeException(t);
-                }
-                Trace.traceEnd(Trace.TRACE_TAG_DALVIK);
+                classes.add(line);
             }
 
+            final int threads = Math.min(SystemProperties.getInt(PROPERTY_PRELOAD_THREADS,
+                    DEFAULT_PRELOAD_THREADS), Runtime.getRuntime().availableProcessors());
+            final ClassPreloader preloader = new ClassPreloader(classes);
+            final int count = preloader.preload(threads);
+
             Log.i(TAG, "...preloaded " + count + " classes in "
-                    + (SystemClock.uptimeMillis()-startTime) + "ms.");
+                    + (SystemClock.uptimeMillis()-startTime) + "ms on " + threads + " threads.");
+            preloader.logSlowest(PRELOAD_SLOWEST_LOGGED);
         } catch (IOException e) {
             Log.e(TAG, "Error reading " + PRELOADED_CLASSES + ".", e);
         } finally {
@@ -358,32 +351,25 @@ public class ZygoteInit {
             if (PRELOAD_RESOURCES) {
                 Log.i(TAG, "Preloading resources...");
 
+                // Drawables and color state lists go to separate preload caches, so load them
+                // concurrently; the drawables take most of the time.
+                final FutureTask<Integer> drawables = new FutureTask<>(
+                        ZygoteInit::preloadAllDrawables);
+                final Thread drawableThread = new Thread(drawables, "ZygotePreloadDrawables");
+                drawableThread.start();
+
                 long startTime = SystemClock.uptimeMillis();
                 TypedArray ar = mResources.obtainTypedArray(
-                        com.android.internal.R.array.preloaded_drawables);
-                int N = preloadDrawables(ar);
-                ar.recycle();
-                Log.i(TAG, "...preloaded " + N + " resources in "
-                        + (SystemClock.uptimeMillis()-startTime) + "ms.");
-
-                startTime = SystemClock.uptimeMillis();
-                ar = mResources.obtainTypedArray(
                         com.android.internal.R.array.preloaded_color_state_lists);
-                N = preloadColorStateLists(ar);
-                ar.recycle();
-                Log.i(TAG, "...preloaded " + N + " resources in "
-                        + (SystemClock.uptimeMillis()-startTime) + "ms.");
-
-                if (mResources.getBoolean(
-                        com.android.internal.R.bool.config_freeformWindowManagement)) {
-                    startTime = SystemClock.uptimeMillis();
-                    ar = mResources.obtainTypedArray(
-                            com.android.internal.R.array.preloaded_freeform_multi_window_drawables);
-                    N = preloadDrawables(ar);
+                try {
+                    final int N = preloadColorStateLists(ar);
+                    Log.i(TAG, "...preloaded " + N + " resources in "
+                            + (SystemClock.uptimeMillis()-startTime) + "ms.");
+                } finally {
                     ar.recycle();
-                    Log.i(TAG, "...preloaded " + N + " resource in "
-                            + (SystemClock.uptimeMillis() - startTime) + "ms.");
+                    joinUninterruptibly(drawableThread);
                 }
+                getPreloadResult(drawables);
             }
             mResources.finishPreloading();
         } catch (RuntimeException e) {
@@ -391,6 +377,71 @@ public class ZygoteInit {
         }
     }
 
+    /**
+     * Preloads the drawables, and the freeform window drawables if freeform windows are
+     * supported. Returns the number of drawables.
+     */
+    private static int preloadAllDrawables() {
+        long startTime = SystemClock.uptimeMillis();
+        TypedArray ar = mResources.obtainTypedArray(
+                com.android.internal.R.array.preloaded_drawables);
+        int N = preloadDrawables(ar);
+        ar.recycle();
+        Log.i(TAG, "...preloaded " + N + " resources in "
+                + (SystemClock.uptimeMillis()-startTime) + "ms.");
+
+        if (mResources.getBoolean(
+                com.android.internal.R.bool.config_freeformWindowManagement)) {
+            startTime = SystemClock.uptimeMillis();
+            ar = mResources.obtainTypedArray(
+                    com.android.internal.R.array.preloaded_freeform_multi_window_drawables);
+            final int freeform = preloadDrawables(ar);
+            ar.recycle();
+            Log.i(TAG, "...preloaded " + freeform + " resource in "
+                    + (SystemClock.uptimeMillis() - startTime) + "ms.");
+            N += freeform;
+        }
+        return N;
+    }
+
+    /**
+     * Returns the result of a preloading task that has completed, rethrowing what it threw.
+     */
+    private static int getPreloadResult(FutureTask<Integer> task) {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * Waits for a preloading thread to exit; the zygote can't fork while it has other threads.
+     */
+    static void joinUninterruptibly(Thread thread) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                thread.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     private static int preloadColorStateLists(TypedArray ar) {
         int N = ar.length();
         for (int i=0; i<N; i++) {
@@ -0,0 +1,626 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.util;
+
+import static com.android.internal.util.BinaryXmlSerializer.ATTRIBUTE;
+import static com.android.internal.util.BinaryXmlSerializer.INTERNED_NEW;
+import static com.android.internal.util.BinaryXmlSerializer.LENGTH_LONG;
+import static com.android.internal.util.BinaryXmlSerializer.MAX_INTERNED_STRINGS;
+import static com.android.internal.util.BinaryXmlSerializer.PROTOCOL_MAGIC;
+import static com.android.internal.util.BinaryXmlSerializer.TYPE_BOOLEAN_FALSE;
+import static com.android.internal.util.BinaryXmlSerializer.TYPE_BOOLEAN_TRUE;
+import static com.android.internal.util.BinaryXmlSerializer.TYPE_INT;
+import static com.android.internal.util.BinaryXmlSerializer.TYPE_LONG;
+import static com.android.internal.util.BinaryXmlSerializer.TYPE_NULL;
+import static com.android.internal.util.BinaryXmlSerializer.TYPE_STRING;
+import static com.android.internal.util.BinaryXmlSerializer.TYPE_STRING_INTERNED;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Implementation of {@link XmlPullParser} that reads documents written by
+ * {@link BinaryXmlSerializer}. Typed attributes can be read without any string conversion
+ * through {@link #getAttributeInt}, {@link #getAttributeLong} and {@link #getAttributeBoolean};
+ * {@link #getAttributeValue} converts them to their string form on demand, so existing parsing
+ * code keeps working unmodified.
+ */
+public class BinaryXmlPullParser implements XmlPullParser {
+    private static final int DEFAULT_BUFFER_LEN = 32 * 1024;
+
+    private DataInputStream mIn;
+
+    private final ArrayList<String> mInterned = new ArrayList<>();
+
+    /** Token read ahead while collecting the attributes of a start tag, or -1 if none. */
+    private int mPendingToken = -1;
+
+    private int mEventType = START_DOCUMENT;
+    private int mDepth;
+    private String mName;
+    private String mText;
+
+    private int mAttributeCount;
+    private String[] mAttributeNames = new String[8];
+    private int[] mAttributeTypes = new int[8];
+    private String[] mAttributeStrings = new String[8];
+    private long[] mAttributeLongs = new long[8];
+
+    /**
+     * Returns true if the given stream, positioned at its start, contains a binary document.
+     * The stream must support {@link InputStream#mark}; its position is left unchanged.
+     */
+    public static boolean isBinaryXml(InputStream in) throws IOException {
+        final byte[] magic = new byte[PROTOCOL_MAGIC.length];
+        in.mark(magic.length);
+        try {
+            int read = 0;
+            while (read < magic.length) {
+                final int n = in.read(magic, read, magic.length - read);
+                if (n < 0) {
+                    return false;
+                }
+                read += n;
+            }
+            return Arrays.equals(magic, PROTOCOL_MAGIC);
+        } finally {
+            in.reset();
+        }
+    }
+
+    @Override
+    public void setInput(InputStream is, String inputEncoding) throws XmlPullParserException {
+        if (is == null) {
+            throw new IllegalArgumentException();
+        }
+        mIn = new DataInputStream(new BufferedInputStream(is, DEFAULT_BUFFER_LEN));
+        mInterned.clear();
+        mPendingToken = -1;
+        mEventType = START_DOCUMENT;
+        mDepth = 0;
+        mName = null;
+        mText = null;
+        mAttributeCount = 0;
+        try {
+            final byte[] magic = new byte[PROTOCOL_MAGIC.length];
+            mIn.readFully(magic);
+            if (!Arrays.equals(magic, PROTOCOL_MAGIC)) {
+                throw new XmlPullParserException("Not a binary XML document");
+            }
+        } catch (IOException e) {
+            throw new XmlPullParserException("Unable to read header", this, e);
+        }
+    }
+
+    @Override
+    public void setInput(Reader in) throws XmlPullParserException {
+        throw new UnsupportedOperationException("Binary XML requires an InputStream");
+    }
+
+    @Override
+    public int next() throws XmlPullParserException, IOException {
+        // The binary format never contains comments, processing instructions or adjacent text
+        // tokens, so next() and nextToken() behave identically.
+        return nextToken();
+    }
+
+    @Override
+    public int nextToken() throws XmlPullParserException, IOException {
+        if (mEventType == END_TAG) {
+            mDepth--;
+        } else if (mEventType == END_DOCUMENT) {
+            return END_DOCUMENT;
+        }
+        mName = null;
+        mText = null;
+        mAttributeCount = 0;
+
+        final int token = readToken();
+        final int command = token & 0x0f;
+        final int type = token & 0xf0;
+        switch (command) {
+            case START_DOCUMENT:
+                // Only the implicit start is reported; skip the explicit marker.
+                return nextToken();
+            case END_DOCUMENT:
+                mEventType = END_DOCUMENT;
+                break;
+            case START_TAG:
+                mName = readInternedUTF();
+                mDepth++;
+                readAttributes();
+                mEventType = START_TAG;
+                break;
+            case END_TAG:
+                mName = readInternedUTF();
+                mEventType = END_TAG;
+                break;
+            case TEXT:
+            case CDSECT:
+                mText = readValueUTF(type);
+                mEventType = TEXT;
+                break;
+            default:
+                throw new XmlPullParserException("Unexpected token " + token, this, null);
+        }
+        return mEventType;
+    }
+
+    private int readToken() throws IOException {
+        if (mPendingToken != -1) {
+            final int token = mPendingToken;
+            mPendingToken = -1;
+            return token;
+        }
+        final int token = mIn.read();
+        // Treat a missing END_DOCUMENT token as the end of the document.
+        return token == -1 ? END_DOCUMENT | TYPE_NULL : token;
+    }
+
+    private void readAttributes() throws IOException, XmlPullParserException {
+        while (true) {
+            final int token = mIn.read();
+            if (token == -1) {
+                return;
+            }
+            if ((token & 0x0f) != ATTRIBUTE) {
+                mPendingToken = token;
+                return;
+            }
+            final int i = mAttributeCount;
+            if (i == mAttributeNames.length) {
+                final int size = i * 2;
+                mAttributeNames = Arrays.copyOf(mAttributeNames, size);
+                mAttributeTypes = Arrays.copyOf(mAttributeTypes, size);
+                mAttributeStrings = Arrays.copyOf(mAttributeStrings, size);
+                mAttributeLongs = Arrays.copyOf(mAttributeLongs, size);
+            }
+            final int type = token & 0xf0;
+            mAttributeNames[i] = readInternedUTF();
+            mAttributeTypes[i] = type;
+            mAttributeStrings[i] = null;
+            switch (type) {
+                case TYPE_NULL:
+                    break;
+                case TYPE_STRING:
+                case TYPE_STRING_INTERNED:
+                    mAttributeStrings[i] = readValueUTF(type);
+                    break;
+                case TYPE_INT:
+                    mAttributeLongs[i] = mIn.readInt();
+                    break;
+                case TYPE_LONG:
+                    mAttributeLongs[i] = mIn.readLong();
+                    break;
+                case TYPE_BOOLEAN_TRUE:
+                    mAttributeLongs[i] = 1;
+                    break;
+                case TYPE_BOOLEAN_FALSE:
+                    mAttributeLongs[i] = 0;
+                    break;
+                default:
+                    throw new XmlPullParserException("Unexpected attribute type " + type, this,
+                            null);
+            }
+            mAttributeCount = i + 1;
+        }
+    }
+
+    private String readValueUTF(int type) throws IOException, XmlPullParserException {
+        switch (type) {
+            case TYPE_STRING:
+                return readUTF();
+            case TYPE_STRING_INTERNED:
+                return readInternedUTF();
+            default:
+                throw new XmlPullParserException("Unexpected string type " + type, this, null);
+        }
+    }
+
+    private String readUTF() throws IOException {
+        int length = mIn.readUnsignedShort();
+        if (length == LENGTH_LONG) {
+            length = mIn.readInt();
+        }
+        final byte[] bytes = new byte[length];
+        mIn.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private String readInternedUTF() throws IOException {
+        final int index = mIn.readUnsignedShort();
+        if (index != INTERNED_NEW) {
+            if (index >= mInterned.size()) {
+                throw new EOFException("Invalid interned string index " + index);
+            }
+            return mInterned.get(index);
+        }
+        final String s = readUTF().intern();
+        if (mInterned.size() < MAX_INTERNED_STRINGS) {
+            mInterned.add(s);
+        }
+        return s;
+    }
+
+    private int indexOfAttribute(String namespace, String name) {
+        if (namespace != null && !namespace.isEmpty()) {
+            return -1;
+        }
+        for (int i = 0; i < mAttributeCount; i++) {
+            if (name.equals(mAttributeNames[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the value of the given attribute as an int.
+     *
+     * @throws XmlPullParserException if the attribute is missing or not a number.
+     */
+    public int getAttributeInt(String namespace, String name) throws XmlPullParserException {
+        return (int) getAttributeNumber(namespace, name);
+    }
+
+    /**
+     * Returns the value of the given attribute as a long.
+     *
+     * @throws XmlPullParserException if the attribute is missing or not a number.
+     */
+    public long getAttributeLong(String namespace, String name) throws XmlPullParserException {
+        return getAttributeNumber(namespace, name);
+    }
+
+    private long getAttributeNumber(String namespace, String name)
+            throws XmlPullParserException {
+        final int i = indexOfAttribute(namespace, name);
+        if (i != -1) {
+            switch (mAttributeTypes[i]) {
+                case TYPE_INT:
+                case TYPE_LONG:
+                    return mAttributeLongs[i];
+                case TYPE_STRING:
+                case TYPE_STRING_INTERNED:
+                    try {
+                        return Long.parseLong(mAttributeStrings[i]);
+                    } catch (NumberFormatException e) {
+                        throw new XmlPullParserException("Invalid number for " + name, this, e);
+                    }
+            }
+        }
+        throw new XmlPullParserException("Missing number attribute " + name, this, null);
+    }
+
+    /**
+     * Returns the value of the given attribute as an int, or {@code defaultValue} if it is
+     * missing or not a number.
+     */
+    public int getAttributeInt(String namespace, String name, int defaultValue) {
+        final int i = indexOfAttribute(namespace, name);
+        if (i == -1) {
+            return defaultValue;
+        }
+        switch (mAttributeTypes[i]) {
+            case TYPE_INT:
+            case TYPE_LONG:
+                return (int) mAttributeLongs[i];
+            case TYPE_STRING:
+            case TYPE_STRING_INTERNED:
+                try {
+                    return Integer.parseInt(mAttributeStrings[i]);
+                } catch (NumberFormatException e) {
+                    return defaultValue;
+                }
+            default:
+                return defaultValue;
+        }
+    }
+
+    /**
+     * Returns the value of the given attribute as a long, or {@code defaultValue} if it is
+     * missing or not a number.
+     */
+    public long getAttributeLong(String namespace, String name, long defaultValue) {
+        final int i = indexOfAttribute(namespace, name);
+        if (i == -1) {
+            return defaultValue;
+        }
+        switch (mAttributeTypes[i]) {
+            case TYPE_INT:
+            case TYPE_LONG:
+                return mAttributeLongs[i];
+            case TYPE_STRING:
+            case TYPE_STRING_INTERNED:
+                try {
+                    return Long.parseLong(mAttributeStrings[i]);
+                } catch (NumberFormatException e) {
+                    return defaultValue;
+                }
+            default:
+                return defaultValue;
+        }
+    }
+
+    /**
+     * Returns the value of the given attribute as a boolean, or {@code defaultValue} if it is
+     * missing.
+     */
+    public boolean getAttributeBoolean(String namespace, String name, boolean defaultValue) {
+        final int i = indexOfAttribute(namespace, name);
+        if (i == -1) {
+            return defaultValue;
+        }
+        switch (mAttributeTypes[i]) {
+            case TYPE_BOOLEAN_TRUE:
+                return true;
+            case TYPE_BOOLEAN_FALSE:
+                return false;
+            case TYPE_STRING:
+            case TYPE_STRING_INTERNED:
+                return Boolean.parseBoolean(mAttributeStrings[i]);
+            case TYPE_NULL:
+                return defaultValue;
+            default:
+                return mAttributeLongs[i] != 0;
+        }
+    }
+
+    @Override
+    public String getAttributeValue(int index) {
+        if (index < 0 || index >= mAttributeCount) {
+            throw new IndexOutOfBoundsException();
+        }
+        switch (mAttributeTypes[index]) {
+            case TYPE_INT:
+                return Integer.toString((int) mAttributeLongs[index]);
+            case TYPE_LONG:
+                return Long.toString(mAttributeLongs[index]);
+            case TYPE_BOOLEAN_TRUE:
+                return "true";
+            case TYPE_BOOLEAN_FALSE:
+                return "false";
+            default:
+                return mAttributeStrings[index];
+        }
+    }
+
+    @Override
+    public String getAttributeValue(String namespace, String name) {
+        final int i = indexOfAttribute(namespace, name);
+        return i == -1 ? null : getAttributeValue(i);
+    }
+
+    @Override
+    public int getAttributeCount() {
+        return mEventType == START_TAG ? mAttributeCount : -1;
+    }
+
+    @Override
+    public String getAttributeName(int index) {
+        if (index < 0 || index >= mAttributeCount) {
+            throw new IndexOutOfBoundsException();
+        }
+        return mAttributeNames[index];
+    }
+
+    @Override
+    public String getAttributeNamespace(int index) {
+        return NO_NAMESPACE;
+    }
+
+    @Override
+    public String getAttributePrefix(int index) {
+        return null;
+    }
+
+    @Override
+    public String getAttributeType(int index) {
+        return "CDATA";
+    }
+
+    @Override
+    public boolean isAttributeDefault(int index) {
+        return false;
+    }
+
+    @Override
+    public int getEventType() throws XmlPullParserException {
+        return mEventType;
+    }
+
+    @Override
+    public int getDepth() {
+        return mDepth;
+    }
+
+    @Override
+    public String getName() {
+        return mName;
+    }
+
+    @Override
+    public String getNamespace() {
+        return NO_NAMESPACE;
+    }
+
+    @Override
+    public String getPrefix() {
+        return null;
+    }
+
+    @Override
+    public String getText() {
+        return mText;
+    }
+
+    @Override
+    public char[] getTextCharacters(int[] holderForStartAndLength) {
+        if (mText == null) {
+            holderForStartAndLength[0] = -1;
+            holderForStartAndLength[1] = -1;
+            return null;
+        }
+        holderForStartAndLength[0] = 0;
+        holderForStartAndLength[1] = mText.length();
+        return mText.toCharArray();
+    }
+
+    @Override
+    public boolean isWhitespace() throws XmlPullParserException {
+        if (mEventType != TEXT) {
+            throw new XmlPullParserException("Not a text event", this, null);
+        }
+        for (int i = 0; i < mText.length(); i++) {
+            if (!Character.isWhitespace(mText.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean isEmptyElementTag() throws XmlPullParserException {
+        if (mEventType != START_TAG) {
+            throw new XmlPullParserException("Not at START_TAG", this, null);
+        }
+        return false;
+    }
+
+    @Override
+    public void require(int type, String namespace, String name)
+            throws XmlPullParserException, IOException {
+        if (type != mEventType
+                || (namespace != null && !namespace.equals(getNamespace()))
+                || (name != null && !name.equals(getName()))) {
+            throw new XmlPullParserException("Expected " + TYPES[type] + " " + name
+                    + " but found " + TYPES[mEventType] + " " + getName(), this, null);
+        }
+    }
+
+    @Override
+    public String nextText() throws XmlPullParserException, IOException {
+        if (mEventType != START_TAG) {
+            throw new XmlPullParserException("Not at START_TAG", this, null);
+        }
+        int type = next();
+        if (type == TEXT) {
+            final String result = getText();
+            type = next();
+            if (type != END_TAG) {
+                throw new XmlPullParserException("Expected END_TAG after text", this, null);
+            }
+            return result;
+        } else if (type == END_TAG) {
+            return "";
+        } else {
+            throw new XmlPullParserException("Expected TEXT or END_TAG", this, null);
+        }
+    }
+
+    @Override
+    public int nextTag() throws XmlPullParserException, IOException {
+        int type = next();
+        if (type == TEXT && isWhitespace()) {
+            type = next();
+        }
+        if (type != START_TAG && type != END_TAG) {
+            throw new XmlPullParserException("Expected START_TAG or END_TAG", this, null);
+        }
+        return type;
+    }
+
+    @Override
+    public String getPositionDescription() {
+        return TYPES[mEventType] + " " + mName + " @depth " + mDepth;
+    }
+
+    @Override
+    public int getLineNumber() {
+        return -1;
+    }
+
+    @Override
+    public int getColumnNumber() {
+        return -1;
+    }
+
+    @Override
+    public String getInputEncoding() {
+        return StandardCharsets.UTF_8.name();
+    }
+
+    @Override
+    public void setFeature(String name, boolean state) throws XmlPullParserException {
+        // Namespace processing is a no-op as namespaces are never written.
+        if (FEATURE_PROCESS_NAMESPACES.equals(name)) {
+            return;
+        }
+        throw new XmlPullParserException("Unsupported feature " + name);
+    }
+
+    @Override
+    public boolean getFeature(String name) {
+        return false;
+    }
+
+    @Override
+    public void setProperty(String name, Object value) throws XmlPullParserException {
+        throw new XmlPullParserException("Unsupported property " + name);
+    }
+
+    @Override
+    public Object getProperty(String name) {
+        return null;
+    }
+
+    @Override
+    public void defineEntityReplacementText(String entityName, String replacementText)
+            throws XmlPullParserException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int getNamespaceCount(int depth) throws XmlPullParserException {
+        return 0;
+    }
+
+    @Override
+    public String getNamespacePrefix(int pos) throws XmlPullParserException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public String getNamespaceUri(int pos) throws XmlPullParserException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public String getNamespace(String prefix) {
+        return null;
+    }
+}
@@ -0,0 +1,340 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.util;
+
+import static org.xmlpull.v1.XmlPullParser.END_DOCUMENT;
+import static org.xmlpull.v1.XmlPullParser.END_TAG;
+import static org.xmlpull.v1.XmlPullParser.START_DOCUMENT;
+import static org.xmlpull.v1.XmlPullParser.START_TAG;
+import static org.xmlpull.v1.XmlPullParser.TEXT;
+
+import android.util.ArrayMap;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlSerializer;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Implementation of {@link XmlSerializer} that writes a compact binary representation of the
+ * document instead of text. Tag and attribute names are written once into a string table and
+ * referenced by index afterwards, and numeric and boolean attributes written through
+ * {@link #attributeInt}, {@link #attributeLong} and {@link #attributeBoolean} are stored in
+ * their native form, so reading them back with {@link BinaryXmlPullParser} requires no string
+ * allocation or parsing.
+ * <p>
+ * Like {@link FastXmlSerializer}, this only supports what is needed for the XML files written by
+ * system services: namespaces, comments, processing instructions and the like are unsupported.
+ * Use {@link XmlUtils#resolvePullParser} to read files that may be in either format.
+ */
+public class BinaryXmlSerializer implements XmlSerializer {
+    /** Magic header written at the start of every binary document. */
+    static final byte[] PROTOCOL_MAGIC = new byte[] { 'A', 'B', 'X', 0 };
+
+    /**
+     * Every token is a single byte: the low nibble holds the command (one of the
+     * {@link org.xmlpull.v1.XmlPullParser} event types, or {@link #ATTRIBUTE}), and the high
+     * nibble holds the type of the payload that follows.
+     */
+    static final int ATTRIBUTE = 15;
+
+    static final int TYPE_NULL = 1 << 4;
+    static final int TYPE_STRING = 2 << 4;
+    static final int TYPE_STRING_INTERNED = 3 << 4;
+    static final int TYPE_INT = 4 << 4;
+    static final int TYPE_LONG = 5 << 4;
+    static final int TYPE_BOOLEAN_TRUE = 6 << 4;
+    static final int TYPE_BOOLEAN_FALSE = 7 << 4;
+
+    /** Marker for an interned string that has not been written before. */
+    static final int INTERNED_NEW = 0xffff;
+
+    /** Marker for a string whose encoded length does not fit in an unsigned short. */
+    static final int LENGTH_LONG = 0xffff;
+
+    static final int MAX_INTERNED_STRINGS = 0xfffe;
+
+    private static final int DEFAULT_BUFFER_LEN = 32 * 1024;
+
+    private DataOutputStream mOut;
+
+    private final ArrayMap<String, Integer> mInterned = new ArrayMap<>();
+
+    private int mDepth;
+    private String[] mTagNames = new String[8];
+
+    public XmlSerializer attributeInt(String namespace, String name, int value)
+            throws IOException {
+        writeAttributeHeader(TYPE_INT, namespace, name);
+        mOut.writeInt(value);
+        return this;
+    }
+
+    public XmlSerializer attributeLong(String namespace, String name, long value)
+            throws IOException {
+        writeAttributeHeader(TYPE_LONG, namespace, name);
+        mOut.writeLong(value);
+        return this;
+    }
+
+    public XmlSerializer attributeBoolean(String namespace, String name, boolean value)
+            throws IOException {
+        writeAttributeHeader(value ? TYPE_BOOLEAN_TRUE : TYPE_BOOLEAN_FALSE, namespace, name);
+        return this;
+    }
+
+    /**
+     * Writes an attribute whose value is drawn from a small, frequently repeated set (such as
+     * enum names), so that it is stored in the string table like tag and attribute names.
+     */
+    public XmlSerializer attributeInterned(String namespace, String name, String value)
+            throws IOException {
+        if (value == null) {
+            writeAttributeHeader(TYPE_NULL, namespace, name);
+        } else {
+            writeAttributeHeader(TYPE_STRING_INTERNED, namespace, name);
+            writeInternedUTF(value);
+        }
+        return this;
+    }
+
+    @Override
+    public XmlSerializer attribute(String namespace, String name, String value)
+            throws IOException, IllegalArgumentException, IllegalStateException {
+        if (value == null) {
+            writeAttributeHeader(TYPE_NULL, namespace, name);
+        } else {
+            writeAttributeHeader(TYPE_STRING, namespace, name);
+            writeUTF(value);
+        }
+        return this;
+    }
+
+    private void writeAttributeHeader(int type, String namespace, String name)
+            throws IOException {
+        checkNamespace(namespace);
+        mOut.writeByte(ATTRIBUTE | type);
+        writeInternedUTF(name);
+    }
+
+    private void writeUTF(String s) throws IOException {
+        final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length < LENGTH_LONG) {
+            mOut.writeShort(bytes.length);
+        } else {
+            mOut.writeShort(LENGTH_LONG);
+            mOut.writeInt(bytes.length);
+        }
+        mOut.write(bytes);
+    }
+
+    private void writeInternedUTF(String s) throws IOException {
+        final Integer index = mInterned.get(s);
+        if (index != null) {
+            mOut.writeShort(index);
+            return;
+        }
+        mOut.writeShort(INTERNED_NEW);
+        writeUTF(s);
+        if (mInterned.size() < MAX_INTERNED_STRINGS) {
+            mInterned.put(s, mInterned.size());
+        }
+    }
+
+    private static void checkNamespace(String namespace) {
+        if (namespace != null && !namespace.isEmpty()) {
+            throw new IllegalArgumentException("Namespaces are not supported");
+        }
+    }
+
+    @Override
+    public void cdsect(String text) throws IOException, IllegalArgumentException,
+            IllegalStateException {
+        text(text);
+    }
+
+    @Override
+    public void comment(String text) throws IOException, IllegalArgumentException,
+            IllegalStateException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void docdecl(String text) throws IOException, IllegalArgumentException,
+            IllegalStateException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void endDocument() throws IOException, IllegalArgumentException, IllegalStateException {
+        mOut.writeByte(END_DOCUMENT | TYPE_NULL);
+        flush();
+    }
+
+    @Override
+    public XmlSerializer endTag(String namespace, String name) throws IOException,
+            IllegalArgumentException, IllegalStateException {
+        checkNamespace(namespace);
+        if (mDepth == 0) {
+            throw new IllegalStateException("endTag() without matching startTag()");
+        }
+        mTagNames[--mDepth] = null;
+        mOut.writeByte(END_TAG | TYPE_STRING_INTERNED);
+        writeInternedUTF(name);
+        return this;
+    }
+
+    @Override
+    public void entityRef(String text) throws IOException, IllegalArgumentException,
+            IllegalStateException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        mOut.flush();
+    }
+
+    @Override
+    public int getDepth() {
+        return mDepth;
+    }
+
+    @Override
+    public boolean getFeature(String name) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public String getName() {
+        return mDepth > 0 ? mTagNames[mDepth - 1] : null;
+    }
+
+    @Override
+    public String getNamespace() {
+        return XmlPullParser.NO_NAMESPACE;
+    }
+
+    @Override
+    public String getPrefix(String namespace, boolean generatePrefix)
+            throws IllegalArgumentException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Object getProperty(String name) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void ignorableWhitespace(String text) throws IOException, IllegalArgumentException,
+            IllegalStateException {
+        // Whitespace carries no meaning in the binary format.
+    }
+
+    @Override
+    public void processingInstruction(String text) throws IOException, IllegalArgumentException,
+            IllegalStateException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void setFeature(String name, boolean state) throws IllegalArgumentException,
+            IllegalStateException {
+        // Indentation is meaningless for the binary format; accept it so that callers written
+        // against FastXmlSerializer work unmodified.
+        if (name.equals("http://xmlpull.org/v1/doc/features.html#indent-output")) {
+            return;
+        }
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Sets the output stream. The encoding is ignored, as all strings are always written as
+     * UTF-8.
+     */
+    @Override
+    public void setOutput(OutputStream os, String encoding) throws IOException,
+            IllegalArgumentException, IllegalStateException {
+        if (os == null) {
+            throw new IllegalArgumentException();
+        }
+        mOut = new DataOutputStream(new BufferedOutputStream(os, DEFAULT_BUFFER_LEN));
+        mInterned.clear();
+        mDepth = 0;
+    }
+
+    @Override
+    public void setOutput(Writer writer) throws IOException, IllegalArgumentException,
+            IllegalStateException {
+        throw new UnsupportedOperationException("Binary XML requires an OutputStream");
+    }
+
+    @Override
+    public void setPrefix(String prefix, String namespace) throws IOException,
+            IllegalArgumentException, IllegalStateException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void setProperty(String name, Object value) throws IllegalArgumentException,
+            IllegalStateException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void startDocument(String encoding, Boolean standalone) throws IOException,
+            IllegalArgumentException, IllegalStateException {
+        mOut.write(PROTOCOL_MAGIC);
+        mOut.writeByte(START_DOCUMENT | TYPE_NULL);
+    }
+
+    @Override
+    public XmlSerializer startTag(String namespace, String name) throws IOException,
+            IllegalArgumentException, IllegalStateException {
+        checkNamespace(namespace);
+        if (mDepth == mTagNames.length) {
+            mTagNames = Arrays.copyOf(mTagNames, mDepth * 2);
+        }
+        mTagNames[mDepth++] = name;
+        mOut.writeByte(START_TAG | TYPE_STRING_INTERNED);
+        writeInternedUTF(name);
+        return this;
+    }
+
+    @Override
+    public XmlSerializer text(char[] buf, int start, int len) throws IOException,
+            IllegalArgumentException, IllegalStateException {
+        return text(new String(buf, start, len));
+    }
+
+    @Override
+    public XmlSerializer text(String text) throws IOException, IllegalArgumentException,
+            IllegalStateException {
+        if (!text.isEmpty()) {
+            mOut.writeByte(TEXT | TYPE_STRING);
+            writeUTF(text);
+        }
+        return this;
+    }
+}
@@ -20,6 +20,7 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Bitmap.CompressFormat;
 import android.net.Uri;
+import android.os.SystemProperties;
 import android.text.TextUtils;
 import android.util.ArrayMap;
 import android.util.Base64;
@@ -29,6 +30,7 @@ import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlSerializer;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -48,6 +50,50 @@ public class XmlUtils {
 
     private static final String STRING_ARRAY_SEPARATOR = ":";
 
+    /**
+     * When set, {@link #resolveSerializer} writes {@link BinaryXmlSerializer} documents instead
+     * of text. Reading through {@link #resolvePullParser} accepts either format regardless.
+     */
+    private static final String PROP_BINARY_XML = "persist.sys.binary_xml";
+
+    /**
+     * Returns a parser for the given stream, which may contain either a text document or one
+     * written by {@link BinaryXmlSerializer}. Text documents are parsed as UTF-8.
+     */
+    public static XmlPullParser resolvePullParser(InputStream in)
+            throws XmlPullParserException, IOException {
+        if (!in.markSupported()) {
+            in = new BufferedInputStream(in);
+        }
+        final XmlPullParser parser;
+        if (BinaryXmlPullParser.isBinaryXml(in)) {
+            parser = new BinaryXmlPullParser();
+        } else {
+            parser = Xml.newPullParser();
+        }
+        parser.setInput(in, StandardCharsets.UTF_8.name());
+        return parser;
+    }
+
+    /**
+     * Returns a serializer writing to the given stream, using {@link BinaryXmlSerializer} when
+     * binary XML is enabled on this device and {@link FastXmlSerializer} otherwise. The
+     * resulting file must be read back with {@link #resolvePullParser}.
+     *
+     * <p>Only for state files private to system services, which opt in one by one: files that
+     * apps or backups read, like shared preferences, must stay text.
+     */
+    public static XmlSerializer resolveSerializer(OutputStream out) throws IOException {
+        final XmlSerializer serializer;
+        if (SystemProperties.getBoolean(PROP_BINARY_XML, false)) {
+            serializer = new BinaryXmlSerializer();
+        } else {
+            serializer = new FastXmlSerializer();
+        }
+        serializer.setOutput(out, StandardCharsets.UTF_8.name());
+        return serializer;
+    }
+
     public static void skipCurrentTag(XmlPullParser parser)
             throws XmlPullParserException, IOException {
         int outerDepth = parser.getDepth();
@@ -735,8 +781,7 @@ public class XmlUtils {
     public static final HashMap<String, ?> readMapXml(InputStream in)
     throws XmlPullParserException, java.io.IOException
     {
-        XmlPullParser   parser = Xml.newPullParser();
-        parser.setInput(in, StandardCharsets.UTF_8.name());
+        XmlPullParser   parser = resolvePullParser(in);
         return (HashMap<String, ?>) readValueXml(parser, new String[1]);
     }
 
@@ -1593,6 +1638,9 @@ public class XmlUtils {
     }
 
     public static int readIntAttribute(XmlPullParser in, String name, int defaultValue) {
+        if (in instanceof BinaryXmlPullParser) {
+            return ((BinaryXmlPullParser) in).getAttributeInt(null, name, defaultValue);
+        }
         final String value = in.getAttributeValue(null, name);
         if (TextUtils.isEmpty(value)) {
             return defaultValue;
@@ -1605,6 +1653,14 @@ public class XmlUtils {
     }
 
     public static int readIntAttribute(XmlPullParser in, String name) throws IOException {
+        if (in instanceof BinaryXmlPullParser) {
+            try {
+                return ((BinaryXmlPullParser) in).getAttributeInt(null, name);
+            } catch (XmlPullParserException e) {
+                throw new ProtocolException("problem parsing " + name + "="
+                        + in.getAttributeValue(null, name) + " as int");
+            }
+        }
         final String value = in.getAttributeValue(null, name);
         try {
             return Integer.parseInt(value);
@@ -1615,10 +1671,17 @@ public class XmlUtils {
 
     public static void writeIntAttribute(XmlSerializer out, String name, int value)
             throws IOException {
+        if (out instanceof BinaryXmlSerializer) {
+            ((BinaryXmlSerializer) out).attributeInt(null, name, value);
+            return;
+        }
         out.attribute(null, name, Integer.toString(value));
     }
 
     public static long readLongAttribute(XmlPullParser in, String name, long defaultValue) {
+        if (in instanceof BinaryXmlPullParser) {
+            return ((BinaryXmlPullParser) in).getAttributeLong(null, name, defaultValue);
+        }
         final String value = in.getAttributeValue(null, name);
         if (TextUtils.isEmpty(value)) {
             return defaultValue;
@@ -1631,6 +1694,14 @@ public class XmlUtils {
     }
 
     public static long readLongAttribute(XmlPullParser in, String name) throws IOException {
+        if (in instanceof BinaryXmlPullParser) {
+            try {
+                return ((BinaryXmlPullParser) in).getAttributeLong(null, name);
+            } catch (XmlPullParserException e) {
+                throw new ProtocolException("problem parsing " + name + "="
+                        + in.getAttributeValue(null, name) + " as long");
+            }
+        }
         final String value = in.getAttributeValue(null, name);
         try {
             return Long.parseLong(value);
@@ -1641,6 +1712,10 @@ public class XmlUtils {
 
     public static void writeLongAttribute(XmlSerializer out, String name, long value)
             throws IOException {
+        if (out instanceof BinaryXmlSerializer) {
+            ((BinaryXmlSerializer) out).attributeLong(null, name, value);
+            return;
+        }
         out.attribute(null, name, Long.toString(value));
     }
 
@@ -1659,12 +1734,18 @@ public class XmlUtils {
     }
 
     public static boolean readBooleanAttribute(XmlPullParser in, String name) {
+        if (in instanceof BinaryXmlPullParser) {
+            return ((BinaryXmlPullParser) in).getAttributeBoolean(null, name, false);
+        }
         final String value = in.getAttributeValue(null, name);
         return Boolean.parseBoolean(value);
     }
 
     public static boolean readBooleanAttribute(XmlPullParser in, String name,
             boolean defaultValue) {
+        if (in instanceof BinaryXmlPullParser) {
+            return ((BinaryXmlPullParser) in).getAttributeBoolean(null, name, defaultValue);
+        }
         final String value = in.getAttributeValue(null, name);
         if (value == null) {
             return defaultValue;
@@ -1675,6 +1756,10 @@ public class XmlUtils {
 
     public static void writeBooleanAttribute(XmlSerializer out, String name, boolean value)
             throws IOException {
+        if (out instanceof BinaryXmlSerializer) {
+            ((BinaryXmlSerializer) out).attributeBoolean(null, name, value);
+            return;
+        }
         out.attribute(null, name, Boolean.toString(value));
     }
 
@@ -74,6 +74,21 @@ public class ConfigurationBoundResourceCacheTest
         assertNotSame(5f, mCache.getInstance(1, res, getActivity().getTheme()));
     }
 
+    @SmallTest
+    public void testStats() {
+        final Resources res = getActivity().getResources();
+        mCache.put(1, null, new DummyFloatConstantState(5f));
+        assertEquals(5f, mCache.getInstance(1, res, null));
+        assertNull(mCache.getInstance(2, res, null));
+
+        final long[] stats = new long[ThemedResourceCache.STAT_COUNT];
+        mCache.collectStats(stats);
+        assertEquals(1, stats[ThemedResourceCache.STAT_HITS]);
+        assertEquals(1, stats[ThemedResourceCache.STAT_MISSES]);
+        assertEquals(0, stats[ThemedResourceCache.STAT_CLEARED]);
+        assertEquals(1, stats[ThemedResourceCache.STAT_RETAINED]);
+    }
+
     @SmallTest
     public void testVoidConfigChange()
             throws NoSuchMethodException, IllegalAccessException, InvocationTargetException {
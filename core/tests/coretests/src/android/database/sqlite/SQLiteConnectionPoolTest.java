@@ -88,4 +88,29 @@ public class SQLiteConnectionPoolTest {
         pool.close();
         thread.quit();
     }
+
+    @Test
+    public void testAdaptiveStatementCacheGrowsWithWorkingSet() {
+        mTestConf.maxSqlCacheSize = 2;
+        SQLiteConnectionPool pool = SQLiteConnectionPool.open(mTestConf);
+        pool.setAdaptiveModeEnabled(true);
+        SQLiteConnection c1 = pool.acquireConnection("pragma user_version", 0, null);
+        assertEquals(2, c1.getPreparedStatementCacheMaxSize());
+        // Cycle through more distinct statements than the cache holds.
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i, c1.executeForLong("SELECT " + i, null, null));
+        }
+        pool.releaseConnection(c1);
+        assertEquals("Statement cache should grow when thrashing",
+                4, c1.getPreparedStatementCacheMaxSize());
+
+        // A connection that fits its working set keeps the current size.
+        SQLiteConnection c2 = pool.acquireConnection("pragma user_version", 0, null);
+        for (int i = 0; i < 10; i++) {
+            c2.executeForLong("SELECT 1", null, null);
+        }
+        pool.releaseConnection(c2);
+        assertEquals(4, c2.getPreparedStatementCacheMaxSize());
+        pool.close();
+    }
 }
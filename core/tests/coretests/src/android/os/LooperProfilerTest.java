@@ -0,0 +1,341 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.SparseArray;
+import android.util.proto.ProtoOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Run with:
+ * bit FrameworksCoreTests:android.os.LooperProfilerTest
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class LooperProfilerTest {
+    private static final int MSG_TEST = 0x2a;
+    private static final int MSG_SLOW = 0x2b;
+    private static final int MSG_FRONT = 0x2c;
+
+    private static final long SLOW_DISPATCH_MILLIS = 20;
+    private static final long LATE_MILLIS = 100;
+
+    // Field numbers of looper.proto and looperprofiler.proto, for decoding what
+    // writeToProto() writes.
+    private static final int LOOPER_PROFILER = 5;
+    private static final int PROFILER_ENTRIES = 2;
+    private static final int ENTRY_HANDLER_CLASS = 1;
+    private static final int ENTRY_CALLBACK_CLASS = 2;
+    private static final int ENTRY_WHAT = 3;
+    private static final int ENTRY_IS_OVERFLOW = 4;
+    private static final int ENTRY_COUNT = 5;
+    private static final int ENTRY_TOTAL_DISPATCH_MICROS = 6;
+    private static final int ENTRY_TOTAL_DELAY_MS = 8;
+    private static final int ENTRY_DISPATCH_HISTOGRAM = 10;
+    private static final int ENTRY_DELAY_HISTOGRAM = 11;
+
+    private static class TestHandler extends Handler {
+        TestHandler(Looper looper) {
+            super(looper);
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            if (msg.what == MSG_SLOW) {
+                SystemClock.sleep(SLOW_DISPATCH_MILLIS);
+            }
+        }
+    }
+
+    private static class TestRunnable implements Runnable {
+        @Override
+        public void run() {
+        }
+    }
+
+    private HandlerThread mThread;
+    private LooperProfiler mProfiler;
+    private Handler mHandler;
+
+    @Before
+    public void setUp() {
+        mThread = new HandlerThread("LooperProfilerTest");
+        mThread.start();
+        mProfiler = new LooperProfiler();
+        mThread.getLooper().setProfiler(mProfiler);
+        mHandler = new TestHandler(mThread.getLooper());
+    }
+
+    @After
+    public void tearDown() {
+        mThread.quit();
+    }
+
+    /**
+     * Waits until the looper handled the messages sent so far, and one more runnable which this
+     * posts, and the profiler counted them.
+     */
+    private void waitForIdle() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        mHandler.post(latch::countDown);
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        // The latch is counted down during the dispatch, which is counted after it returns.
+        final long deadline = SystemClock.uptimeMillis() + 5000;
+        while (mProfiler.describeCurrentDispatch() != null) {
+            if (SystemClock.uptimeMillis() > deadline) {
+                fail("Still dispatching: " + mProfiler.describeCurrentDispatch());
+            }
+            SystemClock.sleep(1);
+        }
+    }
+
+    private String dump() {
+        final StringWriter sw = new StringWriter();
+        final PrintWriter pw = new PrintWriter(sw);
+        mProfiler.dump(pw, "", LooperProfiler.MAX_ENTRIES + 1);
+        pw.flush();
+        return sw.toString();
+    }
+
+    @Test
+    public void testCountsByHandlerAndWhat() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            mHandler.sendEmptyMessage(MSG_TEST);
+        }
+        waitForIdle();
+
+        final String dump = dump();
+        assertTrue(dump, dump.contains(TestHandler.class.getName() + " 0x2a: 3, "));
+        assertNull(mProfiler.describeCurrentDispatch());
+    }
+
+    @Test
+    public void testOverflow() throws Exception {
+        final int extraKinds = 10;
+        for (int what = 0; what < LooperProfiler.MAX_ENTRIES + extraKinds; what++) {
+            mHandler.sendEmptyMessage(what);
+        }
+        waitForIdle();
+
+        final String dump = dump();
+        assertTrue(dump, dump.contains(": " + LooperProfiler.MAX_ENTRIES + " kinds of messages"));
+        final String lastKept = Integer.toHexString(LooperProfiler.MAX_ENTRIES - 1);
+        assertTrue(dump, dump.contains(TestHandler.class.getName() + " 0x" + lastKept + ": 1, "));
+        final String firstDropped = Integer.toHexString(LooperProfiler.MAX_ENTRIES);
+        assertFalse(dump, dump.contains(" 0x" + firstDropped + ": "));
+        // The kinds beyond the limit, and the runnable posted by waitForIdle().
+        assertTrue(dump, dump.contains("  (other): " + (extraKinds + 1) + ", "));
+
+        final List<SparseArray<List<Object>>> entries = writeEntries();
+        assertEquals(LooperProfiler.MAX_ENTRIES + 1, entries.size());
+        final SparseArray<List<Object>> overflow = findEntry(entries, null, null, 0, true);
+        assertEquals(extraKinds + 1, getLong(overflow, ENTRY_COUNT));
+    }
+
+    @Test
+    public void testHistogramsAndDelay() throws Exception {
+        mHandler.sendEmptyMessageAtTime(MSG_SLOW, SystemClock.uptimeMillis() - LATE_MILLIS);
+        mHandler.sendMessageAtFrontOfQueue(mHandler.obtainMessage(MSG_FRONT));
+        waitForIdle();
+
+        final List<SparseArray<List<Object>>> entries = writeEntries();
+        final SparseArray<List<Object>> slow = findEntry(entries,
+                TestHandler.class.getName(), null, MSG_SLOW, false);
+        assertEquals(1, getLong(slow, ENTRY_COUNT));
+        final long dispatchMicros = getLong(slow, ENTRY_TOTAL_DISPATCH_MICROS);
+        assertTrue(dispatchMicros >= SLOW_DISPATCH_MILLIS * 1000);
+        // Dispatch bucket i > 0 counts [64 << i, 128 << i) microseconds.
+        final int dispatchBucket = getOnlyBucket(slow, ENTRY_DISPATCH_HISTOGRAM);
+        assertTrue(dispatchMicros >= 64L << dispatchBucket);
+        assertTrue(dispatchBucket == LooperProfiler.BUCKETS - 1
+                || dispatchMicros < 128L << dispatchBucket);
+
+        final long delayMillis = getLong(slow, ENTRY_TOTAL_DELAY_MS);
+        assertTrue(delayMillis >= LATE_MILLIS);
+        // Delay bucket i > 0 counts [1 << (i - 1), 1 << i) milliseconds.
+        final int delayBucket = getOnlyBucket(slow, ENTRY_DELAY_HISTOGRAM);
+        assertTrue(delayMillis >= 1L << (delayBucket - 1));
+        assertTrue(delayBucket == LooperProfiler.BUCKETS - 1 || delayMillis < 1L << delayBucket);
+
+        // Messages sent at the front of the queue aren't late.
+        final SparseArray<List<Object>> front = findEntry(entries,
+                TestHandler.class.getName(), null, MSG_FRONT, false);
+        assertEquals(0, getLong(front, ENTRY_TOTAL_DELAY_MS));
+        assertEquals(0, getOnlyBucket(front, ENTRY_DELAY_HISTOGRAM));
+    }
+
+    @Test
+    public void testWriteToProto() throws Exception {
+        mHandler.sendEmptyMessage(MSG_TEST);
+        mHandler.sendEmptyMessage(MSG_TEST);
+        mHandler.post(new TestRunnable());
+        waitForIdle();
+
+        final List<SparseArray<List<Object>>> entries = writeEntries();
+        final SparseArray<List<Object>> what = findEntry(entries,
+                TestHandler.class.getName(), null, MSG_TEST, false);
+        assertEquals(2, getLong(what, ENTRY_COUNT));
+        final SparseArray<List<Object>> callback = findEntry(entries,
+                TestHandler.class.getName(), TestRunnable.class.getName(), 0, false);
+        assertEquals(1, getLong(callback, ENTRY_COUNT));
+        for (SparseArray<List<Object>> entry : entries) {
+            assertNull(entry.get(ENTRY_IS_OVERFLOW));
+            for (int field : new int[] { ENTRY_DISPATCH_HISTOGRAM, ENTRY_DELAY_HISTOGRAM }) {
+                final List<Object> histogram = entry.get(field);
+                assertEquals(LooperProfiler.BUCKETS, histogram.size());
+                long sum = 0;
+                for (Object count : histogram) {
+                    sum += (Long) count;
+                }
+                assertEquals(getLong(entry, ENTRY_COUNT), sum);
+            }
+        }
+    }
+
+    @Test
+    public void testReset() throws Exception {
+        mHandler.sendEmptyMessage(MSG_TEST);
+        waitForIdle();
+        mProfiler.reset();
+
+        assertFalse(dump().contains(" 0x2a: "));
+    }
+
+    /** Writes the profiler as a proto, and decodes its entries. */
+    private List<SparseArray<List<Object>>> writeEntries() {
+        final ProtoOutputStream proto = new ProtoOutputStream();
+        mProfiler.writeToProto(proto, LooperProto.PROFILER);
+        final SparseArray<List<Object>> looper = decode(proto.getBytes());
+        final SparseArray<List<Object>> profiler =
+                decode((byte[]) looper.get(LOOPER_PROFILER).get(0));
+        final List<SparseArray<List<Object>>> entries = new ArrayList<>();
+        for (Object entry : profiler.get(PROFILER_ENTRIES)) {
+            entries.add(decode((byte[]) entry));
+        }
+        return entries;
+    }
+
+    private static SparseArray<List<Object>> findEntry(List<SparseArray<List<Object>>> entries,
+            String handlerClass, String callbackClass, int what, boolean isOverflow) {
+        for (SparseArray<List<Object>> entry : entries) {
+            if (isOverflow == (getLong(entry, ENTRY_IS_OVERFLOW) != 0)
+                    && Objects.equals(handlerClass, getString(entry, ENTRY_HANDLER_CLASS))
+                    && Objects.equals(callbackClass, getString(entry, ENTRY_CALLBACK_CLASS))
+                    && what == getLong(entry, ENTRY_WHAT)) {
+                return entry;
+            }
+        }
+        fail("No entry for " + handlerClass + " " + callbackClass + " " + what);
+        return null;
+    }
+
+    /** Returns the index of the only non-empty bucket of the histogram, which must count one. */
+    private static int getOnlyBucket(SparseArray<List<Object>> entry, int field) {
+        final List<Object> histogram = entry.get(field);
+        assertNotNull(histogram);
+        int bucket = -1;
+        for (int i = 0; i < histogram.size(); i++) {
+            final long count = (Long) histogram.get(i);
+            if (count != 0) {
+                assertEquals(1, count);
+                assertEquals(-1, bucket);
+                bucket = i;
+            }
+        }
+        assertTrue(bucket >= 0);
+        return bucket;
+    }
+
+    /** Returns the varint field, or 0 if it wasn't written, as proto3 omits default values. */
+    private static long getLong(SparseArray<List<Object>> message, int field) {
+        final List<Object> values = message.get(field);
+        return values != null ? (Long) values.get(values.size() - 1) : 0;
+    }
+
+    private static String getString(SparseArray<List<Object>> message, int field) {
+        final List<Object> values = message.get(field);
+        return values != null ? new String((byte[]) values.get(values.size() - 1),
+                StandardCharsets.UTF_8) : null;
+    }
+
+    /**
+     * Decodes the fields of a proto message by number: varints as Long, and length-delimited
+     * fields as byte[]. Enough for the profiler, which writes no other wire types.
+     */
+    private static SparseArray<List<Object>> decode(byte[] bytes) {
+        final SparseArray<List<Object>> fields = new SparseArray<>();
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            final long tag = readVarint(buffer);
+            final Object value;
+            switch ((int) (tag & 0x7)) {
+                case 0:
+                    value = readVarint(buffer);
+                    break;
+                case 2:
+                    final byte[] data = new byte[(int) readVarint(buffer)];
+                    buffer.get(data);
+                    value = data;
+                    break;
+                default:
+                    throw new AssertionError("Unexpected wire type in tag " + tag);
+            }
+            final int field = (int) (tag >>> 3);
+            List<Object> values = fields.get(field);
+            if (values == null) {
+                values = new ArrayList<>();
+                fields.put(field, values);
+            }
+            values.add(value);
+        }
+        return fields;
+    }
+
+    private static long readVarint(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            final byte b = buffer.get();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+}
@@ -23,8 +23,16 @@ import android.test.suitebuilder.annotation.MediumTest;
 import android.test.suitebuilder.annotation.Suppress;
 import junit.framework.TestCase;
 
-@Suppress  // Failing.
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
 public class MessageQueueTest extends TestCase {
+    private static final long TIMEOUT_MILLIS = 5000;
 
     private static class BaseTestHandler extends TestHandlerThread {
         Handler mHandler;
@@ -63,6 +71,7 @@ public class MessageQueueTest extends TestCase {
         }
     }
 
+    @Suppress  // Failing.
     @MediumTest
     public void testMessageOrder() throws Exception {
         TestHandlerThread tester = new BaseTestHandler() {
@@ -82,6 +91,7 @@ public class MessageQueueTest extends TestCase {
         tester.doTest(1000);
     }
 
+    @Suppress  // Failing.
     @MediumTest
     public void testAtFrontOfQueue() throws Exception {
         TestHandlerThread tester = new BaseTestHandler() {
@@ -143,6 +153,7 @@ public class MessageQueueTest extends TestCase {
         }
     }
 
+    @Suppress  // Failing.
     @MediumTest
     public void testFieldIntegrity() throws Exception {
 
@@ -275,4 +286,259 @@ public class MessageQueueTest extends TestCase {
 
         tester.doTest(1000);
     }
+
+    /**
+     * A looper that records what it handles, with an indexed queue or not. It is kept busy
+     * until {@link #release} is called, so that all the messages of a test are queued before it
+     * handles any.
+     */
+    private static class RecordingLooper {
+        final HandlerThread mThread;
+        final MessageQueue mQueue;
+        final Handler mHandler;
+        private final List<String> mLog = new ArrayList<>();
+        private final CountDownLatch mReleased = new CountDownLatch(1);
+
+        RecordingLooper(boolean indexed) throws InterruptedException {
+            mThread = new HandlerThread("MessageQueueTest");
+            mThread.start();
+            mQueue = mThread.getLooper().getQueue();
+            if (indexed) {
+                mQueue.enableIndexing();
+            }
+            mHandler = newHandler("");
+
+            final CountDownLatch blocked = new CountDownLatch(1);
+            mHandler.post(() -> {
+                blocked.countDown();
+                try {
+                    mReleased.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            assertTrue(blocked.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        }
+
+        /** Returns a handler of this looper that records its messages with the given prefix. */
+        Handler newHandler(String prefix) {
+            return new Handler(mThread.getLooper()) {
+                @Override
+                public void handleMessage(Message msg) {
+                    record(prefix + msg.what + (msg.obj != null ? "/" + msg.obj : ""));
+                }
+            };
+        }
+
+        Runnable recorder(String name) {
+            return () -> record(name);
+        }
+
+        void record(String entry) {
+            synchronized (mLog) {
+                mLog.add(entry);
+                mLog.notifyAll();
+            }
+        }
+
+        void release() {
+            mReleased.countDown();
+        }
+
+        /** Waits until the given number of entries were recorded, and returns them. */
+        List<String> awaitLog(int count) throws InterruptedException {
+            final long deadline = SystemClock.uptimeMillis() + TIMEOUT_MILLIS;
+            synchronized (mLog) {
+                while (mLog.size() < count) {
+                    final long remaining = deadline - SystemClock.uptimeMillis();
+                    if (remaining <= 0) {
+                        fail("Timed out waiting for " + count + " messages, got " + mLog);
+                    }
+                    mLog.wait(remaining);
+                }
+                return new ArrayList<>(mLog);
+            }
+        }
+
+        void quit() {
+            release();
+            mThread.quit();
+        }
+    }
+
+    private interface Scenario {
+        /** Queues messages, releases the looper and returns what it handled. */
+        List<String> run(RecordingLooper looper) throws Exception;
+    }
+
+    /** Checks that both a plain and an indexed queue handle the scenario as expected. */
+    private static void assertScenario(List<String> expected, Scenario scenario)
+            throws Exception {
+        for (boolean indexed : new boolean[] { false, true }) {
+            final RecordingLooper looper = new RecordingLooper(indexed);
+            try {
+                assertEquals("indexed=" + indexed, expected, scenario.run(looper));
+            } finally {
+                looper.quit();
+            }
+        }
+    }
+
+    @MediumTest
+    public void testIndexedOrderByTimeThenFifo() throws Exception {
+        final int count = 200;
+        final long[] offsets = new long[count];
+        final List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            offsets[i] = (i * 37) % 20;
+            order.add(i);
+        }
+        // Stable, so messages at the same time stay in the order they were sent.
+        Collections.sort(order, Comparator.comparingLong(i -> offsets[i]));
+        final List<String> expected = new ArrayList<>();
+        for (int i : order) {
+            expected.add(String.valueOf(i));
+        }
+
+        assertScenario(expected, looper -> {
+            final long base = SystemClock.uptimeMillis();
+            for (int i = 0; i < count; i++) {
+                looper.mHandler.sendEmptyMessageAtTime(i, base + offsets[i]);
+            }
+            looper.release();
+            return looper.awaitLog(count);
+        });
+    }
+
+    @MediumTest
+    public void testIndexedAtFrontOfQueueIsLifo() throws Exception {
+        assertScenario(Arrays.asList("12", "11", "10", "0", "1", "2"), looper -> {
+            final long base = SystemClock.uptimeMillis();
+            looper.mHandler.sendEmptyMessageAtTime(0, base);
+            looper.mHandler.sendMessageAtFrontOfQueue(looper.mHandler.obtainMessage(10));
+            looper.mHandler.sendEmptyMessageAtTime(1, base);
+            looper.mHandler.sendMessageAtFrontOfQueue(looper.mHandler.obtainMessage(11));
+            looper.mHandler.sendEmptyMessageAtTime(2, base + 1);
+            looper.mHandler.sendMessageAtFrontOfQueue(looper.mHandler.obtainMessage(12));
+            looper.release();
+            return looper.awaitLog(6);
+        });
+    }
+
+    @MediumTest
+    public void testIndexedSyncBarrier() throws Exception {
+        assertScenario(Arrays.asList("async", "0", "1"), looper -> {
+            final int token = looper.mQueue.postSyncBarrier();
+            final long base = SystemClock.uptimeMillis();
+            looper.mHandler.sendEmptyMessageAtTime(0, base + 1);
+            looper.mHandler.sendEmptyMessageAtTime(1, base + 2);
+            // The looper has to wake up for the asynchronous message, which is due after the
+            // synchronous ones held by the barrier.
+            final Message async = Message.obtain(looper.mHandler, looper.recorder("async"));
+            async.setAsynchronous(true);
+            looper.mHandler.sendMessageAtTime(async, base + 50);
+            looper.release();
+
+            assertEquals(Arrays.asList("async"), looper.awaitLog(1));
+            assertTrue(looper.mHandler.hasMessages(0));
+            looper.mQueue.removeSyncBarrier(token);
+            return looper.awaitLog(3);
+        });
+    }
+
+    /** A handler equal to all the others, which the queue must still tell apart. */
+    private static class EqualHandler extends Handler {
+        EqualHandler(Looper looper) {
+            super(looper);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof EqualHandler;
+        }
+
+        @Override
+        public int hashCode() {
+            return 0;
+        }
+    }
+
+    @MediumTest
+    public void testIndexedRemoveAndHasMessages() throws Exception {
+        assertScenario(Arrays.asList(
+                "has=true", "hasObject=false", "hasCallbacks=true", "hasOther=true",
+                "3", "r1", "r2", "4/a", "other1", "equal1"), looper -> {
+            final Handler handler = looper.mHandler;
+            final Handler other = looper.newHandler("other");
+            final Handler equal = new EqualHandler(looper.mThread.getLooper()) {
+                @Override
+                public void handleMessage(Message msg) {
+                    looper.record("equal" + msg.what);
+                }
+            };
+            final Handler equal2 = new EqualHandler(looper.mThread.getLooper());
+            final Runnable r1 = looper.recorder("r1");
+            final Runnable r2 = looper.recorder("r2");
+            final long base = SystemClock.uptimeMillis();
+            handler.sendMessageAtTime(handler.obtainMessage(1, "a"), base);
+            handler.sendMessageAtTime(handler.obtainMessage(1, "b"), base + 1);
+            handler.sendMessageAtTime(handler.obtainMessage(2, "a"), base + 2);
+            handler.sendEmptyMessageAtTime(3, base + 3);
+            handler.postAtTime(r1, base + 4);
+            handler.postAtTime(r1, "a", base + 5);
+            handler.postAtTime(r2, base + 6);
+            handler.sendMessageAtTime(handler.obtainMessage(4, "a"), base + 7);
+            other.sendEmptyMessageAtTime(1, base + 8);
+            equal.sendEmptyMessageAtTime(1, base + 9);
+
+            handler.removeMessages(1, "a");
+            handler.removeCallbacks(r1, "a");
+            handler.removeMessages(2);
+            handler.removeCallbacksAndMessages("b");
+            equal2.removeMessages(1);
+            looper.record("has=" + handler.hasMessages(4));
+            looper.record("hasObject=" + handler.hasMessages(1, "a"));
+            looper.record("hasCallbacks=" + handler.hasCallbacks(r1));
+            looper.record("hasOther=" + other.hasMessages(1));
+            looper.release();
+            return looper.awaitLog(10);
+        });
+    }
+
+    @MediumTest
+    public void testIndexedRemoveAllCallbacksAndMessages() throws Exception {
+        assertScenario(Arrays.asList("has=false", "other0", "other1"), looper -> {
+            final Handler handler = looper.mHandler;
+            final Handler other = looper.newHandler("other");
+            final long base = SystemClock.uptimeMillis();
+            handler.sendEmptyMessageAtTime(0, base);
+            other.sendEmptyMessageAtTime(0, base + 1);
+            handler.postAtTime(looper.recorder("r"), base + 2);
+            handler.sendMessageAtTime(handler.obtainMessage(1, "a"), base + 3);
+            other.sendEmptyMessageAtTime(1, base + 4);
+
+            handler.removeCallbacksAndMessages(null);
+            looper.record("has=" + (handler.hasMessages(0) || handler.hasMessages(1)));
+            looper.release();
+            return looper.awaitLog(3);
+        });
+    }
+
+    @MediumTest
+    public void testIndexedQuitSafelyDropsFutureMessages() throws Exception {
+        assertScenario(Arrays.asList("0", "1", "2"), looper -> {
+            final long base = SystemClock.uptimeMillis();
+            looper.mHandler.sendEmptyMessageAtTime(2, base);
+            looper.mHandler.sendEmptyMessageAtTime(10, base + TimeUnit.MINUTES.toMillis(1));
+            looper.mHandler.sendEmptyMessageAtTime(0, base - 1);
+            looper.mHandler.sendEmptyMessageAtTime(11, base + TimeUnit.MINUTES.toMillis(2));
+            looper.mHandler.sendEmptyMessageAtTime(1, base - 1);
+            looper.mThread.getLooper().quitSafely();
+            looper.release();
+
+            looper.mThread.join(TIMEOUT_MILLIS);
+            assertFalse(looper.mThread.isAlive());
+            return looper.awaitLog(0);
+        });
+    }
 }
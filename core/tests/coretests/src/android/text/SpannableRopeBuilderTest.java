@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.text;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import android.text.style.UnderlineSpan;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+public class SpannableRopeBuilderTest extends SpannableTest {
+
+    protected Spannable newSpannableWithText(String text) {
+        return new SpannableRopeBuilder(text);
+    }
+
+    @Test
+    public void testEditsMatchSpannableStringBuilder() {
+        final Random random = new Random(0);
+        final StringBuilder initial = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            initial.append((char) ('a' + random.nextInt(26)));
+        }
+        final SpannableStringBuilder expected = new SpannableStringBuilder(initial);
+        final SpannableRopeBuilder actual = new SpannableRopeBuilder(initial);
+        final int[] flags = {
+                Spanned.SPAN_EXCLUSIVE_EXCLUSIVE, Spanned.SPAN_EXCLUSIVE_INCLUSIVE,
+                Spanned.SPAN_INCLUSIVE_EXCLUSIVE, Spanned.SPAN_INCLUSIVE_INCLUSIVE,
+        };
+        final Object[] spans = new Object[500];
+        for (int i = 0; i < spans.length; i++) {
+            spans[i] = new UnderlineSpan();
+            final int start = random.nextInt(initial.length());
+            final int end = start + 1 + random.nextInt(100);
+            final int flag = flags[random.nextInt(flags.length)];
+            expected.setSpan(spans[i], start, Math.min(end, initial.length()), flag);
+            actual.setSpan(spans[i], start, Math.min(end, initial.length()), flag);
+        }
+
+        for (int i = 0; i < 2000; i++) {
+            final int start = random.nextInt(expected.length() + 1);
+            final int end = Math.min(expected.length(), start + random.nextInt(3000));
+            final String text = random.nextBoolean() ? "" : "x" + i;
+            expected.replace(start, end, text);
+            actual.replace(start, end, text);
+        }
+
+        assertEquals(expected.toString(), actual.toString());
+        for (Object span : spans) {
+            assertEquals(expected.getSpanStart(span), actual.getSpanStart(span));
+            assertEquals(expected.getSpanEnd(span), actual.getSpanEnd(span));
+        }
+        for (int i = 0; i < 100; i++) {
+            final int start = random.nextInt(expected.length() + 1);
+            final int end = Math.min(expected.length(), start + random.nextInt(200));
+            assertArrayEquals(expected.getSpans(start, end, Object.class),
+                    actual.getSpans(start, end, Object.class));
+            assertEquals(expected.nextSpanTransition(start, expected.length(), Object.class),
+                    actual.nextSpanTransition(start, actual.length(), Object.class));
+        }
+    }
+
+    @Test
+    public void testLargeText() {
+        final StringBuilder initial = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            initial.append("line ").append(i).append('\n');
+        }
+        final SpannableRopeBuilder builder = new SpannableRopeBuilder(initial);
+        builder.insert(builder.length() / 2, "inserted");
+        builder.delete(10, 20000);
+        builder.append("end");
+
+        final StringBuilder expected = new StringBuilder(initial);
+        expected.insert(initial.length() / 2, "inserted");
+        expected.delete(10, 20000);
+        expected.append("end");
+        assertEquals(expected.toString(), builder.toString());
+        assertEquals(expected.length(), builder.length());
+        for (int i = 0; i < expected.length(); i += 997) {
+            assertEquals(expected.charAt(i), builder.charAt(i));
+        }
+        assertEquals(expected.substring(500, 3000), builder.subSequence(500, 3000).toString());
+    }
+
+    @Test
+    public void testSpanWatcherNotified() {
+        final SpannableRopeBuilder builder = new SpannableRopeBuilder("abcdef");
+        final int[] changed = new int[1];
+        builder.setSpan(new SpanWatcher() {
+            public void onSpanAdded(Spannable text, Object what, int start, int end) {
+            }
+
+            public void onSpanRemoved(Spannable text, Object what, int start, int end) {
+            }
+
+            public void onSpanChanged(Spannable text, Object what, int ostart, int oend,
+                    int nstart, int nend) {
+                changed[0]++;
+            }
+        }, 0, builder.length(), Spanned.SPAN_INCLUSIVE_INCLUSIVE);
+        final Object span = new Object();
+        builder.setSpan(span, 3, 4, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+
+        builder.insert(0, "xyz");
+        assertEquals(6, builder.getSpanStart(span));
+        assertEquals(7, builder.getSpanEnd(span));
+        assertEquals(2, changed[0]);
+    }
+}
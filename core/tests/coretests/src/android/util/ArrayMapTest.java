@@ -20,6 +20,9 @@ import junit.framework.TestCase;
 import org.junit.Test;
 
 import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Random;
 
 /**
  * Unit tests for ArrayMap that don't belong in CTS.
@@ -105,4 +108,80 @@ public class ArrayMapTest extends TestCase {
             }
         }
     }
+
+    /**
+     * Check that a map with hashing enabled keeps the same contents as a HashMap through many
+     * random operations, on both sides of the hashed threshold.
+     */
+    @Test
+    public void testHashedMatchesHashMap() throws Exception {
+        final Random random = new Random(42);
+        final ArrayMap<Integer, Integer> hashed = new ArrayMap<>();
+        hashed.enableHashing();
+        final HashMap<Integer, Integer> expected = new HashMap<>();
+        for (int i = 0; i < 200000; i++) {
+            // Grow up to a few thousand entries, then shrink back below the threshold.
+            final int range = (i / 50000) % 2 == 0 ? 4000 : 100;
+            final Integer key = random.nextInt(4000) < range ? random.nextInt(range) : null;
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(key), hashed.remove(key));
+            } else {
+                assertEquals(expected.put(key, i), hashed.put(key, i));
+            }
+            assertEquals(expected.size(), hashed.size());
+        }
+        assertEquals(expected, hashed);
+        for (int i = 0; i < hashed.size(); i++) {
+            assertEquals(i, hashed.indexOfKey(hashed.keyAt(i)));
+        }
+    }
+
+    /**
+     * Check that entries can be removed while iterating over a hashed map.
+     */
+    @Test
+    public void testHashedIteratorRemove() throws Exception {
+        final ArrayMap<String, Integer> hashed = new ArrayMap<>();
+        hashed.enableHashing();
+        for (int i = 0; i < 1000; i++) {
+            hashed.put("key " + i, i);
+        }
+        final Iterator<Integer> it = hashed.values().iterator();
+        int seen = 0;
+        while (it.hasNext()) {
+            if (it.next() % 2 == 0) {
+                it.remove();
+            }
+            seen++;
+        }
+        assertEquals(1000, seen);
+        assertEquals(500, hashed.size());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i % 2 == 0 ? null : Integer.valueOf(i), hashed.get("key " + i));
+        }
+    }
+
+    /**
+     * Check that copies of a hashed map are independent, and that only maps with hashing
+     * enabled stay hashed.
+     */
+    @Test
+    public void testHashedCopies() throws Exception {
+        final ArrayMap<String, Integer> hashed = new ArrayMap<>();
+        hashed.enableHashing();
+        for (int i = 0; i < 1000; i++) {
+            hashed.put("key " + i, i);
+        }
+        final ArrayMap<String, Integer> copy = new ArrayMap<>(hashed);
+        copy.remove("key 1");
+        assertEquals(999, copy.size());
+        assertEquals(Integer.valueOf(1), hashed.get("key 1"));
+
+        final ArrayMap<String, Integer> sorted = new ArrayMap<>();
+        sorted.putAll(hashed);
+        assertEquals(hashed, sorted);
+        for (int i = 1; i < sorted.size(); i++) {
+            assertTrue(sorted.keyAt(i - 1).hashCode() <= sorted.keyAt(i).hashCode());
+        }
+    }
 }
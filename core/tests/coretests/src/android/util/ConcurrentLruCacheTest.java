@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.TestCase;
+
+public final class ConcurrentLruCacheTest extends TestCase {
+
+    public void testSecondChanceEviction() {
+        // A single shard, so that the eviction order is deterministic.
+        ConcurrentLruCache<String, String> cache = new ConcurrentLruCache<>(3, 1);
+        cache.put("a", "A");
+        cache.put("b", "B");
+        cache.put("c", "C");
+        assertEquals("A", cache.get("a"));
+
+        // b is the oldest entry that was not read since it was added.
+        cache.put("d", "D");
+        assertEquals(1, cache.evictionCount());
+        assertNull(cache.get("b"));
+        assertEquals("A", cache.get("a"));
+        assertEquals("C", cache.get("c"));
+        assertEquals("D", cache.get("d"));
+        assertEquals(3, cache.size());
+        assertEquals(4, cache.hitCount());
+        assertEquals(1, cache.missCount());
+        assertEquals(4, cache.putCount());
+    }
+
+    public void testCreateOnCacheMiss() {
+        ConcurrentLruCache<String, String> cache = new ConcurrentLruCache<String, String>(3) {
+            @Override protected String create(String key) {
+                return key.length() > 1 ? ("created-" + key) : null;
+            }
+        };
+        assertEquals("created-aa", cache.get("aa"));
+        assertNull(cache.get("a"));
+        assertEquals("created-aa", cache.get("aa"));
+        assertEquals(1, cache.createCount());
+        assertEquals(1, cache.hitCount());
+        assertEquals(2, cache.missCount());
+    }
+
+    public void testPutAndRemoveCallEntryRemoved() {
+        final List<String> log = new ArrayList<>();
+        ConcurrentLruCache<String, String> cache = new ConcurrentLruCache<String, String>(10) {
+            @Override protected void entryRemoved(boolean evicted, String key, String oldValue,
+                    String newValue) {
+                log.add(key + "=" + oldValue + ">" + newValue + (evicted ? " evicted" : ""));
+            }
+        };
+        cache.put("a", "A");
+        cache.put("a", "A2");
+        cache.remove("a");
+        assertNull(cache.remove("a"));
+        cache.put("b", "B");
+        cache.evictAll();
+        assertEquals("[a=A>A2, a=A2>null, b=B>null evicted]", log.toString());
+        assertEquals(0, cache.size());
+    }
+
+    public void testEvictionWithCustomSizes() {
+        ConcurrentLruCache<String, String> cache = new ConcurrentLruCache<String, String>(10, 1) {
+            @Override protected int sizeOf(String key, String value) {
+                return value.length();
+            }
+        };
+        cache.put("a", "1234");
+        cache.put("b", "12345678");
+        assertEquals(8, cache.size());
+        assertNull(cache.get("a"));
+        cache.put("c", "");
+        assertEquals(8, cache.size());
+        cache.evictAll();
+        assertEquals(0, cache.size());
+        assertTrue(cache.snapshot().isEmpty());
+    }
+
+    public void testEvictionThrowsWhenSizesAreNegative() {
+        ConcurrentLruCache<String, String> cache = new ConcurrentLruCache<String, String>(4) {
+            @Override protected int sizeOf(String key, String value) {
+                return -1;
+            }
+        };
+        try {
+            cache.put("a", "A");
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    public void testConcurrentAccessKeepsSizeConsistent() throws Exception {
+        final AtomicInteger removedSize = new AtomicInteger();
+        final ConcurrentLruCache<Integer, String> cache =
+                new ConcurrentLruCache<Integer, String>(100, 4) {
+            @Override protected int sizeOf(Integer key, String value) {
+                return value.length();
+            }
+
+            @Override protected void entryRemoved(boolean evicted, Integer key, String oldValue,
+                    String newValue) {
+                removedSize.addAndGet(oldValue.length());
+            }
+        };
+        final AtomicInteger putSize = new AtomicInteger();
+        final Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final Random random = new Random(t);
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 20000; i++) {
+                    final Integer key = random.nextInt(200);
+                    if (random.nextInt(4) == 0) {
+                        final String value = "v" + random.nextInt(100);
+                        cache.put(key, value);
+                        putSize.addAndGet(value.length());
+                    } else if (random.nextInt(20) == 0) {
+                        cache.remove(key);
+                    } else {
+                        cache.get(key);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        int snapshotSize = 0;
+        for (Map.Entry<Integer, String> entry : cache.snapshot().entrySet()) {
+            snapshotSize += entry.getValue().length();
+        }
+        assertEquals(snapshotSize, cache.size());
+        assertTrue(cache.size() <= 100);
+        assertEquals(putSize.get(), removedSize.get() + cache.size());
+    }
+}
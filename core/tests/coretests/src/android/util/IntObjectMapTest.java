@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.util;
+
+import junit.framework.TestCase;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Tests for {@link IntObjectMap}, {@link LongObjectMap} and {@link IntIntMap}, against
+ * {@link HashMap}.
+ */
+public class IntObjectMapTest extends TestCase {
+    private static final int OPERATIONS = 100000;
+
+    public void testBasics() {
+        final IntObjectMap<String> map = new IntObjectMap<>(0);
+        assertNull(map.get(1));
+        assertEquals("x", map.get(1, "x"));
+
+        map.put(1, "a");
+        map.put(-5, "b");
+        map.put(1, "c");
+        assertEquals(2, map.size());
+        assertEquals("c", map.get(1));
+        assertEquals("b", map.get(-5));
+        assertEquals(map.indexOfKey(-5), map.indexOfValue("b"));
+
+        map.delete(1);
+        assertEquals(1, map.size());
+        assertEquals(-5, map.keyAt(0));
+        assertEquals(-1, map.indexOfKey(1));
+        assertEquals("{-5=b}", map.toString());
+
+        map.clear();
+        assertEquals(0, map.size());
+        assertNull(map.get(-5));
+    }
+
+    public void testRemoveWhileIterating() {
+        final IntObjectMap<Integer> map = new IntObjectMap<>();
+        for (int i = 0; i < 1000; i++) {
+            map.put(i * 31, i);
+        }
+        for (int i = map.size() - 1; i >= 0; i--) {
+            if (map.valueAt(i) % 3 == 0) {
+                map.removeAt(i);
+            }
+        }
+        assertEquals(666, map.size());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i % 3 == 0 ? null : Integer.valueOf(i), map.get(i * 31));
+        }
+    }
+
+    public void testIntObjectMapMatchesHashMap() {
+        final Random random = new Random(1);
+        final IntObjectMap<Integer> map = new IntObjectMap<>();
+        final HashMap<Integer, Integer> expected = new HashMap<>();
+        for (int i = 0; i < OPERATIONS; i++) {
+            final int key = nextKey(random, i);
+            if (random.nextInt(3) == 0) {
+                map.remove(key);
+                expected.remove(key);
+            } else {
+                map.put(key, i);
+                expected.put(key, i);
+            }
+            assertEquals(expected.get(key), map.get(key));
+        }
+        assertEquals(expected.size(), map.size());
+        for (int i = 0; i < map.size(); i++) {
+            assertEquals(expected.get(map.keyAt(i)), map.valueAt(i));
+        }
+    }
+
+    public void testLongObjectMapMatchesHashMap() {
+        final Random random = new Random(2);
+        final LongObjectMap<Integer> map = new LongObjectMap<>();
+        final HashMap<Long, Integer> expected = new HashMap<>();
+        for (int i = 0; i < OPERATIONS; i++) {
+            // Keys that only differ in their upper half must not collide.
+            final long key = ((long) nextKey(random, i) << 32) | random.nextInt(4);
+            if (random.nextInt(3) == 0) {
+                map.remove(key);
+                expected.remove(key);
+            } else {
+                map.put(key, i);
+                expected.put(key, i);
+            }
+            assertEquals(expected.get(key), map.get(key));
+        }
+        assertEquals(expected.size(), map.size());
+        for (int i = 0; i < map.size(); i++) {
+            assertEquals(expected.get(map.keyAt(i)), map.valueAt(i));
+        }
+    }
+
+    public void testIntIntMapMatchesHashMap() {
+        final Random random = new Random(3);
+        final IntIntMap map = new IntIntMap();
+        final HashMap<Integer, Integer> expected = new HashMap<>();
+        for (int i = 0; i < OPERATIONS; i++) {
+            final int key = nextKey(random, i);
+            if (random.nextInt(3) == 0) {
+                map.delete(key);
+                expected.remove(key);
+            } else {
+                map.put(key, i);
+                expected.put(key, i);
+            }
+            assertEquals(expected.containsKey(key) ? expected.get(key) : -1, map.get(key, -1));
+        }
+        assertEquals(expected.size(), map.size());
+        for (Map.Entry<Integer, Integer> entry : expected.entrySet()) {
+            assertEquals((int) entry.getValue(), map.get(entry.getKey()));
+        }
+    }
+
+    /**
+     * Returns keys from a range that grows and shrinks, so that the tables are resized both ways.
+     */
+    private static int nextKey(Random random, int operation) {
+        final int range = (operation / 20000) % 2 == 0 ? 5000 : 50;
+        return random.nextInt(range) - range / 2;
+    }
+}
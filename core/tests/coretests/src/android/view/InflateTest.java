@@ -127,6 +127,26 @@ public class InflateTest extends AndroidTestCase implements PerformanceTestCase
         inflateCachedTest(R.layout.layout_six);
     }
 
+    @SmallTest
+    public void testViewCreator() throws Exception {
+        final int[] created = new int[1];
+        LayoutInflater.registerViewCreator("android.view.InflateTest$ViewOne",
+                (context, attrs) -> {
+                    created[0]++;
+                    return new ViewOne(context, attrs);
+                });
+        try {
+            final View view = mInflater.inflate(R.layout.layout_one, null);
+            assertTrue(view instanceof ViewOne);
+            assertEquals(1, created[0]);
+        } finally {
+            LayoutInflater.registerViewCreator("android.view.InflateTest$ViewOne", null);
+        }
+
+        mInflater.inflate(R.layout.layout_one, null);
+        assertEquals(1, created[0]);
+    }
+
 //    public void testLayoutTag() throws Exception {
 //        public void setUp
 //        (Context
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.os;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.os.Binder;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * Test class for {@link BinderCallsStats}.
+ *
+ * To run the tests, use
+ *
+ * runtest -c com.android.internal.os.BinderCallsStatsTest frameworks-core
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class BinderCallsStatsTest {
+    private static final String DESCRIPTOR = "com.android.internal.os.ITestInterface";
+
+    private BinderCallsStats mStats;
+    private Binder mBinder;
+
+    @Before
+    public void setUp() {
+        mStats = new BinderCallsStats();
+        mStats.setSamplingInterval(1);
+        mBinder = new Binder();
+        mBinder.attachInterface(null, DESCRIPTOR);
+    }
+
+    private String dump() {
+        final StringWriter sw = new StringWriter();
+        final PrintWriter pw = new PrintWriter(sw);
+        mStats.dump(pw, BinderCallsStats.MAX_ENTRIES + 1);
+        pw.flush();
+        return sw.toString();
+    }
+
+    @Test
+    public void testCountsByDescriptorAndCode() {
+        for (int i = 0; i < 3; i++) {
+            mStats.callEnded(mStats.callStarted(mBinder, 7));
+        }
+        mStats.callEnded(mStats.callStarted(mBinder, 8));
+
+        final String dump = dump();
+        assertTrue(dump, dump.contains("  Total: 4 calls"));
+        assertTrue(dump, dump.contains(DESCRIPTOR + "#7 "));
+        assertTrue(dump, dump.contains(DESCRIPTOR + "#8 "));
+    }
+
+    @Test
+    public void testNestedCalls() {
+        final BinderCallsStats.CallSession outer = mStats.callStarted(mBinder, 1);
+        mStats.callEnded(mStats.callStarted(mBinder, 2));
+        mStats.callEnded(outer);
+
+        final String dump = dump();
+        assertTrue(dump, dump.contains(DESCRIPTOR + "#1 "));
+        assertTrue(dump, dump.contains(DESCRIPTOR + "#2 "));
+    }
+
+    @Test
+    public void testReset() {
+        mStats.callEnded(mStats.callStarted(mBinder, 7));
+        mStats.reset();
+
+        assertFalse(dump().contains(DESCRIPTOR));
+    }
+}
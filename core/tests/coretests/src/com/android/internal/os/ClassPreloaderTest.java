@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.os;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests for {@link ClassPreloader}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class ClassPreloaderTest {
+    private static final List<String> CLASSES = Arrays.asList(
+            "android.util.ArrayMap",
+            "java.util.ArrayList",
+            "android.text.SpannableStringBuilder",
+            "android.util.SparseArray",
+            "libcore.util.EmptyArray",
+            "android.text.TextUtils",
+            "android.util.DoesNotExist");
+
+    @Test
+    public void testPartition() {
+        final List<int[]> groups = new ClassPreloader(CLASSES).partition();
+        assertEquals(3, groups.size());
+        // The core libraries first, then the packages in the order they appear.
+        assertArrayEquals(new int[] { 1, 4 }, groups.get(0));
+        assertArrayEquals(new int[] { 0, 3, 6 }, groups.get(1));
+        assertArrayEquals(new int[] { 2, 5 }, groups.get(2));
+    }
+
+    @Test
+    public void testPreload() {
+        for (int threads = 1; threads <= 4; threads++) {
+            final ClassPreloader preloader = new ClassPreloader(CLASSES);
+            assertEquals(CLASSES.size() - 1, preloader.preload(threads));
+            for (int i = 0; i < CLASSES.size(); i++) {
+                assertTrue(preloader.getInitNanos(i) > 0);
+            }
+            preloader.logSlowest(3);
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.util;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlSerializer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+
+/**
+ * Tests for {@link BinaryXmlSerializer} and {@link BinaryXmlPullParser}
+ */
+@SmallTest
+public class BinaryXmlSerializerTest extends TestCase {
+
+    private static byte[] writeSample(XmlSerializer out) throws Exception {
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        out.setOutput(stream, StandardCharsets.UTF_8.name());
+        out.startDocument(null, true);
+        out.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
+        out.startTag(null, "packages");
+        for (int i = 0; i < 3; i++) {
+            out.startTag(null, "package");
+            out.attribute(null, "name", "com.example.app" + i);
+            XmlUtils.writeIntAttribute(out, "userId", 10000 + i);
+            XmlUtils.writeLongAttribute(out, "ft", 1500000000000L + i);
+            XmlUtils.writeBooleanAttribute(out, "system", i == 1);
+            out.startTag(null, "item");
+            out.text("value & <" + i + ">");
+            out.endTag(null, "item");
+            out.endTag(null, "package");
+        }
+        out.endTag(null, "packages");
+        out.endDocument();
+        return stream.toByteArray();
+    }
+
+    private static void verifySample(byte[] data) throws Exception {
+        final XmlPullParser in = XmlUtils.resolvePullParser(new ByteArrayInputStream(data));
+        XmlUtils.beginDocument(in, "packages");
+        assertEquals(1, in.getDepth());
+        for (int i = 0; i < 3; i++) {
+            XmlUtils.nextElement(in);
+            assertEquals("package", in.getName());
+            assertEquals(2, in.getDepth());
+            assertEquals("com.example.app" + i, in.getAttributeValue(null, "name"));
+            assertEquals(10000 + i, XmlUtils.readIntAttribute(in, "userId"));
+            assertEquals(Integer.toString(10000 + i), in.getAttributeValue(null, "userId"));
+            assertEquals(1500000000000L + i, XmlUtils.readLongAttribute(in, "ft"));
+            assertEquals(i == 1, XmlUtils.readBooleanAttribute(in, "system"));
+            assertEquals(-1, XmlUtils.readIntAttribute(in, "missing", -1));
+            XmlUtils.nextElement(in);
+            assertEquals("item", in.getName());
+            assertEquals("value & <" + i + ">", in.nextText());
+        }
+        XmlUtils.nextElement(in);
+        assertEquals(XmlPullParser.END_DOCUMENT, in.getEventType());
+    }
+
+    public void testRoundTripBinary() throws Exception {
+        final byte[] data = writeSample(new BinaryXmlSerializer());
+        assertTrue(XmlUtils.resolvePullParser(new ByteArrayInputStream(data))
+                instanceof BinaryXmlPullParser);
+        verifySample(data);
+    }
+
+    public void testLegacyTextDetected() throws Exception {
+        final byte[] data = writeSample(new FastXmlSerializer());
+        assertFalse(XmlUtils.resolvePullParser(new ByteArrayInputStream(data))
+                instanceof BinaryXmlPullParser);
+        verifySample(data);
+    }
+
+    public void testBinaryIsSmaller() throws Exception {
+        assertTrue(writeSample(new BinaryXmlSerializer()).length
+                < writeSample(new FastXmlSerializer()).length);
+    }
+
+    public void testLongText() throws Exception {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            sb.append((char) ('a' + (i % 26)));
+        }
+        final String text = sb.toString();
+
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        final XmlSerializer out = new BinaryXmlSerializer();
+        out.setOutput(stream, StandardCharsets.UTF_8.name());
+        out.startDocument(null, true);
+        out.startTag(null, "string");
+        out.attribute(null, "name", text);
+        out.text(text);
+        out.endTag(null, "string");
+        out.endDocument();
+
+        final XmlPullParser in = XmlUtils.resolvePullParser(
+                new ByteArrayInputStream(stream.toByteArray()));
+        XmlUtils.beginDocument(in, "string");
+        assertEquals(text, in.getAttributeValue(null, "name"));
+        assertEquals(text, in.nextText());
+    }
+
+    public void testMapXml() throws Exception {
+        final HashMap<String, Object> map = new HashMap<>();
+        map.put("int", 42);
+        map.put("string", "meow");
+        map.put("bool", true);
+
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        final XmlSerializer out = new BinaryXmlSerializer();
+        out.setOutput(stream, StandardCharsets.UTF_8.name());
+        out.startDocument(null, true);
+        XmlUtils.writeMapXml(map, null, out);
+        out.endDocument();
+
+        assertEquals(map, XmlUtils.readMapXml(new ByteArrayInputStream(stream.toByteArray())));
+    }
+}
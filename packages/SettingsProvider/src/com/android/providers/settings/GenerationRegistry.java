@@ -67,15 +67,25 @@ final class GenerationRegistry {
     }
 
     public void addGenerationData(Bundle bundle, int key) {
+        addGenerationData(bundle, key, true);
+    }
+
+    /**
+     * Adds the current generation for the given key to the bundle, along with the backing
+     * store to track it if {@code includeTracker} is set.
+     */
+    public void addGenerationData(Bundle bundle, int key, boolean includeTracker) {
         synchronized (mLock) {
             MemoryIntArray backingStore = getBackingStoreLocked();
             try {
                 if (backingStore != null) {
                     final int index = getKeyIndexLocked(key, mKeyToIndexMap, backingStore);
                     if (index >= 0) {
-                        bundle.putParcelable(Settings.CALL_METHOD_TRACK_GENERATION_KEY,
-                                backingStore);
-                        bundle.putInt(Settings.CALL_METHOD_GENERATION_INDEX_KEY, index);
+                        if (includeTracker) {
+                            bundle.putParcelable(Settings.CALL_METHOD_TRACK_GENERATION_KEY,
+                                    backingStore);
+                            bundle.putInt(Settings.CALL_METHOD_GENERATION_INDEX_KEY, index);
+                        }
                         bundle.putInt(Settings.CALL_METHOD_GENERATION_KEY,
                                 backingStore.get(index));
                         if (DEBUG) {
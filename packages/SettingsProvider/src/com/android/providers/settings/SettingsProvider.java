@@ -351,6 +351,18 @@ public class SettingsProvider extends ContentProvider {
                 return packageValueForCallResult(setting, isTrackingGeneration(args));
             }
 
+            case Settings.CALL_METHOD_GET_BATCH_GLOBAL: {
+                return getSettingsBatchForCallResult(SETTINGS_TYPE_GLOBAL, args);
+            }
+
+            case Settings.CALL_METHOD_GET_BATCH_SECURE: {
+                return getSettingsBatchForCallResult(SETTINGS_TYPE_SECURE, args);
+            }
+
+            case Settings.CALL_METHOD_GET_BATCH_SYSTEM: {
+                return getSettingsBatchForCallResult(SETTINGS_TYPE_SYSTEM, args);
+            }
+
             case Settings.CALL_METHOD_PUT_GLOBAL: {
                 String value = getSettingValue(args);
                 String tag = getSettingTag(args);
@@ -676,6 +688,9 @@ public class SettingsProvider extends ContentProvider {
                 Binder.restoreCallingIdentity(identity);
             }
         }
+        // The provider runs in the system process, so these are the caches of system_server.
+        pw.println("SETTINGS CACHE (system process)");
+        Settings.dumpCacheStats(pw);
     }
 
     private void dumpForUserLocked(int userId, PrintWriter pw) {
@@ -687,6 +702,7 @@ public class SettingsProvider extends ContentProvider {
                 dumpSettingsLocked(globalSettings, pw);
                 pw.println();
                 globalSettings.dumpHistoricalOperations(pw);
+                globalSettings.dumpPersistenceStats(pw);
             }
         }
 
@@ -697,6 +713,7 @@ public class SettingsProvider extends ContentProvider {
             dumpSettingsLocked(secureSettings, pw);
             pw.println();
             secureSettings.dumpHistoricalOperations(pw);
+            secureSettings.dumpPersistenceStats(pw);
         }
 
         pw.println("SYSTEM SETTINGS (user " + userId + ")");
@@ -706,6 +723,7 @@ public class SettingsProvider extends ContentProvider {
             dumpSettingsLocked(systemSettings, pw);
             pw.println();
             systemSettings.dumpHistoricalOperations(pw);
+            systemSettings.dumpPersistenceStats(pw);
         }
     }
 
@@ -1900,6 +1918,70 @@ public class SettingsProvider extends ContentProvider {
         return result;
     }
 
+    /**
+     * Reads several settings of the calling user's table in one go for the client side cache.
+     * The generation is captured before any value is read, so a client can tell whether the
+     * values may be stale by comparing it to the current one. Settings that the caller cannot
+     * read, or that are served from a different table or user (e.g. cloned profile settings),
+     * are left out and will be read one at a time.
+     */
+    private Bundle getSettingsBatchForCallResult(int type, Bundle args) {
+        final int userId = (type == SETTINGS_TYPE_GLOBAL)
+                ? UserHandle.USER_SYSTEM : UserHandle.getCallingUserId();
+        final int key = makeKey(type, userId);
+
+        Bundle result = new Bundle();
+        mSettingsRegistry.mGenerationRegistry.addGenerationData(result, key,
+                isTrackingGeneration(args));
+        if (!result.containsKey(Settings.CALL_METHOD_GENERATION_KEY)) {
+            // Without a generation the client cannot validate what it caches.
+            return result;
+        }
+
+        String[] names = (args != null) ? args.getStringArray(Settings.CALL_METHOD_NAMES_KEY)
+                : null;
+        if (names == null) {
+            synchronized (mLock) {
+                List<String> allNames = getSettingsNamesLocked(type, userId);
+                names = allNames.toArray(new String[allNames.size()]);
+            }
+        }
+
+        final int nameCount = names.length;
+        final ArrayList<String> readNames = new ArrayList<>(nameCount);
+        final ArrayList<String> readValues = new ArrayList<>(nameCount);
+        for (int i = 0; i < nameCount; i++) {
+            final String name = names[i];
+            final Setting setting;
+            try {
+                switch (type) {
+                    case SETTINGS_TYPE_GLOBAL: {
+                        setting = getGlobalSetting(name);
+                    } break;
+                    case SETTINGS_TYPE_SECURE: {
+                        setting = getSecureSetting(name, userId);
+                    } break;
+                    default: {
+                        setting = getSystemSetting(name, userId);
+                    } break;
+                }
+            } catch (SecurityException e) {
+                continue;
+            }
+            if (setting == null || (!setting.isNull() && setting.getKey() != key)) {
+                continue;
+            }
+            readNames.add(name);
+            readValues.add(!setting.isNull() ? setting.getValue() : null);
+        }
+
+        result.putStringArray(Settings.CALL_METHOD_NAMES_KEY,
+                readNames.toArray(new String[readNames.size()]));
+        result.putStringArray(Settings.CALL_METHOD_VALUES_KEY,
+                readValues.toArray(new String[readValues.size()]));
+        return result;
+    }
+
     private static int getRequestingUserId(Bundle args) {
         final int callingUserId = UserHandle.getCallingUserId();
         return (args != null) ? args.getInt(Settings.CALL_METHOD_USER_KEY, callingUserId)
@@ -27,25 +27,29 @@ import android.content.pm.PackageManagerInternal;
 import android.content.pm.Signature;
 import android.os.Binder;
 import android.os.Build;
+import android.os.FileUtils;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
 import android.os.SystemClock;
+import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.provider.Settings;
 import android.providers.settings.GlobalSettingsProto;
 import android.providers.settings.SettingsOperationProto;
 import android.text.TextUtils;
 import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.AtomicFile;
 import android.util.Base64;
 import android.util.Slog;
 import android.util.SparseIntArray;
 import android.util.TimeUtils;
-import android.util.Xml;
 import android.util.proto.ProtoOutputStream;
 
 import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.util.XmlUtils;
 import com.android.server.LocalServices;
 
 import libcore.io.IoUtils;
@@ -55,16 +59,22 @@ import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlSerializer;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
+import java.util.zip.CRC32;
 
 /**
  * This class contains the state for one type of settings. It is responsible
@@ -103,6 +113,7 @@ final class SettingsState {
     private static final String ATTR_TAG_BASE64 = "tagBase64";
 
     private static final String ATTR_VERSION = "version";
+    private static final String ATTR_JOURNAL_GENERATION = "journalGeneration";
     private static final String ATTR_ID = "id";
     private static final String ATTR_NAME = "name";
 
@@ -135,6 +146,17 @@ final class SettingsState {
 
     private static final String NULL_VALUE = "null";
 
+    // When enabled, individual mutations are appended to a journal next to the state
+    // file and the full state is only rewritten when the journal grows too large.
+    private static final String PROP_JOURNAL_ENABLED = "persist.sys.settings_journal";
+    @VisibleForTesting
+    static final String JOURNAL_FILE_SUFFIX = ".journal";
+    private static final int JOURNAL_MAGIC = 0x534a524e; // "SJRN"
+    private static final int JOURNAL_OP_PUT = 1;
+    private static final int JOURNAL_OP_DELETE = 2;
+    @VisibleForTesting
+    static final int MIN_JOURNAL_ENTRIES_BEFORE_COMPACTION = 128;
+
     private static final Object sLock = new Object();
 
     @GuardedBy("sLock")
@@ -145,6 +167,17 @@ final class SettingsState {
 
     private final Object mWriteLock = new Object();
 
+    // Order in which writes took their snapshot of the state, and the last one written.
+    @GuardedBy("mLock")
+    private long mNextWriteTicket;
+
+    @GuardedBy("mWriteLock")
+    private long mLastWriteTicket = -1;
+
+    // Set when a write failed, until the full state is written again.
+    @GuardedBy("mWriteLock")
+    private boolean mWriteFailed;
+
     private final Object mLock;
 
     private final Handler mHandler;
@@ -195,8 +228,49 @@ final class SettingsState {
     @GuardedBy("mLock")
     private int mNextHistoricalOpIdx;
 
+    private final boolean mJournalEnabled;
+
+    private final File mJournalFile;
+
+    // Names of the settings mutated since the last write.
+    @GuardedBy("mLock")
+    private final ArraySet<String> mDirtySettings = new ArraySet<>();
+
+    // Whether the next write must rewrite the full state rather than append to the journal.
+    @GuardedBy("mLock")
+    private boolean mFullWriteNeeded = true;
+
+    // Generation of the last full state written; the journal only applies on top of it.
+    @GuardedBy("mLock")
+    private long mJournalGeneration;
+
+    @GuardedBy("mLock")
+    private int mJournalEntryCount;
+
+    @GuardedBy("mLock")
+    private long mMutationCount;
+
+    @GuardedBy("mLock")
+    private long mFullWriteCount;
+
+    @GuardedBy("mLock")
+    private long mFullWriteBytes;
+
+    @GuardedBy("mLock")
+    private long mJournalWriteCount;
+
+    @GuardedBy("mLock")
+    private long mJournalWriteBytes;
+
     public SettingsState(Context context, Object lock, File file, int key,
             int maxBytesPerAppPackage, Looper looper) {
+        this(context, lock, file, key, maxBytesPerAppPackage, looper,
+                SystemProperties.getBoolean(PROP_JOURNAL_ENABLED, false));
+    }
+
+    @VisibleForTesting
+    SettingsState(Context context, Object lock, File file, int key,
+            int maxBytesPerAppPackage, Looper looper, boolean journalEnabled) {
         // It is important that we use the same lock as the settings provider
         // to ensure multiple mutations on this state are atomicaly persisted
         // as the async persistence should be blocked while we make changes.
@@ -216,6 +290,9 @@ final class SettingsState {
         mHistoricalOperations = Build.IS_DEBUGGABLE
                 ? new ArrayList<>(HISTORICAL_OPERATION_COUNT) : null;
 
+        mJournalEnabled = journalEnabled;
+        mJournalFile = new File(file.getPath() + JOURNAL_FILE_SUFFIX);
+
         synchronized (mLock) {
             readStateSyncLocked();
         }
@@ -237,7 +314,7 @@ final class SettingsState {
         }
         mVersion = version;
 
-        scheduleWriteIfNeededLocked();
+        scheduleWriteIfNeededLocked(null);
     }
 
     // The settings provider must hold its lock when calling here.
@@ -255,6 +332,7 @@ final class SettingsState {
             Setting setting = mSettings.valueAt(i);
             if (packageName.equals(setting.packageName)) {
                 mSettings.removeAt(i);
+                markDirtyLocked(name);
                 removedSomething = true;
             }
         }
@@ -309,7 +387,7 @@ final class SettingsState {
             mSettings.put(name, newSetting);
             updateMemoryUsagePerPackageLocked(newSetting.getPackageName(), oldValue,
                     newSetting.getValue(), oldDefaultValue, newSetting.getDefaultValue());
-            scheduleWriteIfNeededLocked();
+            scheduleWriteIfNeededLocked(name);
         }
     }
 
@@ -340,7 +418,7 @@ final class SettingsState {
         updateMemoryUsagePerPackageLocked(packageName, oldValue, value,
                 oldDefaultValue, newState.getDefaultValue());
 
-        scheduleWriteIfNeededLocked();
+        scheduleWriteIfNeededLocked(name);
 
         return true;
     }
@@ -364,7 +442,7 @@ final class SettingsState {
 
         addHistoricalOperationLocked(HISTORICAL_OPERATION_DELETE, oldState);
 
-        scheduleWriteIfNeededLocked();
+        scheduleWriteIfNeededLocked(name);
 
         return true;
     }
@@ -393,7 +471,7 @@ final class SettingsState {
 
         addHistoricalOperationLocked(HISTORICAL_OPERATION_RESET, oldSetting);
 
-        scheduleWriteIfNeededLocked();
+        scheduleWriteIfNeededLocked(name);
 
         return true;
     }
@@ -531,6 +609,24 @@ final class SettingsState {
         return mSettings.indexOfKey(name) >= 0;
     }
 
+    /**
+     * Records that the given setting changed so that the next write persists it, or that
+     * everything must be rewritten if {@code name} is null.
+     */
+    private void markDirtyLocked(String name) {
+        mMutationCount++;
+        if (name == null) {
+            mFullWriteNeeded = true;
+        } else if (!mFullWriteNeeded) {
+            mDirtySettings.add(name);
+        }
+    }
+
+    private void scheduleWriteIfNeededLocked(String name) {
+        markDirtyLocked(name);
+        scheduleWriteIfNeededLocked();
+    }
+
     private void scheduleWriteIfNeededLocked() {
         // If dirty then we have a write already scheduled.
         if (!mDirty) {
@@ -569,70 +665,332 @@ final class SettingsState {
     }
 
     private void doWriteState() {
-        boolean wroteState = false;
         final int version;
         final ArrayMap<String, Setting> settings;
-
+        final boolean journal;
+        final long generation;
+        final boolean newJournal;
+        final long writeTicket;
+
+        // Everything the write depends on is taken here, and the state the file will be in once
+        // the write is done is accounted for right away, so that the next snapshot builds on it
+        // even if this write has not happened yet. mLock must never be taken while holding
+        // mWriteLock: the provider holds mLock when calling persistSyncLocked().
         synchronized (mLock) {
             version = mVersion;
-            settings = new ArrayMap<>(mSettings);
             mDirty = false;
             mWriteScheduled = false;
+            if (mJournalEnabled && !mFullWriteNeeded && mJournalEntryCount + mDirtySettings.size()
+                    < Math.max(MIN_JOURNAL_ENTRIES_BEFORE_COMPACTION, mSettings.size())) {
+                if (mDirtySettings.isEmpty()) {
+                    return;
+                }
+                // Only a few settings changed, append them to the journal instead of
+                // rewriting all of them.
+                settings = new ArrayMap<>(mDirtySettings.size());
+                for (int i = mDirtySettings.size() - 1; i >= 0; i--) {
+                    final String name = mDirtySettings.valueAt(i);
+                    final Setting setting = mSettings.get(name);
+                    settings.put(name, setting != null ? new Setting(setting) : null);
+                }
+                mDirtySettings.clear();
+                journal = true;
+                generation = mJournalGeneration;
+                newJournal = mJournalEntryCount == 0;
+                mJournalEntryCount += settings.size();
+            } else {
+                settings = new ArrayMap<>(mSettings);
+                mDirtySettings.clear();
+                mFullWriteNeeded = false;
+                journal = false;
+                generation = ++mJournalGeneration;
+                newJournal = false;
+                mJournalEntryCount = 0;
+            }
+            writeTicket = mNextWriteTicket++;
         }
 
+        final long bytes;
         synchronized (mWriteLock) {
+            // Journal records only make sense in the order they were taken in, so writes
+            // happen in the order of their snapshots.
+            while (mLastWriteTicket != writeTicket - 1) {
+                try {
+                    mWriteLock.wait();
+                } catch (InterruptedException e) {
+                    // Keep waiting for our turn.
+                }
+            }
+            try {
+                bytes = journal ? writeJournal(settings, generation, newJournal)
+                        : writeFullState(settings, version, generation);
+            } finally {
+                mLastWriteTicket = writeTicket;
+                mWriteLock.notifyAll();
+            }
+        }
+
+        synchronized (mLock) {
+            if (bytes < 0) {
+                // The next write rewrites everything, the journal may be torn or stale.
+                mFullWriteNeeded = true;
+            } else if (journal) {
+                mJournalWriteCount++;
+                mJournalWriteBytes += bytes;
+            } else {
+                mFullWriteCount++;
+                mFullWriteBytes += bytes;
+                addHistoricalOperationLocked(HISTORICAL_OPERATION_PERSIST, null);
+            }
+        }
+
+        if (journal && bytes < 0) {
+            // Appending failed; fall back to rewriting everything.
+            doWriteState();
+        }
+    }
+
+    /**
+     * Writes the full state, tagged with a new journal generation, and drops the journal.
+     *
+     * @return the size of the state file, or -1 if the write failed.
+     */
+    @GuardedBy("mWriteLock")
+    private long writeFullState(ArrayMap<String, Setting> settings, int version,
+            long generation) {
+        if (DEBUG_PERSISTENCE) {
+            Slog.i(LOG_TAG, "[PERSIST START]");
+        }
+
+        AtomicFile destination = new AtomicFile(mStatePersistFile);
+        FileOutputStream out = null;
+        try {
+            out = destination.startWrite();
+
+            XmlSerializer serializer = XmlUtils.resolveSerializer(out);
+            serializer.startDocument(null, true);
+            serializer.startTag(null, TAG_SETTINGS);
+            serializer.attribute(null, ATTR_VERSION, String.valueOf(version));
+            XmlUtils.writeLongAttribute(serializer, ATTR_JOURNAL_GENERATION, generation);
+
+            final int settingCount = settings.size();
+            for (int i = 0; i < settingCount; i++) {
+                Setting setting = settings.valueAt(i);
+
+                writeSingleSetting(version, serializer, setting.getId(), setting.getName(),
+                        setting.getValue(), setting.getDefaultValue(), setting.getPackageName(),
+                        setting.getTag(), setting.isDefaultFromSystem());
+
+                if (DEBUG_PERSISTENCE) {
+                    Slog.i(LOG_TAG, "[PERSISTED]" + setting.getName() + "="
+                            + setting.getValue());
+                }
+            }
+
+            serializer.endTag(null, TAG_SETTINGS);
+            serializer.endDocument();
+            destination.finishWrite(out);
+
+            // The journal was relative to the previous state and is now obsolete. If we
+            // crash before deleting it, its generation no longer matches and it is ignored.
+            mJournalFile.delete();
+            mWriteFailed = false;
+
             if (DEBUG_PERSISTENCE) {
-                Slog.i(LOG_TAG, "[PERSIST START]");
+                Slog.i(LOG_TAG, "[PERSIST END]");
             }
+            return mStatePersistFile.length();
+        } catch (Throwable t) {
+            Slog.wtf(LOG_TAG, "Failed to write settings, restoring backup", t);
+            destination.failWrite(out);
+            mWriteFailed = true;
+            return -1;
+        } finally {
+            IoUtils.closeQuietly(out);
+        }
+    }
 
-            AtomicFile destination = new AtomicFile(mStatePersistFile);
-            FileOutputStream out = null;
-            try {
-                out = destination.startWrite();
-
-                XmlSerializer serializer = Xml.newSerializer();
-                serializer.setOutput(out, StandardCharsets.UTF_8.name());
-                serializer.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output",
-                        true);
-                serializer.startDocument(null, true);
-                serializer.startTag(null, TAG_SETTINGS);
-                serializer.attribute(null, ATTR_VERSION, String.valueOf(version));
-
-                final int settingCount = settings.size();
-                for (int i = 0; i < settingCount; i++) {
-                    Setting setting = settings.valueAt(i);
-
-                    writeSingleSetting(mVersion, serializer, setting.getId(), setting.getName(),
-                            setting.getValue(), setting.getDefaultValue(), setting.getPackageName(),
-                            setting.getTag(), setting.isDefaultFromSystem());
-
-                    if (DEBUG_PERSISTENCE) {
-                        Slog.i(LOG_TAG, "[PERSISTED]" + setting.getName() + "="
-                                + setting.getValue());
-                    }
+    /**
+     * Appends the given settings to the journal, a null value meaning the setting was deleted.
+     * Each record carries its own length and checksum so a torn append is detected on read.
+     *
+     * @param newJournal whether this starts the journal of a newly written state
+     * @return the number of bytes durably appended, or -1 if the append failed.
+     */
+    @GuardedBy("mWriteLock")
+    private long writeJournal(ArrayMap<String, Setting> settings, long generation,
+            boolean newJournal) {
+        if (mWriteFailed) {
+            // The state or journal these records build on is not on disk.
+            return -1;
+        }
+        FileOutputStream out = null;
+        try {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final DataOutputStream data = new DataOutputStream(bytes);
+            if (newJournal) {
+                data.writeInt(JOURNAL_MAGIC);
+                data.writeLong(generation);
+            }
+            final ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+            final DataOutputStream record = new DataOutputStream(recordBytes);
+            final CRC32 crc = new CRC32();
+            final int settingCount = settings.size();
+            for (int i = 0; i < settingCount; i++) {
+                recordBytes.reset();
+                final Setting setting = settings.valueAt(i);
+                if (setting == null) {
+                    record.writeByte(JOURNAL_OP_DELETE);
+                    writeJournalString(record, settings.keyAt(i));
+                } else {
+                    record.writeByte(JOURNAL_OP_PUT);
+                    writeJournalString(record, setting.getName());
+                    writeJournalString(record, setting.getValue());
+                    writeJournalString(record, setting.getDefaultValue());
+                    writeJournalString(record, setting.getPackageName());
+                    writeJournalString(record, setting.getTag());
+                    record.writeBoolean(setting.isDefaultFromSystem());
+                    writeJournalString(record, setting.getId());
                 }
+                record.flush();
+                crc.reset();
+                crc.update(recordBytes.toByteArray());
+                data.writeInt(recordBytes.size());
+                data.writeLong(crc.getValue());
+                recordBytes.writeTo(data);
+            }
+            data.flush();
 
-                serializer.endTag(null, TAG_SETTINGS);
-                serializer.endDocument();
-                destination.finishWrite(out);
+            out = new FileOutputStream(mJournalFile, !newJournal);
+            bytes.writeTo(out);
+            FileUtils.sync(out);
 
-                wroteState = true;
+            if (DEBUG_PERSISTENCE) {
+                Slog.i(LOG_TAG, "[JOURNALED] " + settings.keySet());
+            }
+            return bytes.size();
+        } catch (IOException e) {
+            Slog.w(LOG_TAG, "Failed to append to settings journal " + mJournalFile, e);
+            // Records appended after a torn one would never be replayed.
+            mWriteFailed = true;
+            return -1;
+        } finally {
+            IoUtils.closeQuietly(out);
+        }
+    }
 
-                if (DEBUG_PERSISTENCE) {
-                    Slog.i(LOG_TAG, "[PERSIST END]");
+    private static void writeJournalString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+        } else {
+            // Written as raw UTF-16 to preserve the contents as-is, like base64Encode().
+            out.writeInt(s.length());
+            out.writeChars(s);
+        }
+    }
+
+    private static String readJournalString(DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        final char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = in.readChar();
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Replays the journal written on top of the state file that was just parsed.
+     *
+     * @return whether the whole journal was valid and can be appended to.
+     */
+    private boolean readJournalLocked() {
+        final DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mJournalFile)));
+        } catch (FileNotFoundException e) {
+            return true;
+        }
+        try {
+            if (in.readInt() != JOURNAL_MAGIC || in.readLong() != mJournalGeneration) {
+                Slog.i(LOG_TAG, "Ignoring stale settings journal " + mJournalFile);
+                return false;
+            }
+            final CRC32 crc = new CRC32();
+            while (true) {
+                final int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    return true;
                 }
-            } catch (Throwable t) {
-                Slog.wtf(LOG_TAG, "Failed to write settings, restoring backup", t);
-                destination.failWrite(out);
-            } finally {
-                IoUtils.closeQuietly(out);
+                final long checksum = in.readLong();
+                if (length <= 0) {
+                    throw new IOException("Invalid record length " + length);
+                }
+                final byte[] bytes = new byte[length];
+                in.readFully(bytes);
+                crc.reset();
+                crc.update(bytes);
+                if (crc.getValue() != checksum) {
+                    throw new IOException("Invalid record checksum");
+                }
+                applyJournalRecordLocked(new DataInputStream(
+                        new ByteArrayInputStream(bytes)));
+                mJournalEntryCount++;
             }
+        } catch (IOException | NumberFormatException e) {
+            // Most likely a torn append; everything before it was applied.
+            Slog.w(LOG_TAG, "Truncated settings journal " + mJournalFile, e);
+            return false;
+        } finally {
+            IoUtils.closeQuietly(in);
         }
+    }
 
-        if (wroteState) {
-            synchronized (mLock) {
-                addHistoricalOperationLocked(HISTORICAL_OPERATION_PERSIST, null);
+    private void applyJournalRecordLocked(DataInputStream record) throws IOException {
+        final int op = record.readByte();
+        switch (op) {
+            case JOURNAL_OP_PUT: {
+                final String name = readJournalString(record);
+                final String value = readJournalString(record);
+                final String defaultValue = readJournalString(record);
+                final String packageName = readJournalString(record);
+                final String tag = readJournalString(record);
+                final boolean fromSystem = record.readBoolean();
+                final String id = readJournalString(record);
+                mSettings.put(name, new Setting(name, value, defaultValue, packageName, tag,
+                        fromSystem, id));
+                if (DEBUG_PERSISTENCE) {
+                    Slog.i(LOG_TAG, "[REPLAYED] " + name + "=" + value);
+                }
+            } break;
+            case JOURNAL_OP_DELETE: {
+                mSettings.remove(readJournalString(record));
+            } break;
+            default:
+                throw new IOException("Unknown journal operation " + op);
+        }
+    }
+
+    public void dumpPersistenceStats(PrintWriter pw) {
+        synchronized (mLock) {
+            pw.println("Persistence");
+            pw.print("  journal="); pw.print(mJournalEnabled);
+            pw.print(" entries="); pw.print(mJournalEntryCount);
+            pw.print(" generation="); pw.println(mJournalGeneration);
+            pw.print("  mutations="); pw.println(mMutationCount);
+            pw.print("  fullWrites="); pw.print(mFullWriteCount);
+            pw.print(" bytes="); pw.println(mFullWriteBytes);
+            pw.print("  journalWrites="); pw.print(mJournalWriteCount);
+            pw.print(" bytes="); pw.println(mJournalWriteBytes);
+            if (mMutationCount > 0) {
+                pw.print("  bytesPerMutation=");
+                pw.println((mFullWriteBytes + mJournalWriteBytes) / mMutationCount);
             }
+            pw.println();
         }
     }
 
@@ -713,8 +1071,7 @@ final class SettingsState {
             return;
         }
         try {
-            XmlPullParser parser = Xml.newPullParser();
-            parser.setInput(in, StandardCharsets.UTF_8.name());
+            XmlPullParser parser = XmlUtils.resolvePullParser(in);
             parseStateLocked(parser);
         } catch (XmlPullParserException | IOException e) {
             String message = "Failed parsing settings file: " + mStatePersistFile;
@@ -723,6 +1080,10 @@ final class SettingsState {
         } finally {
             IoUtils.closeQuietly(in);
         }
+
+        // Keep appending to the journal only if it fully applied to the state we just read,
+        // otherwise compact on the next write.
+        mFullWriteNeeded = !readJournalLocked();
     }
 
     /**
@@ -756,6 +1117,7 @@ final class SettingsState {
             throws IOException, XmlPullParserException {
 
         mVersion = Integer.parseInt(parser.getAttributeValue(null, ATTR_VERSION));
+        mJournalGeneration = XmlUtils.readLongAttribute(parser, ATTR_JOURNAL_GENERATION, 0);
 
         final int outerDepth = parser.getDepth();
         int type;
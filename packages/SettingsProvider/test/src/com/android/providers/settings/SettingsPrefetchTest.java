@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.settings;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+import android.content.ContentResolver;
+import android.provider.Settings;
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Tests for prefetching settings into the client side cache of {@link Settings}.
+ */
+public class SettingsPrefetchTest extends BaseSettingsProviderTest {
+    private static final Pattern GLOBAL_CACHE_STATS = Pattern.compile(
+            "global: hits=(\\d+) misses=(\\d+) prefetches=(\\d+) cached=(\\d+)");
+
+    private static final int HITS = 0;
+    private static final int MISSES = 1;
+    private static final int PREFETCHES = 2;
+
+    @Test
+    public void testPrefetchFillsCache() throws Exception {
+        final ContentResolver resolver = getContext().getContentResolver();
+        try {
+            putSetting(SETTING_TYPE_GLOBAL, FAKE_SETTING_NAME, FAKE_SETTING_VALUE);
+            putSetting(SETTING_TYPE_GLOBAL, FAKE_SETTING_NAME_1, FAKE_SETTING_VALUE_1);
+
+            final long[] before = getGlobalCacheStats();
+            Settings.Global.prefetchStrings(resolver, FAKE_SETTING_NAME, FAKE_SETTING_NAME_1);
+            final long[] prefetched = getGlobalCacheStats();
+            assertEquals(before[PREFETCHES] + 1, prefetched[PREFETCHES]);
+
+            // Both values are now served from the cache.
+            assertEquals(FAKE_SETTING_VALUE, Settings.Global.getString(resolver,
+                    FAKE_SETTING_NAME));
+            assertEquals(FAKE_SETTING_VALUE_1, Settings.Global.getString(resolver,
+                    FAKE_SETTING_NAME_1));
+            final long[] after = getGlobalCacheStats();
+            assertTrue(after[HITS] >= prefetched[HITS] + 2);
+
+            // Nothing is left to fetch, so prefetching again doesn't call the provider.
+            Settings.Global.prefetchStrings(resolver, FAKE_SETTING_NAME, FAKE_SETTING_NAME_1);
+            assertEquals(prefetched[PREFETCHES], getGlobalCacheStats()[PREFETCHES]);
+        } finally {
+            deleteStringViaProviderApi(SETTING_TYPE_GLOBAL, FAKE_SETTING_NAME);
+            deleteStringViaProviderApi(SETTING_TYPE_GLOBAL, FAKE_SETTING_NAME_1);
+        }
+    }
+
+    @Test
+    public void testPrefetchedValuesInvalidatedByWrite() throws Exception {
+        final ContentResolver resolver = getContext().getContentResolver();
+        try {
+            putSetting(SETTING_TYPE_GLOBAL, FAKE_SETTING_NAME, FAKE_SETTING_VALUE);
+            Settings.Global.prefetchStrings(resolver, FAKE_SETTING_NAME);
+            assertEquals(FAKE_SETTING_VALUE, Settings.Global.getString(resolver,
+                    FAKE_SETTING_NAME));
+
+            // Changing the table bumps its generation, which drops the prefetched value.
+            putSetting(SETTING_TYPE_GLOBAL, FAKE_SETTING_NAME, FAKE_SETTING_VALUE_1);
+            final long[] before = getGlobalCacheStats();
+            assertEquals(FAKE_SETTING_VALUE_1, Settings.Global.getString(resolver,
+                    FAKE_SETTING_NAME));
+            final long[] after = getGlobalCacheStats();
+            assertTrue(after[MISSES] >= before[MISSES] + 1);
+        } finally {
+            deleteStringViaProviderApi(SETTING_TYPE_GLOBAL, FAKE_SETTING_NAME);
+        }
+    }
+
+    @Test
+    public void testMissesCounted() throws Exception {
+        final ContentResolver resolver = getContext().getContentResolver();
+        try {
+            putSetting(SETTING_TYPE_GLOBAL, FAKE_SETTING_NAME_2, FAKE_SETTING_VALUE);
+            final long[] before = getGlobalCacheStats();
+            // The write invalidated the cache, so the first read goes to the provider and the
+            // second one is served from the cache.
+            assertEquals(FAKE_SETTING_VALUE, Settings.Global.getString(resolver,
+                    FAKE_SETTING_NAME_2));
+            assertEquals(FAKE_SETTING_VALUE, Settings.Global.getString(resolver,
+                    FAKE_SETTING_NAME_2));
+            final long[] after = getGlobalCacheStats();
+            assertTrue(after[MISSES] >= before[MISSES] + 1);
+            assertTrue(after[HITS] >= before[HITS] + 1);
+            assertEquals(before[PREFETCHES], after[PREFETCHES]);
+        } finally {
+            deleteStringViaProviderApi(SETTING_TYPE_GLOBAL, FAKE_SETTING_NAME_2);
+        }
+    }
+
+    private static long[] getGlobalCacheStats() {
+        final StringWriter sw = new StringWriter();
+        final PrintWriter pw = new PrintWriter(sw);
+        Settings.dumpCacheStats(pw);
+        pw.flush();
+        final Matcher matcher = GLOBAL_CACHE_STATS.matcher(sw.toString());
+        if (!matcher.find()) {
+            fail("No global cache stats in: " + sw);
+        }
+        return new long[] {
+                Long.parseLong(matcher.group(1)),
+                Long.parseLong(matcher.group(2)),
+                Long.parseLong(matcher.group(3)),
+        };
+    }
+}
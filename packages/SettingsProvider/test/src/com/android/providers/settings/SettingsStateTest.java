@@ -25,7 +25,9 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.PrintStream;
+import java.io.RandomAccessFile;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 
 public class SettingsStateTest extends AndroidTestCase {
     public static final String CRAZY_STRING =
@@ -182,4 +184,152 @@ public class SettingsStateTest extends AndroidTestCase {
             assertEquals("p2", s.getPackageName());
         }
     }
+
+    private SettingsState newJournaledState(Object lock, File file) {
+        return new SettingsState(getContext(), lock, file, 1,
+                SettingsState.MAX_BYTES_PER_APP_PACKAGE_UNLIMITED, Looper.getMainLooper(),
+                true /* journalEnabled */);
+    }
+
+    private static void insertAndPersist(Object lock, SettingsState ss, String name,
+            String value) {
+        synchronized (lock) {
+            ss.insertSettingLocked(name, value, null, false, "p");
+            ss.persistSyncLocked();
+        }
+    }
+
+    /**
+     * Make sure settings changed after the full state was written are appended to the journal
+     * and applied on top of the state when read.
+     */
+    public void testJournalReplay() {
+        final File file = new File(getContext().getCacheDir(), "setting.xml");
+        final File journal = new File(file.getPath() + SettingsState.JOURNAL_FILE_SUFFIX);
+        file.delete();
+        journal.delete();
+        final Object lock = new Object();
+
+        final SettingsState ssWriter = newJournaledState(lock, file);
+        synchronized (lock) {
+            ssWriter.setVersionLocked(SettingsState.SETTINGS_VERSION_NEW_ENCODING);
+            ssWriter.insertSettingLocked("k1", "v1", null, false, "p");
+            ssWriter.insertSettingLocked("k2", "v2", null, false, "p");
+            ssWriter.persistSyncLocked();
+        }
+        assertFalse(journal.exists());
+
+        insertAndPersist(lock, ssWriter, "k1", CRAZY_STRING);
+        insertAndPersist(lock, ssWriter, "k3", null);
+        synchronized (lock) {
+            ssWriter.deleteSettingLocked("k2");
+            ssWriter.persistSyncLocked();
+        }
+        assertTrue(journal.exists());
+
+        final SettingsState ssReader = newJournaledState(lock, file);
+        synchronized (lock) {
+            assertEquals(CRAZY_STRING, ssReader.getSettingLocked("k1").getValue());
+            assertTrue(ssReader.getSettingLocked("k2").isNull());
+            assertFalse(ssReader.getSettingLocked("k3").isNull());
+            assertEquals(null, ssReader.getSettingLocked("k3").getValue());
+        }
+    }
+
+    /**
+     * Make sure the full state is rewritten and the journal dropped once the journal holds
+     * more entries than the table.
+     */
+    public void testJournalCompaction() {
+        final File file = new File(getContext().getCacheDir(), "setting.xml");
+        final File journal = new File(file.getPath() + SettingsState.JOURNAL_FILE_SUFFIX);
+        file.delete();
+        journal.delete();
+        final Object lock = new Object();
+
+        final SettingsState ss = newJournaledState(lock, file);
+        synchronized (lock) {
+            ss.setVersionLocked(SettingsState.SETTINGS_VERSION_NEW_ENCODING);
+        }
+        insertAndPersist(lock, ss, "k", "v");
+        for (int i = 1; i < SettingsState.MIN_JOURNAL_ENTRIES_BEFORE_COMPACTION; i++) {
+            insertAndPersist(lock, ss, "k", "v" + i);
+            assertTrue(journal.exists());
+        }
+        insertAndPersist(lock, ss, "k", "last");
+        assertFalse(journal.exists());
+
+        final SettingsState ssReader = newJournaledState(lock, file);
+        synchronized (lock) {
+            assertEquals("last", ssReader.getSettingLocked("k").getValue());
+        }
+    }
+
+    /**
+     * Make sure the records before a torn append are applied, and that the next write
+     * rewrites the full state instead of appending after the torn record.
+     */
+    public void testJournalTornRecord() throws Exception {
+        final File file = new File(getContext().getCacheDir(), "setting.xml");
+        final File journal = new File(file.getPath() + SettingsState.JOURNAL_FILE_SUFFIX);
+        file.delete();
+        journal.delete();
+        final Object lock = new Object();
+
+        final SettingsState ssWriter = newJournaledState(lock, file);
+        synchronized (lock) {
+            ssWriter.setVersionLocked(SettingsState.SETTINGS_VERSION_NEW_ENCODING);
+        }
+        insertAndPersist(lock, ssWriter, "k1", "v1");
+        insertAndPersist(lock, ssWriter, "k1", "v2");
+        final long intactLength = journal.length();
+        insertAndPersist(lock, ssWriter, "k1", "v3");
+
+        // Cut the last record in half, as a crash in the middle of the append would.
+        final long tornLength = (intactLength + journal.length()) / 2;
+        try (RandomAccessFile raf = new RandomAccessFile(journal, "rw")) {
+            raf.setLength(tornLength);
+        }
+
+        final SettingsState ssReader = newJournaledState(lock, file);
+        synchronized (lock) {
+            assertEquals("v2", ssReader.getSettingLocked("k1").getValue());
+        }
+        insertAndPersist(lock, ssReader, "k2", "v");
+        assertFalse(journal.exists());
+    }
+
+    /**
+     * Make sure a journal left behind by a crash right after a full write is not applied on
+     * top of the newer state.
+     */
+    public void testStaleJournalIgnored() throws Exception {
+        final File file = new File(getContext().getCacheDir(), "setting.xml");
+        final File journal = new File(file.getPath() + SettingsState.JOURNAL_FILE_SUFFIX);
+        file.delete();
+        journal.delete();
+        final Object lock = new Object();
+
+        final SettingsState ss = newJournaledState(lock, file);
+        synchronized (lock) {
+            ss.setVersionLocked(SettingsState.SETTINGS_VERSION_NEW_ENCODING);
+        }
+        insertAndPersist(lock, ss, "k1", "v1");
+        insertAndPersist(lock, ss, "k1", "old");
+        final byte[] staleJournal = Files.readAllBytes(journal.toPath());
+
+        synchronized (lock) {
+            // Changing the version rewrites the full state.
+            ss.setVersionLocked(SettingsState.SETTINGS_VERSION_NEW_ENCODING + 1);
+            ss.insertSettingLocked("k1", "new", null, false, "p");
+            ss.persistSyncLocked();
+        }
+        assertFalse(journal.exists());
+        Files.write(journal.toPath(), staleJournal);
+
+        final SettingsState ssReader = newJournaledState(lock, file);
+        synchronized (lock) {
+            assertEquals("new", ssReader.getSettingLocked("k1").getValue());
+        }
+    }
 }
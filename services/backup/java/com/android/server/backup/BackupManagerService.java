@@ -127,6 +127,7 @@ import com.android.server.FgThread;
 import com.android.server.SystemConfig;
 import com.android.server.SystemService;
 import com.android.server.backup.PackageManagerBackupAgent.Metadata;
+import com.android.server.backup.utils.PipelinedBackupOutputStream;
 import com.android.server.power.BatterySaverPolicy.ServiceType;
 
 import libcore.io.IoUtils;
@@ -177,8 +178,6 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.zip.Deflater;
-import java.util.zip.DeflaterOutputStream;
 import java.util.zip.InflaterInputStream;
 
 import javax.crypto.BadPaddingException;
@@ -356,6 +355,7 @@ public class BackupManagerService implements BackupManagerServiceInterface {
     volatile boolean mBackupRunning;
     volatile boolean mConnecting;
     volatile long mLastBackupPass;
+    volatile PipelinedBackupOutputStream.Stats mLastAdbBackupStats;
 
     // For debugging, we maintain a progress trace of operations during backup
     static final boolean DEBUG_BACKUP_TRACE = true;
@@ -4176,7 +4176,6 @@ public class BackupManagerService implements BackupManagerServiceInterface {
         final AtomicBoolean mLatch;
 
         ParcelFileDescriptor mOutputFile;
-        DeflaterOutputStream mDeflater;
         boolean mIncludeApks;
         boolean mIncludeObbs;
         boolean mIncludeShared;
@@ -4404,6 +4403,7 @@ public class BackupManagerService implements BackupManagerServiceInterface {
                     new ArrayList<PackageInfo>(packagesToBackup.values());
             FileOutputStream ofstream = new FileOutputStream(mOutputFile.getFileDescriptor());
             OutputStream out = null;
+            PipelinedBackupOutputStream pipeline = null;
 
             PackageInfo pkg = null;
             try {
@@ -4466,13 +4466,10 @@ public class BackupManagerService implements BackupManagerServiceInterface {
                     byte[] header = headerbuf.toString().getBytes("UTF-8");
                     ofstream.write(header);
 
-                    // Set up the compression stage feeding into the encryption stage (if any)
-                    if (mCompress) {
-                        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
-                        finalOutput = new DeflaterOutputStream(finalOutput, deflater, true);
-                    }
-
-                    out = finalOutput;
+                    // Set up the compression stage feeding into the encryption stage (if any).
+                    // Both run on their own threads, while this one reads from the agents.
+                    pipeline = new PipelinedBackupOutputStream(finalOutput, mCompress);
+                    out = pipeline;
                 } catch (Exception e) {
                     // Should never happen!
                     Slog.e(TAG, "Unable to emit archive header", e);
@@ -4540,14 +4537,19 @@ public class BackupManagerService implements BackupManagerServiceInterface {
                 Slog.e(TAG, "Internal exception during full backup", e);
             } finally {
                 try {
+                    // Closing the pipeline flushes it and stops its threads, even after a failure.
                     if (out != null) {
-                        out.flush();
                         out.close();
                     }
                     mOutputFile.close();
                 } catch (IOException e) {
                     Slog.e(TAG, "IO error closing adb backup file: " + e.getMessage());
                 }
+                if (pipeline != null) {
+                    final PipelinedBackupOutputStream.Stats stats = pipeline.getStats();
+                    Slog.i(TAG, "Adb backup stream: " + stats);
+                    mLastAdbBackupStats = stats;
+                }
                 synchronized (mLatch) {
                     mLatch.set(true);
                     mLatch.notifyAll();
@@ -11291,6 +11293,9 @@ if (MORE_DEBUG) Slog.v(TAG, "   + got " + nRead + "; now wanting " + (size - soF
             pw.println("Last backup pass started: " + mLastBackupPass
                     + " (now = " + System.currentTimeMillis() + ')');
             pw.println("  next scheduled: " + KeyValueBackupJob.nextScheduled());
+            if (mLastAdbBackupStats != null) {
+                pw.println("Last adb backup stream: " + mLastAdbBackupStats);
+            }
 
             pw.println("Transport whitelist:");
             for (ComponentName transport : mTransportManager.getTransportWhitelist()) {
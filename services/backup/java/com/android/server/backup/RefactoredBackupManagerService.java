@@ -118,6 +118,7 @@ import com.android.server.backup.restore.PerformUnifiedRestoreTask;
 import com.android.server.backup.utils.AppBackupUtils;
 import com.android.server.backup.utils.BackupManagerMonitorUtils;
 import com.android.server.backup.utils.BackupObserverUtils;
+import com.android.server.backup.utils.PipelinedBackupOutputStream;
 import com.android.server.backup.utils.SparseArrayUtils;
 import com.android.server.power.BatterySaverPolicy.ServiceType;
 
@@ -268,6 +269,7 @@ public class RefactoredBackupManagerService implements BackupManagerServiceInter
     private volatile boolean mBackupRunning;
     private volatile boolean mConnecting;
     private volatile long mLastBackupPass;
+    private volatile PipelinedBackupOutputStream.Stats mLastAdbBackupStats;
 
     // For debugging, we maintain a progress trace of operations during backup
     public static final boolean DEBUG_BACKUP_TRACE = true;
@@ -417,6 +419,10 @@ public class RefactoredBackupManagerService implements BackupManagerServiceInter
         mLastBackupPass = lastBackupPass;
     }
 
+    public void setLastAdbBackupStats(PipelinedBackupOutputStream.Stats stats) {
+        mLastAdbBackupStats = stats;
+    }
+
     public Object getClearDataLock() {
         return mClearDataLock;
     }
@@ -3327,6 +3333,9 @@ public class RefactoredBackupManagerService implements BackupManagerServiceInter
             pw.println("Last backup pass started: " + mLastBackupPass
                     + " (now = " + System.currentTimeMillis() + ')');
             pw.println("  next scheduled: " + KeyValueBackupJob.nextScheduled());
+            if (mLastAdbBackupStats != null) {
+                pw.println("Last adb backup stream: " + mLastAdbBackupStats);
+            }
 
             pw.println("Transport whitelist:");
             for (ComponentName transport : mTransportManager.getTransportWhitelist()) {
@@ -40,6 +40,7 @@ import com.android.server.backup.KeyValueAdbBackupEngine;
 import com.android.server.backup.RefactoredBackupManagerService;
 import com.android.server.backup.utils.AppBackupUtils;
 import com.android.server.backup.utils.PasswordUtils;
+import com.android.server.backup.utils.PipelinedBackupOutputStream;
 
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
@@ -53,8 +54,6 @@ import java.util.List;
 import java.util.Map.Entry;
 import java.util.TreeMap;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.zip.Deflater;
-import java.util.zip.DeflaterOutputStream;
 
 import javax.crypto.Cipher;
 import javax.crypto.CipherOutputStream;
@@ -71,7 +70,6 @@ public class PerformAdbBackupTask extends FullBackupTask implements BackupRestor
     final AtomicBoolean mLatch;
 
     ParcelFileDescriptor mOutputFile;
-    DeflaterOutputStream mDeflater;
     boolean mIncludeApks;
     boolean mIncludeObbs;
     boolean mIncludeShared;
@@ -310,6 +308,7 @@ public class PerformAdbBackupTask extends FullBackupTask implements BackupRestor
                 new ArrayList<>(packagesToBackup.values());
         FileOutputStream ofstream = new FileOutputStream(mOutputFile.getFileDescriptor());
         OutputStream out = null;
+        PipelinedBackupOutputStream pipeline = null;
 
         PackageInfo pkg = null;
         try {
@@ -374,13 +373,10 @@ public class PerformAdbBackupTask extends FullBackupTask implements BackupRestor
                 byte[] header = headerbuf.toString().getBytes("UTF-8");
                 ofstream.write(header);
 
-                // Set up the compression stage feeding into the encryption stage (if any)
-                if (mCompress) {
-                    Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
-                    finalOutput = new DeflaterOutputStream(finalOutput, deflater, true);
-                }
-
-                out = finalOutput;
+                // Set up the compression stage feeding into the encryption stage (if any).
+                // Both run on their own threads, while this one reads from the agents.
+                pipeline = new PipelinedBackupOutputStream(finalOutput, mCompress);
+                out = pipeline;
             } catch (Exception e) {
                 // Should never happen!
                 Slog.e(TAG, "Unable to emit archive header", e);
@@ -453,14 +449,19 @@ public class PerformAdbBackupTask extends FullBackupTask implements BackupRestor
             Slog.e(TAG, "Internal exception during full backup", e);
         } finally {
             try {
+                // Closing the pipeline flushes it and stops its threads, even after a failure.
                 if (out != null) {
-                    out.flush();
                     out.close();
                 }
                 mOutputFile.close();
             } catch (IOException e) {
                 Slog.e(TAG, "IO error closing adb backup file: " + e.getMessage());
             }
+            if (pipeline != null) {
+                final PipelinedBackupOutputStream.Stats stats = pipeline.getStats();
+                Slog.i(TAG, "Adb backup stream: " + stats);
+                backupManagerService.setLastAdbBackupStats(stats);
+            }
             synchronized (mLatch) {
                 mLatch.set(true);
                 mLatch.notifyAll();
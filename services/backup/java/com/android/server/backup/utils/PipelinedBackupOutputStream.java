@@ -0,0 +1,402 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.backup.utils;
+
+import android.os.SystemClock;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Adler32;
+import java.util.zip.Deflater;
+
+/**
+ * Output stream that splits a backup archive into blocks and moves them through separate
+ * stages: the writing thread only fills blocks, a pool of threads compresses them, and a writer
+ * thread passes them in order to the sink, which encrypts and writes them out. The stages are
+ * connected by a bounded queue, so a slow stage holds back the others rather than buffering the
+ * whole archive.
+ *
+ * <p>When compressing, the blocks are deflated in parallel, each with the end of the previous
+ * block as its dictionary, and sync-flushed so that they join into the same zlib stream that a
+ * {@link java.util.zip.DeflaterOutputStream} at {@link Deflater#BEST_COMPRESSION} would write.
+ * Restoring the archive is unchanged.
+ *
+ * <p>Not thread safe: a single thread writes to the stream. {@link #close} must be called,
+ * even after a failure, to stop the threads of the stream.
+ */
+public class PipelinedBackupOutputStream extends OutputStream {
+    static final int BLOCK_SIZE = 128 * 1024;
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+    private static final int MAX_COMPRESSION_THREADS = 4;
+
+    // zlib header for the default window size at the best compression level, without dictionary.
+    private static final byte[] ZLIB_HEADER = { 0x78, (byte) 0xda };
+
+    /** Bytes and time spent by each stage of a stream. */
+    public static final class Stats {
+        /** Bytes written to the stream. */
+        public long bytesIn;
+        /** Bytes passed to the sink. */
+        public long bytesOut;
+        public int blocks;
+        /** Time the writing thread waited for the other stages. */
+        public long stalledNanos;
+        /** Time spent compressing, over all the compression threads. */
+        public long compressNanos;
+        /** Time spent in the sink, encrypting and writing. */
+        public long writeNanos;
+        /** Time from the creation to the close of the stream. */
+        public long elapsedNanos;
+
+        @Override
+        public String toString() {
+            return "in=" + bytesIn + " out=" + bytesOut + " blocks=" + blocks
+                    + " elapsed=" + elapsedNanos / 1000000 + "ms"
+                    + " (" + throughput(bytesIn, elapsedNanos) + ")"
+                    + " stalled=" + stalledNanos / 1000000 + "ms"
+                    + " compress=" + compressNanos / 1000000 + "ms"
+                    + " (" + throughput(bytesIn, compressNanos) + ")"
+                    + " write=" + writeNanos / 1000000 + "ms"
+                    + " (" + throughput(bytesOut, writeNanos) + ")";
+        }
+
+        private static String throughput(long bytes, long nanos) {
+            if (nanos <= 0) {
+                return "-";
+            }
+            return (bytes * 1000 / nanos) + "MB/s";
+        }
+    }
+
+    /** A block on its way to the writer thread. */
+    private static final class Chunk {
+        final FutureTask<Chunk> task;
+        final CountDownLatch flushed;
+        byte[] bytes;
+        int length;
+
+        Chunk(byte[] bytes, int length) {
+            this.task = null;
+            this.flushed = null;
+            this.bytes = bytes;
+            this.length = length;
+        }
+
+        Chunk(FutureTask<Chunk> task) {
+            this.task = task;
+            this.flushed = null;
+        }
+
+        Chunk(CountDownLatch flushed) {
+            this.task = null;
+            this.flushed = flushed;
+        }
+    }
+
+    private static final Chunk END = new Chunk(null, 0);
+
+    private final OutputStream mSink;
+    private final boolean mCompress;
+    private final ExecutorService mCompressor;
+    private final ArrayBlockingQueue<Chunk> mQueue;
+    private final Thread mWriter;
+    private final Adler32 mChecksum = new Adler32();
+    private final long mStartNanos = SystemClock.elapsedRealtimeNanos();
+
+    private byte[] mBlock = new byte[BLOCK_SIZE];
+    private int mBlockLength;
+    private byte[] mPreviousBlock;
+    private int mPreviousLength;
+    private boolean mClosed;
+    private final Stats mStats = new Stats();
+
+    // Updated by the other stages.
+    private final AtomicLong mCompressNanos = new AtomicLong();
+    private volatile long mBytesOut;
+    private volatile long mWriteNanos;
+    private volatile IOException mFailure;
+
+    /**
+     * @param sink the stream to write the blocks to, in order, from the writer thread; closed
+     *        with this stream
+     * @param compress whether to deflate the data
+     */
+    public PipelinedBackupOutputStream(OutputStream sink, boolean compress) {
+        this(sink, compress, Math.max(1, Math.min(MAX_COMPRESSION_THREADS,
+                Runtime.getRuntime().availableProcessors() - 1)));
+    }
+
+    PipelinedBackupOutputStream(OutputStream sink, boolean compress, int compressionThreads) {
+        mSink = sink;
+        mCompress = compress;
+        final AtomicInteger threadCount = new AtomicInteger();
+        mCompressor = compress ? Executors.newFixedThreadPool(compressionThreads,
+                r -> new Thread(r, "backup-compress-" + threadCount.incrementAndGet())) : null;
+        mQueue = new ArrayBlockingQueue<>(2 * compressionThreads + 1);
+        mWriter = new Thread(this::writeChunks, "backup-writer");
+        mWriter.start();
+        if (compress) {
+            enqueue(new Chunk(ZLIB_HEADER, ZLIB_HEADER.length));
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        checkOpen();
+        while (len > 0) {
+            final int count = Math.min(len, BLOCK_SIZE - mBlockLength);
+            System.arraycopy(b, off, mBlock, mBlockLength, count);
+            mBlockLength += count;
+            off += count;
+            len -= count;
+            if (mBlockLength == BLOCK_SIZE) {
+                submitBlock(false);
+            }
+        }
+    }
+
+    /** Passes the data written so far to the sink, and flushes it. */
+    @Override
+    public void flush() throws IOException {
+        checkOpen();
+        if (mBlockLength > 0) {
+            submitBlock(false);
+        }
+        final CountDownLatch flushed = new CountDownLatch(1);
+        enqueue(new Chunk(flushed));
+        final long start = SystemClock.elapsedRealtimeNanos();
+        try {
+            flushed.await();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        } finally {
+            mStats.stalledNanos += SystemClock.elapsedRealtimeNanos() - start;
+        }
+        checkFailure();
+    }
+
+    /** Finishes the stream, waits for the other stages, and closes the sink. */
+    @Override
+    public void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        try {
+            if (mFailure == null) {
+                if (mCompress || mBlockLength > 0) {
+                    submitBlock(true);
+                }
+                if (mCompress) {
+                    final long adler = mChecksum.getValue();
+                    enqueue(new Chunk(new byte[] {
+                            (byte) (adler >>> 24), (byte) (adler >>> 16),
+                            (byte) (adler >>> 8), (byte) adler }, 4));
+                }
+            }
+        } finally {
+            // The writer drains the queue even after a failure, so this can't block forever.
+            enqueueUninterruptibly(END);
+            boolean interrupted = false;
+            while (mWriter.isAlive()) {
+                try {
+                    mWriter.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (mCompressor != null) {
+                mCompressor.shutdown();
+            }
+            mStats.elapsedNanos = SystemClock.elapsedRealtimeNanos() - mStartNanos;
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            mSink.close();
+        }
+        checkFailure();
+    }
+
+    /** Returns the bytes and time spent by each stage so far. */
+    public Stats getStats() {
+        final Stats stats = new Stats();
+        stats.bytesIn = mStats.bytesIn;
+        stats.bytesOut = mBytesOut;
+        stats.blocks = mStats.blocks;
+        stats.stalledNanos = mStats.stalledNanos;
+        stats.compressNanos = mCompressNanos.get();
+        stats.writeNanos = mWriteNanos;
+        stats.elapsedNanos = mClosed ? mStats.elapsedNanos
+                : SystemClock.elapsedRealtimeNanos() - mStartNanos;
+        return stats;
+    }
+
+    private void submitBlock(boolean last) {
+        final byte[] block = mBlock;
+        final int length = mBlockLength;
+        mStats.bytesIn += length;
+        mStats.blocks++;
+        final Chunk chunk;
+        if (mCompress) {
+            mChecksum.update(block, 0, length);
+            final byte[] dictionary = mPreviousBlock;
+            final int dictionaryLength = Math.min(mPreviousLength, DICTIONARY_SIZE);
+            final int dictionaryOffset = mPreviousLength - dictionaryLength;
+            final FutureTask<Chunk> task = new FutureTask<>(() -> deflate(block, length,
+                    dictionary, dictionaryOffset, dictionaryLength, last));
+            chunk = new Chunk(task);
+            mCompressor.execute(task);
+        } else {
+            chunk = new Chunk(block, length);
+        }
+        enqueue(chunk);
+
+        // The queued block may still be read by its compression task, so don't reuse it.
+        mPreviousBlock = block;
+        mPreviousLength = length;
+        mBlock = new byte[BLOCK_SIZE];
+        mBlockLength = 0;
+    }
+
+    private Chunk deflate(byte[] block, int length, byte[] dictionary, int dictionaryOffset,
+            int dictionaryLength, boolean last) {
+        final long start = SystemClock.elapsedRealtimeNanos();
+        final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        try {
+            if (dictionaryLength > 0) {
+                // Copied, as some versions of Deflater ignore the offset of the dictionary.
+                deflater.setDictionary(Arrays.copyOfRange(dictionary, dictionaryOffset,
+                        dictionaryOffset + dictionaryLength));
+            }
+            deflater.setInput(block, 0, length);
+            if (last) {
+                deflater.finish();
+            }
+            byte[] out = new byte[length / 2 + 64];
+            int count = 0;
+            while (true) {
+                if (count == out.length) {
+                    out = Arrays.copyOf(out, out.length * 2);
+                }
+                // Sync flushes end each block on a byte boundary, so the blocks can be joined.
+                count += deflater.deflate(out, count, out.length - count,
+                        last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+                if (last ? deflater.finished() : count < out.length) {
+                    break;
+                }
+            }
+            return new Chunk(out, count);
+        } finally {
+            deflater.end();
+            mCompressNanos.addAndGet(SystemClock.elapsedRealtimeNanos() - start);
+        }
+    }
+
+    private void enqueue(Chunk chunk) {
+        final long start = SystemClock.elapsedRealtimeNanos();
+        enqueueUninterruptibly(chunk);
+        mStats.stalledNanos += SystemClock.elapsedRealtimeNanos() - start;
+    }
+
+    private void enqueueUninterruptibly(Chunk chunk) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                mQueue.put(chunk);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Body of the writer thread. */
+    private void writeChunks() {
+        while (true) {
+            final Chunk chunk;
+            try {
+                chunk = mQueue.take();
+            } catch (InterruptedException e) {
+                continue;
+            }
+            if (chunk == END) {
+                return;
+            }
+            if (chunk.flushed != null) {
+                if (mFailure == null) {
+                    try {
+                        mSink.flush();
+                    } catch (IOException e) {
+                        mFailure = e;
+                    }
+                }
+                chunk.flushed.countDown();
+                continue;
+            }
+            if (mFailure != null) {
+                // Keep draining the queue, so that the writing thread doesn't block on it.
+                if (chunk.task != null) {
+                    chunk.task.cancel(false);
+                }
+                continue;
+            }
+            try {
+                final Chunk data = chunk.task != null ? chunk.task.get() : chunk;
+                final long start = SystemClock.elapsedRealtimeNanos();
+                mSink.write(data.bytes, 0, data.length);
+                mWriteNanos += SystemClock.elapsedRealtimeNanos() - start;
+                mBytesOut += data.length;
+            } catch (IOException e) {
+                mFailure = e;
+            } catch (ExecutionException | InterruptedException e) {
+                mFailure = new IOException("Unable to compress backup data", e);
+            }
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (mClosed) {
+            throw new IOException("Stream closed");
+        }
+        checkFailure();
+    }
+
+    private void checkFailure() throws IOException {
+        final IOException failure = mFailure;
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
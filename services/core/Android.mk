@@ -55,6 +55,8 @@ LOCAL_JAR_PROCESSOR_ARGS = \
   "com/android/server/am/ActivityManagerService.boostPriorityForLockedSection,com/android/server/wm/WindowManagerService.boostPriorityForLockedSection" \
  --post \
   "com/android/server/am/ActivityManagerService.resetPriorityAfterLockedSection,com/android/server/wm/WindowManagerService.resetPriorityAfterLockedSection" \
+ --pre-acquire \
+  "com/android/server/am/ActivityManagerService.noteAcquiringLockedSection,com/android/server/wm/WindowManagerService.noteAcquiringLockedSection" \
  -o ${out} \
  -i ${in}
 
@@ -50,14 +50,12 @@ import android.util.Slog;
 import android.util.SparseArray;
 import android.util.SparseIntArray;
 import android.util.TimeUtils;
-import android.util.Xml;
 
 import com.android.internal.app.IAppOpsCallback;
 import com.android.internal.app.IAppOpsService;
 import com.android.internal.os.Zygote;
 import com.android.internal.util.ArrayUtils;
 import com.android.internal.util.DumpUtils;
-import com.android.internal.util.FastXmlSerializer;
 import com.android.internal.util.Preconditions;
 import com.android.internal.util.XmlUtils;
 
@@ -74,7 +72,6 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -1417,8 +1414,7 @@ public class AppOpsService extends IAppOpsService.Stub {
                 boolean success = false;
                 mUidStates.clear();
                 try {
-                    XmlPullParser parser = Xml.newPullParser();
-                    parser.setInput(stream, StandardCharsets.UTF_8.name());
+                    XmlPullParser parser = XmlUtils.resolvePullParser(stream);
                     int type;
                     while ((type = parser.next()) != XmlPullParser.START_TAG
                             && type != XmlPullParser.END_DOCUMENT) {
@@ -1475,7 +1471,7 @@ public class AppOpsService extends IAppOpsService.Stub {
 
     void readUidOps(XmlPullParser parser) throws NumberFormatException,
             XmlPullParserException, IOException {
-        final int uid = Integer.parseInt(parser.getAttributeValue(null, "n"));
+        final int uid = XmlUtils.readIntAttribute(parser, "n");
         int outerDepth = parser.getDepth();
         int type;
         while ((type = parser.next()) != XmlPullParser.END_DOCUMENT
@@ -1486,8 +1482,8 @@ public class AppOpsService extends IAppOpsService.Stub {
 
             String tagName = parser.getName();
             if (tagName.equals("op")) {
-                final int code = Integer.parseInt(parser.getAttributeValue(null, "n"));
-                final int mode = Integer.parseInt(parser.getAttributeValue(null, "m"));
+                final int code = XmlUtils.readIntAttribute(parser, "n");
+                final int mode = XmlUtils.readIntAttribute(parser, "m");
                 UidState uidState = getUidStateLocked(uid, true);
                 if (uidState.opModes == null) {
                     uidState.opModes = new SparseIntArray();
@@ -1525,7 +1521,7 @@ public class AppOpsService extends IAppOpsService.Stub {
 
     void readUid(XmlPullParser parser, String pkgName) throws NumberFormatException,
             XmlPullParserException, IOException {
-        int uid = Integer.parseInt(parser.getAttributeValue(null, "n"));
+        int uid = XmlUtils.readIntAttribute(parser, "n");
         String isPrivilegedString = parser.getAttributeValue(null, "p");
         boolean isPrivileged = false;
         if (isPrivilegedString == null) {
@@ -1558,27 +1554,12 @@ public class AppOpsService extends IAppOpsService.Stub {
 
             String tagName = parser.getName();
             if (tagName.equals("op")) {
-                Op op = new Op(uid, pkgName, Integer.parseInt(parser.getAttributeValue(null, "n")));
-                String mode = parser.getAttributeValue(null, "m");
-                if (mode != null) {
-                    op.mode = Integer.parseInt(mode);
-                }
-                String time = parser.getAttributeValue(null, "t");
-                if (time != null) {
-                    op.time = Long.parseLong(time);
-                }
-                time = parser.getAttributeValue(null, "r");
-                if (time != null) {
-                    op.rejectTime = Long.parseLong(time);
-                }
-                String dur = parser.getAttributeValue(null, "d");
-                if (dur != null) {
-                    op.duration = Integer.parseInt(dur);
-                }
-                String proxyUid = parser.getAttributeValue(null, "pu");
-                if (proxyUid != null) {
-                    op.proxyUid = Integer.parseInt(proxyUid);
-                }
+                Op op = new Op(uid, pkgName, XmlUtils.readIntAttribute(parser, "n"));
+                op.mode = XmlUtils.readIntAttribute(parser, "m", op.mode);
+                op.time = XmlUtils.readLongAttribute(parser, "t", op.time);
+                op.rejectTime = XmlUtils.readLongAttribute(parser, "r", op.rejectTime);
+                op.duration = XmlUtils.readIntAttribute(parser, "d", op.duration);
+                op.proxyUid = XmlUtils.readIntAttribute(parser, "pu", op.proxyUid);
                 String proxyPackageName = parser.getAttributeValue(null, "pp");
                 if (proxyPackageName != null) {
                     op.proxyPackageName = proxyPackageName;
@@ -1616,8 +1597,7 @@ public class AppOpsService extends IAppOpsService.Stub {
             }
 
             try {
-                XmlSerializer out = new FastXmlSerializer();
-                out.setOutput(stream, StandardCharsets.UTF_8.name());
+                XmlSerializer out = XmlUtils.resolveSerializer(stream);
                 out.startDocument(null, true);
                 out.startTag(null, "app-ops");
 
@@ -1626,15 +1606,15 @@ public class AppOpsService extends IAppOpsService.Stub {
                     UidState uidState = mUidStates.valueAt(i);
                     if (uidState.opModes != null && uidState.opModes.size() > 0) {
                         out.startTag(null, "uid");
-                        out.attribute(null, "n", Integer.toString(uidState.uid));
+                        XmlUtils.writeIntAttribute(out, "n", uidState.uid);
                         SparseIntArray uidOpModes = uidState.opModes;
                         final int opCount = uidOpModes.size();
                         for (int j = 0; j < opCount; j++) {
                             final int op = uidOpModes.keyAt(j);
                             final int mode = uidOpModes.valueAt(j);
                             out.startTag(null, "op");
-                            out.attribute(null, "n", Integer.toString(op));
-                            out.attribute(null, "m", Integer.toString(mode));
+                            XmlUtils.writeIntAttribute(out, "n", op);
+                            XmlUtils.writeIntAttribute(out, "m", mode);
                             out.endTag(null, "op");
                         }
                         out.endTag(null, "uid");
@@ -1654,40 +1634,40 @@ public class AppOpsService extends IAppOpsService.Stub {
                             out.attribute(null, "n", lastPkg);
                         }
                         out.startTag(null, "uid");
-                        out.attribute(null, "n", Integer.toString(pkg.getUid()));
+                        XmlUtils.writeIntAttribute(out, "n", pkg.getUid());
                         synchronized (this) {
                             Ops ops = getOpsRawLocked(pkg.getUid(), pkg.getPackageName(), false);
                             // Should always be present as the list of PackageOps is generated
                             // from Ops.
                             if (ops != null) {
-                                out.attribute(null, "p", Boolean.toString(ops.isPrivileged));
+                                XmlUtils.writeBooleanAttribute(out, "p", ops.isPrivileged);
                             } else {
-                                out.attribute(null, "p", Boolean.toString(false));
+                                XmlUtils.writeBooleanAttribute(out, "p", false);
                             }
                         }
                         List<AppOpsManager.OpEntry> ops = pkg.getOps();
                         for (int j=0; j<ops.size(); j++) {
                             AppOpsManager.OpEntry op = ops.get(j);
                             out.startTag(null, "op");
-                            out.attribute(null, "n", Integer.toString(op.getOp()));
+                            XmlUtils.writeIntAttribute(out, "n", op.getOp());
                             if (op.getMode() != AppOpsManager.opToDefaultMode(op.getOp())) {
-                                out.attribute(null, "m", Integer.toString(op.getMode()));
+                                XmlUtils.writeIntAttribute(out, "m", op.getMode());
                             }
                             long time = op.getTime();
                             if (time != 0) {
-                                out.attribute(null, "t", Long.toString(time));
+                                XmlUtils.writeLongAttribute(out, "t", time);
                             }
                             time = op.getRejectTime();
                             if (time != 0) {
-                                out.attribute(null, "r", Long.toString(time));
+                                XmlUtils.writeLongAttribute(out, "r", time);
                             }
                             int dur = op.getDuration();
                             if (dur != 0) {
-                                out.attribute(null, "d", Integer.toString(dur));
+                                XmlUtils.writeIntAttribute(out, "d", dur);
                             }
                             int proxyUid = op.getProxyUid();
                             if (proxyUid != -1) {
-                                out.attribute(null, "pu", Integer.toString(proxyUid));
+                                XmlUtils.writeIntAttribute(out, "pu", proxyUid);
                             }
                             String proxyPackageName = op.getProxyPackageName();
                             if (proxyPackageName != null) {
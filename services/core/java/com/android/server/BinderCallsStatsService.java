@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server;
+
+import android.content.Context;
+import android.os.Binder;
+import android.os.SystemProperties;
+import android.util.proto.ProtoOutputStream;
+
+import com.android.internal.os.BinderCallsStats;
+import com.android.internal.util.DumpUtils;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+
+/**
+ * This service exists only as a "dumpsys" target which reports the incoming binder calls of
+ * the system process, by interface, transaction code and calling uid.
+ */
+public class BinderCallsStatsService extends Binder {
+    private static final String TAG = "BinderCallsStatsService";
+
+    // One call in this many is timed on each binder thread; 0 stops counting calls.
+    private static final String PROPERTY_SAMPLING_INTERVAL =
+            "persist.sys.binder_calls_sampling";
+
+    // Kinds of calls to dump, unless dumping all of them.
+    private static final int DUMP_ENTRIES = 50;
+
+    private final Context mContext;
+    private final BinderCallsStats mStats;
+
+    public BinderCallsStatsService(Context context) {
+        mContext = context;
+        mStats = BinderCallsStats.getInstance();
+        final int samplingInterval = SystemProperties.getInt(PROPERTY_SAMPLING_INTERVAL,
+                BinderCallsStats.DEFAULT_SAMPLING_INTERVAL);
+        if (samplingInterval > 0) {
+            mStats.setSamplingInterval(samplingInterval);
+            Binder.setCallsStats(mStats);
+        }
+    }
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        if (!DumpUtils.checkDumpAndUsageStatsPermission(mContext, TAG, pw)) return;
+
+        if (hasOption(args, "--reset")) {
+            mStats.reset();
+            pw.println("binder_calls_stats reset.");
+            return;
+        }
+        if (hasOption(args, "--proto")) {
+            final ProtoOutputStream proto = new ProtoOutputStream(fd);
+            mStats.writeToProto(proto);
+            proto.flush();
+            return;
+        }
+        mStats.dump(pw, hasOption(args, "-a") ? BinderCallsStats.MAX_ENTRIES + 1
+                : DUMP_ENTRIES);
+    }
+
+    private boolean hasOption(String[] args, String arg) {
+        for (String opt : args) {
+            if (arg.equals(opt)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
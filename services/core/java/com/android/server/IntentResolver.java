@@ -49,6 +49,17 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
     final private static boolean localLOGV = DEBUG || false;
     final private static boolean localVerificationLOGV = DEBUG || false;
 
+    public IntentResolver() {
+        // The package manager registers thousands of actions, types and schemes; let these
+        // maps switch to constant time lookups instead of binary searches once they grow.
+        mTypeToFilter.enableHashing();
+        mBaseTypeToFilter.enableHashing();
+        mWildTypeToFilter.enableHashing();
+        mSchemeToFilter.enableHashing();
+        mActionToFilter.enableHashing();
+        mTypedActionToFilter.enableHashing();
+    }
+
     public void addFilter(F f) {
         if (localLOGV) {
             Slog.v(TAG, "Adding filter: " + f);
@@ -37,6 +37,8 @@ import com.android.server.location.GnssLocationProvider;
 import com.android.server.location.GnssMeasurementsProvider;
 import com.android.server.location.GnssNavigationMessageProvider;
 import com.android.server.location.LocationBlacklist;
+import com.android.server.location.LocationDeliveryQueue;
+import com.android.server.location.LocationDeliveryQueue.Delivery;
 import com.android.server.location.LocationFudger;
 import com.android.server.location.LocationProviderInterface;
 import com.android.server.location.LocationProviderProxy;
@@ -158,6 +160,9 @@ public class LocationManagerService extends ILocationManager.Stub {
     // time
     private static final int MAX_PROVIDER_SCHEDULING_JITTER_MS = 100;
 
+    // Most callbacks queued for a receiver; beyond this the oldest locations are dropped
+    private static final int MAX_QUEUED_DELIVERIES = 16;
+
     private static final LocationRequest DEFAULT_LOCATION_REQUEST = new LocationRequest();
 
     private final Context mContext;
@@ -240,6 +245,16 @@ public class LocationManagerService extends ILocationManager.Stub {
     // current active user on the device - other users are denied location data
     private int mCurrentUserId = UserHandle.USER_SYSTEM;
     private int[] mCurrentUserProfiles = new int[] { UserHandle.USER_SYSTEM };
+    // incremented whenever mCurrentUserProfiles changes, so receivers know to recheck theirs
+    private int mUserProfilesGeneration;
+
+    private long mBackgroundThrottleIntervalMs = DEFAULT_BACKGROUND_THROTTLE_INTERVAL_MS;
+
+    // receivers with callbacks queued by handleLocationChangedLocked(), sent without mLock
+    private final ArrayList<Receiver> mReceiversToDispatch = new ArrayList<>();
+
+    // fan-out of locations to receivers, by provider
+    private final ArrayMap<String, DispatchStatistics> mDispatchStatistics = new ArrayMap<>();
 
     private GnssLocationProvider.GnssSystemInfoProvider mGnssSystemInfoProvider;
 
@@ -341,6 +356,7 @@ public class LocationManagerService extends ILocationManager.Stub {
             updateUserProfiles(mCurrentUserId);
 
             updateBackgroundThrottlingWhitelistLocked();
+            updateBackgroundThrottleIntervalLocked();
 
             // prepare providers
             loadProvidersLocked();
@@ -365,6 +381,7 @@ public class LocationManagerService extends ILocationManager.Stub {
                     @Override
                     public void onChange(boolean selfChange) {
                         synchronized (mLock) {
+                            updateBackgroundThrottleIntervalLocked();
                             updateProvidersLocked();
                         }
                     }
@@ -503,6 +520,7 @@ public class LocationManagerService extends ILocationManager.Stub {
         int[] profileIds = mUserManager.getProfileIdsWithDisabled(currentUserId);
         synchronized (mLock) {
             mCurrentUserProfiles = profileIds;
+            mUserProfilesGeneration++;
         }
     }
 
@@ -516,6 +534,32 @@ public class LocationManagerService extends ILocationManager.Stub {
         }
     }
 
+    /**
+     * Returns whether the receiver belongs to one of the current profiles, which it only checks
+     * again after the profiles change.
+     */
+    private boolean isReceiverInCurrentProfileLocked(Receiver receiver) {
+        if (receiver.mUserProfilesGeneration != mUserProfilesGeneration) {
+            receiver.mUserProfilesGeneration = mUserProfilesGeneration;
+            receiver.mInCurrentProfile = ArrayUtils.contains(mCurrentUserProfiles,
+                    UserHandle.getUserId(receiver.mIdentity.mUid));
+        }
+        return receiver.mInCurrentProfile;
+    }
+
+    /**
+     * Returns whether the receiver's package is blacklisted, which it only checks again after
+     * the blacklist changes.
+     */
+    private boolean isReceiverBlacklistedLocked(Receiver receiver) {
+        final int generation = mBlacklist.getGeneration();
+        if (receiver.mBlacklistGeneration != generation) {
+            receiver.mBlacklistGeneration = generation;
+            receiver.mBlacklisted = mBlacklist.isBlacklisted(receiver.mIdentity.mPackageName);
+        }
+        return receiver.mBlacklisted;
+    }
+
     private void ensureFallbackFusedProviderPresentLocked(ArrayList<String> pkgs) {
         PackageManager pm = mContext.getPackageManager();
         String systemPackageName = mContext.getPackageName();
@@ -806,6 +850,20 @@ public class LocationManagerService extends ILocationManager.Stub {
         int mPendingBroadcasts;
         PowerManager.WakeLock mWakeLock;
 
+        // Cached by isReceiverInCurrentProfileLocked() and isReceiverBlacklistedLocked().
+        int mUserProfilesGeneration = -1;
+        boolean mInCurrentProfile;
+        int mBlacklistGeneration = -1;
+        boolean mBlacklisted;
+
+        // Callbacks waiting for dispatchPendingDeliveries(), guarded by mLock.
+        final LocationDeliveryQueue mDeliveries =
+                new LocationDeliveryQueue(MAX_QUEUED_DELIVERIES);
+
+        // Set by removeUpdatesLocked() while holding both mLock and this receiver's lock, so it
+        // can be read holding either one.
+        boolean mRemoved;
+
         Receiver(ILocationListener listener, PendingIntent intent, int pid, int uid,
                 String packageName, WorkSource workSource, boolean hideFromAppOps) {
             mListener = listener;
@@ -953,10 +1011,19 @@ public class LocationManagerService extends ILocationManager.Stub {
             throw new IllegalStateException("Request for non-existent listener");
         }
 
-        public boolean callStatusChangedLocked(String provider, int status, Bundle extras) {
+        /**
+         * Sends a status change queued by handleLocationChangedLocked(). Called without mLock;
+         * does nothing if the receiver was removed in the meantime.
+         *
+         * @return false if the receiver is dead
+         */
+        public boolean callStatusChanged(String provider, int status, Bundle extras) {
             if (mListener != null) {
                 try {
                     synchronized (this) {
+                        if (mRemoved) {
+                            return true;
+                        }
                         // synchronize to ensure incrementPendingBroadcastsLocked()
                         // is called before decrementPendingBroadcasts()
                         mListener.onStatusChanged(provider, status, extras);
@@ -973,6 +1040,9 @@ public class LocationManagerService extends ILocationManager.Stub {
                 statusChanged.putExtra(LocationManager.KEY_STATUS_CHANGED, status);
                 try {
                     synchronized (this) {
+                        if (mRemoved) {
+                            return true;
+                        }
                         // synchronize to ensure incrementPendingBroadcastsLocked()
                         // is called before decrementPendingBroadcasts()
                         mPendingIntent.send(mContext, 0, statusChanged, this, mLocationHandler,
@@ -988,10 +1058,19 @@ public class LocationManagerService extends ILocationManager.Stub {
             return true;
         }
 
-        public boolean callLocationChangedLocked(Location location) {
+        /**
+         * Sends a location queued by handleLocationChangedLocked(). Called without mLock; does
+         * nothing if the receiver was removed in the meantime.
+         *
+         * @return false if the receiver is dead
+         */
+        public boolean callLocationChanged(Location location) {
             if (mListener != null) {
                 try {
                     synchronized (this) {
+                        if (mRemoved) {
+                            return true;
+                        }
                         // synchronize to ensure incrementPendingBroadcastsLocked()
                         // is called before decrementPendingBroadcasts()
                         mListener.onLocationChanged(new Location(location));
@@ -1007,6 +1086,9 @@ public class LocationManagerService extends ILocationManager.Stub {
                 locationChanged.putExtra(LocationManager.KEY_LOCATION_CHANGED, new Location(location));
                 try {
                     synchronized (this) {
+                        if (mRemoved) {
+                            return true;
+                        }
                         // synchronize to ensure incrementPendingBroadcastsLocked()
                         // is called before decrementPendingBroadcasts()
                         mPendingIntent.send(mContext, 0, locationChanged, this, mLocationHandler,
@@ -1687,7 +1769,7 @@ public class LocationManagerService extends ILocationManager.Stub {
         ArrayList<UpdateRecord> records = mRecordsByProvider.get(provider);
         if (records != null) {
             for (UpdateRecord record : records) {
-                if (isCurrentProfile(UserHandle.getUserId(record.mReceiver.mIdentity.mUid))) {
+                if (isReceiverInCurrentProfileLocked(record.mReceiver)) {
                     // Sends a notification message to the receiver
                     if (!record.mReceiver.callProviderEnabledLocked(provider, enabled)) {
                         if (deadReceivers == null) {
@@ -1724,15 +1806,11 @@ public class LocationManagerService extends ILocationManager.Stub {
         WorkSource worksource = new WorkSource();
         ProviderRequest providerRequest = new ProviderRequest();
 
-        ContentResolver resolver = mContext.getContentResolver();
-        long backgroundThrottleInterval = Settings.Global.getLong(
-                resolver,
-                Settings.Global.LOCATION_BACKGROUND_THROTTLE_INTERVAL_MS,
-                DEFAULT_BACKGROUND_THROTTLE_INTERVAL_MS);
+        long backgroundThrottleInterval = mBackgroundThrottleIntervalMs;
 
         if (records != null) {
             for (UpdateRecord record : records) {
-                if (isCurrentProfile(UserHandle.getUserId(record.mReceiver.mIdentity.mUid))) {
+                if (isReceiverInCurrentProfileLocked(record.mReceiver)) {
                     if (checkLocationAccess(
                             record.mReceiver.mIdentity.mPid,
                             record.mReceiver.mIdentity.mUid,
@@ -1769,7 +1847,7 @@ public class LocationManagerService extends ILocationManager.Stub {
                 // under that threshold.
                 long thresholdInterval = (providerRequest.interval + 1000) * 3 / 2;
                 for (UpdateRecord record : records) {
-                    if (isCurrentProfile(UserHandle.getUserId(record.mReceiver.mIdentity.mUid))) {
+                    if (isReceiverInCurrentProfileLocked(record.mReceiver)) {
                         LocationRequest locationRequest = record.mRequest;
 
                         // Don't assign battery blame for update records whose
@@ -1824,6 +1902,13 @@ public class LocationManagerService extends ILocationManager.Stub {
             Arrays.asList(setting.split(",")));
     }
 
+    private void updateBackgroundThrottleIntervalLocked() {
+        mBackgroundThrottleIntervalMs = Settings.Global.getLong(
+                mContext.getContentResolver(),
+                Settings.Global.LOCATION_BACKGROUND_THROTTLE_INTERVAL_MS,
+                DEFAULT_BACKGROUND_THROTTLE_INTERVAL_MS);
+    }
+
     private boolean isThrottlingExemptLocked(Identity identity) {
         if (identity.mUid == Process.SYSTEM_UID) {
             return true;
@@ -2111,6 +2196,12 @@ public class LocationManagerService extends ILocationManager.Stub {
     private void removeUpdatesLocked(Receiver receiver) {
         if (D) Log.i(TAG, "remove " + Integer.toHexString(System.identityHashCode(receiver)));
 
+        synchronized (receiver) {
+            // Callbacks already taken off the queue by dispatchPendingDeliveries() check this
+            // before sending, so that nothing is sent once removeUpdates() returns.
+            receiver.mRemoved = true;
+        }
+
         if (mReceivers.remove(receiver.mKey) != null && receiver.isListener()) {
             receiver.getListener().asBinder().unlinkToDeath(receiver, 0);
             synchronized (receiver) {
@@ -2120,6 +2211,9 @@ public class LocationManagerService extends ILocationManager.Stub {
 
         receiver.updateMonitoring(false);
 
+        // Drop the callbacks that were queued but not sent yet
+        receiver.mDeliveries.clear();
+
         // Record which providers were associated with this listener
         HashSet<String> providers = new HashSet<>();
         HashMap<String, UpdateRecord> oldRecords = receiver.mUpdateRecords;
@@ -2571,6 +2665,10 @@ public class LocationManagerService extends ILocationManager.Stub {
         return record.mRealRequest.getExpireAt() >= now;
     }
 
+    /**
+     * Queues the location, and the provider status if it changed, for the receivers that should
+     * get them. {@link #dispatchPendingDeliveries} then sends them without holding mLock.
+     */
     private void handleLocationChangedLocked(Location location, boolean passive) {
         if (D) Log.d(TAG, "incoming location: " + location);
 
@@ -2619,11 +2717,13 @@ public class LocationManagerService extends ILocationManager.Stub {
         ArrayList<UpdateRecord> records = mRecordsByProvider.get(provider);
         if (records == null || records.size() == 0) return;
 
-        // Fetch coarse location
+        // Fetch coarse location. The receivers share these copies, which no one changes after
+        // this, since the last locations are updated in place by the next fix.
         Location coarseLocation = null;
         if (noGPSLocation != null) {
-            coarseLocation = mLocationFudger.getOrCreate(noGPSLocation);
+            coarseLocation = new Location(mLocationFudger.getOrCreate(noGPSLocation));
         }
+        Location fineLocation = null;
 
         // Fetch latest status update time
         long newStatusUpdateTime = p.getStatusUpdateTime();
@@ -2632,26 +2732,24 @@ public class LocationManagerService extends ILocationManager.Stub {
         Bundle extras = new Bundle();
         int status = p.getStatus(extras);
 
-        ArrayList<Receiver> deadReceivers = null;
         ArrayList<UpdateRecord> deadUpdateRecords = null;
 
-        // Broadcast location or status to all listeners
+        // Queue location or status for all listeners
         for (UpdateRecord r : records) {
             Receiver receiver = r.mReceiver;
-            boolean receiverDead = false;
 
-            int receiverUserId = UserHandle.getUserId(receiver.mIdentity.mUid);
-            if (!isCurrentProfile(receiverUserId)
+            if (!isReceiverInCurrentProfileLocked(receiver)
                     && !isUidALocationProvider(receiver.mIdentity.mUid)) {
                 if (D) {
-                    Log.d(TAG, "skipping loc update for background user " + receiverUserId +
+                    Log.d(TAG, "skipping loc update for background user "
+                            + UserHandle.getUserId(receiver.mIdentity.mUid) +
                             " (current user: " + mCurrentUserId + ", app: " +
                             receiver.mIdentity.mPackageName + ")");
                 }
                 continue;
             }
 
-            if (mBlacklist.isBlacklisted(receiver.mIdentity.mPackageName)) {
+            if (isReceiverBlacklistedLocked(receiver)) {
                 if (D) Log.d(TAG, "skipping loc update for blacklisted app: " +
                         receiver.mIdentity.mPackageName);
                 continue;
@@ -2671,7 +2769,10 @@ public class LocationManagerService extends ILocationManager.Stub {
             if (receiver.mAllowedResolutionLevel < RESOLUTION_LEVEL_FINE) {
                 notifyLocation = coarseLocation;  // use coarse location
             } else {
-                notifyLocation = lastLocation;  // use fine location
+                if (fineLocation == null) {
+                    fineLocation = new Location(lastLocation);
+                }
+                notifyLocation = fineLocation;  // use fine location
             }
             if (notifyLocation != null) {
                 Location lastLoc = r.mLastFixBroadcast;
@@ -2682,10 +2783,7 @@ public class LocationManagerService extends ILocationManager.Stub {
                     } else {
                         lastLoc.set(notifyLocation);
                     }
-                    if (!receiver.callLocationChangedLocked(notifyLocation)) {
-                        Slog.w(TAG, "RemoteException calling onLocationChanged on " + receiver);
-                        receiverDead = true;
-                    }
+                    queueDeliveryLocked(receiver, new Delivery(provider, notifyLocation, 0, null));
                     r.mRealRequest.decrementNumUpdates();
                 }
             }
@@ -2695,10 +2793,7 @@ public class LocationManagerService extends ILocationManager.Stub {
                     (prevStatusUpdateTime != 0 || status != LocationProvider.AVAILABLE)) {
 
                 r.mLastStatusBroadcast = newStatusUpdateTime;
-                if (!receiver.callStatusChangedLocked(provider, status, extras)) {
-                    receiverDead = true;
-                    Slog.w(TAG, "RemoteException calling onStatusChanged on " + receiver);
-                }
+                queueDeliveryLocked(receiver, new Delivery(provider, null, status, extras));
             }
 
             // track expired records
@@ -2708,28 +2803,126 @@ public class LocationManagerService extends ILocationManager.Stub {
                 }
                 deadUpdateRecords.add(r);
             }
-            // track dead receivers
-            if (receiverDead) {
-                if (deadReceivers == null) {
-                    deadReceivers = new ArrayList<>();
+        }
+
+        // remove dead records outside the loop
+        if (deadUpdateRecords != null) {
+            for (UpdateRecord r : deadUpdateRecords) {
+                r.disposeLocked(true);
+            }
+            applyRequirementsLocked(provider);
+        }
+    }
+
+    private void queueDeliveryLocked(Receiver receiver, Delivery delivery) {
+        if (receiver.mDeliveries.isEmpty()) {
+            mReceiversToDispatch.add(receiver);
+        }
+        Delivery dropped = receiver.mDeliveries.add(delivery);
+        if (dropped != null) {
+            getDispatchStatisticsLocked(dropped.provider).mDropped++;
+        }
+    }
+
+    /**
+     * Sends the callbacks queued by {@link #handleLocationChangedLocked}, without holding mLock
+     * so that slow receivers don't hold up the rest of the service, and then removes the
+     * receivers that died.
+     *
+     * @return the number of callbacks sent
+     */
+    private int dispatchPendingDeliveries() {
+        ArrayList<Receiver> receivers;
+        synchronized (mLock) {
+            if (mReceiversToDispatch.isEmpty()) {
+                return 0;
+            }
+            receivers = new ArrayList<>(mReceiversToDispatch);
+            mReceiversToDispatch.clear();
+        }
+
+        int sent = 0;
+        ArrayList<Receiver> deadReceivers = null;
+        for (int i = 0; i < receivers.size(); i++) {
+            Receiver receiver = receivers.get(i);
+            while (true) {
+                Delivery delivery;
+                synchronized (mLock) {
+                    // the receiver may have been removed since its callbacks were queued
+                    delivery = receiver.mDeliveries.poll();
                 }
-                if (!deadReceivers.contains(receiver)) {
+                if (delivery == null) {
+                    break;
+                }
+
+                boolean delivered;
+                if (delivery.location != null) {
+                    delivered = receiver.callLocationChanged(delivery.location);
+                    if (!delivered) {
+                        Slog.w(TAG, "RemoteException calling onLocationChanged on " + receiver);
+                    }
+                } else {
+                    delivered = receiver.callStatusChanged(delivery.provider,
+                            delivery.status, delivery.extras);
+                    if (!delivered) {
+                        Slog.w(TAG, "RemoteException calling onStatusChanged on " + receiver);
+                    }
+                }
+                if (!delivered) {
+                    if (deadReceivers == null) {
+                        deadReceivers = new ArrayList<>();
+                    }
                     deadReceivers.add(receiver);
+                    break;
                 }
+                sent++;
             }
         }
 
-        // remove dead records and receivers outside the loop
         if (deadReceivers != null) {
-            for (Receiver receiver : deadReceivers) {
-                removeUpdatesLocked(receiver);
+            synchronized (mLock) {
+                for (Receiver receiver : deadReceivers) {
+                    if (!receiver.mRemoved) {
+                        removeUpdatesLocked(receiver);
+                    }
+                }
             }
         }
-        if (deadUpdateRecords != null) {
-            for (UpdateRecord r : deadUpdateRecords) {
-                r.disposeLocked(true);
-            }
-            applyRequirementsLocked(provider);
+        return sent;
+    }
+
+    private DispatchStatistics getDispatchStatisticsLocked(String provider) {
+        DispatchStatistics stats = mDispatchStatistics.get(provider);
+        if (stats == null) {
+            stats = new DispatchStatistics();
+            mDispatchStatistics.put(provider, stats);
+        }
+        return stats;
+    }
+
+    /**
+     * How long it took to send the fixes of a provider to its receivers, from when the fix was
+     * handled until the last receiver was called.
+     */
+    private static final class DispatchStatistics {
+        long mFixes;
+        long mDeliveries;
+        long mDropped;
+        long mTotalNanos;
+        long mMaxNanos;
+
+        void noteFix(int deliveries, long nanos) {
+            mFixes++;
+            mDeliveries += deliveries;
+            mTotalNanos += nanos;
+            mMaxNanos = Math.max(mMaxNanos, nanos);
+        }
+
+        @Override
+        public String toString() {
+            return "fixes=" + mFixes + " deliveries=" + mDeliveries + " dropped=" + mDropped
+                    + " avgFanOut=" + (mFixes == 0 ? 0 : mTotalNanos / mFixes / 1000) + "us"
+                    + " maxFanOut=" + mMaxNanos / 1000 + "us";
         }
     }
 
@@ -2767,14 +2960,22 @@ public class LocationManagerService extends ILocationManager.Stub {
             myLocation.setIsFromMockProvider(true);
         }
 
+        long startNanos = SystemClock.elapsedRealtimeNanos();
         synchronized (mLock) {
-            if (isAllowedByCurrentUserSettingsLocked(provider)) {
-                if (!passive) {
-                    // notify passive provider of the new location
-                    mPassiveProvider.updateLocation(myLocation);
-                }
-                handleLocationChangedLocked(myLocation, passive);
+            if (!isAllowedByCurrentUserSettingsLocked(provider)) {
+                return;
+            }
+            if (!passive) {
+                // notify passive provider of the new location
+                mPassiveProvider.updateLocation(myLocation);
             }
+            handleLocationChangedLocked(myLocation, passive);
+        }
+
+        int sent = dispatchPendingDeliveries();
+        synchronized (mLock) {
+            getDispatchStatisticsLocked(passive ? LocationManager.PASSIVE_PROVIDER : provider)
+                    .noteFix(sent, SystemClock.elapsedRealtimeNanos() - startNanos);
         }
     }
 
@@ -3065,6 +3266,11 @@ public class LocationManagerService extends ILocationManager.Stub {
                     pw.println("      " + record);
                 }
             }
+            pw.println("  Dispatch by Provider:");
+            for (int i = 0; i < mDispatchStatistics.size(); i++) {
+                pw.println("    " + mDispatchStatistics.keyAt(i) + ": "
+                        + mDispatchStatistics.valueAt(i));
+            }
             pw.println("  Overlay Provider Packages:");
             for (LocationProviderInterface provider : mProviders) {
                 if (provider instanceof LocationProviderProxy) {
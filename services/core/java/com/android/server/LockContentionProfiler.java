@@ -0,0 +1,290 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server;
+
+import android.os.SystemClock;
+import android.util.ArrayMap;
+import android.util.TimeUtils;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Counts how long threads wait for a lock and hold it, in histograms of power-of-two buckets.
+ * The sections in which a thread waits or holds the lock for at least the threshold are also
+ * counted by call site, found from the stack, so that slow code paths can be told apart.
+ *
+ * <p>Fed by {@link ThreadPriorityBooster}, whose hooks are injected around the locked sections
+ * at build time.
+ */
+public class LockContentionProfiler {
+    /** Bucket i > 0 counts durations in [64 << i, 128 << i) microseconds. */
+    static final int BUCKETS = 16;
+    private static final int BUCKET_SHIFT = 7;
+
+    /** Most call sites counted separately. */
+    @VisibleForTesting
+    static final int MAX_SITES = 200;
+    private static final String OTHER_SITE = "(other)";
+
+    private static final String BINDER_THREAD_PREFIX = "Binder:";
+
+    /** Counts of the sections of a call site, or of all sections. */
+    private static final class Counts {
+        long count;
+        long totalMicros;
+        long maxMicros;
+        final int[] histogram = new int[BUCKETS];
+
+        Counts copy() {
+            final Counts copy = new Counts();
+            copy.count = count;
+            copy.totalMicros = totalMicros;
+            copy.maxMicros = maxMicros;
+            System.arraycopy(histogram, 0, copy.histogram, 0, BUCKETS);
+            return copy;
+        }
+
+        void add(long micros) {
+            count++;
+            totalMicros += micros;
+            maxMicros = Math.max(maxMicros, micros);
+            histogram[Math.min(BUCKETS - 1,
+                    64 - Long.numberOfLeadingZeros(micros >> BUCKET_SHIFT))]++;
+        }
+    }
+
+    private final String mName;
+    private final long mThresholdMicros;
+
+    @GuardedBy("this")
+    private final Counts mWaits = new Counts();
+    @GuardedBy("this")
+    private final Counts mHolds = new Counts();
+    @GuardedBy("this")
+    private long mBinderWaitCount;
+    @GuardedBy("this")
+    private long mSectionsWithoutWait;
+    @GuardedBy("this")
+    private final ArrayMap<String, Counts> mWaitSites = new ArrayMap<>();
+    @GuardedBy("this")
+    private final ArrayMap<String, Counts> mHoldSites = new ArrayMap<>();
+    @GuardedBy("this")
+    private long mStartUptimeMillis = SystemClock.uptimeMillis();
+
+    /**
+     * @param name name of the lock, for dumps
+     * @param thresholdMillis shortest wait or hold counted by call site
+     */
+    public LockContentionProfiler(String name, long thresholdMillis) {
+        mName = name;
+        mThresholdMicros = thresholdMillis * 1000;
+    }
+
+    /**
+     * Called when a thread acquired the lock.
+     *
+     * @param waitNanos how long the thread waited for the lock, or -1 if unknown, as for
+     *        synchronized methods, which are entered with the lock held
+     */
+    void noteAcquired(long waitNanos) {
+        if (waitNanos < 0) {
+            synchronized (this) {
+                mSectionsWithoutWait++;
+            }
+            return;
+        }
+        final long micros = waitNanos / 1000;
+        final boolean binder = Thread.currentThread().getName().startsWith(BINDER_THREAD_PREFIX);
+        final String site = micros >= mThresholdMicros ? getCallSite() : null;
+        synchronized (this) {
+            mWaits.add(micros);
+            if (binder && micros >= mThresholdMicros) {
+                mBinderWaitCount++;
+            }
+            if (site != null) {
+                getSiteLocked(mWaitSites, site).add(micros);
+            }
+        }
+    }
+
+    /**
+     * Called when a thread is about to release the lock, in the method that acquired it.
+     */
+    void noteReleasing(long holdNanos) {
+        final long micros = holdNanos / 1000;
+        final String site = micros >= mThresholdMicros ? getCallSite() : null;
+        synchronized (this) {
+            mHolds.add(micros);
+            if (site != null) {
+                getSiteLocked(mHoldSites, site).add(micros);
+            }
+        }
+    }
+
+    @GuardedBy("this")
+    private static Counts getSiteLocked(ArrayMap<String, Counts> sites, String site) {
+        Counts counts = sites.get(site);
+        if (counts == null) {
+            if (sites.size() >= MAX_SITES) {
+                site = OTHER_SITE;
+                counts = sites.get(site);
+            }
+            if (counts == null) {
+                counts = new Counts();
+                sites.put(site, counts);
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Returns the first frame of the stack outside of this class, the booster and the hooks
+     * that call it.
+     */
+    private static String getCallSite() {
+        final StackTraceElement[] stack = new Throwable().getStackTrace();
+        for (StackTraceElement frame : stack) {
+            final String className = frame.getClassName();
+            if (className.equals(LockContentionProfiler.class.getName())
+                    || className.endsWith("ThreadPriorityBooster")
+                    || frame.getMethodName().endsWith("LockedSection")) {
+                continue;
+            }
+            return frame.toString();
+        }
+        return OTHER_SITE;
+    }
+
+    /** Forgets what was counted so far. */
+    public synchronized void reset() {
+        Arrays.fill(mWaits.histogram, 0);
+        Arrays.fill(mHolds.histogram, 0);
+        mWaits.count = mWaits.totalMicros = mWaits.maxMicros = 0;
+        mHolds.count = mHolds.totalMicros = mHolds.maxMicros = 0;
+        mBinderWaitCount = 0;
+        mSectionsWithoutWait = 0;
+        mWaitSites.clear();
+        mHoldSites.clear();
+        mStartUptimeMillis = SystemClock.uptimeMillis();
+    }
+
+    /**
+     * Prints the counts, copied under the lock so that printing them doesn't hold up the threads
+     * taking the profiled lock.
+     */
+    public void dump(PrintWriter pw, String prefix, int maxSites) {
+        final Counts waits;
+        final Counts holds;
+        final long binderWaitCount;
+        final long sectionsWithoutWait;
+        final ArrayMap<String, Counts> waitSites;
+        final ArrayMap<String, Counts> holdSites;
+        final long startUptimeMillis;
+        synchronized (this) {
+            waits = mWaits.copy();
+            holds = mHolds.copy();
+            binderWaitCount = mBinderWaitCount;
+            sectionsWithoutWait = mSectionsWithoutWait;
+            waitSites = copySites(mWaitSites);
+            holdSites = copySites(mHoldSites);
+            startUptimeMillis = mStartUptimeMillis;
+        }
+
+        pw.print(prefix);
+        pw.print("Lock ");
+        pw.print(mName);
+        pw.print(" in the last ");
+        TimeUtils.formatDuration(SystemClock.uptimeMillis() - startUptimeMillis, pw);
+        pw.print(", call sites from ");
+        pw.print(mThresholdMicros / 1000);
+        pw.println("ms, histogram buckets double from <128us:");
+
+        pw.print(prefix);
+        pw.print("  Waits: ");
+        dumpCounts(pw, waits);
+        pw.print(prefix);
+        pw.print("    by binder threads over threshold: ");
+        pw.print(binderWaitCount);
+        pw.print(", sections entered without wait hook: ");
+        pw.println(sectionsWithoutWait);
+        pw.print(prefix);
+        pw.print("  Holds: ");
+        dumpCounts(pw, holds);
+
+        pw.print(prefix);
+        pw.println("  Waiting call sites (count, total/max ms):");
+        dumpSites(pw, prefix + "    ", waitSites, maxSites);
+        pw.print(prefix);
+        pw.println("  Holding call sites (count, total/max ms):");
+        dumpSites(pw, prefix + "    ", holdSites, maxSites);
+    }
+
+    @GuardedBy("this")
+    private static ArrayMap<String, Counts> copySites(ArrayMap<String, Counts> sites) {
+        final ArrayMap<String, Counts> copy = new ArrayMap<>(sites.size());
+        for (int i = 0; i < sites.size(); i++) {
+            copy.put(sites.keyAt(i), sites.valueAt(i).copy());
+        }
+        return copy;
+    }
+
+    private static void dumpCounts(PrintWriter pw, Counts counts) {
+        pw.print(counts.count);
+        pw.print(", total ");
+        pw.print(counts.totalMicros / 1000);
+        pw.print("ms, max ");
+        pw.print(counts.maxMicros / 1000);
+        pw.print("ms, histogram [");
+        for (int i = 0; i < BUCKETS; i++) {
+            if (i > 0) {
+                pw.print(" ");
+            }
+            pw.print(counts.histogram[i]);
+        }
+        pw.println("]");
+    }
+
+    private static void dumpSites(PrintWriter pw, String prefix, ArrayMap<String, Counts> sites,
+            int maxSites) {
+        final ArrayList<Integer> order = new ArrayList<>(sites.size());
+        for (int i = 0; i < sites.size(); i++) {
+            order.add(i);
+        }
+        order.sort((a, b) -> Long.compare(sites.valueAt(b).totalMicros,
+                sites.valueAt(a).totalMicros));
+        for (int i = 0; i < order.size() && i < maxSites; i++) {
+            final Counts counts = sites.valueAt(order.get(i));
+            pw.print(prefix);
+            pw.print(sites.keyAt(order.get(i)));
+            pw.print(": ");
+            pw.print(counts.count);
+            pw.print(", ");
+            pw.print(counts.totalMicros / 1000);
+            pw.print("/");
+            pw.println(counts.maxMicros / 1000);
+        }
+        if (sites.isEmpty()) {
+            pw.print(prefix);
+            pw.println("none");
+        }
+    }
+}
@@ -184,7 +184,7 @@ public class LockGuard {
         }
     }
 
-    private static String lockToString(int index) {
+    static String lockToString(int index) {
         switch (index) {
             case INDEX_APP_OPS: return "APP_OPS";
             case INDEX_POWER: return "POWER";
@@ -0,0 +1,322 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server;
+
+import android.os.SystemClock;
+import android.os.Trace;
+import android.util.ArrayMap;
+import android.util.Slog;
+import android.util.TimingsTraceLog;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+
+/**
+ * Starts the steps of the boot once the steps they depend on are done. Steps that need the
+ * thread that scheduled them, such as services that create handlers on its looper, run on that
+ * thread whenever it waits for the graph; the others run on an executor.
+ *
+ * <p>A step can only depend on steps that were scheduled before it, so the graph can't have
+ * cycles. Each step also names the boot phase that it must be done before; see
+ * {@link #awaitPhase}.
+ */
+final class ServiceStartGraph {
+    private static final String TAG = "ServiceStartGraph";
+
+    /** A step of the boot, and how long it waited and ran. */
+    private static final class Step {
+        final String name;
+        final int phase;
+        final boolean background;
+        final Runnable action;
+        final Supplier<SystemService> serviceStarter;
+        final ArrayList<Step> dependencies = new ArrayList<>();
+        final ArrayList<Step> dependents = new ArrayList<>();
+
+        // All the following are guarded by the graph lock.
+        int pendingDependencies;
+        boolean done;
+        boolean collected;
+        SystemService service;
+        // The dependency that finished last, on the critical path of this step.
+        Step blockingDependency;
+        long scheduledMs;
+        long readyMs;
+        long startedMs;
+        long finishedMs;
+
+        Step(String name, int phase, boolean background, Runnable action,
+                Supplier<SystemService> serviceStarter) {
+            this.name = name;
+            this.phase = phase;
+            this.background = background;
+            this.action = action;
+            this.serviceStarter = serviceStarter;
+        }
+    }
+
+    private final Object mLock = new Object();
+    private final Executor mExecutor;
+    private final Thread mOwnerThread;
+
+    @GuardedBy("mLock")
+    private final ArrayMap<String, Step> mStepsByName = new ArrayMap<>();
+    @GuardedBy("mLock")
+    private final ArrayList<Step> mSteps = new ArrayList<>();
+    /** Steps whose dependencies are done, that must run on the owner thread. */
+    @GuardedBy("mLock")
+    private final ArrayDeque<Step> mOwnerQueue = new ArrayDeque<>();
+    @GuardedBy("mLock")
+    private Step mFailedStep;
+    @GuardedBy("mLock")
+    private Throwable mFailure;
+
+    ServiceStartGraph(Executor executor) {
+        mExecutor = executor;
+        mOwnerThread = Thread.currentThread();
+    }
+
+    /**
+     * Schedules a step that runs once all the given steps are done.
+     *
+     * @param name unique name of the step, which other steps can depend on
+     * @param phase the boot phase that the step must be done before
+     * @param background whether the step can run on any thread, rather than the one that
+     *        created this graph
+     * @param action what the step does
+     * @param dependencies the names of the steps that must be done first
+     */
+    void schedule(String name, int phase, boolean background, Runnable action,
+            String... dependencies) {
+        schedule(new Step(name, phase, background, action, null), dependencies);
+    }
+
+    /**
+     * Schedules a step that starts a service once all the given steps are done.
+     *
+     * @see #schedule(String, int, boolean, Runnable, String...)
+     * @see #awaitPhase
+     */
+    void scheduleService(String name, int phase, boolean background,
+            Supplier<SystemService> starter, String... dependencies) {
+        schedule(new Step(name, phase, background, null, starter), dependencies);
+    }
+
+    private void schedule(Step step, String... dependencies) {
+        final String name = step.name;
+        synchronized (mLock) {
+            if (mStepsByName.containsKey(name)) {
+                throw new IllegalArgumentException("Step " + name + " is already scheduled");
+            }
+            for (String dependency : dependencies) {
+                final Step other = mStepsByName.get(dependency);
+                if (other == null) {
+                    throw new IllegalArgumentException("Step " + name + " depends on "
+                            + dependency + ", which must be scheduled first");
+                }
+                step.dependencies.add(other);
+                if (!other.done) {
+                    step.pendingDependencies++;
+                    other.dependents.add(step);
+                }
+            }
+            mStepsByName.put(name, step);
+            mSteps.add(step);
+            step.scheduledMs = SystemClock.elapsedRealtime();
+            if (step.pendingDependencies == 0) {
+                readyLocked(step);
+            }
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void readyLocked(Step step) {
+        step.readyMs = SystemClock.elapsedRealtime();
+        for (int i = 0; i < step.dependencies.size(); i++) {
+            final Step dependency = step.dependencies.get(i);
+            if (step.blockingDependency == null
+                    || dependency.finishedMs > step.blockingDependency.finishedMs) {
+                step.blockingDependency = dependency;
+            }
+        }
+        if (step.background) {
+            mExecutor.execute(() -> run(step));
+        } else {
+            mOwnerQueue.add(step);
+            mLock.notifyAll();
+        }
+    }
+
+    private void run(Step step) {
+        final long started = SystemClock.elapsedRealtime();
+        SystemService service = null;
+        Throwable failure = null;
+        Trace.traceBegin(Trace.TRACE_TAG_SYSTEM_SERVER, step.name);
+        try {
+            if (step.serviceStarter != null) {
+                service = step.serviceStarter.get();
+            } else {
+                step.action.run();
+            }
+        } catch (Throwable t) {
+            Slog.e(TAG, "Failure in " + step.name, t);
+            failure = t;
+        } finally {
+            Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
+        }
+        synchronized (mLock) {
+            step.startedMs = started;
+            step.finishedMs = SystemClock.elapsedRealtime();
+            step.service = service;
+            if (failure != null) {
+                // The steps that depend on this one will never run.
+                if (mFailure == null) {
+                    mFailedStep = step;
+                    mFailure = failure;
+                }
+            } else {
+                step.done = true;
+                for (int i = 0; i < step.dependents.size(); i++) {
+                    final Step dependent = step.dependents.get(i);
+                    if (--dependent.pendingDependencies == 0) {
+                        readyLocked(dependent);
+                    }
+                }
+            }
+            mLock.notifyAll();
+        }
+    }
+
+    /** Waits until the given step is done. */
+    void await(String name) {
+        final Step step;
+        synchronized (mLock) {
+            step = mStepsByName.get(name);
+        }
+        if (step == null) {
+            throw new IllegalArgumentException("Step " + name + " isn't scheduled");
+        }
+        await(step.phase, step);
+    }
+
+    /**
+     * Waits until all the steps that must be done before the given boot phase are done, and
+     * returns the services that they started, in the order they were scheduled. Each service
+     * is only returned once, so that it can be registered for the lifecycle events from that
+     * phase on, however early it was started.
+     */
+    ArrayList<SystemService> awaitPhase(int phase) {
+        await(phase, null);
+        final ArrayList<SystemService> services = new ArrayList<>();
+        synchronized (mLock) {
+            for (int i = 0; i < mSteps.size(); i++) {
+                final Step step = mSteps.get(i);
+                if (step.phase <= phase && !step.collected) {
+                    step.collected = true;
+                    if (step.service != null) {
+                        services.add(step.service);
+                    }
+                }
+            }
+        }
+        return services;
+    }
+
+    /**
+     * Waits until the given step is done, or, without a step, all the steps that must be done
+     * before the given phase. Runs the steps for the owner thread meanwhile.
+     */
+    private void await(int phase, Step target) {
+        while (true) {
+            final Step next;
+            synchronized (mLock) {
+                if (mFailure != null) {
+                    throw new RuntimeException("Failed to start " + mFailedStep.name, mFailure);
+                }
+                if (target != null ? target.done : isPhaseDoneLocked(phase)) {
+                    return;
+                }
+                if (Thread.currentThread() != mOwnerThread) {
+                    // Other threads could wait forever for the steps of the owner thread.
+                    throw new IllegalStateException("Only " + mOwnerThread.getName()
+                            + " can wait for steps");
+                }
+                next = mOwnerQueue.poll();
+                if (next == null) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        // The system server can't boot without these steps; keep waiting.
+                    }
+                    continue;
+                }
+            }
+            run(next);
+        }
+    }
+
+    @GuardedBy("mLock")
+    private boolean isPhaseDoneLocked(int phase) {
+        for (int i = 0; i < mSteps.size(); i++) {
+            final Step step = mSteps.get(i);
+            if (step.phase <= phase && !step.done) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Logs how long each step that is done ran and waited, and the chain of steps that ended
+     * last, which bounds how fast the steps can complete.
+     */
+    void logTimings(TimingsTraceLog log) {
+        synchronized (mLock) {
+            Step last = null;
+            for (int i = 0; i < mSteps.size(); i++) {
+                final Step step = mSteps.get(i);
+                if (!step.done) {
+                    continue;
+                }
+                log.logDuration(step.name, step.finishedMs - step.startedMs);
+                log.logDuration(step.name + "WaitingOnDependencies",
+                        step.readyMs - step.scheduledMs);
+                log.logDuration(step.name + "WaitingToRun", step.startedMs - step.readyMs);
+                if (last == null || step.finishedMs > last.finishedMs) {
+                    last = step;
+                }
+            }
+            if (last == null) {
+                return;
+            }
+
+            final StringBuilder path = new StringBuilder("Critical path:");
+            long busyMs = 0;
+            for (Step step = last; step != null; step = step.blockingDependency) {
+                path.append(step == last ? " " : " <- ").append(step.name).append(" (")
+                        .append(step.finishedMs - step.startedMs).append("ms)");
+                busyMs += step.finishedMs - step.startedMs;
+            }
+            Slog.i(TAG, path.toString());
+            log.logDuration("ServiceStartCriticalPath", busyMs);
+        }
+    }
+}
@@ -19,6 +19,7 @@ package com.android.server;
 import android.os.HandlerThread;
 import android.os.Process;
 import android.os.StrictMode;
+import android.os.SystemProperties;
 import android.util.Slog;
 
 /**
@@ -27,6 +28,11 @@ import android.util.Slog;
 public class ServiceThread extends HandlerThread {
     private static final String TAG = "ServiceThread";
 
+    // Whether to index the messages of the service loopers, see MessageQueue#enableIndexing().
+    // Off by default, and read once at boot.
+    private static final boolean INDEX_MESSAGES =
+            SystemProperties.getBoolean("persist.sys.service_looper.index", false);
+
     private final boolean mAllowIo;
 
     public ServiceThread(String name, int priority, boolean allowIo) {
@@ -45,4 +51,12 @@ public class ServiceThread extends HandlerThread {
 
         super.run();
     }
+
+    @Override
+    protected void onLooperPrepared() {
+        // System services post many delayed messages and look them up by what, so index them.
+        if (INDEX_MESSAGES) {
+            getLooper().getQueue().enableIndexing();
+        }
+    }
 }
\ No newline at end of file
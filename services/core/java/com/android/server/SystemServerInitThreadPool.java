@@ -20,12 +20,13 @@ import android.os.Build;
 import android.os.Process;
 import android.util.Slog;
 
-import com.android.internal.util.ConcurrentUtils;
 import com.android.internal.util.Preconditions;
 
 import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
@@ -34,6 +35,8 @@ import java.util.concurrent.TimeUnit;
  * <p>System services can {@link #submit(Runnable)} tasks for execution during boot.
  * The pool will be shut down after {@link SystemService#PHASE_BOOT_COMPLETED}.
  * New tasks <em>should not</em> be submitted afterwards.
+ * <p>The pool is a work-stealing pool with a thread per core, at least 4, so that the boot
+ * steps scheduled with {@link SystemServiceManager#scheduleStep} run as soon as they can.
  *
  * @hide
  */
@@ -44,8 +47,23 @@ public class SystemServerInitThreadPool {
 
     private static SystemServerInitThreadPool sInstance;
 
-    private ExecutorService mService = ConcurrentUtils.newFixedThreadPool(4,
-            "system-server-init-thread", Process.THREAD_PRIORITY_FOREGROUND);
+    private static final int MIN_THREAD_COUNT = 4;
+
+    private ExecutorService mService = new ForkJoinPool(
+            Math.max(MIN_THREAD_COUNT, Runtime.getRuntime().availableProcessors()),
+            SystemServerInitThreadPool::newThread, null, true /* asyncMode */);
+
+    private static ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+        final ForkJoinWorkerThread thread = new ForkJoinWorkerThread(pool) {
+            @Override
+            protected void onStart() {
+                super.onStart();
+                Process.setThreadPriority(Process.THREAD_PRIORITY_FOREGROUND);
+            }
+        };
+        thread.setName("system-server-init-thread" + (thread.getPoolIndex() + 1));
+        return thread;
+    }
 
     public static synchronized SystemServerInitThreadPool get() {
         if (sInstance == null) {
@@ -41,7 +41,9 @@ import android.os.UserManager;
  * waiting to see if SafeMode is enabled, or registering with a service that gets
  * started after this one.
  * </ul><p>
- * NOTE: All lifecycle methods are called from the system server's main looper thread.
+ * NOTE: All lifecycle methods are called from the system server's main looper thread, except
+ * the constructor and {@link #onStart()} of services scheduled to start in the background with
+ * {@link SystemServiceManager#scheduleService}.
  * </p>
  *
  * {@hide}
@@ -21,6 +21,7 @@ import android.content.Context;
 import android.os.SystemClock;
 import android.os.Trace;
 import android.util.Slog;
+import android.util.TimingsTraceLog;
 
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
@@ -45,10 +46,21 @@ public class SystemServiceManager {
 
     private int mCurrentPhase = -1;
 
+    // Steps of the boot started as soon as their dependencies are, created on first use.
+    private ServiceStartGraph mStartGraph;
+
     SystemServiceManager(Context context) {
         mContext = context;
     }
 
+    private ServiceStartGraph getStartGraph() {
+        if (mStartGraph == null) {
+            mStartGraph = new ServiceStartGraph(
+                    runnable -> SystemServerInitThreadPool.get().submit(runnable, "StartGraph"));
+        }
+        return mStartGraph;
+    }
+
     /**
      * Starts a service by class name.
      *
@@ -78,8 +90,14 @@ public class SystemServiceManager {
      * @return The service instance, never null.
      * @throws RuntimeException if the service fails to start.
      */
-    @SuppressWarnings("unchecked")
     public <T extends SystemService> T startService(Class<T> serviceClass) {
+        final T service = createService(serviceClass);
+        startService(service);
+        return service;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T extends SystemService> T createService(Class<T> serviceClass) {
         try {
             final String name = serviceClass.getName();
             Slog.i(TAG, "Starting " + name);
@@ -107,8 +125,6 @@ public class SystemServiceManager {
                 throw new RuntimeException("Failed to create service " + name
                         + ": service constructor threw an exception", ex);
             }
-
-            startService(service);
             return service;
         } finally {
             Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
@@ -119,6 +135,10 @@ public class SystemServiceManager {
         // Register it.
         mServices.add(service);
         // Start it.
+        onStartService(service);
+    }
+
+    private void onStartService(SystemService service) {
         long time = SystemClock.elapsedRealtime();
         try {
             service.onStart();
@@ -129,9 +149,112 @@ public class SystemServiceManager {
         warnIfTooLong(SystemClock.elapsedRealtime() - time, service, "onStart");
     }
 
+    /**
+     * Schedules a boot step that runs once the given steps are done, possibly in parallel with
+     * other steps and the code that scheduled it.
+     *
+     * @param name unique name of the step, which later steps can depend on
+     * @param phase the boot phase that the step must be done before; {@link #startBootPhase}
+     *        waits for it
+     * @param background whether the step can run on any thread; otherwise it runs on the
+     *        calling thread, the next time it waits for a step or a boot phase
+     * @param step what the step does
+     * @param dependencies the names of steps that were scheduled before this one
+     */
+    public void scheduleStep(String name, int phase, boolean background, Runnable step,
+            String... dependencies) {
+        checkPhaseNotStarted(name, phase);
+        getStartGraph().schedule(name, phase, background, step, dependencies);
+    }
+
+    /**
+     * Like {@link #scheduleStep}, except that the boot carries on if the step fails: the failure
+     * is logged, and the step counts as done for the steps and boot phases that wait for it.
+     */
+    public void scheduleBestEffortStep(String name, int phase, boolean background,
+            Runnable step, String... dependencies) {
+        scheduleStep(name, phase, background, () -> {
+            try {
+                step.run();
+            } catch (RuntimeException ex) {
+                Slog.e(TAG, "Failure in " + name + ", continuing boot", ex);
+            }
+        }, dependencies);
+    }
+
+    /**
+     * Schedules a service to be created and started once the given steps are done, as a step
+     * named after the simple name of its class. The service is registered for the lifecycle
+     * events from the given phase on, however early it started.
+     *
+     * @param background whether the service can be created and started on any thread; it must
+     *        not create handlers on the looper of the calling thread then
+     * @see #scheduleStep
+     */
+    public void scheduleService(Class<? extends SystemService> serviceClass, int phase,
+            boolean background, String... dependencies) {
+        scheduleService(serviceClass, phase, background, true /* required */, dependencies);
+    }
+
+    /**
+     * Like {@link #scheduleService}, except that the boot carries on without the service if it
+     * fails to start.
+     */
+    public void scheduleBestEffortService(Class<? extends SystemService> serviceClass,
+            int phase, boolean background, String... dependencies) {
+        scheduleService(serviceClass, phase, background, false /* required */, dependencies);
+    }
+
+    private void scheduleService(Class<? extends SystemService> serviceClass, int phase,
+            boolean background, boolean required, String... dependencies) {
+        final String name = serviceClass.getSimpleName();
+        checkPhaseNotStarted(name, phase);
+        getStartGraph().scheduleService(name, phase, background, () -> {
+            try {
+                final SystemService service = createService(serviceClass);
+                onStartService(service);
+                return service;
+            } catch (RuntimeException ex) {
+                if (required) {
+                    throw ex;
+                }
+                Slog.e(TAG, "Failure starting " + name + ", continuing boot", ex);
+                return null;
+            }
+        }, dependencies);
+    }
+
+    private void checkPhaseNotStarted(String name, int phase) {
+        if (phase <= mCurrentPhase) {
+            throw new IllegalArgumentException("Can't schedule " + name + " before phase "
+                    + phase + ", which already started");
+        }
+    }
+
+    /**
+     * Waits until a scheduled step is done, running the steps that need the calling thread
+     * meanwhile.
+     *
+     * @throws RuntimeException if the step, or one it depends on, failed.
+     */
+    public void waitForStep(String name) {
+        getStartGraph().await(name);
+    }
+
+    /**
+     * Waits until all the scheduled steps are done, and logs how long they took.
+     */
+    public void waitForAllSteps(TimingsTraceLog log) {
+        if (mStartGraph == null) {
+            return;
+        }
+        mServices.addAll(mStartGraph.awaitPhase(Integer.MAX_VALUE));
+        mStartGraph.logTimings(log);
+    }
+
     /**
      * Starts the specified boot phase for all system services that have been started up to
-     * this point.
+     * this point, after the scheduled steps that must be done before it.
      *
      * @param phase The boot phase to start.
      */
@@ -139,6 +262,11 @@ public class SystemServiceManager {
         if (phase <= mCurrentPhase) {
             throw new IllegalArgumentException("Next phase must be larger than previous");
         }
+        if (mStartGraph != null) {
+            Trace.traceBegin(Trace.TRACE_TAG_SYSTEM_SERVER, "WaitForSteps " + phase);
+            mServices.addAll(mStartGraph.awaitPhase(phase));
+            Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
+        }
         mCurrentPhase = phase;
 
         Slog.i(TAG, "Starting phase " + mCurrentPhase);
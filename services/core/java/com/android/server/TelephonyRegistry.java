@@ -29,6 +29,7 @@ import android.os.Binder;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.Message;
 import android.os.RemoteException;
 import android.os.UserHandle;
@@ -47,8 +48,11 @@ import android.telephony.TelephonyManager;
 import android.telephony.VoLteServiceState;
 import android.text.TextUtils;
 import android.util.LocalLog;
+import android.util.SparseArray;
 
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.app.IBatteryStats;
+import com.android.internal.os.BackgroundThread;
 import com.android.internal.telephony.IOnSubscriptionsChangedListener;
 import com.android.internal.telephony.IPhoneStateListener;
 import com.android.internal.telephony.ITelephonyRegistry;
@@ -85,7 +89,8 @@ class TelephonyRegistry extends ITelephonyRegistry.Stub {
     private static final boolean DBG_LOC = false; // STOPSHIP if true
     private static final boolean VDBG = false; // STOPSHIP if true
 
-    private static class Record {
+    @VisibleForTesting
+    static class Record {
         String callingPackage;
 
         IBinder binder;
@@ -103,6 +108,14 @@ class TelephonyRegistry extends ITelephonyRegistry.Stub {
 
         boolean canReadPhoneState;
 
+        // The events and subscription that the record is indexed under in mRecordIndex.
+        int indexedEvents;
+
+        int indexedSubId;
+
+        // The latest signal strength not sent yet; newer ones replace it.
+        SignalStrength pendingSignalStrength;
+
         boolean matchPhoneStateListenerEvent(int events) {
             return (callback != null) && ((events & this.events) != 0);
         }
@@ -123,11 +136,100 @@ class TelephonyRegistry extends ITelephonyRegistry.Stub {
         }
     }
 
+    /**
+     * The records by the events they listen for, and then by their subscription, so that a
+     * notification only looks at the records that want it.
+     */
+    @VisibleForTesting
+    static class RecordIndex {
+        // event -> subId -> records
+        private final SparseArray<SparseArray<ArrayList<Record>>> mRecordsByEvent =
+                new SparseArray<>();
+
+        void add(Record r) {
+            r.indexedEvents = r.callback != null ? r.events : 0;
+            r.indexedSubId = r.subId;
+            for (int events = r.indexedEvents; events != 0; events &= events - 1) {
+                final int event = Integer.lowestOneBit(events);
+                SparseArray<ArrayList<Record>> bySubId = mRecordsByEvent.get(event);
+                if (bySubId == null) {
+                    bySubId = new SparseArray<>();
+                    mRecordsByEvent.put(event, bySubId);
+                }
+                ArrayList<Record> records = bySubId.get(r.indexedSubId);
+                if (records == null) {
+                    records = new ArrayList<>();
+                    bySubId.put(r.indexedSubId, records);
+                }
+                records.add(r);
+            }
+        }
+
+        void remove(Record r) {
+            for (int events = r.indexedEvents; events != 0; events &= events - 1) {
+                final int event = Integer.lowestOneBit(events);
+                final SparseArray<ArrayList<Record>> bySubId = mRecordsByEvent.get(event);
+                final ArrayList<Record> records = bySubId.get(r.indexedSubId);
+                records.remove(r);
+                if (records.isEmpty()) {
+                    bySubId.remove(r.indexedSubId);
+                }
+            }
+            r.indexedEvents = 0;
+        }
+
+        /** Adds the records listening for the event on the given subscription. */
+        void getRecords(int event, int subId, ArrayList<Record> out) {
+            final SparseArray<ArrayList<Record>> bySubId = mRecordsByEvent.get(event);
+            final ArrayList<Record> records = bySubId != null ? bySubId.get(subId) : null;
+            if (records != null) {
+                out.addAll(records);
+            }
+        }
+
+        /** Adds the records listening for the event on any subscription. */
+        void getAllRecords(int event, ArrayList<Record> out) {
+            final SparseArray<ArrayList<Record>> bySubId = mRecordsByEvent.get(event);
+            if (bySubId != null) {
+                for (int i = 0; i < bySubId.size(); i++) {
+                    out.addAll(bySubId.valueAt(i));
+                }
+            }
+        }
+
+        /**
+         * Adds the records listening for the event whose subscription matches, as in
+         * {@link TelephonyRegistry#idMatch(int, int, int, int, int)}.
+         */
+        void getMatchingRecords(int event, int subId, int phoneId, int defaultSubId,
+                int defaultPhoneId, ArrayList<Record> out) {
+            if (subId < 0) {
+                if (defaultPhoneId == phoneId) {
+                    getAllRecords(event, out);
+                }
+            } else {
+                if (subId != SubscriptionManager.DEFAULT_SUBSCRIPTION_ID) {
+                    getRecords(event, subId, out);
+                }
+                if (subId == defaultSubId) {
+                    getRecords(event, SubscriptionManager.DEFAULT_SUBSCRIPTION_ID, out);
+                }
+            }
+        }
+    }
+
     private final Context mContext;
 
-    // access should be inside synchronized (mRecords) for these two fields
+    // access should be inside synchronized (mRecords) for these fields
     private final ArrayList<IBinder> mRemoveList = new ArrayList<IBinder>();
     private final ArrayList<Record> mRecords = new ArrayList<Record>();
+    private final RecordIndex mRecordIndex = new RecordIndex();
+    // callbacks made and updates replaced by newer ones, by the bit of the event
+    private final long[] mDispatchCounts = new long[Integer.SIZE];
+    private final long[] mCoalescedCounts = new long[Integer.SIZE];
+
+    // sends the updates that are coalesced, without holding mRecords
+    private final Handler mDispatchHandler;
 
     private final IBatteryStats mBatteryStats;
 
@@ -287,10 +389,16 @@ class TelephonyRegistry extends ITelephonyRegistry.Stub {
     // handler before they get to app code.
 
     TelephonyRegistry(Context context) {
+        this(context, BatteryStatsService.getService(), BackgroundThread.get().getLooper());
+    }
+
+    @VisibleForTesting
+    TelephonyRegistry(Context context, IBatteryStats batteryStats, Looper dispatchLooper) {
         CellLocation  location = CellLocation.getEmpty();
 
         mContext = context;
-        mBatteryStats = BatteryStatsService.getService();
+        mBatteryStats = batteryStats;
+        mDispatchHandler = new Handler(dispatchLooper);
 
         int numPhones = TelephonyManager.getDefault().getPhoneCount();
         if (DBG) log("TelephonyRegistor: ctor numPhones=" + numPhones);
@@ -397,6 +505,7 @@ class TelephonyRegistry extends ITelephonyRegistry.Stub {
             r.callingPackage = callingPackage;
             r.callerUserId = callerUserId;
             r.events = 0;
+            mRecordIndex.remove(r);
             r.canReadPhoneState = true; // permission has been enforced above
             if (DBG) {
                 log("listen oscl:  Register r=" + r);
@@ -525,6 +634,8 @@ class TelephonyRegistry extends ITelephonyRegistry.Stub {
 
                 int phoneId = r.phoneId;
                 r.events = events;
+                mRecordIndex.remove(r);
+                mRecordIndex.add(r);
                 if (DBG) {
                     log("listen:  Register r=" + r + " r.subId=" + r.subId + " phoneId=" + phoneId);
                 }
@@ -696,7 +807,9 @@ class TelephonyRegistry extends ITelephonyRegistry.Stub {
                         log("remove: binder=" + binder + "r.callingPackage" + r.callingPackage
                                 + "r.callback" + r.callback);
                     }
-                    mRecords.remove(i);
+                    Record removed = mRecords.remove(i);
+                    mRecordIndex.remove(removed);
+                    removed.pendingSignalStrength = null;
                     return;
                 }
             }
@@ -713,15 +826,16 @@ class TelephonyRegistry extends ITelephonyRegistry.Stub {
         }
 
         synchronized (mRecords) {
-            for (Record r : mRecords) {
-                if (r.matchPhoneStateListenerEvent(PhoneStateListener.LISTEN_CALL_STATE) &&
-                        (r.subId == SubscriptionManager.DEFAULT_SUBSCRIPTION_ID)) {
-                    try {
-                        String incomingNumberOrEmpty = r.canReadPhoneState ? incomingNumber : "";
-                        r.callback.onCallStateChanged(state, incomingNumberOrEmpty);
-                    } catch (RemoteException ex) {
-                        mRemoveList.add(r.binder);
-                    }
+            final ArrayList<Record> records = new ArrayList<>();
+            mRecordIndex.getRecords(PhoneStateListener.LISTEN_CALL_STATE,
+                    SubscriptionManager.DEFAULT_SUBSCRIPTION_ID, records);
+            for (Record r : records) {
+                try {
+                    String incomingNumberOrEmpty = r.canReadPhoneState ? incomingNumber : "";
+                    r.callback.onCallStateChanged(state, incomingNumberOrEmpty);
+                    noteDispatchedLocked(PhoneStateListener.LISTEN_CALL_STATE);
+                } catch (RemoteException ex) {
+                    mRemoveList.add(r.binder);
                 }
             }
             handleRemoveListLocked();
@@ -747,16 +861,19 @@ class TelephonyRegistry extends ITelephonyRegistry.Stub {
             if (validatePhoneId(phoneId)) {
                 mCallState[phoneId] = state;
                 mCallIncomingNumber[phoneId] = incomingNumber;
-                for (Record r : mRecords) {
-                    if (r.matchPhoneStateListenerEvent(PhoneStateListener.LISTEN_CALL_STATE) &&
-                            (r.subId == subId) &&
-                            (r.subId != SubscriptionManager.DEFAULT_SUBSCRIPTION_ID)) {
-                        try {
-                            String incomingNumberOrEmpty = getCallIncomingNumber(r, phoneId);
-                            r.callback.onCallStateChanged(state, incomingNumberOrEmpty);
-                        } catch (RemoteException ex) {
-                            mRemoveList.add(r.binder);
-                        }
+                // Unlike the other notifications, listeners of the default subscription are
+                // told by notifyCallState() instead.
+                final ArrayList<Record> records = new ArrayList<>();
+                if (subId != SubscriptionManager.DEFAULT_SUBSCRIPTION_ID) {
+                    mRecordIndex.getRecords(PhoneStateListener.LISTEN_CALL_STATE, subId, records);
+                }
+                for (Record r : records) {
+                    try {
+                        String incomingNumberOrEmpty = getCallIncomingNumber(r, phoneId);
+                        r.callback.onCallStateChanged(state, incomingNumberOrEmpty);
+                        noteDispatchedLocked(PhoneStateListener.LISTEN_CALL_STATE);
+                    } catch (RemoteException ex) {
+                        mRemoveList.add(r.binder);
                     }
                 }
             }
@@ -780,23 +897,22 @@ class TelephonyRegistry extends ITelephonyRegistry.Stub {
             if (validatePhoneId(phoneId)) {
                 mServiceState[phoneId] = state;
 
-                for (Record r : mRecords) {
+                for (Record r : getMatchingRecordsLocked(
+                        PhoneStateListener.LISTEN_SERVICE_STATE, subId, phoneId)) {
                     if (VDBG) {
                         log("notifyServiceStateForSubscriber: r=" + r + " subId=" + subId
                                 + " phoneId=" + phoneId + " state=" + state);
                     }
-                    if (r.matchPhoneStateListenerEvent(PhoneStateListener.LISTEN_SERVICE_STATE) &&
-                            idMatch(r.subId, subId, phoneId)) {
-                        try {
-                            if (DBG) {
-                                log("notifyServiceStateForSubscriber: callback.onSSC r=" + r
-                                        + " subId=" + subId + " phoneId=" + phoneId
-                                        + " state=" + state);
-                            }
-                            r.callback.onServiceStateChanged(new ServiceState(state));
-                        } catch (RemoteException ex) {
-                            mRemoveList.add(r.binder);
+                    try {
+                        if (DBG) {
+                            log("notifyServiceStateForSubscriber: callback.onSSC r=" + r
+                                    + " subId=" + subId + " phoneId=" + phoneId
+                                    + " state=" + state);
                         }
+                        r.callback.onServiceStateChanged(new ServiceState(state));
+                        noteDispatchedLocked(PhoneStateListener.LISTEN_SERVICE_STATE);
+                    } catch (RemoteException ex) {
+                        mRemoveList.add(r.binder);
                     }
                 }
             } else {
@@ -882,40 +998,15 @@ class TelephonyRegistry extends ITelephonyRegistry.Stub {
             if (validatePhoneId(phoneId)) {
                 if (VDBG) log("notifySignalStrengthForPhoneId: valid phoneId=" + phoneId);
                 mSignalStrength[phoneId] = signalStrength;
-                for (Record r : mRecords) {
-                    if (VDBG) {
-                        log("notifySignalStrengthForPhoneId: r=" + r + " subId=" + subId
-                                + " phoneId=" + phoneId + " ss=" + signalStrength);
-                    }
-                    if (r.matchPhoneStateListenerEvent(
-                                PhoneStateListener.LISTEN_SIGNAL_STRENGTHS) &&
-                            idMatch(r.subId, subId, phoneId)) {
-                        try {
-                            if (DBG) {
-                                log("notifySignalStrengthForPhoneId: callback.onSsS r=" + r
-                                        + " subId=" + subId + " phoneId=" + phoneId
-                                        + " ss=" + signalStrength);
-                            }
-                            r.callback.onSignalStrengthsChanged(new SignalStrength(signalStrength));
-                        } catch (RemoteException ex) {
-                            mRemoveList.add(r.binder);
-                        }
-                    }
-                    if (r.matchPhoneStateListenerEvent(PhoneStateListener.LISTEN_SIGNAL_STRENGTH) &&
-                            idMatch(r.subId, subId, phoneId)){
-                        try {
-                            int gsmSignalStrength = signalStrength.getGsmSignalStrength();
-                            int ss = (gsmSignalStrength == 99 ? -1 : gsmSignalStrength);
-                            if (DBG) {
-                                log("notifySignalStrengthForPhoneId: callback.onSS r=" + r
-                                        + " subId=" + subId + " phoneId=" + phoneId
-                                        + " gsmSS=" + gsmSignalStrength + " ss=" + ss);
-                            }
-                            r.callback.onSignalStrengthChanged(ss);
-                        } catch (RemoteException ex) {
-                            mRemoveList.add(r.binder);
-                        }
-                    }
+                for (Record r : getMatchingRecordsLocked(
+                        PhoneStateListener.LISTEN_SIGNAL_STRENGTHS, subId, phoneId)) {
+                    queueSignalStrengthLocked(r, signalStrength,
+                            PhoneStateListener.LISTEN_SIGNAL_STRENGTHS);
+                }
+                for (Record r : getMatchingRecordsLocked(
+                        PhoneStateListener.LISTEN_SIGNAL_STRENGTH, subId, phoneId)) {
+                    queueSignalStrengthLocked(r, signalStrength,
+                            PhoneStateListener.LISTEN_SIGNAL_STRENGTH);
                 }
             } else {
                 log("notifySignalStrengthForPhoneId: invalid phoneId=" + phoneId);
@@ -925,6 +1016,65 @@ class TelephonyRegistry extends ITelephonyRegistry.Stub {
         broadcastSignalStrengthChanged(signalStrength, phoneId, subId);
     }
 
+    /**
+     * Queues the signal strength for the record, replacing the one queued before if it wasn't
+     * sent yet: it can change several times a second on weak networks, and listeners only care
+     * about the latest.
+     */
+    private void queueSignalStrengthLocked(Record r, SignalStrength signalStrength, int event) {
+        if (r.pendingSignalStrength == null) {
+            mDispatchHandler.post(() -> sendPendingSignalStrength(r));
+        } else if (r.pendingSignalStrength != signalStrength) {
+            mCoalescedCounts[Integer.numberOfTrailingZeros(event)]++;
+        }
+        r.pendingSignalStrength = signalStrength;
+    }
+
+    private void sendPendingSignalStrength(Record r) {
+        final SignalStrength signalStrength;
+        final IPhoneStateListener callback;
+        final int events;
+        synchronized (mRecords) {
+            signalStrength = r.pendingSignalStrength;
+            r.pendingSignalStrength = null;
+            callback = r.callback;
+            events = r.indexedEvents;
+        }
+        if (signalStrength == null) {
+            // The record was removed.
+            return;
+        }
+        try {
+            if ((events & PhoneStateListener.LISTEN_SIGNAL_STRENGTHS) != 0) {
+                if (DBG) {
+                    log("sendPendingSignalStrength: callback.onSsS r=" + r
+                            + " ss=" + signalStrength);
+                }
+                callback.onSignalStrengthsChanged(new SignalStrength(signalStrength));
+            }
+            if ((events & PhoneStateListener.LISTEN_SIGNAL_STRENGTH) != 0) {
+                int gsmSignalStrength = signalStrength.getGsmSignalStrength();
+                int ss = (gsmSignalStrength == 99 ? -1 : gsmSignalStrength);
+                if (DBG) {
+                    log("sendPendingSignalStrength: callback.onSS r=" + r
+                            + " gsmSS=" + gsmSignalStrength + " ss=" + ss);
+                }
+                callback.onSignalStrengthChanged(ss);
+            }
+        } catch (RemoteException ex) {
+            remove(r.binder);
+            return;
+        }
+        synchronized (mRecords) {
+            if ((events & PhoneStateListener.LISTEN_SIGNAL_STRENGTHS) != 0) {
+                noteDispatchedLocked(PhoneStateListener.LISTEN_SIGNAL_STRENGTHS);
+            }
+            if ((events & PhoneStateListener.LISTEN_SIGNAL_STRENGTH) != 0) {
+                noteDispatchedLocked(PhoneStateListener.LISTEN_SIGNAL_STRENGTH);
+            }
+        }
+    }
+
     @Override
     public void notifyCarrierNetworkChange(boolean active) {
         enforceNotifyPermissionOrCarrierPrivilege("notifyCarrierNetworkChange()");
@@ -966,14 +1116,15 @@ class TelephonyRegistry extends ITelephonyRegistry.Stub {
             int phoneId = SubscriptionManager.getPhoneId(subId);
             if (validatePhoneId(phoneId)) {
                 mCellInfo.set(phoneId, cellInfo);
-                for (Record r : mRecords) {
-                    if (validateEventsAndUserLocked(r, PhoneStateListener.LISTEN_CELL_INFO) &&
-                            idMatch(r.subId, subId, phoneId)) {
+                for (Record r : getMatchingRecordsLocked(
+                        PhoneStateListener.LISTEN_CELL_INFO, subId, phoneId)) {
+                    if (validateEventsAndUserLocked(r, PhoneStateListener.LISTEN_CELL_INFO)) {
                         try {
                             if (DBG_LOC) {
                                 log("notifyCellInfo: mCellInfo=" + cellInfo + " r=" + r);
                             }
                             r.callback.onCellInfoChanged(cellInfo);
+                            noteDispatchedLocked(PhoneStateListener.LISTEN_CELL_INFO);
                         } catch (RemoteException ex) {
                             mRemoveList.add(r.binder);
                         }
@@ -996,15 +1147,13 @@ class TelephonyRegistry extends ITelephonyRegistry.Stub {
         synchronized (mRecords) {
             if (validatePhoneId(phoneId)) {
                 mMessageWaiting[phoneId] = mwi;
-                for (Record r : mRecords) {
-                    if (r.matchPhoneStateListenerEvent(
-                            PhoneStateListener.LISTEN_MESSAGE_WAITING_INDICATOR) &&
-                            idMatch(r.subId, subId, phoneId)) {
-                        try {
-                            r.callback.onMessageWaitingIndicatorChanged(mwi);
-                        } catch (RemoteException ex) {
-                            mRemoveList.add(r.binder);
-                        }
+                for (Record r : getMatchingRecordsLocked(
+                        PhoneStateListener.LISTEN_MESSAGE_WAITING_INDICATOR, subId, phoneId)) {
+                    try {
+                        r.callback.onMessageWaitingIndicatorChanged(mwi);
+                        noteDispatchedLocked(PhoneStateListener.LISTEN_MESSAGE_WAITING_INDICATOR);
+                    } catch (RemoteException ex) {
+                        mRemoveList.add(r.binder);
                     }
                 }
             }
@@ -1028,15 +1177,13 @@ class TelephonyRegistry extends ITelephonyRegistry.Stub {
             int phoneId = SubscriptionManager.getPhoneId(subId);
             if (validatePhoneId(phoneId)) {
                 mCallForwarding[phoneId] = cfi;
-                for (Record r : mRecords) {
-                    if (r.matchPhoneStateListenerEvent(
-                            PhoneStateListener.LISTEN_CALL_FORWARDING_INDICATOR) &&
-                            idMatch(r.subId, subId, phoneId)) {
-                        try {
-                            r.callback.onCallForwardingIndicatorChanged(cfi);
-                        } catch (RemoteException ex) {
-                            mRemoveList.add(r.binder);
-                        }
+                for (Record r : getMatchingRecordsLocked(
+                        PhoneStateListener.LISTEN_CALL_FORWARDING_INDICATOR, subId, phoneId)) {
+                    try {
+                        r.callback.onCallForwardingIndicatorChanged(cfi);
+                        noteDispatchedLocked(PhoneStateListener.LISTEN_CALL_FORWARDING_INDICATOR);
+                    } catch (RemoteException ex) {
+                        mRemoveList.add(r.binder);
                     }
                 }
             }
@@ -1056,15 +1203,13 @@ class TelephonyRegistry extends ITelephonyRegistry.Stub {
             int phoneId = SubscriptionManager.getPhoneId(subId);
             if (validatePhoneId(phoneId)) {
                 mDataActivity[phoneId] = state;
-                for (Record r : mRecords) {
-                    // Notify by correct subId.
-                    if (r.matchPhoneStateListenerEvent(PhoneStateListener.LISTEN_DATA_ACTIVITY) &&
-                            idMatch(r.subId, subId, phoneId)) {
-                        try {
-                            r.callback.onDataActivity(state);
-                        } catch (RemoteException ex) {
-                            mRemoveList.add(r.binder);
-                        }
+                for (Record r : getMatchingRecordsLocked(
+                        PhoneStateListener.LISTEN_DATA_ACTIVITY, subId, phoneId)) {
+                    try {
+                        r.callback.onDataActivity(state);
+                        noteDispatchedLocked(PhoneStateListener.LISTEN_DATA_ACTIVITY);
+                    } catch (RemoteException ex) {
+                        mRemoveList.add(r.binder);
                     }
                 }
             }
@@ -1129,20 +1274,18 @@ class TelephonyRegistry extends ITelephonyRegistry.Stub {
                             + ", " + mDataConnectionNetworkType[phoneId] + ")";
                     log(str);
                     mLocalLog.log(str);
-                    for (Record r : mRecords) {
-                        if (r.matchPhoneStateListenerEvent(
-                                PhoneStateListener.LISTEN_DATA_CONNECTION_STATE) &&
-                                idMatch(r.subId, subId, phoneId)) {
-                            try {
-                                if (DBG) {
-                                    log("Notify data connection state changed on sub: " + subId);
-                                }
-                                r.callback.onDataConnectionStateChanged(
-                                        mDataConnectionState[phoneId],
-                                        mDataConnectionNetworkType[phoneId]);
-                            } catch (RemoteException ex) {
-                                mRemoveList.add(r.binder);
+                    for (Record r : getMatchingRecordsLocked(
+                            PhoneStateListener.LISTEN_DATA_CONNECTION_STATE, subId, phoneId)) {
+                        try {
+                            if (DBG) {
+                                log("Notify data connection state changed on sub: " + subId);
                             }
+                            r.callback.onDataConnectionStateChanged(
+                                    mDataConnectionState[phoneId],
+                                    mDataConnectionNetworkType[phoneId]);
+                            noteDispatchedLocked(PhoneStateListener.LISTEN_DATA_CONNECTION_STATE);
+                        } catch (RemoteException ex) {
+                            mRemoveList.add(r.binder);
                         }
                     }
                     handleRemoveListLocked();
@@ -1222,15 +1365,16 @@ class TelephonyRegistry extends ITelephonyRegistry.Stub {
             int phoneId = SubscriptionManager.getPhoneId(subId);
             if (validatePhoneId(phoneId)) {
                 mCellLocation[phoneId] = cellLocation;
-                for (Record r : mRecords) {
-                    if (validateEventsAndUserLocked(r, PhoneStateListener.LISTEN_CELL_LOCATION) &&
-                            idMatch(r.subId, subId, phoneId)) {
+                for (Record r : getMatchingRecordsLocked(
+                        PhoneStateListener.LISTEN_CELL_LOCATION, subId, phoneId)) {
+                    if (validateEventsAndUserLocked(r, PhoneStateListener.LISTEN_CELL_LOCATION)) {
                         try {
                             if (DBG_LOC) {
                                 log("notifyCellLocation: cellLocation=" + cellLocation
                                         + " r=" + r);
                             }
                             r.callback.onCellLocationChanged(new Bundle(cellLocation));
+                            noteDispatchedLocked(PhoneStateListener.LISTEN_CELL_LOCATION);
                         } catch (RemoteException ex) {
                             mRemoveList.add(r.binder);
                         }
@@ -1426,6 +1570,15 @@ class TelephonyRegistry extends ITelephonyRegistry.Stub {
             pw.increaseIndent();
             mLocalLog.dump(fd, pw, args);
             pw.decreaseIndent();
+            pw.println("notifications by event:");
+            pw.increaseIndent();
+            for (int i = 0; i < Integer.SIZE; i++) {
+                if (mDispatchCounts[i] != 0 || mCoalescedCounts[i] != 0) {
+                    pw.println("0x" + Integer.toHexString(1 << i) + ": notified="
+                            + mDispatchCounts[i] + " coalesced=" + mCoalescedCounts[i]);
+                }
+            }
+            pw.decreaseIndent();
             pw.println("registrations: count=" + recordCount);
             pw.increaseIndent();
             for (Record r : mRecords) {
@@ -1719,14 +1872,36 @@ class TelephonyRegistry extends ITelephonyRegistry.Stub {
         Rlog.d(TAG, s);
     }
 
+    /**
+     * Returns the records listening for the event whose subscription matches, as in
+     * {@link #idMatch}.
+     */
+    private ArrayList<Record> getMatchingRecordsLocked(int event, int subId, int phoneId) {
+        final ArrayList<Record> records = new ArrayList<>();
+        mRecordIndex.getMatchingRecords(event, subId, phoneId, mDefaultSubId, mDefaultPhoneId,
+                records);
+        return records;
+    }
+
+    /** Counts a callback made to a listener of the event, for the dump. */
+    private void noteDispatchedLocked(int event) {
+        mDispatchCounts[Integer.numberOfTrailingZeros(event)]++;
+    }
+
     boolean idMatch(int rSubId, int subId, int phoneId) {
+        return idMatch(rSubId, subId, phoneId, mDefaultSubId, mDefaultPhoneId);
+    }
+
+    @VisibleForTesting
+    static boolean idMatch(int rSubId, int subId, int phoneId, int defaultSubId,
+            int defaultPhoneId) {
 
         if(subId < 0) {
             // Invalid case, we need compare phoneId with default one.
-            return (mDefaultPhoneId == phoneId);
+            return (defaultPhoneId == phoneId);
         }
         if(rSubId == SubscriptionManager.DEFAULT_SUBSCRIPTION_ID) {
-            return (subId == mDefaultSubId);
+            return (subId == defaultSubId);
         } else {
             return (rSubId == subId);
         }
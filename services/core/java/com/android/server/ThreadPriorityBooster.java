@@ -20,13 +20,30 @@ import static android.os.Process.getThreadPriority;
 import static android.os.Process.myTid;
 import static android.os.Process.setThreadPriority;
 
+import com.android.internal.annotations.GuardedBy;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
 /**
  * Utility class to boost threads in sections where important locks are held.
+ *
+ * <p>It can also profile the contention on the locks, see {@link #setProfilingEnabled}.
  */
 public class ThreadPriorityBooster {
 
+    // Shortest wait or hold counted by call site when profiling, by default.
+    private static final long DEFAULT_PROFILING_THRESHOLD_MS = 5;
+
+    // Call sites to dump for each lock, unless dumping all of them.
+    private static final int DUMP_SITES = 20;
+
+    @GuardedBy("sBoosters")
+    private static final ArrayList<ThreadPriorityBooster> sBoosters = new ArrayList<>();
+
     private volatile int mBoostToPriority;
     private final int mLockGuardIndex;
+    private volatile LockContentionProfiler mProfiler;
 
     private final ThreadLocal<PriorityState> mThreadState = new ThreadLocal<PriorityState>() {
         @Override protected PriorityState initialValue() {
@@ -37,9 +54,27 @@ public class ThreadPriorityBooster {
     public ThreadPriorityBooster(int boostToPriority, int lockGuardIndex) {
         mBoostToPriority = boostToPriority;
         mLockGuardIndex = lockGuardIndex;
+        synchronized (sBoosters) {
+            sBoosters.add(this);
+        }
+    }
+
+    /**
+     * Called right before the lock is acquired, where the build injects it; synchronized methods
+     * don't call it.
+     */
+    public void acquiring() {
+        if (mProfiler != null) {
+            final PriorityState state = mThreadState.get();
+            if (state.regionCounter == 0) {
+                state.acquiringNanos = System.nanoTime();
+            }
+        }
     }
 
     public void boost() {
+        final LockContentionProfiler profiler = mProfiler;
+        final long nowNanos = profiler != null ? System.nanoTime() : 0;
         final int tid = myTid();
         final int prevPriority = getThreadPriority(tid);
         final PriorityState state = mThreadState.get();
@@ -48,6 +83,12 @@ public class ThreadPriorityBooster {
             if (prevPriority > mBoostToPriority) {
                 setThreadPriority(tid, mBoostToPriority);
             }
+            if (profiler != null) {
+                profiler.noteAcquired(
+                        state.acquiringNanos != 0 ? nowNanos - state.acquiringNanos : -1);
+                state.acquiredNanos = nowNanos;
+            }
+            state.acquiringNanos = 0;
         }
         state.regionCounter++;
         if (LockGuard.ENABLED) {
@@ -57,6 +98,13 @@ public class ThreadPriorityBooster {
 
     public void reset() {
         final PriorityState state = mThreadState.get();
+        if (state.regionCounter == 1 && state.acquiredNanos != 0) {
+            final LockContentionProfiler profiler = mProfiler;
+            if (profiler != null) {
+                profiler.noteReleasing(System.nanoTime() - state.acquiredNanos);
+            }
+            state.acquiredNanos = 0;
+        }
         state.regionCounter--;
         final int currentPriority = getThreadPriority(myTid());
         if (state.regionCounter == 0 && state.prevPriority != currentPriority) {
@@ -81,6 +129,70 @@ public class ThreadPriorityBooster {
         }
     }
 
+    /**
+     * Starts profiling the contention on the locks of all the boosters, or stops it.
+     *
+     * @param thresholdMillis shortest wait or hold counted by call site
+     */
+    public static void setProfilingEnabled(boolean enabled, long thresholdMillis) {
+        synchronized (sBoosters) {
+            for (int i = 0; i < sBoosters.size(); i++) {
+                final ThreadPriorityBooster booster = sBoosters.get(i);
+                booster.mProfiler = enabled ? new LockContentionProfiler(
+                        LockGuard.lockToString(booster.mLockGuardIndex), thresholdMillis) : null;
+            }
+        }
+    }
+
+    /**
+     * Handles "dumpsys activity lock-contention [on [THRESHOLD_MS] | off | reset]".
+     */
+    public static void dumpLockContention(PrintWriter pw, String[] args, int opti,
+            boolean dumpAll) {
+        final String cmd = opti < args.length ? args[opti] : null;
+        if ("on".equals(cmd)) {
+            long thresholdMillis = DEFAULT_PROFILING_THRESHOLD_MS;
+            if (opti + 1 < args.length) {
+                try {
+                    thresholdMillis = Long.parseLong(args[opti + 1]);
+                } catch (NumberFormatException e) {
+                    pw.println("Error: bad threshold " + args[opti + 1]);
+                    return;
+                }
+            }
+            setProfilingEnabled(true, thresholdMillis);
+            pw.println("Lock contention profiling on.");
+            return;
+        } else if ("off".equals(cmd)) {
+            setProfilingEnabled(false, 0);
+            pw.println("Lock contention profiling off.");
+            return;
+        }
+
+        boolean profiled = false;
+        synchronized (sBoosters) {
+            for (int i = 0; i < sBoosters.size(); i++) {
+                final LockContentionProfiler profiler = sBoosters.get(i).mProfiler;
+                if (profiler == null) {
+                    continue;
+                }
+                profiled = true;
+                if ("reset".equals(cmd)) {
+                    profiler.reset();
+                } else {
+                    profiler.dump(pw, "", dumpAll ? LockContentionProfiler.MAX_SITES + 1
+                            : DUMP_SITES);
+                    pw.println();
+                }
+            }
+        }
+        if (!profiled) {
+            pw.println("Lock contention profiling is off; use \"lock-contention on\".");
+        } else if ("reset".equals(cmd)) {
+            pw.println("Lock contention profiles reset.");
+        }
+    }
+
     private static class PriorityState {
 
         /**
@@ -94,5 +206,15 @@ public class ThreadPriorityBooster {
          * The thread's previous priority before boosting.
          */
         int prevPriority;
+
+        /**
+         * When the thread started to acquire the lock, if profiling, or 0.
+         */
+        long acquiringNanos;
+
+        /**
+         * When the thread acquired the lock, if profiling, or 0.
+         */
+        long acquiredNanos;
     }
 }
\ No newline at end of file
@@ -36,17 +36,20 @@ import android.os.Debug;
 import android.os.Handler;
 import android.os.IPowerManager;
 import android.os.Looper;
+import android.os.LooperProfiler;
 import android.os.Process;
 import android.os.ServiceManager;
 import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.util.EventLog;
 import android.util.Log;
+import android.util.LogWriter;
 import android.util.Slog;
 
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -77,6 +80,9 @@ public class Watchdog extends Thread {
     static final int WAITED_HALF = 2;
     static final int OVERDUE = 3;
 
+    // Kinds of messages to dump for each looper, unless dumping all of them.
+    static final int DUMP_LOOPER_ENTRIES = 20;
+
     // Which native processes to dump into dropbox's stack traces
     public static final String[] NATIVE_STACKS_OF_INTEREST = new String[] {
         "/system/bin/audioserver",
@@ -121,6 +127,7 @@ public class Watchdog extends Thread {
         private final Handler mHandler;
         private final String mName;
         private final long mWaitMax;
+        private final LooperProfiler mProfiler;
         private final ArrayList<Monitor> mMonitors = new ArrayList<Monitor>();
         private boolean mCompleted;
         private Monitor mCurrentMonitor;
@@ -131,6 +138,13 @@ public class Watchdog extends Thread {
             mName = name;
             mWaitMax = waitMaxMillis;
             mCompleted = true;
+
+            // Count what the thread dispatches, to tell what it was busy with when it's late.
+            final Looper looper = handler.getLooper();
+            if (looper.getProfiler() == null) {
+                looper.setProfiler(new LooperProfiler());
+            }
+            mProfiler = looper.getProfiler();
         }
 
         public void addMonitor(Monitor monitor) {
@@ -186,9 +200,15 @@ public class Watchdog extends Thread {
             return mName;
         }
 
+        public LooperProfiler getProfiler() {
+            return mProfiler;
+        }
+
         public String describeBlockedStateLocked() {
             if (mCurrentMonitor == null) {
-                return "Blocked in handler on " + mName + " (" + getThread().getName() + ")";
+                final String dispatch = mProfiler.describeCurrentDispatch();
+                return "Blocked in handler on " + mName + " (" + getThread().getName() + ")"
+                        + (dispatch != null ? " dispatching " + dispatch : "");
             } else {
                 return "Blocked in monitor " + mCurrentMonitor.getClass().getName()
                         + " on " + mName + " (" + getThread().getName() + ")";
@@ -377,6 +397,23 @@ public class Watchdog extends Thread {
         return builder.toString();
     }
 
+    /**
+     * Dumps what the threads checked by the watchdog have dispatched.
+     */
+    public void dumpLoopers(PrintWriter pw, boolean all) {
+        final ArrayList<HandlerChecker> checkers;
+        synchronized (this) {
+            checkers = new ArrayList<>(mHandlerCheckers);
+        }
+        for (int i = 0; i < checkers.size(); i++) {
+            final HandlerChecker hc = checkers.get(i);
+            pw.println("Looper of " + hc.getName() + " (" + hc.getThread().getName() + "):");
+            hc.getProfiler().dump(pw, "  ", all ? LooperProfiler.MAX_ENTRIES + 1
+                    : DUMP_LOOPER_ENTRIES);
+            pw.println();
+        }
+    }
+
     private ArrayList<Integer> getInterestingHalPids() {
         try {
             IServiceManager serviceManager = IServiceManager.getService();
@@ -496,6 +533,15 @@ public class Watchdog extends Thread {
             // First collect stack traces from all threads of the system process.
             // Then kill this process so that the system will restart.
             EventLog.writeEvent(EventLogTags.WATCHDOG, subject);
+            if (!blockedCheckers.isEmpty()) {
+                final PrintWriter pw = new PrintWriter(new LogWriter(Log.WARN, TAG));
+                for (int i = 0; i < blockedCheckers.size(); i++) {
+                    final HandlerChecker hc = blockedCheckers.get(i);
+                    pw.println("Looper of blocked " + hc.getName() + ":");
+                    hc.getProfiler().dump(pw, "  ", DUMP_LOOPER_ENTRIES);
+                }
+                pw.flush();
+            }
 
             ArrayList<Integer> pids = new ArrayList<>();
             pids.add(Process.myPid());
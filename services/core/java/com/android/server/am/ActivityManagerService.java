@@ -350,9 +350,9 @@ import android.util.Pair;
 import android.util.PrintWriterPrinter;
 import android.util.Slog;
 import android.util.SparseArray;
+import android.util.SparseBooleanArray;
 import android.util.SparseIntArray;
 import android.util.TimeUtils;
-import android.util.Xml;
 import android.view.Gravity;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -360,7 +360,6 @@ import android.view.WindowManager;
 
 import com.android.server.job.JobSchedulerInternal;
 import com.google.android.collect.Lists;
-import com.google.android.collect.Maps;
 
 import com.android.internal.R;
 import com.android.internal.annotations.GuardedBy;
@@ -388,9 +387,9 @@ import com.android.internal.telephony.TelephonyIntents;
 import com.android.internal.util.ArrayUtils;
 import com.android.internal.util.DumpUtils;
 import com.android.internal.util.FastPrintWriter;
-import com.android.internal.util.FastXmlSerializer;
 import com.android.internal.util.MemInfoReader;
 import com.android.internal.util.Preconditions;
+import com.android.internal.util.XmlUtils;
 import com.android.server.AppOpsService;
 import com.android.server.AttributeCache;
 import com.android.server.DeviceIdleController;
@@ -430,7 +429,6 @@ import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
 import java.lang.ref.WeakReference;
-import java.nio.charset.StandardCharsets;
 import java.text.DateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -733,6 +731,10 @@ public class ActivityManagerService extends IActivityManager.Stub
         sThreadPriorityBooster.reset();
     }
 
+    static void noteAcquiringLockedSection() {
+        sThreadPriorityBooster.acquiring();
+    }
+
     public class PendingAssistExtras extends Binder implements Runnable {
         public final ActivityRecord activity;
         public boolean isHome;
@@ -1102,8 +1104,21 @@ public class ActivityManagerService extends IActivityManager.Stub
      * to {@link UriPermission#uri} to {@link UriPermission}.
      */
     @GuardedBy("this")
-    private final SparseArray<ArrayMap<GrantUri, UriPermission>>
-            mGrantedUriPermissions = new SparseArray<ArrayMap<GrantUri, UriPermission>>();
+    private final SparseArray<GrantedUriPermissions>
+            mGrantedUriPermissions = new SparseArray<GrantedUriPermissions>();
+
+    /**
+     * Snapshots of the persisted grants of each target UID, as last written to
+     * {@link #mGrantFile}. Only the UIDs in {@link #mDirtyPersistedUriGrantUids} are
+     * snapshotted again on the next write, unless {@link #mAllPersistedUriGrantsDirty}.
+     */
+    @GuardedBy("this")
+    private final SparseArray<ArrayList<UriPermission.Snapshot>> mPersistedUriGrantSnapshots =
+            new SparseArray<>();
+    @GuardedBy("this")
+    private final SparseBooleanArray mDirtyPersistedUriGrantUids = new SparseBooleanArray();
+    @GuardedBy("this")
+    private boolean mAllPersistedUriGrantsDirty = true;
 
     public static class GrantUri {
         public final int sourceUserId;
@@ -8709,7 +8724,7 @@ public class ActivityManagerService extends IActivityManager.Stub
     }
 
     private UriPermission findUriPermissionLocked(int targetUid, GrantUri grantUri) {
-        final ArrayMap<GrantUri, UriPermission> targetUris = mGrantedUriPermissions.get(targetUid);
+        final GrantedUriPermissions targetUris = mGrantedUriPermissions.get(targetUid);
         if (targetUris != null) {
             return targetUris.get(grantUri);
         }
@@ -8718,9 +8733,9 @@ public class ActivityManagerService extends IActivityManager.Stub
 
     private UriPermission findOrCreateUriPermissionLocked(String sourcePkg,
             String targetPkg, int targetUid, GrantUri grantUri) {
-        ArrayMap<GrantUri, UriPermission> targetUris = mGrantedUriPermissions.get(targetUid);
+        GrantedUriPermissions targetUris = mGrantedUriPermissions.get(targetUid);
         if (targetUris == null) {
-            targetUris = Maps.newArrayMap();
+            targetUris = new GrantedUriPermissions();
             mGrantedUriPermissions.put(targetUid, targetUris);
         }
 
@@ -8744,7 +8759,7 @@ public class ActivityManagerService extends IActivityManager.Stub
             return true;
         }
 
-        final ArrayMap<GrantUri, UriPermission> perms = mGrantedUriPermissions.get(uid);
+        final GrantedUriPermissions perms = mGrantedUriPermissions.get(uid);
         if (perms == null) return false;
 
         // First look for exact match
@@ -8754,16 +8769,7 @@ public class ActivityManagerService extends IActivityManager.Stub
         }
 
         // No exact match, look for prefixes
-        final int N = perms.size();
-        for (int i = 0; i < N; i++) {
-            final UriPermission perm = perms.valueAt(i);
-            if (perm.uri.prefix && grantUri.uri.isPathPrefixMatch(perm.uri.uri)
-                    && perm.getStrength(modeFlags) >= minStrength) {
-                return true;
-            }
-        }
-
-        return false;
+        return perms.hasPrefixPermission(grantUri.uri, modeFlags, minStrength);
     }
 
     /**
@@ -9172,7 +9178,7 @@ public class ActivityManagerService extends IActivityManager.Stub
 
     void removeUriPermissionIfNeededLocked(UriPermission perm) {
         if (perm.modeFlags == 0) {
-            final ArrayMap<GrantUri, UriPermission> perms = mGrantedUriPermissions.get(
+            final GrantedUriPermissions perms = mGrantedUriPermissions.get(
                     perm.targetUid);
             if (perms != null) {
                 if (DEBUG_URI_PERMISSION) Slog.v(TAG_URI_PERMISSION,
@@ -9205,7 +9211,7 @@ public class ActivityManagerService extends IActivityManager.Stub
         if (!checkHoldingPermissionsLocked(pm, pi, grantUri, callingUid, modeFlags)) {
             // If they don't have direct access to the URI, then revoke any
             // ownerless URI permissions that have been granted to them.
-            final ArrayMap<GrantUri, UriPermission> perms = mGrantedUriPermissions.get(callingUid);
+            final GrantedUriPermissions perms = mGrantedUriPermissions.get(callingUid);
             if (perms != null) {
                 boolean persistChanged = false;
                 for (int i = perms.size()-1; i >= 0; i--) {
@@ -9229,6 +9235,7 @@ public class ActivityManagerService extends IActivityManager.Stub
                     mGrantedUriPermissions.remove(callingUid);
                 }
                 if (persistChanged) {
+                    markPersistedUriGrantsDirtyLocked(callingUid);
                     schedulePersistUriGrants();
                 }
             }
@@ -9240,7 +9247,7 @@ public class ActivityManagerService extends IActivityManager.Stub
         // Go through all of the permissions and remove any that match.
         for (int i = mGrantedUriPermissions.size()-1; i >= 0; i--) {
             final int targetUid = mGrantedUriPermissions.keyAt(i);
-            final ArrayMap<GrantUri, UriPermission> perms = mGrantedUriPermissions.valueAt(i);
+            final GrantedUriPermissions perms = mGrantedUriPermissions.valueAt(i);
 
             for (int j = perms.size()-1; j >= 0; j--) {
                 final UriPermission perm = perms.valueAt(j);
@@ -9251,9 +9258,11 @@ public class ActivityManagerService extends IActivityManager.Stub
                         && perm.uri.uri.isPathPrefixMatch(grantUri.uri)) {
                     if (DEBUG_URI_PERMISSION) Slog.v(TAG_URI_PERMISSION,
                                 "Revoking " + perm.targetUid + " permission to " + perm.uri);
-                    persistChanged |= perm.revokeModes(
-                            modeFlags | Intent.FLAG_GRANT_PERSISTABLE_URI_PERMISSION,
-                            targetPackage == null);
+                    if (perm.revokeModes(modeFlags | Intent.FLAG_GRANT_PERSISTABLE_URI_PERMISSION,
+                            targetPackage == null)) {
+                        persistChanged = true;
+                        markPersistedUriGrantsDirtyLocked(targetUid);
+                    }
                     if (perm.modeFlags == 0) {
                         perms.removeAt(j);
                     }
@@ -9329,13 +9338,13 @@ public class ActivityManagerService extends IActivityManager.Stub
         int N = mGrantedUriPermissions.size();
         for (int i = 0; i < N; i++) {
             final int targetUid = mGrantedUriPermissions.keyAt(i);
-            final ArrayMap<GrantUri, UriPermission> perms = mGrantedUriPermissions.valueAt(i);
+            final GrantedUriPermissions perms = mGrantedUriPermissions.valueAt(i);
 
             // Only inspect grants matching user
             if (userHandle == UserHandle.USER_ALL
                     || userHandle == UserHandle.getUserId(targetUid)) {
-                for (Iterator<UriPermission> it = perms.values().iterator(); it.hasNext();) {
-                    final UriPermission perm = it.next();
+                for (int j = perms.size() - 1; j >= 0; j--) {
+                    final UriPermission perm = perms.valueAt(j);
 
                     // Only inspect grants matching package
                     if (packageName == null || perm.sourcePkg.equals(packageName)
@@ -9346,13 +9355,16 @@ public class ActivityManagerService extends IActivityManager.Stub
                         if (Downloads.Impl.AUTHORITY.equals(perm.uri.uri.getAuthority())
                                 && !persistable) continue;
 
-                        persistChanged |= perm.revokeModes(persistable
-                                ? ~0 : ~Intent.FLAG_GRANT_PERSISTABLE_URI_PERMISSION, true);
+                        if (perm.revokeModes(persistable
+                                ? ~0 : ~Intent.FLAG_GRANT_PERSISTABLE_URI_PERMISSION, true)) {
+                            persistChanged = true;
+                            markPersistedUriGrantsDirtyLocked(targetUid);
+                        }
 
                         // Only remove when no modes remain; any persisted grants
                         // will keep this alive.
                         if (perm.modeFlags == 0) {
-                            it.remove();
+                            perms.removeAt(j);
                         }
                     }
                 }
@@ -9454,20 +9466,55 @@ public class ActivityManagerService extends IActivityManager.Stub
         }
     }
 
+    @GuardedBy("this")
+    private void markPersistedUriGrantsDirtyLocked(int targetUid) {
+        mDirtyPersistedUriGrantUids.put(targetUid, true);
+    }
+
+    @GuardedBy("this")
+    private void snapshotPersistedUriGrantsLocked(int targetUid) {
+        final GrantedUriPermissions perms = mGrantedUriPermissions.get(targetUid);
+        ArrayList<UriPermission.Snapshot> snapshots = null;
+        if (perms != null) {
+            for (int i = 0; i < perms.size(); i++) {
+                final UriPermission perm = perms.valueAt(i);
+                if (perm.persistedModeFlags != 0) {
+                    if (snapshots == null) {
+                        snapshots = new ArrayList<>();
+                    }
+                    snapshots.add(perm.snapshot());
+                }
+            }
+        }
+        if (snapshots != null) {
+            mPersistedUriGrantSnapshots.put(targetUid, snapshots);
+        } else {
+            mPersistedUriGrantSnapshots.remove(targetUid);
+        }
+    }
+
     private void writeGrantedUriPermissions() {
         if (DEBUG_URI_PERMISSION) Slog.v(TAG_URI_PERMISSION, "writeGrantedUriPermissions()");
 
-        // Snapshot permissions so we can persist without lock
+        // Snapshot permissions so we can persist without lock. Only the UIDs whose persisted
+        // grants changed since the last write need a new snapshot.
         ArrayList<UriPermission.Snapshot> persist = Lists.newArrayList();
         synchronized (this) {
-            final int size = mGrantedUriPermissions.size();
-            for (int i = 0; i < size; i++) {
-                final ArrayMap<GrantUri, UriPermission> perms = mGrantedUriPermissions.valueAt(i);
-                for (UriPermission perm : perms.values()) {
-                    if (perm.persistedModeFlags != 0) {
-                        persist.add(perm.snapshot());
-                    }
+            if (mAllPersistedUriGrantsDirty) {
+                mPersistedUriGrantSnapshots.clear();
+                for (int i = 0; i < mGrantedUriPermissions.size(); i++) {
+                    snapshotPersistedUriGrantsLocked(mGrantedUriPermissions.keyAt(i));
                 }
+                mAllPersistedUriGrantsDirty = false;
+            } else {
+                for (int i = 0; i < mDirtyPersistedUriGrantUids.size(); i++) {
+                    snapshotPersistedUriGrantsLocked(mDirtyPersistedUriGrantUids.keyAt(i));
+                }
+            }
+            mDirtyPersistedUriGrantUids.clear();
+
+            for (int i = 0; i < mPersistedUriGrantSnapshots.size(); i++) {
+                persist.addAll(mPersistedUriGrantSnapshots.valueAt(i));
             }
         }
 
@@ -9475,8 +9522,7 @@ public class ActivityManagerService extends IActivityManager.Stub
         try {
             fos = mGrantFile.startWrite();
 
-            XmlSerializer out = new FastXmlSerializer();
-            out.setOutput(fos, StandardCharsets.UTF_8.name());
+            XmlSerializer out = XmlUtils.resolveSerializer(fos);
             out.startDocument(null, true);
             out.startTag(null, TAG_URI_GRANTS);
             for (UriPermission.Snapshot perm : persist) {
@@ -9510,8 +9556,7 @@ public class ActivityManagerService extends IActivityManager.Stub
         FileInputStream fis = null;
         try {
             fis = mGrantFile.openRead();
-            final XmlPullParser in = Xml.newPullParser();
-            in.setInput(fis, StandardCharsets.UTF_8.name());
+            final XmlPullParser in = XmlUtils.resolvePullParser(fis);
 
             int type;
             while ((type = in.next()) != END_DOCUMENT) {
@@ -9615,6 +9660,7 @@ public class ActivityManagerService extends IActivityManager.Stub
             persistChanged |= maybePrunePersistedUriGrantsLocked(callingUid);
 
             if (persistChanged) {
+                markPersistedUriGrantsDirtyLocked(callingUid);
                 schedulePersistUriGrants();
             }
         }
@@ -9654,6 +9700,7 @@ public class ActivityManagerService extends IActivityManager.Stub
             }
 
             if (persistChanged) {
+                markPersistedUriGrantsDirtyLocked(callingUid);
                 schedulePersistUriGrants();
             }
         }
@@ -9666,12 +9713,13 @@ public class ActivityManagerService extends IActivityManager.Stub
      * @return if any mutations occured that require persisting.
      */
     private boolean maybePrunePersistedUriGrantsLocked(int uid) {
-        final ArrayMap<GrantUri, UriPermission> perms = mGrantedUriPermissions.get(uid);
+        final GrantedUriPermissions perms = mGrantedUriPermissions.get(uid);
         if (perms == null) return false;
         if (perms.size() < MAX_PERSISTED_URI_GRANTS) return false;
 
         final ArrayList<UriPermission> persisted = Lists.newArrayList();
-        for (UriPermission perm : perms.values()) {
+        for (int j = 0; j < perms.size(); j++) {
+            final UriPermission perm = perms.valueAt(j);
             if (perm.persistedModeFlags != 0) {
                 persisted.add(perm);
             }
@@ -9717,12 +9765,13 @@ public class ActivityManagerService extends IActivityManager.Stub
         final ArrayList<android.content.UriPermission> result = Lists.newArrayList();
         synchronized (this) {
             if (incoming) {
-                final ArrayMap<GrantUri, UriPermission> perms = mGrantedUriPermissions.get(
+                final GrantedUriPermissions perms = mGrantedUriPermissions.get(
                         callingUid);
                 if (perms == null) {
                     Slog.w(TAG, "No permission grants found for " + packageName);
                 } else {
-                    for (UriPermission perm : perms.values()) {
+                    for (int j = 0; j < perms.size(); j++) {
+                        final UriPermission perm = perms.valueAt(j);
                         if (packageName.equals(perm.targetPkg) && perm.persistedModeFlags != 0) {
                             result.add(perm.buildPersistedPublicApiObject());
                         }
@@ -9731,9 +9780,10 @@ public class ActivityManagerService extends IActivityManager.Stub
             } else {
                 final int size = mGrantedUriPermissions.size();
                 for (int i = 0; i < size; i++) {
-                    final ArrayMap<GrantUri, UriPermission> perms =
+                    final GrantedUriPermissions perms =
                             mGrantedUriPermissions.valueAt(i);
-                    for (UriPermission perm : perms.values()) {
+                    for (int j = 0; j < perms.size(); j++) {
+                        final UriPermission perm = perms.valueAt(j);
                         if (packageName.equals(perm.sourcePkg) && perm.persistedModeFlags != 0) {
                             result.add(perm.buildPersistedPublicApiObject());
                         }
@@ -9754,8 +9804,9 @@ public class ActivityManagerService extends IActivityManager.Stub
         synchronized (this) {
             final int size = mGrantedUriPermissions.size();
             for (int i = 0; i < size; i++) {
-                final ArrayMap<GrantUri, UriPermission> perms = mGrantedUriPermissions.valueAt(i);
-                for (UriPermission perm : perms.values()) {
+                final GrantedUriPermissions perms = mGrantedUriPermissions.valueAt(i);
+                for (int j = 0; j < perms.size(); j++) {
+                    final UriPermission perm = perms.valueAt(j);
                     if (packageName.equals(perm.targetPkg) && perm.targetUserId == userId
                             && perm.persistedModeFlags != 0) {
                         result.add(perm.buildPersistedPublicApiObject());
@@ -11314,7 +11365,7 @@ public class ActivityManagerService extends IActivityManager.Stub
      * Returns if the ContentProvider has granted a uri to callingUid
      */
     boolean checkAuthorityGrants(int callingUid, ProviderInfo cpi, int userId, boolean checkUser) {
-        final ArrayMap<GrantUri, UriPermission> perms = mGrantedUriPermissions.get(callingUid);
+        final GrantedUriPermissions perms = mGrantedUriPermissions.get(callingUid);
         if (perms != null) {
             for (int i=perms.size()-1; i>=0; i--) {
                 GrantUri grantUri = perms.keyAt(i);
@@ -14103,6 +14154,10 @@ public class ActivityManagerService extends IActivityManager.Stub
 
     private void retrieveSettings() {
         final ContentResolver resolver = mContext.getContentResolver();
+        // Read the global settings below in one call to the settings provider.
+        Settings.Global.prefetchStrings(resolver, DEVELOPMENT_ENABLE_FREEFORM_WINDOWS_SUPPORT,
+                DEBUG_APP, WAIT_FOR_DEBUGGER, ALWAYS_FINISH_ACTIVITIES, DEVELOPMENT_FORCE_RTL,
+                DEVELOPMENT_FORCE_RESIZABLE_ACTIVITIES, NETWORK_ACCESS_TIMEOUT_MS);
         final boolean freeformWindowManagement =
                 mContext.getPackageManager().hasSystemFeature(FEATURE_FREEFORM_WINDOW_MANAGEMENT)
                         || Settings.Global.getInt(
@@ -15292,6 +15347,10 @@ public class ActivityManagerService extends IActivityManager.Stub
                 }
             } else if ("locks".equals(cmd)) {
                 LockGuard.dump(fd, pw, args);
+            } else if ("lock-contention".equals(cmd)) {
+                ThreadPriorityBooster.dumpLockContention(pw, args, opti, dumpAll);
+            } else if ("loopers".equals(cmd)) {
+                Watchdog.getInstance().dumpLoopers(pw, dumpAll);
             } else {
                 // Dumping a single activity?
                 if (!dumpActivity(fd, pw, cmd, args, opti, dumpAll, dumpVisibleStacksOnly,
@@ -16587,7 +16646,7 @@ public class ActivityManagerService extends IActivityManager.Stub
                 if (dumpUid >= -1 && UserHandle.getAppId(uid) != dumpUid) {
                     continue;
                 }
-                final ArrayMap<GrantUri, UriPermission> perms = mGrantedUriPermissions.valueAt(i);
+                final GrantedUriPermissions perms = mGrantedUriPermissions.valueAt(i);
                 if (!printed) {
                     if (needSep) pw.println();
                     needSep = true;
@@ -16596,7 +16655,8 @@ public class ActivityManagerService extends IActivityManager.Stub
                     printedAnything = true;
                 }
                 pw.print("  * UID "); pw.print(uid); pw.println(" holds:");
-                for (UriPermission perm : perms.values()) {
+                for (int j = 0; j < perms.size(); j++) {
+                    final UriPermission perm = perms.valueAt(j);
                     pw.print("    "); pw.println(perm);
                     if (dumpAll) {
                         perm.dump(pw, "      ");
@@ -2648,6 +2648,9 @@ final class ActivityManagerShellCommand extends ShellCommand {
             pw.println("    s[ervices] [COMP_SPEC ...]: service state");
             pw.println("    as[sociations]: tracked app associations");
             pw.println("    settings: currently applied config settings");
+            pw.println("    loopers: messages dispatched by the threads checked by the watchdog");
+            pw.println("    lock-contention [on [THRESHOLD_MS] | off | reset]: waits for and");
+            pw.println("        holds of the activity and window manager locks");
             pw.println("    service [COMP_SPEC]: service client-side state");
             pw.println("    package [PACKAGE_NAME]: all state related to given package");
             pw.println("    all: dump all activities");
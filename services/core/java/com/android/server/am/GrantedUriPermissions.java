@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import android.net.Uri;
+import android.util.ArrayMap;
+
+import com.android.server.am.ActivityManagerService.GrantUri;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The {@link UriPermission}s granted to a single target UID, keyed by {@link GrantUri}.
+ * <p>
+ * Prefix grants are additionally indexed in a trie of path segments under their scheme and
+ * authority, so that finding the prefix grants covering a {@link Uri} takes time proportional
+ * to the length of its path instead of the number of grants held by the UID.
+ */
+final class GrantedUriPermissions {
+    private final ArrayMap<GrantUri, UriPermission> mPerms = new ArrayMap<>();
+
+    /** Roots of the prefix grant tries, keyed by {@link #getRootKey}. */
+    private final ArrayMap<String, PrefixNode> mPrefixRoots = new ArrayMap<>();
+
+    private static final class PrefixNode {
+        /** Children keyed by the next path segment, or null if there are none. */
+        ArrayMap<String, PrefixNode> children;
+
+        /** Prefix grants whose path ends at this node, or null if there are none. */
+        ArrayList<UriPermission> perms;
+
+        boolean isEmpty() {
+            return (children == null || children.isEmpty()) && (perms == null || perms.isEmpty());
+        }
+    }
+
+    int size() {
+        return mPerms.size();
+    }
+
+    boolean isEmpty() {
+        return mPerms.isEmpty();
+    }
+
+    GrantUri keyAt(int index) {
+        return mPerms.keyAt(index);
+    }
+
+    UriPermission valueAt(int index) {
+        return mPerms.valueAt(index);
+    }
+
+    UriPermission get(GrantUri grantUri) {
+        return mPerms.get(grantUri);
+    }
+
+    void put(GrantUri grantUri, UriPermission perm) {
+        final UriPermission old = mPerms.put(grantUri, perm);
+        if (old != null && old.uri.prefix) {
+            removeFromIndex(old);
+        }
+        if (grantUri.prefix) {
+            addToIndex(perm);
+        }
+    }
+
+    UriPermission remove(GrantUri grantUri) {
+        final UriPermission perm = mPerms.remove(grantUri);
+        if (perm != null && perm.uri.prefix) {
+            removeFromIndex(perm);
+        }
+        return perm;
+    }
+
+    UriPermission removeAt(int index) {
+        final UriPermission perm = mPerms.removeAt(index);
+        if (perm.uri.prefix) {
+            removeFromIndex(perm);
+        }
+        return perm;
+    }
+
+    /**
+     * Returns true if a prefix grant covering the given {@link Uri} allows the given modes with
+     * at least the given strength.
+     *
+     * @see UriPermission#getStrength(int)
+     */
+    boolean hasPrefixPermission(Uri uri, int modeFlags, int minStrength) {
+        PrefixNode node = mPrefixRoots.get(getRootKey(uri));
+        if (node == null) {
+            return false;
+        }
+        final List<String> segments = uri.getPathSegments();
+        final int segmentCount = segments.size();
+        for (int i = 0; ; i++) {
+            if (node.perms != null) {
+                for (int j = node.perms.size() - 1; j >= 0; j--) {
+                    final UriPermission perm = node.perms.get(j);
+                    // The trie can't tell a null scheme or authority from "null"; double check.
+                    if (perm.getStrength(modeFlags) >= minStrength
+                            && uri.isPathPrefixMatch(perm.uri.uri)) {
+                        return true;
+                    }
+                }
+            }
+            if (i == segmentCount || node.children == null) {
+                return false;
+            }
+            node = node.children.get(segments.get(i));
+            if (node == null) {
+                return false;
+            }
+        }
+    }
+
+    private void addToIndex(UriPermission perm) {
+        final String rootKey = getRootKey(perm.uri.uri);
+        PrefixNode node = mPrefixRoots.get(rootKey);
+        if (node == null) {
+            node = new PrefixNode();
+            mPrefixRoots.put(rootKey, node);
+        }
+        final List<String> segments = perm.uri.uri.getPathSegments();
+        final int segmentCount = segments.size();
+        for (int i = 0; i < segmentCount; i++) {
+            if (node.children == null) {
+                node.children = new ArrayMap<>();
+            }
+            final String segment = segments.get(i);
+            PrefixNode child = node.children.get(segment);
+            if (child == null) {
+                child = new PrefixNode();
+                node.children.put(segment, child);
+            }
+            node = child;
+        }
+        if (node.perms == null) {
+            node.perms = new ArrayList<>(1);
+        }
+        node.perms.add(perm);
+    }
+
+    private void removeFromIndex(UriPermission perm) {
+        final String rootKey = getRootKey(perm.uri.uri);
+        final PrefixNode root = mPrefixRoots.get(rootKey);
+        if (root != null && removeFromNode(root, perm, perm.uri.uri.getPathSegments(), 0)) {
+            mPrefixRoots.remove(rootKey);
+        }
+    }
+
+    /**
+     * Removes the permission from the subtree, pruning the nodes left empty.
+     *
+     * @return true if the node itself is empty afterwards.
+     */
+    private static boolean removeFromNode(PrefixNode node, UriPermission perm,
+            List<String> segments, int depth) {
+        if (depth == segments.size()) {
+            if (node.perms != null) {
+                node.perms.remove(perm);
+            }
+        } else if (node.children != null) {
+            final String segment = segments.get(depth);
+            final PrefixNode child = node.children.get(segment);
+            if (child != null && removeFromNode(child, perm, segments, depth + 1)) {
+                node.children.remove(segment);
+            }
+        }
+        return node.isEmpty();
+    }
+
+    private static String getRootKey(Uri uri) {
+        return uri.getScheme() + "://" + uri.getAuthority();
+    }
+}
@@ -2014,6 +2014,7 @@ public class SyncManager {
         pw.print("memory low: "); pw.println(mStorageIsLow);
         pw.print("device idle: "); pw.println(mDeviceIsIdle);
         pw.print("reported active: "); pw.println(mReportedSyncActive);
+        mSyncStorageEngine.dumpFileWrites(pw);
 
         final AccountAndUser[] accounts = AccountManagerService.getSingleton().getAllAccounts();
 
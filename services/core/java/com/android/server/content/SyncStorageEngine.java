@@ -36,6 +36,7 @@ import android.database.sqlite.SQLiteQueryBuilder;
 import android.os.Bundle;
 import android.os.Environment;
 import android.os.Handler;
+import android.os.FileUtils;
 import android.os.Message;
 import android.os.Parcel;
 import android.os.RemoteCallbackList;
@@ -47,6 +48,8 @@ import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.ArrayUtils;
 import com.android.internal.util.FastXmlSerializer;
 
+import libcore.io.IoUtils;
+
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlSerializer;
@@ -54,6 +57,7 @@ import org.xmlpull.v1.XmlSerializer;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.PrintWriter;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Calendar;
@@ -409,6 +413,24 @@ public class SyncStorageEngine extends Handler {
     private final SparseArray<SyncStatusInfo> mSyncStatus =
             new SparseArray<SyncStatusInfo>();
 
+    /** Authorities whose status changed since it was last written. */
+    private final SparseBooleanArray mDirtySyncStatus = new SparseBooleanArray();
+
+    /**
+     * Whether the status file must be written again in full, rather than have the changed
+     * statuses appended to it, as when statuses were removed.
+     */
+    private boolean mRewriteStatus = true;
+
+    /** Statuses appended to the status file since it was last written in full. */
+    private int mAppendedStatusCount;
+
+    private int mStatusRewrites;
+    private int mStatusAppends;
+    private long mStatusRecordsWritten;
+    private int mStatisticsWrites;
+    private int mAccountInfoWrites;
+
     private final ArrayList<SyncHistoryItem> mSyncHistory =
             new ArrayList<SyncHistoryItem>();
 
@@ -948,7 +970,10 @@ public class SyncStorageEngine extends Handler {
                 return;
             }
             SyncStatusInfo status = getOrCreateSyncStatusLocked(authority.ident);
-            status.pending = pendingValue;
+            if (status.pending != pendingValue) {
+                status.pending = pendingValue;
+                mDirtySyncStatus.put(authority.ident, true);
+            }
         }
         reportChange(ContentResolver.SYNC_OBSERVER_TYPE_PENDING);
     }
@@ -995,6 +1020,7 @@ public class SyncStorageEngine extends Handler {
                         j--;
                         if (mSyncStatus.keyAt(j) == ident) {
                             mSyncStatus.remove(mSyncStatus.keyAt(j));
+                            mRewriteStatus = true;
                         }
                     }
                     j = mSyncHistory.size();
@@ -1128,6 +1154,7 @@ public class SyncStorageEngine extends Handler {
             item.upstreamActivity = upstreamActivity;
 
             SyncStatusInfo status = getOrCreateSyncStatusLocked(item.authorityId);
+            mDirtySyncStatus.put(item.authorityId, true);
 
             status.numSyncs++;
             status.totalElapsedTime += elapsedTime;
@@ -1468,6 +1495,7 @@ public class SyncStorageEngine extends Handler {
         if (status == null) {
             status = new SyncStatusInfo(authorityId);
             mSyncStatus.put(authorityId, status);
+            mDirtySyncStatus.put(authorityId, true);
         }
         return status;
     }
@@ -1493,6 +1521,8 @@ public class SyncStorageEngine extends Handler {
             mAccounts.clear();
             mServices.clear();
             mSyncStatus.clear();
+            mDirtySyncStatus.clear();
+            mRewriteStatus = true;
             mSyncHistory.clear();
 
             readAccountInfoLocked();
@@ -1866,6 +1896,7 @@ public class SyncStorageEngine extends Handler {
             Slog.v(TAG_FILE, "Writing new " + mAccountInfoFile.getBaseFile());
         }
         FileOutputStream fos = null;
+        mAccountInfoWrites++;
 
         try {
             fos = mAccountInfoFile.startWrite();
@@ -2004,6 +2035,7 @@ public class SyncStorageEngine extends Handler {
                         st = new SyncStatusInfo(authority.ident);
                         mSyncStatus.put(authority.ident, st);
                     }
+                    mDirtySyncStatus.put(authority.ident, true);
                     st.totalElapsedTime = getLongColumn(c, "totalElapsedTime");
                     st.numSyncs = getIntColumn(c, "numSyncs");
                     st.numSourceLocal = getIntColumn(c, "numSourceLocal");
@@ -2057,9 +2089,21 @@ public class SyncStorageEngine extends Handler {
 
     public static final int STATUS_FILE_END = 0;
     public static final int STATUS_FILE_ITEM = 100;
+    public static final int STATUS_FILE_UPDATES = 200;
+
+    /**
+     * Once more statuses than this, or than there are authorities, were appended to the status
+     * file, it is written again in full.
+     */
+    private static final int MIN_APPENDED_STATUS_BEFORE_REWRITE = 64;
 
     /**
      * Read all sync status back in to the initial engine state.
+     *
+     * <p>The status file holds all the statuses, up to {@link #STATUS_FILE_END}, followed by
+     * blocks of the statuses that changed since, each starting with {@link #STATUS_FILE_UPDATES}
+     * and its size in bytes. A later status of an authority replaces the earlier ones. A block
+     * that was cut short, as by a crash while appending it, and those after it are ignored.
      */
     private void readStatusLocked() {
         if (Log.isLoggable(TAG_FILE, Log.VERBOSE)) {
@@ -2087,23 +2131,105 @@ public class SyncStorageEngine extends Handler {
                     break;
                 }
             }
+            while (in.dataAvail() >= 8 && in.readInt() == STATUS_FILE_UPDATES) {
+                final int size = in.readInt();
+                if (size < 0 || size > in.dataAvail()) {
+                    Slog.w(TAG, "Ignoring incomplete status updates");
+                    break;
+                }
+                final int end = in.dataPosition() + size;
+                while (in.dataPosition() < end && in.readInt() == STATUS_FILE_ITEM) {
+                    SyncStatusInfo status = new SyncStatusInfo(in);
+                    if (mAuthorities.indexOfKey(status.authorityId) >= 0) {
+                        status.pending = false;
+                        mSyncStatus.put(status.authorityId, status);
+                    }
+                }
+                in.setDataPosition(end);
+            }
+            in.recycle();
         } catch (java.io.IOException e) {
             Slog.i(TAG, "No initial status");
         }
     }
 
     /**
-     * Write all sync status to the sync status file.
+     * Write the sync statuses that changed to the sync status file, or all of them when the
+     * file must be compacted.
      */
     private void writeStatusLocked() {
-        if (Log.isLoggable(TAG_FILE, Log.VERBOSE)) {
-            Slog.v(TAG_FILE, "Writing new " + mStatusFile.getBaseFile());
-        }
-
         // The file is being written, so we don't need to have a scheduled
         // write until the next change.
         removeMessages(MSG_WRITE_STATUS);
 
+        if (mRewriteStatus || mAppendedStatusCount + mDirtySyncStatus.size()
+                > Math.max(MIN_APPENDED_STATUS_BEFORE_REWRITE, mSyncStatus.size())) {
+            rewriteStatusLocked();
+        } else if (mDirtySyncStatus.size() > 0) {
+            appendStatusLocked();
+        }
+    }
+
+    /**
+     * Append the sync statuses that changed to the sync status file, as a block of updates.
+     */
+    private void appendStatusLocked() {
+        final File statusFile = mStatusFile.getBaseFile();
+        if (new File(statusFile.getPath() + ".bak").exists()) {
+            // A rewrite didn't finish, so the base file isn't valid and AtomicFile will restore
+            // the backup on the next read: write everything instead of appending to it.
+            rewriteStatusLocked();
+            return;
+        }
+        if (Log.isLoggable(TAG_FILE, Log.VERBOSE)) {
+            Slog.v(TAG_FILE, "Appending " + mDirtySyncStatus.size() + " statuses to "
+                    + statusFile);
+        }
+        Parcel out = Parcel.obtain();
+        int count = 0;
+        for (int i = 0; i < mDirtySyncStatus.size(); i++) {
+            SyncStatusInfo status = mSyncStatus.get(mDirtySyncStatus.keyAt(i));
+            if (status != null) {
+                out.writeInt(STATUS_FILE_ITEM);
+                status.writeToParcel(out, 0);
+                count++;
+            }
+        }
+        final byte[] updates = out.marshall();
+        out.recycle();
+        out = Parcel.obtain();
+        out.writeInt(STATUS_FILE_UPDATES);
+        out.writeInt(updates.length);
+        final byte[] header = out.marshall();
+        out.recycle();
+
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(statusFile, true /* append */);
+            fos.write(header);
+            fos.write(updates);
+            FileUtils.sync(fos);
+            mDirtySyncStatus.clear();
+            mAppendedStatusCount += count;
+            mStatusAppends++;
+            mStatusRecordsWritten += count;
+        } catch (java.io.IOException e1) {
+            Slog.w(TAG, "Error appending status", e1);
+            // The reader stops at an incomplete block, so don't append after it.
+            mRewriteStatus = true;
+        } finally {
+            IoUtils.closeQuietly(fos);
+        }
+    }
+
+    /**
+     * Write all sync status to the sync status file.
+     */
+    private void rewriteStatusLocked() {
+        if (Log.isLoggable(TAG_FILE, Log.VERBOSE)) {
+            Slog.v(TAG_FILE, "Writing new " + mStatusFile.getBaseFile());
+        }
+
         FileOutputStream fos = null;
         try {
             fos = mStatusFile.startWrite();
@@ -2119,6 +2245,11 @@ public class SyncStorageEngine extends Handler {
             out.recycle();
 
             mStatusFile.finishWrite(fos);
+            mDirtySyncStatus.clear();
+            mRewriteStatus = false;
+            mAppendedStatusCount = 0;
+            mStatusRewrites++;
+            mStatusRecordsWritten += N;
         } catch (java.io.IOException e1) {
             Slog.w(TAG, "Error writing status", e1);
             if (fos != null) {
@@ -2213,6 +2344,7 @@ public class SyncStorageEngine extends Handler {
         removeMessages(MSG_WRITE_STATISTICS);
 
         FileOutputStream fos = null;
+        mStatisticsWrites++;
         try {
             fos = mStatisticsFile.startWrite();
             Parcel out = Parcel.obtain();
@@ -2242,6 +2374,33 @@ public class SyncStorageEngine extends Handler {
         }
     }
 
+    /**
+     * Print how often each file was written.
+     */
+    public void dumpFileWrites(PrintWriter pw) {
+        final int accountInfoWrites;
+        final int statusRewrites;
+        final int statusAppends;
+        final long statusRecordsWritten;
+        final int statisticsWrites;
+        final int dirtySyncStatusCount;
+        // Copy the counters, so that the sync threads don't wait for the dump to be printed.
+        synchronized (mAuthorities) {
+            accountInfoWrites = mAccountInfoWrites;
+            statusRewrites = mStatusRewrites;
+            statusAppends = mStatusAppends;
+            statusRecordsWritten = mStatusRecordsWritten;
+            statisticsWrites = mStatisticsWrites;
+            dirtySyncStatusCount = mDirtySyncStatus.size();
+        }
+        pw.print("file writes: accounts="); pw.print(accountInfoWrites);
+        pw.print(" status="); pw.print(statusRewrites);
+        pw.print(" (+"); pw.print(statusAppends); pw.print(" appends, ");
+        pw.print(statusRecordsWritten); pw.print(" records)");
+        pw.print(" statistics="); pw.println(statisticsWrites);
+        pw.print("pending status records: "); pw.println(dirtySyncStatusCount);
+    }
+
     /**
      * Let the BackupManager know that account sync settings have changed. This will trigger
      * {@link com.android.server.backup.SystemBackupAgent} to run.
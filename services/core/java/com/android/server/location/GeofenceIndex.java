@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.location;
+
+import android.location.Location;
+import android.util.LongObjectMap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Grid of latitude/longitude cells over the centers of the geofences, so that a location only
+ * needs to be tested against the fences near it. Fences too large for the grid are kept aside
+ * and always tested.
+ *
+ * <p>Not thread safe; {@link GeofenceManager} guards it with its lock.
+ */
+final class GeofenceIndex {
+    /** Size of a cell in degrees, about 2.2km of latitude. */
+    private static final double CELL_DEGREES = 0.02;
+    private static final int LONGITUDE_CELLS = (int) Math.round(360 / CELL_DEGREES);
+
+    /** Largest radius of the fences in the grid; larger ones are always tested. */
+    static final double MAX_INDEXED_RADIUS_M = 2000;
+
+    /**
+     * Radius used to bound distances from below. It's a little smaller than the polar radius,
+     * since {@link Location#distanceTo} measures on the ellipsoid rather than a sphere.
+     */
+    private static final double LOWER_BOUND_RADIUS_M = 6300000;
+
+    /** Called for each fence to test; returns the distance to its boundary, if known. */
+    interface Visitor {
+        double visit(GeofenceState state);
+    }
+
+    private final LongObjectMap<ArrayList<GeofenceState>> mCells = new LongObjectMap<>();
+    private final ArrayList<GeofenceState> mLargeFences = new ArrayList<>();
+    private int mSize;
+
+    // Reused by visitNearby().
+    private long[] mOrder = new long[0];
+    private double[] mBounds = new double[0];
+
+    void add(GeofenceState state) {
+        if (state.mFence.getRadius() > MAX_INDEXED_RADIUS_M) {
+            mLargeFences.add(state);
+        } else {
+            final long cell = cellOf(state.mFence.getLatitude(), state.mFence.getLongitude());
+            ArrayList<GeofenceState> fences = mCells.get(cell);
+            if (fences == null) {
+                fences = new ArrayList<>(4);
+                mCells.put(cell, fences);
+            }
+            fences.add(state);
+        }
+        mSize++;
+    }
+
+    void remove(GeofenceState state) {
+        boolean removed;
+        if (state.mFence.getRadius() > MAX_INDEXED_RADIUS_M) {
+            removed = mLargeFences.remove(state);
+        } else {
+            final long cell = cellOf(state.mFence.getLatitude(), state.mFence.getLongitude());
+            final ArrayList<GeofenceState> fences = mCells.get(cell);
+            removed = fences != null && fences.remove(state);
+            if (removed && fences.isEmpty()) {
+                mCells.remove(cell);
+            }
+        }
+        if (removed) {
+            mSize--;
+        }
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    void forEach(Consumer<GeofenceState> consumer) {
+        for (int i = 0; i < mCells.size(); i++) {
+            final ArrayList<GeofenceState> fences = mCells.valueAt(i);
+            for (int j = 0; j < fences.size(); j++) {
+                consumer.accept(fences.get(j));
+            }
+        }
+        for (int i = 0; i < mLargeFences.size(); i++) {
+            consumer.accept(mLargeFences.get(i));
+        }
+    }
+
+    /**
+     * Visits the fences that the location may be in, given its accuracy, and then the fences
+     * nearest to it until the distance to the nearest boundary is known, or known to be at least
+     * {@code maxDistance}.
+     *
+     * @return the distance to the nearest boundary, {@code maxDistance} if it's at least that,
+     *         or {@link Double#MAX_VALUE} if the visitor didn't know any distance
+     */
+    double visitNearby(Location location, double maxDistance, Visitor visitor) {
+        double nearest = Double.MAX_VALUE;
+        for (int i = 0; i < mLargeFences.size(); i++) {
+            nearest = Math.min(nearest, visitor.visit(mLargeFences.get(i)));
+        }
+
+        final int cellCount = mCells.size();
+        if (mOrder.length < cellCount) {
+            mOrder = new long[cellCount];
+            mBounds = new double[cellCount];
+        }
+        // Any fence within this distance of the location, or of whose boundary the location is
+        // within the accuracy, may contain the location.
+        final double containsDistance = Math.max(MAX_INDEXED_RADIUS_M, location.getAccuracy());
+        int farCells = 0;
+        for (int i = 0; i < cellCount; i++) {
+            final double bound = distanceToCellLowerBound(location, mCells.keyAt(i));
+            if (bound <= containsDistance) {
+                nearest = Math.min(nearest, visitCell(mCells.valueAt(i), visitor));
+            } else {
+                // Sort the other cells by how near their fences' boundaries may be: the bound
+                // in the upper bits, which keeps the order of positive doubles, and the index
+                // in the lower ones.
+                mBounds[i] = bound - MAX_INDEXED_RADIUS_M;
+                mOrder[farCells++] = ((long) Float.floatToIntBits((float) mBounds[i]) << 32) | i;
+            }
+        }
+
+        Arrays.sort(mOrder, 0, farCells);
+        for (int i = 0; i < farCells; i++) {
+            final int index = (int) mOrder[i];
+            if (mBounds[index] >= nearest) {
+                break;
+            }
+            if (mBounds[index] >= maxDistance) {
+                return maxDistance;
+            }
+            nearest = Math.min(nearest, visitCell(mCells.valueAt(index), visitor));
+        }
+        return nearest;
+    }
+
+    private static double visitCell(ArrayList<GeofenceState> fences, Visitor visitor) {
+        double nearest = Double.MAX_VALUE;
+        for (int i = 0; i < fences.size(); i++) {
+            nearest = Math.min(nearest, visitor.visit(fences.get(i)));
+        }
+        return nearest;
+    }
+
+    private static long cellOf(double latitude, double longitude) {
+        final long row = (long) Math.floor(latitude / CELL_DEGREES);
+        final long column = Math.floorMod((long) Math.floor(longitude / CELL_DEGREES),
+                LONGITUDE_CELLS);
+        return (row << 32) | column;
+    }
+
+    /**
+     * Returns a lower bound of the distance between the location and the points of the cell.
+     * By the haversine formula, hav(d) = hav(dLat) + cos(lat1) cos(lat2) hav(dLon), and each
+     * term is at least its value with the smallest differences, and the latitude nearest to a
+     * pole in the cosines.
+     */
+    private static double distanceToCellLowerBound(Location location, long cell) {
+        final double latitude = location.getLatitude();
+        final double south = (cell >> 32) * CELL_DEGREES;
+        final double north = south + CELL_DEGREES;
+        final double dLat = latitude < south ? south - latitude
+                : latitude > north ? latitude - north : 0;
+        final double maxAbsLat = Math.min(90, Math.max(Math.abs(latitude),
+                Math.max(Math.abs(south), Math.abs(north))));
+
+        final double west = (cell & 0xffffffffL) * CELL_DEGREES;
+        final double east = west + CELL_DEGREES;
+        double longitude = location.getLongitude() % 360;
+        if (longitude < 0) {
+            longitude += 360;
+        }
+        final double dLon = longitude >= west && longitude <= east ? 0
+                : Math.min(angleBetween(longitude, west), angleBetween(longitude, east));
+
+        final double havLat = haversine(Math.toRadians(dLat));
+        final double cos = Math.cos(Math.toRadians(maxAbsLat));
+        final double hav = havLat + cos * cos * haversine(Math.toRadians(dLon));
+        return 2 * LOWER_BOUND_RADIUS_M * Math.asin(Math.sqrt(Math.min(1, hav)));
+    }
+
+    /** Returns the smaller angle between two longitudes in [0, 360), in degrees. */
+    private static double angleBetween(double a, double b) {
+        final double diff = Math.abs(a - b);
+        return Math.min(diff, 360 - diff);
+    }
+
+    private static double haversine(double angle) {
+        final double sin = Math.sin(angle / 2);
+        return sin * sin;
+    }
+}
@@ -17,9 +17,9 @@
 package com.android.server.location;
 
 import java.io.PrintWriter;
-import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Objects;
 
 import android.app.AppOpsManager;
 import android.app.PendingIntent;
@@ -39,6 +39,8 @@ import android.os.PowerManager;
 import android.os.SystemClock;
 import android.os.UserHandle;
 import android.provider.Settings;
+import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.Slog;
 
 import com.android.server.LocationManagerService;
@@ -71,6 +73,11 @@ public class GeofenceManager implements LocationListener, PendingIntent.OnFinish
      */
     private static final long MAX_INTERVAL_MS = 2 * 60 * 60 * 1000; // two hours
 
+    /**
+     * Distance to the nearest fence from which the update interval is the least frequent one.
+     */
+    private static final double MAX_INTERVAL_DISTANCE_M = MAX_INTERVAL_MS * MAX_SPEED_M_S / 1000;
+
     private final Context mContext;
     private final LocationManager mLocationManager;
     private final AppOpsManager mAppOps;
@@ -82,9 +89,38 @@ public class GeofenceManager implements LocationListener, PendingIntent.OnFinish
 
     // access to members below is synchronized on mLock
     /**
-     * A list containing all registered geofences.
+     * All registered geofences, indexed by location.
+     */
+    private final GeofenceIndex mFences = new GeofenceIndex();
+
+    /**
+     * The registered geofences of each {@link PendingIntent}.
      */
-    private List<GeofenceState> mFences = new LinkedList<GeofenceState>();
+    private final ArrayMap<PendingIntent, ArrayMap<Geofence, GeofenceState>> mFencesByIntent =
+            new ArrayMap<>();
+
+    /**
+     * The apps that have registered geofences, so that their permissions are checked once per
+     * update rather than once per geofence.
+     */
+    private final ArrayMap<FenceOwner, FenceOwner> mOwners = new ArrayMap<>();
+
+    /**
+     * The geofences that the last location processed was inside of. They're processed at every
+     * update, as the other geofences are only processed when the location is near them.
+     */
+    private final ArraySet<GeofenceState> mInsideFences = new ArraySet<>();
+
+    /**
+     * The earliest expiration time of the registered geofences.
+     */
+    private long mNextExpireAt = Long.MAX_VALUE;
+
+    /**
+     * The number of updates that processed a location, to process each geofence only once per
+     * update.
+     */
+    private int mUpdateCount;
 
     /**
      * This is set true when we have an active request for {@link Location} updates via
@@ -158,40 +194,72 @@ public class GeofenceManager implements LocationListener, PendingIntent.OnFinish
         GeofenceState state = new GeofenceState(geofence,
                 request.getExpireAt(), allowedResolutionLevel, uid, packageName, intent);
         synchronized (mLock) {
-            // first make sure it doesn't already exist
-            for (int i = mFences.size() - 1; i >= 0; i--) {
-                GeofenceState w = mFences.get(i);
-                if (geofence.equals(w.mFence) && intent.equals(w.mIntent)) {
-                    // already exists, remove the old one
-                    mFences.remove(i);
-                    break;
-                }
+            ArrayMap<Geofence, GeofenceState> fences = mFencesByIntent.get(intent);
+            if (fences == null) {
+                fences = new ArrayMap<>();
+                fences.enableHashing();
+                mFencesByIntent.put(intent, fences);
+            }
+            GeofenceState old = fences.put(geofence, state);
+            if (old != null) {
+                // already exists, remove the old one
+                removeFenceLocked(old);
             }
-            mFences.add(state);
+            addFenceLocked(state);
             scheduleUpdateFencesLocked();
         }
     }
 
+    private void addFenceLocked(GeofenceState state) {
+        FenceOwner owner = new FenceOwner(state.mUid, state.mPackageName,
+                state.mAllowedResolutionLevel);
+        FenceOwner existing = mOwners.get(owner);
+        if (existing != null) {
+            owner = existing;
+        } else {
+            mOwners.put(owner, owner);
+        }
+        owner.fenceCount++;
+        state.mOwner = owner;
+
+        mFences.add(state);
+        mNextExpireAt = Math.min(mNextExpireAt, state.mExpireAt);
+    }
+
+    /**
+     * Removes a geofence from everything but {@link #mFencesByIntent}.
+     */
+    private void removeFenceLocked(GeofenceState state) {
+        mFences.remove(state);
+        mInsideFences.remove(state);
+        if (--state.mOwner.fenceCount == 0) {
+            mOwners.remove(state.mOwner);
+        }
+    }
+
     public void removeFence(Geofence fence, PendingIntent intent) {
         if (D) {
             Slog.d(TAG, "removeFence: fence=" + fence + ", intent=" + intent);
         }
 
         synchronized (mLock) {
-            Iterator<GeofenceState> iter = mFences.iterator();
-            while (iter.hasNext()) {
-                GeofenceState state = iter.next();
-                if (state.mIntent.equals(intent)) {
-
-                    if (fence == null) {
-                        // always remove
-                        iter.remove();
-                    } else {
-                        // just remove matching fences
-                        if (fence.equals(state.mFence)) {
-                            iter.remove();
-                        }
+            ArrayMap<Geofence, GeofenceState> fences = mFencesByIntent.get(intent);
+            if (fences != null) {
+                if (fence == null) {
+                    // always remove
+                    for (int i = fences.size() - 1; i >= 0; i--) {
+                        removeFenceLocked(fences.valueAt(i));
                     }
+                    fences.clear();
+                } else {
+                    // just remove matching fences
+                    GeofenceState state = fences.remove(fence);
+                    if (state != null) {
+                        removeFenceLocked(state);
+                    }
+                }
+                if (fences.isEmpty()) {
+                    mFencesByIntent.remove(intent);
                 }
             }
             scheduleUpdateFencesLocked();
@@ -204,11 +272,17 @@ public class GeofenceManager implements LocationListener, PendingIntent.OnFinish
         }
 
         synchronized (mLock) {
-            Iterator<GeofenceState> iter = mFences.iterator();
-            while (iter.hasNext()) {
-                GeofenceState state = iter.next();
-                if (state.mPackageName.equals(packageName)) {
-                    iter.remove();
+            for (int i = mFencesByIntent.size() - 1; i >= 0; i--) {
+                ArrayMap<Geofence, GeofenceState> fences = mFencesByIntent.valueAt(i);
+                for (int j = fences.size() - 1; j >= 0; j--) {
+                    GeofenceState state = fences.valueAt(j);
+                    if (state.mPackageName.equals(packageName)) {
+                        removeFenceLocked(state);
+                        fences.removeAt(j);
+                    }
+                }
+                if (fences.isEmpty()) {
+                    mFencesByIntent.removeAt(i);
                 }
             }
             scheduleUpdateFencesLocked();
@@ -217,11 +291,23 @@ public class GeofenceManager implements LocationListener, PendingIntent.OnFinish
 
     private void removeExpiredFencesLocked() {
         long time = SystemClock.elapsedRealtime();
-        Iterator<GeofenceState> iter = mFences.iterator();
-        while (iter.hasNext()) {
-            GeofenceState state = iter.next();
-            if (state.mExpireAt < time) {
-                iter.remove();
+        if (mNextExpireAt >= time) {
+            return;
+        }
+        mNextExpireAt = Long.MAX_VALUE;
+        for (int i = mFencesByIntent.size() - 1; i >= 0; i--) {
+            ArrayMap<Geofence, GeofenceState> fences = mFencesByIntent.valueAt(i);
+            for (int j = fences.size() - 1; j >= 0; j--) {
+                GeofenceState state = fences.valueAt(j);
+                if (state.mExpireAt < time) {
+                    removeFenceLocked(state);
+                    fences.removeAt(j);
+                } else {
+                    mNextExpireAt = Math.min(mNextExpireAt, state.mExpireAt);
+                }
+            }
+            if (fences.isEmpty()) {
+                mFencesByIntent.removeAt(i);
             }
         }
     }
@@ -264,9 +350,10 @@ public class GeofenceManager implements LocationListener, PendingIntent.OnFinish
 
     /**
      * The geofence update loop. This function removes expired fences, then tests the most
-     * recently-received {@link Location} against each registered {@link GeofenceState}, sending
-     * {@link Intent}s for geofences that have been tripped. It also adjusts the active location
-     * update request with {@link LocationManager} as appropriate for any active geofences.
+     * recently-received {@link Location} against the registered {@link GeofenceState}s that it
+     * may have entered or exited, and the ones nearest to it, sending {@link Intent}s for
+     * geofences that have been tripped. It also adjusts the active location update request with
+     * {@link LocationManager} as appropriate for any active geofences.
      */
     // Runs on the handler.
     private void updateFences() {
@@ -283,48 +370,51 @@ public class GeofenceManager implements LocationListener, PendingIntent.OnFinish
             // via LocationManager.getLastLocation().
             Location location = getFreshLocationLocked();
 
-            // Update all fences.
+            // Check which apps may use their fences.
+            boolean needUpdates = false;
+            for (int i = 0; i < mOwners.size(); i++) {
+                FenceOwner owner = mOwners.valueAt(i);
+                owner.allowed = isAllowedLocked(owner);
+                needUpdates |= owner.allowed;
+            }
+
+            // Update the fences that the location may have entered or exited.
             // Keep track of the distance to the nearest fence.
             double minFenceDistance = Double.MAX_VALUE;
-            boolean needUpdates = false;
-            for (GeofenceState state : mFences) {
-                if (mBlacklist.isBlacklisted(state.mPackageName)) {
-                    if (D) {
-                        Slog.d(TAG, "skipping geofence processing for blacklisted app: "
-                                + state.mPackageName);
+            if (location != null && needUpdates) {
+                final Location fix = location;
+                final int update = ++mUpdateCount;
+                GeofenceIndex.Visitor visitor = state -> {
+                    if (!state.mOwner.allowed) {
+                        return Double.MAX_VALUE;
                     }
-                    continue;
-                }
-
-                int op = LocationManagerService.resolutionLevelToOp(state.mAllowedResolutionLevel);
-                if (op >= 0) {
-                    if (mAppOps.noteOpNoThrow(AppOpsManager.OP_FINE_LOCATION, state.mUid,
-                            state.mPackageName) != AppOpsManager.MODE_ALLOWED) {
-                        if (D) {
-                            Slog.d(TAG, "skipping geofence processing for no op app: "
-                                    + state.mPackageName);
+                    if (state.mLastUpdate != update) {
+                        state.mLastUpdate = update;
+                        int event = state.processLocation(fix);
+                        if ((event & GeofenceState.FLAG_ENTER) != 0) {
+                            enterIntents.add(state.mIntent);
+                        }
+                        if ((event & GeofenceState.FLAG_EXIT) != 0) {
+                            exitIntents.add(state.mIntent);
+                        }
+                        if (state.isInside()) {
+                            mInsideFences.add(state);
+                        } else {
+                            mInsideFences.remove(state);
                         }
-                        continue;
-                    }
-                }
-
-                needUpdates = true;
-                if (location != null) {
-                    int event = state.processLocation(location);
-                    if ((event & GeofenceState.FLAG_ENTER) != 0) {
-                        enterIntents.add(state.mIntent);
-                    }
-                    if ((event & GeofenceState.FLAG_EXIT) != 0) {
-                        exitIntents.add(state.mIntent);
                     }
-
                     // FIXME: Ideally this code should take into account the accuracy of the
                     // location fix that was used to calculate the distance in the first place.
-                    double fenceDistance = state.getDistanceToBoundary(); // MAX_VALUE if unknown
-                    if (fenceDistance < minFenceDistance) {
-                        minFenceDistance = fenceDistance;
-                    }
+                    return state.getDistanceToBoundary(); // MAX_VALUE if unknown
+                };
+
+                // The fences that the last location was inside of may be far away now.
+                for (int i = mInsideFences.size() - 1; i >= 0; i--) {
+                    minFenceDistance = Math.min(minFenceDistance,
+                            visitor.visit(mInsideFences.valueAt(i)));
                 }
+                minFenceDistance = Math.min(minFenceDistance,
+                        mFences.visitNearby(location, MAX_INTERVAL_DISTANCE_M, visitor));
             }
 
             // Request or cancel location updates if needed.
@@ -376,6 +466,29 @@ public class GeofenceManager implements LocationListener, PendingIntent.OnFinish
         }
     }
 
+    private boolean isAllowedLocked(FenceOwner owner) {
+        if (mBlacklist.isBlacklisted(owner.packageName)) {
+            if (D) {
+                Slog.d(TAG, "skipping geofence processing for blacklisted app: "
+                        + owner.packageName);
+            }
+            return false;
+        }
+
+        int op = LocationManagerService.resolutionLevelToOp(owner.allowedResolutionLevel);
+        if (op >= 0) {
+            if (mAppOps.noteOpNoThrow(AppOpsManager.OP_FINE_LOCATION, owner.uid,
+                    owner.packageName) != AppOpsManager.MODE_ALLOWED) {
+                if (D) {
+                    Slog.d(TAG, "skipping geofence processing for no op app: "
+                            + owner.packageName);
+                }
+                return false;
+            }
+        }
+        return true;
+    }
+
     private void sendIntentEnter(PendingIntent pendingIntent) {
         if (D) {
             Slog.d(TAG, "sendIntentEnter: pendingIntent=" + pendingIntent);
@@ -445,12 +558,46 @@ public class GeofenceManager implements LocationListener, PendingIntent.OnFinish
     public void dump(PrintWriter pw) {
         pw.println("  Geofences:");
 
-        for (GeofenceState state : mFences) {
+        mFences.forEach(state -> {
             pw.append("    ");
             pw.append(state.mPackageName);
             pw.append(" ");
             pw.append(state.mFence.toString());
             pw.append("\n");
+        });
+    }
+
+    /**
+     * An app with geofences registered at a resolution level.
+     */
+    static final class FenceOwner {
+        final int uid;
+        final String packageName;
+        final int allowedResolutionLevel;
+
+        int fenceCount;
+        // Whether the app could use its geofences at the last update.
+        boolean allowed;
+
+        FenceOwner(int uid, String packageName, int allowedResolutionLevel) {
+            this.uid = uid;
+            this.packageName = packageName;
+            this.allowedResolutionLevel = allowedResolutionLevel;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof FenceOwner)) {
+                return false;
+            }
+            FenceOwner other = (FenceOwner) o;
+            return uid == other.uid && allowedResolutionLevel == other.allowedResolutionLevel
+                    && Objects.equals(packageName, other.packageName);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(uid, packageName, allowedResolutionLevel);
         }
     }
 
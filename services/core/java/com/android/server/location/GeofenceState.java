@@ -43,6 +43,10 @@ public class GeofenceState {
     int mState;  // current state
     double mDistanceToCenter;  // current distance to center of fence
 
+    // Used by GeofenceManager, under its lock.
+    GeofenceManager.FenceOwner mOwner;
+    int mLastUpdate;  // number of the last update that processed this fence
+
     public GeofenceState(Geofence fence, long expireAt,
             int allowedResolutionLevel, int uid, String packageName, PendingIntent intent) {
         mState = STATE_UNKNOWN;
@@ -84,6 +88,20 @@ public class GeofenceState {
         return 0;
     }
 
+    /**
+     * Returns true if the last location processed was inside the fence.
+     */
+    public boolean isInside() {
+        return mState == STATE_INSIDE;
+    }
+
+    /**
+     * Returns true if no location has been processed yet.
+     */
+    public boolean isUnknown() {
+        return mState == STATE_UNKNOWN;
+    }
+
     /**
      * Gets the distance from the current location to the fence's boundary.
      * @return The distance or {@link Double#MAX_VALUE} if unknown.
@@ -49,6 +49,8 @@ public final class LocationBlacklist extends ContentObserver {
     // all fields below synchronized on mLock
     private String[] mWhitelist = new String[0];
     private String[] mBlacklist = new String[0];
+    // incremented on each reload, so callers can cache the results of isBlacklisted()
+    private int mGeneration;
 
     private int mCurrentUserId = UserHandle.USER_SYSTEM;
     
@@ -70,6 +72,16 @@ public final class LocationBlacklist extends ContentObserver {
         if (D) Slog.d(TAG, "whitelist: " + Arrays.toString(mWhitelist));
         mBlacklist = getStringArrayLocked(BLACKLIST_CONFIG_NAME);
         if (D) Slog.d(TAG, "blacklist: " + Arrays.toString(mBlacklist));
+        mGeneration++;
+    }
+
+    /**
+     * Returns a number that changes whenever the blacklist or whitelist may have changed.
+     */
+    public int getGeneration() {
+        synchronized (mLock) {
+            return mGeneration;
+        }
     }
 
     private void reloadBlacklist() {
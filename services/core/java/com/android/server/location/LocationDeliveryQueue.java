@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.location;
+
+import android.location.Location;
+import android.os.Bundle;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Location and status changes waiting to be sent to one receiver of the location manager,
+ * which sends them after releasing its lock.
+ *
+ * <p>Must be externally synchronized.
+ */
+public class LocationDeliveryQueue {
+    /**
+     * A location or status change waiting to be sent. The location is shared by all the
+     * receivers of a fix and must not be changed.
+     */
+    public static final class Delivery {
+        public final String provider;
+        public final Location location;  // null for a status change
+        public final int status;
+        public final Bundle extras;
+
+        public Delivery(String provider, Location location, int status, Bundle extras) {
+            this.provider = provider;
+            this.location = location;
+            this.status = status;
+            this.extras = extras;
+        }
+    }
+
+    private final int mMaxSize;
+    private final ArrayDeque<Delivery> mDeliveries = new ArrayDeque<>();
+
+    /**
+     * @param maxSize number of queued changes beyond which the oldest locations are dropped
+     */
+    public LocationDeliveryQueue(int maxSize) {
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Queues the given change. When the receiver is falling behind, its oldest queued location
+     * is dropped; status changes are always kept.
+     *
+     * @return the dropped change, or null
+     */
+    public Delivery add(Delivery delivery) {
+        Delivery dropped = null;
+        if (mDeliveries.size() >= mMaxSize) {
+            for (Iterator<Delivery> it = mDeliveries.iterator(); it.hasNext(); ) {
+                Delivery queued = it.next();
+                if (queued.location != null) {
+                    it.remove();
+                    dropped = queued;
+                    break;
+                }
+            }
+        }
+        mDeliveries.add(delivery);
+        return dropped;
+    }
+
+    /**
+     * Returns the oldest queued change and removes it from the queue, or null if it is empty.
+     */
+    public Delivery poll() {
+        return mDeliveries.poll();
+    }
+
+    public boolean isEmpty() {
+        return mDeliveries.isEmpty();
+    }
+
+    public int size() {
+        return mDeliveries.size();
+    }
+
+    /**
+     * Drops all the queued changes.
+     */
+    public void clear() {
+        mDeliveries.clear();
+    }
+}
@@ -128,7 +128,10 @@ import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.net.URISyntaxException;
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -186,6 +189,10 @@ public class ShortcutService extends IShortcutService.Stub {
     @VisibleForTesting
     static final String FILENAME_USER_PACKAGES = "shortcuts.xml";
 
+    /** Per-user directory with a file for each package and launcher. */
+    @VisibleForTesting
+    static final String DIRECTORY_PACKAGES = "packages";
+
     static final String DIRECTORY_BITMAPS = "bitmaps";
 
     private static final String TAG_ROOT = "root";
@@ -352,8 +359,10 @@ public class ShortcutService extends IShortcutService.Stub {
         int PACKAGE_UPDATE_CHECK = 14;
         int ASYNC_PRELOAD_USER_DELAY = 15;
         int GET_DEFAULT_LAUNCHER = 16;
+        int SAVE_USER = 17;
+        int LOAD_PACKAGE_FILE = 18;
 
-        int COUNT = GET_DEFAULT_LAUNCHER + 1;
+        int COUNT = LOAD_PACKAGE_FILE + 1;
     }
 
     private static final String[] STAT_LABELS = {
@@ -373,7 +382,9 @@ public class ShortcutService extends IShortcutService.Stub {
             "isActivityEnabled",
             "packageUpdateCheck",
             "asyncPreloadUserDelay",
-            "getDefaultLauncher()"
+            "getDefaultLauncher()",
+            "saveUser",
+            "loadPackageFile"
     };
 
     final Object mStatLock = new Object();
@@ -384,6 +395,16 @@ public class ShortcutService extends IShortcutService.Stub {
     @GuardedBy("mStatLock")
     private final long[] mDurationStats = new long[Stats.COUNT];
 
+    /** Number of package and launcher files written, and skipped as they hadn't changed. */
+    @GuardedBy("mStatLock")
+    private int mWrittenItemFiles;
+    @GuardedBy("mStatLock")
+    private int mUnchangedItemFiles;
+
+    /** Bytes written to the user and item files. */
+    @GuardedBy("mStatLock")
+    private long mWrittenBytes;
+
     private static final int PROCESS_STATE_FOREGROUND_THRESHOLD =
             ActivityManager.PROCESS_STATE_FOREGROUND_SERVICE;
 
@@ -932,7 +953,13 @@ public class ShortcutService extends IShortcutService.Stub {
         return new File(injectUserDataPath(userId), FILENAME_USER_PACKAGES);
     }
 
+    @VisibleForTesting
+    final File getUserPackagesDir(@UserIdInt int userId) {
+        return new File(injectUserDataPath(userId), DIRECTORY_PACKAGES);
+    }
+
     private void saveUserLocked(@UserIdInt int userId) {
+        final long start = injectElapsedRealtime();
         final File path = getUserFile(userId);
         if (DEBUG) {
             Slog.d(TAG, "Saving to " + path);
@@ -940,7 +967,17 @@ public class ShortcutService extends IShortcutService.Stub {
 
         mShortcutBitmapSaver.waitForAllSavesLocked();
 
-        path.getParentFile().mkdirs();
+        // Write the packages and launchers first: a user file from before they had their own
+        // files still has them, and must only be replaced once they're safe.
+        final File dir = getUserPackagesDir(userId);
+        dir.mkdirs();
+        try {
+            getUserShortcutsLocked(userId).saveItemFiles(dir, listItemFiles(userId));
+        } catch (XmlPullParserException | IOException e) {
+            Slog.e(TAG, "Failed to write to directory " + dir, e);
+            return;
+        }
+
         final AtomicFile file = new AtomicFile(path);
         FileOutputStream os = null;
         try {
@@ -949,12 +986,141 @@ public class ShortcutService extends IShortcutService.Stub {
             saveUserInternalLocked(userId, os, /* forBackup= */ false);
 
             file.finishWrite(os);
+            synchronized (mStatLock) {
+                mWrittenBytes += path.length();
+            }
 
             // Remove all dangling bitmap files.
             cleanupDanglingBitmapDirectoriesLocked(userId);
         } catch (XmlPullParserException | IOException e) {
             Slog.e(TAG, "Failed to write to file " + file.getBaseFile(), e);
             file.failWrite(os);
+        } finally {
+            logDurationStat(Stats.SAVE_USER, start);
+        }
+    }
+
+    /**
+     * Returns the names of the package and launcher files of a user, including the ones that
+     * only have the backup left by an interrupted write, which {@link AtomicFile} restores.
+     */
+    private ArraySet<String> listItemFiles(@UserIdInt int userId) {
+        final ArraySet<String> ret = new ArraySet<>();
+        final String[] names = getUserPackagesDir(userId).list();
+        if (names == null) {
+            return ret;
+        }
+        for (String name : names) {
+            ret.add(name.endsWith(".bak") ? name.substring(0, name.length() - 4) : name);
+        }
+        return ret;
+    }
+
+    /**
+     * Writes a package or launcher to its file, unless it's unchanged since the file was last
+     * read or written.
+     *
+     * @param lastDigest the digest of the file content, or null to always write it
+     * @return the digest of the content
+     */
+    byte[] writeItemFileIfChanged(@NonNull File path, @NonNull ShortcutPackageItem spi,
+            @Nullable byte[] lastDigest) throws IOException, XmlPullParserException {
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        final XmlSerializer out = new FastXmlSerializer();
+        out.setOutput(bos, StandardCharsets.UTF_8.name());
+        out.startDocument(null, true);
+        spi.saveToXml(out, /* forBackup= */ false);
+        out.endDocument();
+
+        final byte[] content = bos.toByteArray();
+        final byte[] digest = digest(content);
+        if (Arrays.equals(digest, lastDigest)) {
+            synchronized (mStatLock) {
+                mUnchangedItemFiles++;
+            }
+            return digest;
+        }
+        if (DEBUG) {
+            Slog.d(TAG, "Saving to " + path);
+        }
+
+        final AtomicFile file = new AtomicFile(path);
+        FileOutputStream os = null;
+        try {
+            os = file.startWrite();
+            os.write(content);
+            file.finishWrite(os);
+        } catch (IOException e) {
+            file.failWrite(os);
+            throw e;
+        }
+        synchronized (mStatLock) {
+            mWrittenItemFiles++;
+            mWrittenBytes += content.length;
+        }
+        return digest;
+    }
+
+    void deleteItemFile(@NonNull File path) {
+        if (DEBUG) {
+            Slog.d(TAG, "Deleting " + path);
+        }
+        new AtomicFile(path).delete();
+    }
+
+    /**
+     * Loads a package or launcher from its file.
+     *
+     * @return the item, or null if the file can't be read
+     */
+    @Nullable
+    ShortcutPackageItem loadItemFileLocked(@NonNull ShortcutUser user, @NonNull String fileName) {
+        final long start = injectElapsedRealtime();
+        final AtomicFile file = new AtomicFile(
+                new File(getUserPackagesDir(user.getUserId()), fileName));
+        if (DEBUG) {
+            Slog.d(TAG, "Loading from " + file.getBaseFile());
+        }
+        try {
+            final byte[] content = file.readFully();
+            final XmlPullParser parser = Xml.newPullParser();
+            parser.setInput(new ByteArrayInputStream(content), StandardCharsets.UTF_8.name());
+
+            ShortcutPackageItem ret = null;
+            int type;
+            while ((type = parser.next()) != XmlPullParser.END_DOCUMENT) {
+                if (type != XmlPullParser.START_TAG) {
+                    continue;
+                }
+                final int depth = parser.getDepth();
+                final String tag = parser.getName();
+                if (depth == 1 && ShortcutPackage.TAG_ROOT.equals(tag)) {
+                    ret = ShortcutPackage.loadFromXml(this, user, parser,
+                            /* fromBackup= */ false);
+                    continue;
+                }
+                if (depth == 1 && ShortcutLauncher.TAG_ROOT.equals(tag)) {
+                    ret = ShortcutLauncher.loadFromXml(parser, user, user.getUserId(),
+                            /* fromBackup= */ false);
+                    continue;
+                }
+                throwForInvalidTag(depth, tag);
+            }
+            user.setItemFileDigest(fileName, digest(content));
+            return ret;
+        } catch (IOException | XmlPullParserException | RuntimeException e) {
+            Slog.e(TAG, "Failed to read file " + file.getBaseFile(), e);
+            return null;
+        } finally {
+            logDurationStat(Stats.LOAD_PACKAGE_FILE, start);
+        }
+    }
+
+    private static byte[] digest(byte[] content) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(content);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
         }
     }
 
@@ -1003,6 +1169,9 @@ public class ShortcutService extends IShortcutService.Stub {
         }
         try {
             final ShortcutUser ret = loadUserInternal(userId, in, /* forBackup= */ false);
+            if (ret != null) {
+                ret.loadItemFiles(listItemFiles(userId));
+            }
             return ret;
         } catch (IOException | XmlPullParserException | InvalidFileFormatException e) {
             Slog.e(TAG, "Failed to read file " + file.getBaseFile(), e);
@@ -1274,7 +1443,8 @@ public class ShortcutService extends IShortcutService.Stub {
                     Slog.d(TAG, "Removing dangling bitmap directory: " + packageName);
                 }
                 cleanupBitmapsForPackage(userId, packageName);
-            } else {
+            } else if (user.isPackageLoaded(packageName)) {
+                // The bitmaps of a package that isn't loaded haven't changed since it was saved.
                 cleanupDanglingBitmapFilesLocked(userId, user, packageName, child);
             }
         }
@@ -2773,7 +2943,7 @@ public class ShortcutService extends IShortcutService.Stub {
                 final ShortcutUser user = getUserShortcutsLocked(ownerUserId);
 
                 // Find packages that have been uninstalled.
-                user.forAllPackageItems(spi -> {
+                final Consumer<ShortcutPackageItem> findGone = spi -> {
                     if (spi.getPackageInfo().isShadow()) {
                         return; // Don't delete shadow information.
                     }
@@ -2784,6 +2954,16 @@ public class ShortcutService extends IShortcutService.Stub {
                         }
                         gonePackages.add(PackageWithUser.of(spi));
                     }
+                };
+                user.forAllLaunchers(findGone);
+                // Only load the packages that are no longer installed.
+                user.forAllPackageNames(packageName -> {
+                    if (!isPackageInstalled(packageName, ownerUserId)) {
+                        final ShortcutPackage p = user.peekPackage(packageName);
+                        if (p != null) {
+                            findGone.accept(p);
+                        }
+                    }
                 });
                 if (gonePackages.size() > 0) {
                     for (int i = gonePackages.size() - 1; i >= 0; i--) {
@@ -3553,6 +3733,12 @@ public class ShortcutService extends IShortcutService.Stub {
                 for (int i = 0; i < Stats.COUNT; i++) {
                     dumpStatLS(pw, "    ", i);
                 }
+                pw.print("    Package files written: ");
+                pw.print(mWrittenItemFiles);
+                pw.print(", unchanged: ");
+                pw.print(mUnchangedItemFiles);
+                pw.print(", bytes written: ");
+                pw.println(mWrittenBytes);
             }
 
             pw.println();
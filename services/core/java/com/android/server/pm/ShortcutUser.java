@@ -23,6 +23,7 @@ import android.content.pm.ShortcutManager;
 import android.text.TextUtils;
 import android.text.format.Formatter;
 import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.Log;
 import android.util.Slog;
 
@@ -42,6 +43,7 @@ import org.xmlpull.v1.XmlSerializer;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.function.Consumer;
 
 /**
@@ -65,6 +67,10 @@ class ShortcutUser {
     private static final String KEY_LAUNCHERS = "launchers";
     private static final String KEY_PACKAGES = "packages";
 
+    private static final String PACKAGE_FILE_PREFIX = "package-";
+    private static final String LAUNCHER_FILE_PREFIX = "launcher-";
+    private static final String ITEM_FILE_SUFFIX = ".xml";
+
     static final class PackageWithUser {
         final int userId;
         final String packageName;
@@ -112,6 +118,21 @@ class ShortcutUser {
 
     private final ArrayMap<PackageWithUser, ShortcutLauncher> mLaunchers = new ArrayMap<>();
 
+    /**
+     * Packages that have a file in {@link ShortcutService#getUserPackagesDir} but haven't been
+     * loaded yet.  They're loaded on first access, and aren't in {@link #mPackages} until then.
+     */
+    private final ArraySet<String> mUnloadedPackages = new ArraySet<>();
+
+    /**
+     * Digest of the content of each package and launcher file, as last read or written, so that
+     * only the files of the items that changed are written.
+     */
+    private final ArrayMap<String, byte[]> mItemFileDigests = new ArrayMap<>();
+
+    /** Whether the user file had the packages and launchers in it, as before they had files. */
+    private boolean mLoadedLegacyFile;
+
     /**
      * Last known launcher.  It's used when the default launcher isn't set in PM -- i.e.
      * when getHomeActivitiesAsUser() return null.  We need it so that in this situation the
@@ -157,19 +178,44 @@ class ShortcutUser {
     // remove from it.
     @VisibleForTesting
     ArrayMap<String, ShortcutPackage> getAllPackagesForTest() {
+        loadAllPackages();
         return mPackages;
     }
 
     public boolean hasPackage(@NonNull String packageName) {
-        return mPackages.containsKey(packageName);
+        return mPackages.containsKey(packageName) || mUnloadedPackages.contains(packageName);
+    }
+
+    /** Whether the package has been loaded, or has no file to load it from. */
+    public boolean isPackageLoaded(@NonNull String packageName) {
+        return !mUnloadedPackages.contains(packageName);
     }
 
     private void addPackage(@NonNull ShortcutPackage p) {
         p.replaceUser(this);
+        mUnloadedPackages.remove(p.getPackageName());
         mPackages.put(p.getPackageName(), p);
     }
 
+    private void loadPackageIfNeeded(@NonNull String packageName) {
+        if (!mUnloadedPackages.remove(packageName)) {
+            return;
+        }
+        final ShortcutPackageItem loaded = mService.loadItemFileLocked(this,
+                getPackageFileName(packageName));
+        if (loaded instanceof ShortcutPackage) {
+            mPackages.put(packageName, (ShortcutPackage) loaded);
+        }
+    }
+
+    private void loadAllPackages() {
+        for (int i = mUnloadedPackages.size() - 1; i >= 0; i--) {
+            loadPackageIfNeeded(mUnloadedPackages.valueAt(i));
+        }
+    }
+
     public ShortcutPackage removePackage(@NonNull String packageName) {
+        loadPackageIfNeeded(packageName);
         final ShortcutPackage removed = mPackages.remove(packageName);
 
         mService.cleanupBitmapsForPackage(mUserId, packageName);
@@ -196,9 +242,19 @@ class ShortcutUser {
         return mLaunchers.remove(PackageWithUser.of(packageUserId, packageName));
     }
 
+    /**
+     * Returns the package, loading it if needed, without attempting to restore it.  This is for
+     * checking packages that may be gone, which can't be restored anyway.
+     */
+    @Nullable
+    public ShortcutPackage peekPackage(@NonNull String packageName) {
+        loadPackageIfNeeded(packageName);
+        return mPackages.get(packageName);
+    }
+
     @Nullable
     public ShortcutPackage getPackageShortcutsIfExists(@NonNull String packageName) {
-        final ShortcutPackage ret = mPackages.get(packageName);
+        final ShortcutPackage ret = peekPackage(packageName);
         if (ret != null) {
             ret.attemptToRestoreIfNeededAndSave();
         }
@@ -230,6 +286,7 @@ class ShortcutUser {
     }
 
     public void forAllPackages(Consumer<? super ShortcutPackage> callback) {
+        loadAllPackages();
         final int size = mPackages.size();
         for (int i = 0; i < size; i++) {
             callback.accept(mPackages.valueAt(i));
@@ -248,14 +305,34 @@ class ShortcutUser {
         forAllPackages(callback);
     }
 
+    /**
+     * Calls the callback with the names of all the packages, loaded or not.  The callback may
+     * load them.
+     */
+    public void forAllPackageNames(Consumer<String> callback) {
+        final ArrayList<String> names = new ArrayList<>(mPackages.keySet());
+        names.addAll(mUnloadedPackages);
+        for (int i = 0; i < names.size(); i++) {
+            callback.accept(names.get(i));
+        }
+    }
+
     public void forPackageItem(@NonNull String packageName, @UserIdInt int packageUserId,
             Consumer<ShortcutPackageItem> callback) {
-        forAllPackageItems(spi -> {
+        forAllLaunchers(spi -> {
             if ((spi.getPackageUserId() == packageUserId)
                     && spi.getPackageName().equals(packageName)) {
                 callback.accept(spi);
             }
         });
+        // The packages all belong to this user; look it up by name so that the other packages
+        // don't have to be loaded.
+        if (packageUserId == mUserId) {
+            final ShortcutPackage p = peekPackage(packageName);
+            if (p != null) {
+                callback.accept(p);
+            }
+        }
     }
 
     /**
@@ -310,7 +387,7 @@ class ShortcutUser {
     }
 
     public void rescanPackageIfNeeded(@NonNull String packageName, boolean forceRescan) {
-        final boolean isNewApp = !mPackages.containsKey(packageName);
+        final boolean isNewApp = !hasPackage(packageName);
 
         final ShortcutPackage shortcutPackage = getPackageShortcuts(packageName);
 
@@ -328,6 +405,10 @@ class ShortcutUser {
         });
     }
 
+    /**
+     * Writes the user information.  The packages and launchers are only written for backup;
+     * otherwise they have their own files, see {@link #saveItemFiles}.
+     */
     public void saveToXml(XmlSerializer out, boolean forBackup)
             throws IOException, XmlPullParserException {
         out.startTag(null, TAG_ROOT);
@@ -341,8 +422,13 @@ class ShortcutUser {
                     mLastAppScanOsFingerprint);
 
             ShortcutService.writeTagValue(out, TAG_LAUNCHER, mLastKnownLauncher);
+
+            out.endTag(null, TAG_ROOT);
+            return;
         }
 
+        loadAllPackages();
+
         // Can't use forEachPackageItem due to the checked exceptions.
         {
             final int size = mLaunchers.size();
@@ -373,6 +459,90 @@ class ShortcutUser {
         spi.saveToXml(out, forBackup);
     }
 
+    static String getPackageFileName(@NonNull String packageName) {
+        return PACKAGE_FILE_PREFIX + packageName + ITEM_FILE_SUFFIX;
+    }
+
+    static String getLauncherFileName(@UserIdInt int launcherUserId,
+            @NonNull String packageName) {
+        return LAUNCHER_FILE_PREFIX + launcherUserId + "-" + packageName + ITEM_FILE_SUFFIX;
+    }
+
+    void setItemFileDigest(@NonNull String fileName, @Nullable byte[] digest) {
+        if (digest == null) {
+            mItemFileDigests.remove(fileName);
+        } else {
+            mItemFileDigests.put(fileName, digest);
+        }
+    }
+
+    /**
+     * Loads the launchers from their files, and remembers which packages have files so that
+     * they're loaded on first access.  The files replace the launchers and packages that were
+     * in the user file, as they were written after it.
+     */
+    void loadItemFiles(@NonNull ArraySet<String> fileNames) {
+        for (int i = 0; i < fileNames.size(); i++) {
+            final String fileName = fileNames.valueAt(i);
+            if (!fileName.endsWith(ITEM_FILE_SUFFIX)) {
+                continue;
+            }
+            if (fileName.startsWith(PACKAGE_FILE_PREFIX)) {
+                final String packageName = fileName.substring(PACKAGE_FILE_PREFIX.length(),
+                        fileName.length() - ITEM_FILE_SUFFIX.length());
+                mPackages.remove(packageName);
+                mUnloadedPackages.add(packageName);
+            } else if (fileName.startsWith(LAUNCHER_FILE_PREFIX)) {
+                final ShortcutPackageItem loaded = mService.loadItemFileLocked(this, fileName);
+                if (loaded instanceof ShortcutLauncher) {
+                    addLauncher((ShortcutLauncher) loaded);
+                }
+            }
+        }
+        if (mLoadedLegacyFile) {
+            // Move the packages and launchers to their own files.
+            mService.scheduleSaveUser(mUserId);
+        }
+    }
+
+    /**
+     * Writes the files of the launchers and loaded packages whose content changed since the
+     * files were last read or written, and deletes the files of the removed ones.
+     *
+     * @param existingFiles the files in the directory, which this method deletes from
+     */
+    void saveItemFiles(@NonNull File dir, @NonNull ArraySet<String> existingFiles)
+            throws IOException, XmlPullParserException {
+        // Can't use forEachPackageItem due to the checked exceptions.
+        for (int i = 0; i < mLaunchers.size(); i++) {
+            final ShortcutLauncher launcher = mLaunchers.valueAt(i);
+            saveItemFile(dir, getLauncherFileName(launcher.getPackageUserId(),
+                    launcher.getPackageName()), launcher, existingFiles);
+        }
+        for (int i = 0; i < mPackages.size(); i++) {
+            final ShortcutPackage p = mPackages.valueAt(i);
+            saveItemFile(dir, getPackageFileName(p.getPackageName()), p, existingFiles);
+        }
+        for (int i = 0; i < mUnloadedPackages.size(); i++) {
+            existingFiles.remove(getPackageFileName(mUnloadedPackages.valueAt(i)));
+        }
+        for (int i = 0; i < existingFiles.size(); i++) {
+            final String fileName = existingFiles.valueAt(i);
+            mService.deleteItemFile(new File(dir, fileName));
+            mItemFileDigests.remove(fileName);
+        }
+        mLoadedLegacyFile = false;
+    }
+
+    private void saveItemFile(File dir, String fileName, ShortcutPackageItem spi,
+            ArraySet<String> existingFiles) throws IOException, XmlPullParserException {
+        final boolean exists = existingFiles.remove(fileName);
+        final byte[] lastDigest = exists ? mItemFileDigests.get(fileName) : null;
+        final byte[] digest = mService.writeItemFileIfChanged(new File(dir, fileName), spi,
+                lastDigest);
+        setItemFileDigest(fileName, digest);
+    }
+
     public static ShortcutUser loadFromXml(ShortcutService s, XmlPullParser parser, int userId,
             boolean fromBackup) throws IOException, XmlPullParserException, InvalidFileFormatException {
         final ShortcutUser ret = new ShortcutUser(s, userId);
@@ -412,12 +582,14 @@ class ShortcutUser {
 
                             // Don't use addShortcut(), we don't need to save the icon.
                             ret.mPackages.put(shortcuts.getPackageName(), shortcuts);
+                            ret.mLoadedLegacyFile = !fromBackup;
                             continue;
                         }
 
                         case ShortcutLauncher.TAG_ROOT: {
                             ret.addLauncher(
                                     ShortcutLauncher.loadFromXml(parser, ret, userId, fromBackup));
+                            ret.mLoadedLegacyFile = !fromBackup;
                             continue;
                         }
                     }
@@ -470,6 +642,7 @@ class ShortcutUser {
     }
 
     public void resetThrottling() {
+        loadAllPackages();
         for (int i = mPackages.size() - 1; i >= 0; i--) {
             mPackages.valueAt(i).resetThrottling();
         }
@@ -545,6 +718,8 @@ class ShortcutUser {
         pw.print(mLastAppScanOsFingerprint);
         pw.println();
 
+        loadAllPackages();
+
         prefix += prefix + "  ";
 
         pw.print(prefix);
@@ -603,6 +778,8 @@ class ShortcutUser {
 
         result.put(KEY_USER_ID, mUserId);
 
+        loadAllPackages();
+
         {
             final JSONArray launchers = new JSONArray();
             for (int i = 0; i < mLaunchers.size(); i++) {
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.server.storage;
+
+import android.util.AtomicFile;
+import android.util.Log;
+
+import com.android.server.storage.FileCollector.MeasurementResult;
+
+import libcore.io.IoUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * DirectorySizeCache remembers the categorized size of the files directly inside each directory
+ * measured by {@link FileCollector}, along with the names of its subdirectories, keyed by the
+ * directory's modification time. A directory that has not been modified since is not listed
+ * again, and none of its files are stat'ed.
+ *
+ * The modification time of a directory only changes when entries are added, removed or renamed,
+ * so files that are rewritten in place keep their old size until their directory changes. This
+ * is acceptable for the approximate, daily statistics it is used for.
+ */
+public class DirectorySizeCache {
+    private static final String TAG = "DirectorySizeCache";
+
+    private static final int VERSION = 1;
+
+    // Files in recently modified directories may still be being written to; such directories
+    // are measured again on the next walk instead of being trusted.
+    private static final long SETTLE_TIME_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private final AtomicFile mFile;
+
+    // Entries loaded from the file, and the ones seen by the current walk. Only the latter are
+    // written back, which drops the directories that no longer exist.
+    private final Map<String, Entry> mPreviousEntries = new HashMap<>();
+    private final ConcurrentHashMap<String, Entry> mCurrentEntries = new ConcurrentHashMap<>();
+
+    private final AtomicInteger mHitCount = new AtomicInteger();
+    private final AtomicInteger mMissCount = new AtomicInteger();
+
+    /**
+     * Creates a cache that is not persisted.
+     */
+    public DirectorySizeCache() {
+        mFile = null;
+    }
+
+    /**
+     * Creates a cache persisted in the given file, loading the entries it contains.
+     */
+    public DirectorySizeCache(File file) {
+        mFile = new AtomicFile(file);
+        readEntries();
+    }
+
+    /**
+     * Returns the cached entry for the directory if it was measured with the given modification
+     * time, or null if it has to be measured again.
+     */
+    Entry get(String path, long lastModified) {
+        final Entry entry = mPreviousEntries.get(path);
+        if (entry != null && entry.lastModified == lastModified
+                && lastModified < entry.measuredTime - SETTLE_TIME_MILLIS) {
+            mCurrentEntries.put(path, entry);
+            mHitCount.incrementAndGet();
+            return entry;
+        }
+        mMissCount.incrementAndGet();
+        return null;
+    }
+
+    void put(String path, Entry entry) {
+        mCurrentEntries.put(path, entry);
+    }
+
+    /** Returns the number of directories whose sizes were taken from the cache. */
+    public int getHitCount() {
+        return mHitCount.get();
+    }
+
+    /** Returns the number of directories that had to be measured. */
+    public int getMissCount() {
+        return mMissCount.get();
+    }
+
+    /**
+     * Makes the entries recorded by the last walk available to the next one, and writes them to
+     * the backing file, if any.
+     */
+    public void commit() {
+        mPreviousEntries.clear();
+        mPreviousEntries.putAll(mCurrentEntries);
+        mCurrentEntries.clear();
+        if (mFile != null) {
+            writeEntries();
+        }
+    }
+
+    private void readEntries() {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(mFile.openRead()));
+            if (in.readInt() != VERSION) {
+                return;
+            }
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                final String path = in.readUTF();
+                final long lastModified = in.readLong();
+                final long measuredTime = in.readLong();
+                final MeasurementResult sizes = new MeasurementResult();
+                sizes.imagesSize = in.readLong();
+                sizes.videosSize = in.readLong();
+                sizes.audioSize = in.readLong();
+                sizes.miscSize = in.readLong();
+                final String[] subdirectories = new String[in.readInt()];
+                for (int j = 0; j < subdirectories.length; j++) {
+                    subdirectories[j] = in.readUTF();
+                }
+                mPreviousEntries.put(path,
+                        new Entry(lastModified, measuredTime, sizes, subdirectories));
+            }
+        } catch (FileNotFoundException e) {
+            // Nothing cached yet.
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Discarding unreadable directory size cache", e);
+            mPreviousEntries.clear();
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+    }
+
+    private void writeEntries() {
+        FileOutputStream fos = null;
+        try {
+            fos = mFile.startWrite();
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(VERSION);
+            out.writeInt(mPreviousEntries.size());
+            for (Map.Entry<String, Entry> mapEntry : mPreviousEntries.entrySet()) {
+                final Entry entry = mapEntry.getValue();
+                out.writeUTF(mapEntry.getKey());
+                out.writeLong(entry.lastModified);
+                out.writeLong(entry.measuredTime);
+                out.writeLong(entry.sizes.imagesSize);
+                out.writeLong(entry.sizes.videosSize);
+                out.writeLong(entry.sizes.audioSize);
+                out.writeLong(entry.sizes.miscSize);
+                out.writeInt(entry.subdirectories.length);
+                for (String name : entry.subdirectories) {
+                    out.writeUTF(name);
+                }
+            }
+            out.flush();
+            mFile.finishWrite(fos);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write directory size cache", e);
+            mFile.failWrite(fos);
+        }
+    }
+
+    static class Entry {
+        final long lastModified;
+        final long measuredTime;
+        final MeasurementResult sizes;
+        final String[] subdirectories;
+
+        Entry(long lastModified, long measuredTime, MeasurementResult sizes,
+                String[] subdirectories) {
+            this.lastModified = lastModified;
+            this.measuredTime = measuredTime;
+            this.sizes = sizes;
+            this.subdirectories = subdirectories;
+        }
+    }
+}
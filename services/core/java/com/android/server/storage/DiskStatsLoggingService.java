@@ -28,6 +28,7 @@ import android.os.AsyncTask;
 import android.os.BatteryManager;
 import android.os.Environment;
 import android.os.Environment.UserEnvironment;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.os.storage.VolumeInfo;
 import android.provider.Settings;
@@ -48,6 +49,7 @@ import java.util.concurrent.TimeUnit;
 public class DiskStatsLoggingService extends JobService {
     private static final String TAG = "DiskStatsLogService";
     public static final String DUMPSYS_CACHE_PATH = "/data/system/diskstats_cache.json";
+    public static final String DIRECTORY_SIZE_CACHE_PATH = "/data/system/diskstats_dir_cache";
     private static final int JOB_DISKSTATS_LOGGING = 0x4449534b; // DISK
     private static ComponentName sDiskStatsLoggingService = new ComponentName(
             "android",
@@ -77,6 +79,7 @@ public class DiskStatsLoggingService extends JobService {
                 environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS));
         task.setSystemSize(FileCollector.getSystemSize(this));
         task.setLogOutputFile(new File(DUMPSYS_CACHE_PATH));
+        task.setDirectorySizeCacheFile(new File(DIRECTORY_SIZE_CACHE_PATH));
         task.setAppCollector(collector);
         task.setJobService(this, params);
         task.setContext(this);
@@ -129,6 +132,7 @@ public class DiskStatsLoggingService extends JobService {
         private AppCollector mCollector;
         private File mOutputFile;
         private File mDownloadsDirectory;
+        private File mDirectorySizeCacheFile;
         private Context mContext;
         private long mSystemSize;
 
@@ -144,6 +148,10 @@ public class DiskStatsLoggingService extends JobService {
             mOutputFile = file;
         }
 
+        public void setDirectorySizeCacheFile(File file) {
+            mDirectorySizeCacheFile = file;
+        }
+
         public void setSystemSize(long size) {
             mSystemSize = size;
         }
@@ -158,6 +166,7 @@ public class DiskStatsLoggingService extends JobService {
         }
 
         public void run() {
+            final long startTime = SystemClock.elapsedRealtime();
             FileCollector.MeasurementResult mainCategories;
             try {
                 mainCategories = FileCollector.getMeasurementResult(mContext);
@@ -167,11 +176,27 @@ public class DiskStatsLoggingService extends JobService {
                 finishJob(true);
                 return;
             }
+            final long mainCategoriesTime = SystemClock.elapsedRealtime();
+
+            final DirectorySizeCache cache = (mDirectorySizeCacheFile != null)
+                    ? new DirectorySizeCache(mDirectorySizeCacheFile) : null;
             FileCollector.MeasurementResult downloads =
-                    FileCollector.getMeasurementResult(mDownloadsDirectory);
+                    FileCollector.getMeasurementResult(mDownloadsDirectory, cache);
+            if (cache != null) {
+                cache.commit();
+            }
+            final long downloadsTime = SystemClock.elapsedRealtime();
 
             boolean needsReschedule = true;
             List<PackageStats> stats = mCollector.getPackageStats(TIMEOUT_MILLIS);
+            final long packageStatsTime = SystemClock.elapsedRealtime();
+            Log.i(TAG, "Collected disk stats: categories="
+                    + (mainCategoriesTime - startTime) + "ms, downloads="
+                    + (downloadsTime - mainCategoriesTime) + "ms ("
+                    + downloads.scannedDirectoryCount + " dirs scanned, "
+                    + downloads.cachedDirectoryCount + " dirs cached, "
+                    + downloads.fileCount + " files), packages="
+                    + (packageStatsTime - downloadsTime) + "ms");
             if (stats != null) {
                 needsReschedule = false;
                 logToFile(mainCategories, downloads, stats, mSystemSize);
@@ -25,17 +25,29 @@ import android.os.UserHandle;
 import android.os.storage.StorageManager;
 import android.os.storage.VolumeInfo;
 import android.util.ArrayMap;
+import android.util.Log;
 
 import java.io.File;
 import java.io.IOException;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 /**
  * FileCollector walks over a directory and categorizes storage usage by their type.
  */
 public class FileCollector {
+    private static final String TAG = "FileCollector";
+
     private static final int UNRECOGNIZED = -1;
     private static final int IMAGES = 0;
     private static final int VIDEO = 1;
@@ -153,8 +165,29 @@ public class FileCollector {
      * @param path Directory to collect and categorize storage in.
      */
     public static MeasurementResult getMeasurementResult(File path) {
-        return collectFiles(StorageManager.maybeTranslateEmulatedPathToInternal(path),
-                new MeasurementResult());
+        return getMeasurementResult(path, null);
+    }
+
+    /**
+     * Returns the file categorization measurement result, reusing the sizes recorded in the
+     * cache for the directories that did not change since they were last measured and recording
+     * the sizes of the ones that did.
+     * @param path Directory to collect and categorize storage in.
+     * @param cache Cache of directory sizes, or null to measure every directory.
+     */
+    public static MeasurementResult getMeasurementResult(File path, DirectorySizeCache cache) {
+        final Path dir = StorageManager.maybeTranslateEmulatedPathToInternal(path).toPath();
+        final BasicFileAttributes attrs = readAttributes(dir);
+        if (attrs == null || !attrs.isDirectory()) {
+            return new MeasurementResult();
+        }
+
+        final ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        try {
+            return pool.invoke(new CollectTask(dir, attrs, cache, 0));
+        } finally {
+            pool.shutdown();
+        }
     }
 
     /**
@@ -220,31 +253,120 @@ public class FileCollector {
         return systemSize;
     }
 
-    private static MeasurementResult collectFiles(File file, MeasurementResult result) {
-        File[] files = file.listFiles();
+    /**
+     * Measures a directory tree. Tasks for the directories near the root fork a task for each of
+     * their subdirectories; deeper ones walk the rest of their subtree with an explicit queue, so
+     * the depth of the tree is not limited by the stack of the worker threads. Entries are
+     * stat'ed once and symbolic links are not followed, so loops in the tree are not an issue.
+     */
+    private static class CollectTask extends RecursiveTask<MeasurementResult> {
+        // Enough levels to spread a typical tree across the workers of the pool.
+        private static final int MAX_FORK_DEPTH = 3;
 
-        if (files == null) {
-            return result;
+        private final Path mDir;
+        private final BasicFileAttributes mAttrs;
+        private final DirectorySizeCache mCache;
+        private final int mDepth;
+
+        CollectTask(Path dir, BasicFileAttributes attrs, DirectorySizeCache cache, int depth) {
+            mDir = dir;
+            mAttrs = attrs;
+            mCache = cache;
+            mDepth = depth;
         }
 
-        for (File f : files) {
-            if (f.isDirectory()) {
-                try {
-                    collectFiles(f, result);
-                } catch (StackOverflowError e) {
-                    return result;
+        @Override
+        protected MeasurementResult compute() {
+            final MeasurementResult result = new MeasurementResult();
+            final ArrayDeque<CollectTask> subtasks = new ArrayDeque<>();
+            measure(result, subtasks);
+
+            if (mDepth < MAX_FORK_DEPTH) {
+                invokeAll(subtasks);
+                for (CollectTask subtask : subtasks) {
+                    final MeasurementResult subresult = subtask.join();
+                    result.add(subresult);
+                    result.fileCount += subresult.fileCount;
+                    result.scannedDirectoryCount += subresult.scannedDirectoryCount;
+                    result.cachedDirectoryCount += subresult.cachedDirectoryCount;
                 }
             } else {
-                handleFile(result, f);
+                CollectTask subtask;
+                while ((subtask = subtasks.poll()) != null) {
+                    subtask.measure(result, subtasks);
+                }
             }
+            return result;
         }
 
-        return result;
+        /**
+         * Adds the sizes of the files directly inside this task's directory to the result, and
+         * queues a task for each of its subdirectories.
+         */
+        private void measure(MeasurementResult result, ArrayDeque<CollectTask> subtasks) {
+            final String path = mDir.toString();
+            final long lastModified = mAttrs.lastModifiedTime().toMillis();
+
+            final DirectorySizeCache.Entry entry =
+                    (mCache != null) ? mCache.get(path, lastModified) : null;
+            if (entry != null) {
+                result.add(entry.sizes);
+                result.cachedDirectoryCount++;
+                for (String name : entry.subdirectories) {
+                    final Path subdir = mDir.resolve(name);
+                    final BasicFileAttributes attrs = readAttributes(subdir);
+                    if (attrs != null && attrs.isDirectory()) {
+                        subtasks.add(new CollectTask(subdir, attrs, mCache, mDepth + 1));
+                    }
+                }
+                return;
+            }
+
+            final MeasurementResult sizes = new MeasurementResult();
+            final ArrayList<String> subdirectories = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(mDir)) {
+                for (Path child : stream) {
+                    final BasicFileAttributes attrs = readAttributes(child);
+                    if (attrs == null) {
+                        continue;
+                    }
+                    final String name = child.getFileName().toString();
+                    if (attrs.isDirectory()) {
+                        subdirectories.add(name);
+                        subtasks.add(new CollectTask(child, attrs, mCache, mDepth + 1));
+                    } else {
+                        handleFile(sizes, name, attrs.size());
+                        result.fileCount++;
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                // Count what could be read; the directory is measured again next time.
+                Log.w(TAG, "Failed to list " + path, e);
+                result.add(sizes);
+                return;
+            }
+            result.add(sizes);
+            result.scannedDirectoryCount++;
+            if (mCache != null) {
+                mCache.put(path, new DirectorySizeCache.Entry(lastModified,
+                        System.currentTimeMillis(), sizes,
+                        subdirectories.toArray(new String[subdirectories.size()])));
+            }
+        }
+    }
+
+    private static BasicFileAttributes readAttributes(Path path) {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class,
+                    LinkOption.NOFOLLOW_LINKS);
+        } catch (IOException | RuntimeException e) {
+            // Deleted while walking or not accessible.
+            return null;
+        }
     }
 
-    private static void handleFile(MeasurementResult result, File f) {
-        long fileSize = f.length();
-        int fileType = EXTENSION_MAP.getOrDefault(getExtensionForFile(f), UNRECOGNIZED);
+    private static void handleFile(MeasurementResult result, String fileName, long fileSize) {
+        int fileType = EXTENSION_MAP.getOrDefault(getExtensionForFile(fileName), UNRECOGNIZED);
         switch (fileType) {
             case AUDIO:
                 result.audioSize += fileSize;
@@ -260,8 +382,7 @@ public class FileCollector {
         }
     }
 
-    private static String getExtensionForFile(File file) {
-        String fileName = file.getName();
+    private static String getExtensionForFile(String fileName) {
         int index = fileName.lastIndexOf('.');
         if (index == -1) {
             return "";
@@ -278,6 +399,21 @@ public class FileCollector {
         public long miscSize;
         public long audioSize;
 
+        /** Number of files and directories that were stat'ed and listed in the walk. */
+        public int fileCount;
+        public int scannedDirectoryCount;
+
+        /** Number of directories whose sizes came from the {@link DirectorySizeCache}. */
+        public int cachedDirectoryCount;
+
+        /** Adds the categorized sizes of another measurement to this one. */
+        void add(MeasurementResult other) {
+            imagesSize += other.imagesSize;
+            videosSize += other.videosSize;
+            miscSize += other.miscSize;
+            audioSize += other.audioSize;
+        }
+
         /**
          * Sums up the storage taken by all of the categorizable sizes in the measurement.
          */
@@ -34,6 +34,7 @@ import static com.android.server.wm.WindowManagerDebugConfig.TAG_WM;
 
 import android.app.ActivityManager;
 import android.graphics.Rect;
+import android.graphics.Region;
 import android.os.Debug;
 import android.os.Looper;
 import android.os.RemoteException;
@@ -81,6 +82,26 @@ final class InputMonitor implements InputManagerService.WindowManagerCallbacks {
     private int mInputWindowHandleCount;
     private InputWindowHandle mFocusedInputWindowHandle;
 
+    // The window handles and focused handle most recently sent to the input dispatcher. Used to
+    // skip publishing to native code when nothing input-relevant changed since the last update.
+    private InputWindowHandle[] mPublishedInputWindowHandles;
+    private int mPublishedInputWindowHandleCount;
+    private InputWindowHandle mPublishedFocusedInputWindowHandle;
+
+    // When true, updateInputWindowsLw() only publishes the window list if the contents of one of
+    // the handles or their order changed since the last publish. Toggled with
+    // "dumpsys window input-tracking on|off" to compare against always publishing.
+    private boolean mTrackInputWindowChanges = true;
+
+    // Set when the state of a window handle in the list being built differs from what was last
+    // published, or when something outside the window list (e.g. consumer layout) changed.
+    private boolean mInputWindowsChanged = true;
+
+    // Number of times the window list was sent to native code vs. skipped as unchanged.
+    private long mInputWindowsPublishCount;
+    private long mInputWindowsSkipCount;
+    private final Region mTmpRegion = new Region();
+
     private boolean mAddInputConsumerHandle;
     private boolean mAddPipInputConsumerHandle;
     private boolean mAddWallpaperInputConsumerHandle;
@@ -158,6 +179,7 @@ final class InputMonitor implements InputManagerService.WindowManagerCallbacks {
         for (int i = mInputConsumers.size() - 1; i >= 0; i--) {
             mInputConsumers.valueAt(i).layout(dw, dh);
         }
+        mInputWindowsChanged = true;
     }
 
     WindowManagerPolicy.InputConsumer createInputConsumer(Looper looper, String name,
@@ -301,8 +323,16 @@ final class InputMonitor implements InputManagerService.WindowManagerCallbacks {
             final WindowState child, int flags, final int type, final boolean isVisible,
             final boolean hasFocus, final boolean hasWallpaper) {
         // Add a window to our list of input windows.
+        if (mTrackInputWindowChanges && !mInputWindowsChanged) {
+            mTmpRegion.set(inputWindowHandle.touchableRegion);
+            flags = child.getTouchableRegion(inputWindowHandle.touchableRegion, flags);
+            mInputWindowsChanged = !mTmpRegion.equals(inputWindowHandle.touchableRegion)
+                    || hasInputWindowStateChanged(inputWindowHandle, child, flags, type,
+                            isVisible, hasFocus, hasWallpaper);
+        } else {
+            flags = child.getTouchableRegion(inputWindowHandle.touchableRegion, flags);
+        }
         inputWindowHandle.name = child.toString();
-        flags = child.getTouchableRegion(inputWindowHandle.touchableRegion, flags);
         inputWindowHandle.layoutParamsFlags = flags;
         inputWindowHandle.layoutParamsType = type;
         inputWindowHandle.dispatchingTimeoutNanos = child.getInputDispatchingTimeoutNanos();
@@ -341,6 +371,74 @@ final class InputMonitor implements InputManagerService.WindowManagerCallbacks {
         }
     }
 
+    /**
+     * Returns true if updating the given handle from the window would change any of the state
+     * read by the input dispatcher. Must be kept in sync with the fields assigned in
+     * {@link #addInputWindowHandle(InputWindowHandle, WindowState, int, int, boolean, boolean,
+     * boolean)}.
+     */
+    private static boolean hasInputWindowStateChanged(InputWindowHandle inputWindowHandle,
+            WindowState child, int flags, int type, boolean isVisible, boolean hasFocus,
+            boolean hasWallpaper) {
+        final Rect frame = child.mFrame;
+        final float scaleFactor = child.mGlobalScale != 1 ? 1.0f / child.mGlobalScale : 1;
+        return inputWindowHandle.layoutParamsFlags != flags
+                || inputWindowHandle.layoutParamsType != type
+                || inputWindowHandle.visible != isVisible
+                || inputWindowHandle.hasFocus != hasFocus
+                || inputWindowHandle.hasWallpaper != hasWallpaper
+                || inputWindowHandle.canReceiveKeys != child.canReceiveKeys()
+                || inputWindowHandle.paused
+                        != (child.mAppToken != null ? child.mAppToken.paused : false)
+                || inputWindowHandle.layer != child.mLayer
+                || inputWindowHandle.ownerPid != child.mSession.mPid
+                || inputWindowHandle.ownerUid != child.mSession.mUid
+                || inputWindowHandle.inputFeatures != child.mAttrs.inputFeatures
+                || inputWindowHandle.dispatchingTimeoutNanos
+                        != child.getInputDispatchingTimeoutNanos()
+                || inputWindowHandle.frameLeft != frame.left
+                || inputWindowHandle.frameTop != frame.top
+                || inputWindowHandle.frameRight != frame.right
+                || inputWindowHandle.frameBottom != frame.bottom
+                || inputWindowHandle.scaleFactor != scaleFactor
+                || !child.toString().equals(inputWindowHandle.name);
+    }
+
+    /**
+     * Returns true if the window list that was just built differs from the one last sent to the
+     * input dispatcher, either in the state of one of its handles or in their order.
+     */
+    private boolean shouldPublishInputWindowsLw() {
+        if (!mTrackInputWindowChanges || mInputWindowsChanged
+                || mFocusedInputWindowHandle != mPublishedFocusedInputWindowHandle
+                || mInputWindowHandleCount != mPublishedInputWindowHandleCount) {
+            return true;
+        }
+        for (int i = 0; i < mInputWindowHandleCount; i++) {
+            if (mInputWindowHandles[i] != mPublishedInputWindowHandles[i]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void savePublishedInputWindowsLw() {
+        if (mPublishedInputWindowHandles == null
+                || mPublishedInputWindowHandles.length < mInputWindowHandleCount) {
+            mPublishedInputWindowHandles = new InputWindowHandle[mInputWindowHandles != null
+                    ? mInputWindowHandles.length : 0];
+        }
+        if (mInputWindowHandleCount > 0) {
+            System.arraycopy(mInputWindowHandles, 0, mPublishedInputWindowHandles, 0,
+                    mInputWindowHandleCount);
+        }
+        for (int i = mInputWindowHandleCount; i < mPublishedInputWindowHandleCount; i++) {
+            mPublishedInputWindowHandles[i] = null;
+        }
+        mPublishedInputWindowHandleCount = mInputWindowHandleCount;
+        mPublishedFocusedInputWindowHandle = mFocusedInputWindowHandle;
+    }
+
     private void clearInputWindowHandlesLw() {
         while (mInputWindowHandleCount != 0) {
             mInputWindowHandles[--mInputWindowHandleCount] = null;
@@ -348,6 +446,21 @@ final class InputMonitor implements InputManagerService.WindowManagerCallbacks {
         mFocusedInputWindowHandle = null;
     }
 
+    /**
+     * Sets whether to skip publishing the window list when nothing in it changed, and forces the
+     * next update to publish it either way.
+     */
+    void setTrackInputWindowChangesLw(boolean track) {
+        mTrackInputWindowChanges = track;
+        mInputWindowsChanged = true;
+        if (!track) {
+            mPublishedInputWindowHandles = null;
+            mPublishedInputWindowHandleCount = 0;
+            mPublishedFocusedInputWindowHandle = null;
+        }
+        setUpdateInputWindowsNeededLw();
+    }
+
     void setUpdateInputWindowsNeededLw() {
         mUpdateInputWindowsNeeded = true;
     }
@@ -374,6 +487,8 @@ final class InputMonitor implements InputManagerService.WindowManagerCallbacks {
                 Log.d(TAG_WM, "Inserting drag window");
             }
             final InputWindowHandle dragWindowHandle = mService.mDragState.getInputWindowHandle();
+            // The drag window's state is owned by DragState, so always publish while dragging.
+            mInputWindowsChanged = true;
             if (dragWindowHandle != null) {
                 addInputWindowHandle(dragWindowHandle);
             } else {
@@ -388,6 +503,7 @@ final class InputMonitor implements InputManagerService.WindowManagerCallbacks {
                 Log.d(TAG_WM, "Inserting window handle for repositioning");
             }
             final InputWindowHandle dragWindowHandle = mService.mTaskPositioner.mDragWindowHandle;
+            mInputWindowsChanged = true;
             if (dragWindowHandle != null) {
                 addInputWindowHandle(dragWindowHandle);
             } else {
@@ -589,6 +705,9 @@ final class InputMonitor implements InputManagerService.WindowManagerCallbacks {
         if (mInputFreezeReason != null) {
             pw.println(prefix + "mInputFreezeReason=" + mInputFreezeReason);
         }
+        pw.println(prefix + "mTrackInputWindowChanges=" + mTrackInputWindowChanges
+                + " mInputWindowsPublishCount=" + mInputWindowsPublishCount
+                + " mInputWindowsSkipCount=" + mInputWindowsSkipCount);
         final Set<String> inputConsumerKeys = mInputConsumers.keySet();
         if (!inputConsumerKeys.isEmpty()) {
             pw.println(prefix + "InputConsumers:");
@@ -628,8 +747,18 @@ final class InputMonitor implements InputManagerService.WindowManagerCallbacks {
                 addInputWindowHandle(wallpaperInputConsumer.mWindowHandle);
             }
 
-            // Send windows to native code.
-            mService.mInputManager.setInputWindows(mInputWindowHandles, mFocusedInputWindowHandle);
+            // Send windows to native code, unless nothing changed since the last time we did.
+            if (shouldPublishInputWindowsLw()) {
+                mService.mInputManager.setInputWindows(mInputWindowHandles,
+                        mFocusedInputWindowHandle);
+                mInputWindowsPublishCount++;
+                if (mTrackInputWindowChanges) {
+                    savePublishedInputWindowsLw();
+                }
+            } else {
+                mInputWindowsSkipCount++;
+            }
+            mInputWindowsChanged = false;
 
             clearInputWindowHandlesLw();
         }
@@ -655,7 +784,13 @@ final class InputMonitor implements InputManagerService.WindowManagerCallbacks {
                         && (inputWindowHandle.layer <= pipInputConsumer.mWindowHandle.layer)) {
                     // Update the bounds of the Pip input consumer to match the Pinned stack
                     w.getStack().getBounds(pipTouchableBounds);
-                    pipInputConsumer.mWindowHandle.touchableRegion.set(pipTouchableBounds);
+                    final Region pipTouchableRegion =
+                            pipInputConsumer.mWindowHandle.touchableRegion;
+                    if (!mInputWindowsChanged) {
+                        mTmpRegion.set(pipTouchableBounds);
+                        mInputWindowsChanged = !mTmpRegion.equals(pipTouchableRegion);
+                    }
+                    pipTouchableRegion.set(pipTouchableBounds);
                     addInputWindowHandle(pipInputConsumer.mWindowHandle);
                     mAddPipInputConsumerHandle = false;
                 }
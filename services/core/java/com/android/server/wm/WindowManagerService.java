@@ -898,6 +898,10 @@ public class WindowManagerService extends IWindowManager.Stub
         sThreadPriorityBooster.reset();
     }
 
+    static void noteAcquiringLockedSection() {
+        sThreadPriorityBooster.acquiring();
+    }
+
     void openSurfaceTransaction() {
         try {
             Trace.traceBegin(TRACE_TAG_WINDOW_MANAGER, "openSurfaceTransaction");
@@ -6864,6 +6868,7 @@ public class WindowManagerService extends IWindowManager.Stub
                 pw.println("    d[isplays]: active display contents");
                 pw.println("    t[okens]: token list");
                 pw.println("    w[indows]: window list");
+                pw.println("    input-tracking [on|off]: skip publishing unchanged input windows");
                 pw.println("  cmd may also be a NAME to dump windows.  NAME may");
                 pw.println("    be a partial substring in a window name, a");
                 pw.println("    Window hex object identifier, or");
@@ -6926,6 +6931,16 @@ public class WindowManagerService extends IWindowManager.Stub
                     dumpWindowsLocked(pw, true, null);
                 }
                 return;
+            } else if ("input-tracking".equals(cmd)) {
+                synchronized(mWindowMap) {
+                    final String arg = opti < args.length ? args[opti] : null;
+                    if ("on".equals(arg) || "off".equals(arg)) {
+                        mInputMonitor.setTrackInputWindowChangesLw("on".equals(arg));
+                        mInputMonitor.updateInputWindowsLw(true /*force*/);
+                    }
+                    mInputMonitor.dump(pw, "  ");
+                }
+                return;
             } else if ("containers".equals(cmd)) {
                 synchronized(mWindowMap) {
                     StringBuilder output = new StringBuilder();
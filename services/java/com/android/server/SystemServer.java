@@ -57,7 +57,6 @@ import com.android.internal.logging.MetricsLogger;
 import com.android.internal.notification.SystemNotificationChannels;
 import com.android.internal.os.BinderInternal;
 import com.android.internal.util.EmergencyAffordanceManager;
-import com.android.internal.util.ConcurrentUtils;
 import com.android.internal.widget.ILockSettings;
 import com.android.server.accessibility.AccessibilityManagerService;
 import com.android.server.am.ActivityManagerService;
@@ -124,7 +123,6 @@ import java.io.IOException;
 import java.util.Locale;
 import java.util.Timer;
 import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.Future;
 
 import static android.view.Display.DEFAULT_DISPLAY;
 
@@ -248,10 +246,7 @@ public final class SystemServer {
 
     private static final String START_SENSOR_SERVICE = "StartSensorService";
     private static final String START_HIDL_SERVICES = "StartHidlServices";
-
-
-    private Future<?> mSensorServiceStart;
-    private Future<?> mZygotePreload;
+    private static final String SECONDARY_ZYGOTE_PRELOAD = "SecondaryZygotePreload";
 
     /**
      * Start the sensor service. This is a blocking call and can take time.
@@ -393,6 +388,8 @@ public final class SystemServer {
             startBootstrapServices();
             startCoreServices();
             startOtherServices();
+            mSystemServiceManager.waitForAllSteps(new TimingsTraceLog(
+                    SYSTEM_SERVER_TIMING_ASYNC_TAG, Trace.TRACE_TAG_SYSTEM_SERVER));
             SystemServerInitThreadPool.shutdown();
         } catch (Throwable ex) {
             Slog.e("System", "******************************************");
@@ -503,9 +500,9 @@ public final class SystemServer {
     private void startBootstrapServices() {
         Slog.i(TAG, "Reading configuration...");
         final String TAG_SYSTEM_CONFIG = "ReadingSystemConfig";
-        traceBeginAndSlog(TAG_SYSTEM_CONFIG);
-        SystemServerInitThreadPool.get().submit(SystemConfig::getInstance, TAG_SYSTEM_CONFIG);
-        traceEnd();
+        mSystemServiceManager.scheduleBestEffortStep(TAG_SYSTEM_CONFIG,
+                SystemService.PHASE_BOOT_COMPLETED, true /* background */,
+                SystemConfig::getInstance);
 
         // Wait for installd to finish starting up so that it has a chance to
         // create critical directories such as /data/user with the appropriate
@@ -650,13 +647,9 @@ public final class SystemServer {
         // service, and permissions service, therefore we start it after them.
         // Start sensor service in a separate thread. Completion should be checked
         // before using it.
-        mSensorServiceStart = SystemServerInitThreadPool.get().submit(() -> {
-            TimingsTraceLog traceLog = new TimingsTraceLog(
-                    SYSTEM_SERVER_TIMING_ASYNC_TAG, Trace.TRACE_TAG_SYSTEM_SERVER);
-            traceLog.traceBegin(START_SENSOR_SERVICE);
-            startSensorService();
-            traceLog.traceEnd();
-        }, START_SENSOR_SERVICE);
+        mSystemServiceManager.scheduleStep(START_SENSOR_SERVICE,
+                SystemService.PHASE_SYSTEM_SERVICES_READY, true /* background */,
+                SystemServer::startSensorService);
     }
 
     /**
@@ -741,25 +734,21 @@ public final class SystemServer {
         }
 
         try {
-            final String SECONDARY_ZYGOTE_PRELOAD = "SecondaryZygotePreload";
             // We start the preload ~1s before the webview factory preparation, to
             // ensure that it completes before the 32 bit relro process is forked
             // from the zygote. In the event that it takes too long, the webview
             // RELRO process will block, but it will do so without holding any locks.
-            mZygotePreload = SystemServerInitThreadPool.get().submit(() -> {
+            mSystemServiceManager.scheduleStep(SECONDARY_ZYGOTE_PRELOAD,
+                    SystemService.PHASE_THIRD_PARTY_APPS_CAN_START, true /* background */, () -> {
                 try {
                     Slog.i(TAG, SECONDARY_ZYGOTE_PRELOAD);
-                    TimingsTraceLog traceLog = new TimingsTraceLog(
-                            SYSTEM_SERVER_TIMING_ASYNC_TAG, Trace.TRACE_TAG_SYSTEM_SERVER);
-                    traceLog.traceBegin(SECONDARY_ZYGOTE_PRELOAD);
                     if (!Process.zygoteProcess.preloadDefault(Build.SUPPORTED_32_BIT_ABIS[0])) {
                         Slog.e(TAG, "Unable to preload default resources");
                     }
-                    traceLog.traceEnd();
                 } catch (Exception ex) {
                     Slog.e(TAG, "Exception preloading default resources", ex);
                 }
-            }, SECONDARY_ZYGOTE_PRELOAD);
+            });
 
             traceBeginAndSlog("StartKeyAttestationApplicationIdProviderService");
             ServiceManager.addService("sec_key_att_app_id_provider",
@@ -829,8 +818,7 @@ public final class SystemServer {
 
             traceBeginAndSlog("StartWindowManagerService");
             // WMS needs sensor service ready
-            ConcurrentUtils.waitForFutureNoInterrupt(mSensorServiceStart, START_SENSOR_SERVICE);
-            mSensorServiceStart = null;
+            mSystemServiceManager.waitForStep(START_SENSOR_SERVICE);
             wm = WindowManagerService.main(context, inputManager,
                     mFactoryTestMode != FactoryTest.FACTORY_TEST_LOW_LEVEL,
                     !mFirstBoot, mOnlyCore, new PhoneWindowManager());
@@ -841,13 +829,9 @@ public final class SystemServer {
             // Start receiving calls from HIDL services. Start in in a separate thread
             // because it need to connect to SensorManager. This have to start
             // after START_SENSOR_SERVICE is done.
-            SystemServerInitThreadPool.get().submit(() -> {
-                TimingsTraceLog traceLog = new TimingsTraceLog(
-                        SYSTEM_SERVER_TIMING_ASYNC_TAG, Trace.TRACE_TAG_SYSTEM_SERVER);
-                traceLog.traceBegin(START_HIDL_SERVICES);
-                startHidlServices();
-                traceLog.traceEnd();
-            }, START_HIDL_SERVICES);
+            mSystemServiceManager.scheduleBestEffortStep(START_HIDL_SERVICES,
+                    SystemService.PHASE_BOOT_COMPLETED, true /* background */,
+                    SystemServer::startHidlServices, START_SENSOR_SERVICE);
 
             if (!disableVrManager) {
                 traceBeginAndSlog("StartVrManagerService");
@@ -891,9 +875,10 @@ public final class SystemServer {
             mSystemServiceManager.startService(IpConnectivityMetrics.class);
             traceEnd();
 
-            traceBeginAndSlog("PinnerService");
-            mSystemServiceManager.startService(PinnerService.class);
-            traceEnd();
+            // Nothing looks up the pinner service during boot, and it does its work on the
+            // background thread.
+            mSystemServiceManager.scheduleBestEffortService(PinnerService.class,
+                    SystemService.PHASE_SYSTEM_SERVICES_READY, true /* background */);
         } catch (RuntimeException e) {
             Slog.e("System", "******************************************");
             Slog.e("System", "************ Failure starting core service", e);
@@ -1350,14 +1335,21 @@ public final class SystemServer {
                     mSystemServiceManager.startService(GestureLauncherService.class);
                     traceEnd();
                 }
-                traceBeginAndSlog("StartSensorNotification");
-                mSystemServiceManager.startService(SensorNotificationService.class);
-                traceEnd();
+                // Neither service is looked up during boot, nor needs the looper of this thread.
+                mSystemServiceManager.scheduleService(SensorNotificationService.class,
+                        SystemService.PHASE_THIRD_PARTY_APPS_CAN_START, true /* background */);
+                mSystemServiceManager.scheduleService(ContextHubSystemService.class,
+                        SystemService.PHASE_SYSTEM_SERVICES_READY, true /* background */);
+            }
 
-                traceBeginAndSlog("StartContextHubSystemService");
-                mSystemServiceManager.startService(ContextHubSystemService.class);
-                traceEnd();
+            traceBeginAndSlog("StartBinderCallsStatsService");
+            try {
+                ServiceManager.addService("binder_calls_stats",
+                        new BinderCallsStatsService(context));
+            } catch (Throwable e) {
+                reportWtf("starting BinderCallsStats Service", e);
             }
+            traceEnd();
 
             traceBeginAndSlog("StartDiskStatsService");
             try {
@@ -1561,9 +1553,9 @@ public final class SystemServer {
         }
 
         if (!disableCameraService) {
-            traceBeginAndSlog("StartCameraServiceProxy");
-            mSystemServiceManager.startService(CameraServiceProxy.class);
-            traceEnd();
+            // The proxy handles camera service calls on its own thread.
+            mSystemServiceManager.scheduleService(CameraServiceProxy.class,
+                    SystemService.PHASE_SYSTEM_SERVICES_READY, true /* background */);
         }
 
         // Before things start rolling, be sure we have decided whether
@@ -1729,18 +1721,11 @@ public final class SystemServer {
             // No dependency on Webview preparation in system server. But this should
             // be completed before allowring 3rd party
             final String WEBVIEW_PREPARATION = "WebViewFactoryPreparation";
-            Future<?> webviewPrep = null;
             if (!mOnlyCore) {
-                webviewPrep = SystemServerInitThreadPool.get().submit(() -> {
-                    Slog.i(TAG, WEBVIEW_PREPARATION);
-                    TimingsTraceLog traceLog = new TimingsTraceLog(
-                            SYSTEM_SERVER_TIMING_ASYNC_TAG, Trace.TRACE_TAG_SYSTEM_SERVER);
-                    traceLog.traceBegin(WEBVIEW_PREPARATION);
-                    ConcurrentUtils.waitForFutureNoInterrupt(mZygotePreload, "Zygote preload");
-                    mZygotePreload = null;
-                    mWebViewUpdateService.prepareWebViewInSystemServer();
-                    traceLog.traceEnd();
-                }, WEBVIEW_PREPARATION);
+                mSystemServiceManager.scheduleStep(WEBVIEW_PREPARATION,
+                        SystemService.PHASE_THIRD_PARTY_APPS_CAN_START, true /* background */,
+                        mWebViewUpdateService::prepareWebViewInSystemServer,
+                        SECONDARY_ZYGOTE_PRELOAD);
             }
 
             if (mPackageManager.hasSystemFeature(PackageManager.FEATURE_AUTOMOTIVE)) {
@@ -1809,10 +1794,7 @@ public final class SystemServer {
             // It is now okay to let the various system services start their
             // third party code...
             traceBeginAndSlog("PhaseThirdPartyAppsCanStart");
-            // confirm webview completion before starting 3rd party
-            if (webviewPrep != null) {
-                ConcurrentUtils.waitForFutureNoInterrupt(webviewPrep, WEBVIEW_PREPARATION);
-            }
+            // Waits for the webview preparation before starting 3rd party
             mSystemServiceManager.startBootPhase(
                     SystemService.PHASE_THIRD_PARTY_APPS_CAN_START);
             traceEnd();
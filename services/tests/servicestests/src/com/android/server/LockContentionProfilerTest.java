@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * Run with:
+ * bit FrameworksServicesTests:com.android.server.LockContentionProfilerTest
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class LockContentionProfilerTest {
+    private static final long MILLIS = 1000 * 1000;
+
+    private LockContentionProfiler mProfiler;
+
+    @Before
+    public void setUp() {
+        mProfiler = new LockContentionProfiler("test", 5);
+    }
+
+    private String dump() {
+        final StringWriter sw = new StringWriter();
+        final PrintWriter pw = new PrintWriter(sw);
+        mProfiler.dump(pw, "", LockContentionProfiler.MAX_SITES + 1);
+        pw.flush();
+        return sw.toString();
+    }
+
+    @Test
+    public void testCountsWaitsAndHolds() {
+        mProfiler.noteAcquired(1 * MILLIS);
+        mProfiler.noteAcquired(-1);
+        mProfiler.noteReleasing(2 * MILLIS);
+
+        final String dump = dump();
+        assertTrue(dump, dump.contains("  Waits: 1, total 1ms"));
+        assertTrue(dump, dump.contains("sections entered without wait hook: 1"));
+        assertTrue(dump, dump.contains("  Holds: 1, total 2ms"));
+        assertFalse(dump, dump.contains("testCountsWaitsAndHolds"));
+    }
+
+    @Test
+    public void testCountsCallSitesOverThreshold() {
+        mProfiler.noteAcquired(10 * MILLIS);
+        mProfiler.noteReleasing(20 * MILLIS);
+
+        final String dump = dump();
+        assertTrue(dump, dump.contains("testCountsCallSitesOverThreshold"));
+        assertTrue(dump, dump.contains(": 1, 10/10"));
+        assertTrue(dump, dump.contains(": 1, 20/20"));
+    }
+
+    @Test
+    public void testReset() {
+        mProfiler.noteReleasing(20 * MILLIS);
+        mProfiler.reset();
+
+        final String dump = dump();
+        assertTrue(dump, dump.contains("  Holds: 0, "));
+        assertFalse(dump, dump.contains("testReset"));
+    }
+}
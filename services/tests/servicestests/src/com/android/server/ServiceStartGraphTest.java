@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link ServiceStartGraph}.
+ */
+public class ServiceStartGraphTest extends AndroidTestCase {
+    private static final int PHASE_A = 100;
+    private static final int PHASE_B = 500;
+
+    private ExecutorService mExecutor;
+    private ServiceStartGraph mGraph;
+    private final List<String> mOrder = new ArrayList<>();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mExecutor = Executors.newFixedThreadPool(4);
+        mGraph = new ServiceStartGraph(mExecutor);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mExecutor.shutdownNow();
+        super.tearDown();
+    }
+
+    private Runnable record(String name) {
+        return () -> {
+            SystemClock.sleep(5);
+            synchronized (mOrder) {
+                mOrder.add(name);
+            }
+        };
+    }
+
+    @SmallTest
+    public void testDependenciesRunFirst() {
+        mGraph.schedule("a", PHASE_A, true, record("a"));
+        mGraph.schedule("b", PHASE_A, true, record("b"));
+        mGraph.schedule("c", PHASE_A, false, record("c"), "a", "b");
+        mGraph.schedule("d", PHASE_A, true, record("d"), "c");
+
+        mGraph.await("d");
+        assertEquals(4, mOrder.size());
+        assertTrue(mOrder.indexOf("c") > mOrder.indexOf("a"));
+        assertTrue(mOrder.indexOf("c") > mOrder.indexOf("b"));
+        assertEquals("d", mOrder.get(3));
+    }
+
+    @SmallTest
+    public void testOwnerStepsRunOnOwnerThread() {
+        final Thread owner = Thread.currentThread();
+        final Thread[] ran = new Thread[2];
+        mGraph.schedule("background", PHASE_A, true, () -> ran[0] = Thread.currentThread());
+        mGraph.schedule("owner", PHASE_A, false, () -> ran[1] = Thread.currentThread(),
+                "background");
+
+        mGraph.awaitPhase(PHASE_A);
+        assertNotSame(owner, ran[0]);
+        assertSame(owner, ran[1]);
+    }
+
+    @SmallTest
+    public void testAwaitPhaseOnlyWaitsForEarlierPhases() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final SystemService early = new SystemService(getContext()) {
+            @Override
+            public void onStart() {}
+        };
+        final SystemService late = new SystemService(getContext()) {
+            @Override
+            public void onStart() {}
+        };
+        mGraph.scheduleService("early", PHASE_A, true, () -> early);
+        mGraph.scheduleService("late", PHASE_B, true, () -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            return late;
+        });
+
+        List<SystemService> services = mGraph.awaitPhase(PHASE_A);
+        assertEquals(1, services.size());
+        assertSame(early, services.get(0));
+
+        release.countDown();
+        services = mGraph.awaitPhase(PHASE_B);
+        assertEquals(1, services.size());
+        assertSame(late, services.get(0));
+        assertTrue(mGraph.awaitPhase(PHASE_B).isEmpty());
+    }
+
+    @SmallTest
+    public void testFailurePropagates() {
+        mGraph.schedule("broken", PHASE_A, true, () -> {
+            throw new IllegalStateException("broken");
+        });
+        mGraph.schedule("dependent", PHASE_B, false, record("dependent"), "broken");
+        try {
+            mGraph.awaitPhase(PHASE_B);
+            fail("Expected the failure of the step");
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        assertTrue(mOrder.isEmpty());
+    }
+
+    @SmallTest
+    public void testUnknownDependency() {
+        try {
+            mGraph.schedule("a", PHASE_A, true, record("a"), "missing");
+            fail("Expected a missing dependency to be rejected");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @SmallTest
+    public void testOtherThreadsCanOnlyWaitForDoneSteps() throws Exception {
+        mGraph.schedule("owner", PHASE_A, false, record("owner"));
+        final Throwable[] failure = new Throwable[1];
+        final Thread other = new Thread(() -> {
+            try {
+                mGraph.awaitPhase(PHASE_A);
+            } catch (Throwable t) {
+                failure[0] = t;
+            }
+        });
+        other.start();
+        other.join(TimeUnit.SECONDS.toMillis(10));
+        assertTrue(failure[0] instanceof IllegalStateException);
+
+        mGraph.awaitPhase(PHASE_A);
+        mGraph.awaitPhase(PHASE_A);
+    }
+}
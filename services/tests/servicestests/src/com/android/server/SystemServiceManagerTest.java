@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server;
+
+import android.content.Context;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Tests for the boot steps scheduled with {@link SystemServiceManager}.
+ */
+public class SystemServiceManagerTest extends AndroidTestCase {
+    private static final int PHASE = SystemService.PHASE_SYSTEM_SERVICES_READY;
+
+    private SystemServiceManager mManager;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mManager = new SystemServiceManager(getContext());
+    }
+
+    /** A service that fails to start. */
+    public static class BrokenService extends SystemService {
+        public BrokenService(Context context) {
+            super(context);
+        }
+
+        @Override
+        public void onStart() {
+            throw new IllegalStateException("broken");
+        }
+    }
+
+    @SmallTest
+    public void testBestEffortStepFailureContinuesBoot() {
+        final boolean[] ran = new boolean[1];
+        mManager.scheduleBestEffortStep("broken", PHASE, true /* background */, () -> {
+            throw new IllegalStateException("broken");
+        });
+        mManager.scheduleStep("dependent", PHASE, false /* background */, () -> ran[0] = true,
+                "broken");
+
+        mManager.startBootPhase(PHASE);
+        assertTrue(ran[0]);
+    }
+
+    @SmallTest
+    public void testRequiredStepFailureFailsBoot() {
+        mManager.scheduleStep("broken", PHASE, true /* background */, () -> {
+            throw new IllegalStateException("broken");
+        });
+        try {
+            mManager.startBootPhase(PHASE);
+            fail("Expected the failure of the step");
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    @SmallTest
+    public void testBestEffortServiceFailureContinuesBoot() {
+        mManager.scheduleBestEffortService(BrokenService.class, PHASE, true /* background */);
+
+        mManager.startBootPhase(PHASE);
+    }
+
+    @SmallTest
+    public void testRequiredServiceFailureFailsBoot() {
+        mManager.scheduleService(BrokenService.class, PHASE, true /* background */);
+        try {
+            mManager.startBootPhase(PHASE);
+            fail("Expected the failure of the service");
+        } catch (RuntimeException expected) {
+        }
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.os.Binder;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.UserHandle;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.telephony.PhoneStateListener;
+import android.telephony.SignalStrength;
+import android.telephony.SubscriptionManager;
+import android.telephony.TelephonyManager;
+
+import com.android.internal.app.IBatteryStats;
+import com.android.internal.telephony.IPhoneStateListener;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Run with:
+ * bit FrameworksServicesTests:com.android.server.TelephonyRegistryTest
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class TelephonyRegistryTest {
+    private static final int PHONE_ID = 0;
+    private static final int SUB_ID = 1;
+    private static final int OTHER_SUB_ID = 2;
+
+    private HandlerThread mDispatchThread;
+    private Handler mDispatchHandler;
+    private TelephonyRegistry mRegistry;
+
+    @Before
+    public void setUp() {
+        final Context context = new ContextWrapper(InstrumentationRegistry.getContext()) {
+            @Override
+            public int checkCallingOrSelfPermission(String permission) {
+                return PackageManager.PERMISSION_GRANTED;
+            }
+
+            @Override
+            public void enforceCallingOrSelfPermission(String permission, String message) {
+            }
+
+            @Override
+            public void sendStickyBroadcastAsUser(Intent intent, UserHandle user) {
+            }
+        };
+        mDispatchThread = new HandlerThread("TelephonyRegistryTest");
+        mDispatchThread.start();
+        mDispatchHandler = new Handler(mDispatchThread.getLooper());
+        // The registry creates a handler on the looper of the thread that creates it.
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(() ->
+                mRegistry = new TelephonyRegistry(context, mock(IBatteryStats.class),
+                        mDispatchThread.getLooper()));
+    }
+
+    @After
+    public void tearDown() {
+        mDispatchThread.quitSafely();
+    }
+
+    @Test
+    public void testRecordIndexMatchesIdMatch() {
+        final int[] eventsList = {
+                PhoneStateListener.LISTEN_SERVICE_STATE,
+                PhoneStateListener.LISTEN_DATA_ACTIVITY,
+                PhoneStateListener.LISTEN_SERVICE_STATE | PhoneStateListener.LISTEN_DATA_ACTIVITY,
+        };
+        final int[] recordSubIds = {SubscriptionManager.DEFAULT_SUBSCRIPTION_ID, 1, 2, 3};
+        final TelephonyRegistry.RecordIndex index = new TelephonyRegistry.RecordIndex();
+        final ArrayList<TelephonyRegistry.Record> records = new ArrayList<>();
+        for (int subId : recordSubIds) {
+            for (int events : eventsList) {
+                final TelephonyRegistry.Record r = new TelephonyRegistry.Record();
+                r.callback = newListener();
+                r.subId = subId;
+                r.events = events;
+                index.add(r);
+                records.add(r);
+            }
+        }
+
+        final int[] events = {
+                PhoneStateListener.LISTEN_SERVICE_STATE, PhoneStateListener.LISTEN_DATA_ACTIVITY
+        };
+        final int[] subIds = {
+                SubscriptionManager.INVALID_SUBSCRIPTION_ID, 1, 2, 4,
+                SubscriptionManager.DEFAULT_SUBSCRIPTION_ID
+        };
+        final int[] phoneIds = {SubscriptionManager.INVALID_PHONE_INDEX, 0, 1};
+        for (int event : events) {
+            for (int subId : subIds) {
+                for (int phoneId : phoneIds) {
+                    for (int defaultSubId : subIds) {
+                        for (int defaultPhoneId : phoneIds) {
+                            final ArrayList<TelephonyRegistry.Record> expected = new ArrayList<>();
+                            for (TelephonyRegistry.Record r : records) {
+                                if ((r.events & event) != 0 && TelephonyRegistry.idMatch(
+                                        r.subId, subId, phoneId, defaultSubId, defaultPhoneId)) {
+                                    expected.add(r);
+                                }
+                            }
+                            final ArrayList<TelephonyRegistry.Record> actual = new ArrayList<>();
+                            index.getMatchingRecords(event, subId, phoneId, defaultSubId,
+                                    defaultPhoneId, actual);
+
+                            final String message = "event=" + event + " subId=" + subId
+                                    + " phoneId=" + phoneId + " defaultSubId=" + defaultSubId
+                                    + " defaultPhoneId=" + defaultPhoneId;
+                            assertEquals(message, expected.size(), actual.size());
+                            assertEquals(message, new HashSet<>(expected), new HashSet<>(actual));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testSignalStrengthCoalescedToLatest() throws Exception {
+        assumeTrue(hasPhone());
+        final IPhoneStateListener strengths = newListener();
+        final IPhoneStateListener both = newListener();
+        listen(strengths, SUB_ID, PhoneStateListener.LISTEN_SIGNAL_STRENGTHS);
+        listen(both, SUB_ID,
+                PhoneStateListener.LISTEN_SIGNAL_STRENGTHS | PhoneStateListener.LISTEN_SIGNAL_STRENGTH);
+
+        final CountDownLatch blocked = blockDispatch();
+        for (int i = 1; i <= 3; i++) {
+            mRegistry.notifySignalStrengthForPhoneId(PHONE_ID, SUB_ID, signalStrength(i));
+        }
+        blocked.countDown();
+        waitForDispatch();
+
+        // Only the latest update is sent, once to each listener.
+        assertEquals(3, getLastSignalStrength(strengths, 1));
+        assertEquals(3, getLastSignalStrength(both, 1));
+        verify(both, times(1)).onSignalStrengthChanged(anyInt());
+        verify(both).onSignalStrengthChanged(3);
+
+        // An update after the previous one was sent is sent too.
+        mRegistry.notifySignalStrengthForPhoneId(PHONE_ID, SUB_ID, signalStrength(4));
+        waitForDispatch();
+        assertEquals(4, getLastSignalStrength(strengths, 2));
+        assertEquals(4, getLastSignalStrength(both, 2));
+    }
+
+    @Test
+    public void testIndexFollowsListenAndRemove() throws Exception {
+        assumeTrue(hasPhone());
+        final IPhoneStateListener listener = newListener();
+        listen(listener, SUB_ID, PhoneStateListener.LISTEN_SIGNAL_STRENGTHS);
+        mRegistry.notifySignalStrengthForPhoneId(PHONE_ID, SUB_ID, signalStrength(1));
+        waitForDispatch();
+        assertEquals(1, getLastSignalStrength(listener, 1));
+
+        // Listening again replaces the subscription and events of the listener.
+        listen(listener, OTHER_SUB_ID, PhoneStateListener.LISTEN_SIGNAL_STRENGTHS);
+        mRegistry.notifySignalStrengthForPhoneId(PHONE_ID, SUB_ID, signalStrength(2));
+        waitForDispatch();
+        verify(listener, times(1)).onSignalStrengthsChanged(any());
+        mRegistry.notifySignalStrengthForPhoneId(PHONE_ID, OTHER_SUB_ID, signalStrength(3));
+        waitForDispatch();
+        assertEquals(3, getLastSignalStrength(listener, 2));
+
+        listen(listener, OTHER_SUB_ID, PhoneStateListener.LISTEN_SERVICE_STATE);
+        mRegistry.notifySignalStrengthForPhoneId(PHONE_ID, OTHER_SUB_ID, signalStrength(4));
+        waitForDispatch();
+        verify(listener, times(2)).onSignalStrengthsChanged(any());
+
+        // A removed listener isn't sent updates, including the ones queued before.
+        listen(listener, OTHER_SUB_ID, PhoneStateListener.LISTEN_SIGNAL_STRENGTHS);
+        final CountDownLatch blocked = blockDispatch();
+        mRegistry.notifySignalStrengthForPhoneId(PHONE_ID, OTHER_SUB_ID, signalStrength(5));
+        listen(listener, OTHER_SUB_ID, PhoneStateListener.LISTEN_NONE);
+        mRegistry.notifySignalStrengthForPhoneId(PHONE_ID, OTHER_SUB_ID, signalStrength(6));
+        blocked.countDown();
+        waitForDispatch();
+        verify(listener, times(2)).onSignalStrengthsChanged(any());
+        verify(listener, never()).onSignalStrengthChanged(anyInt());
+    }
+
+    private static boolean hasPhone() {
+        return TelephonyManager.getDefault().getPhoneCount() > PHONE_ID;
+    }
+
+    private static IPhoneStateListener newListener() {
+        final IPhoneStateListener listener = mock(IPhoneStateListener.class);
+        when(listener.asBinder()).thenReturn(new Binder());
+        return listener;
+    }
+
+    private void listen(IPhoneStateListener listener, int subId, int events) {
+        mRegistry.listenForSubscriber(subId, "com.android.frameworks.servicestests", listener,
+                events, false /* notifyNow */);
+    }
+
+    private static SignalStrength signalStrength(int gsmSignalStrength) {
+        return new SignalStrength(gsmSignalStrength, 0, -1, -1, -1, -1, -1, true);
+    }
+
+    /**
+     * Verifies that the listener was sent the given number of signal strengths, and returns the
+     * GSM signal strength of the last one.
+     */
+    private static int getLastSignalStrength(IPhoneStateListener listener, int count)
+            throws Exception {
+        final ArgumentCaptor<SignalStrength> captor = ArgumentCaptor.forClass(SignalStrength.class);
+        verify(listener, times(count)).onSignalStrengthsChanged(captor.capture());
+        return captor.getValue().getGsmSignalStrength();
+    }
+
+    /** Keeps the dispatch thread busy until the returned latch is counted down. */
+    private CountDownLatch blockDispatch() {
+        final CountDownLatch latch = new CountDownLatch(1);
+        mDispatchHandler.post(() -> {
+            try {
+                latch.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        return latch;
+    }
+
+    private void waitForDispatch() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        mDispatchHandler.post(latch::countDown);
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+    }
+}
@@ -19,6 +19,7 @@ package com.android.server.accessibility;
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertNotNull;
 import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
 import static org.mockito.Matchers.anyBoolean;
 import static org.mockito.Matchers.anyObject;
 import static org.mockito.Mockito.doAnswer;
@@ -43,6 +44,8 @@ import org.mockito.stubbing.Answer;
 
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 
@@ -312,6 +315,143 @@ public class AccessibilityCacheTest {
         }
     }
 
+    @Test
+    public void subTreeChangeEvent_whenRefreshed_evictsOnlyNodesLeftOut() {
+        AccessibilityNodeInfo parentNodeInfo = getParentNode();
+        parentNodeInfo.addChild(getMockViewWithA11yAndWindowIds(OTHER_CHILD_VIEW_ID, WINDOW_ID_1));
+        AccessibilityNodeInfo childNodeInfo = getChildNode();
+        AccessibilityNodeInfo otherChildNodeInfo =
+                getNodeWithA11yAndWindowId(OTHER_CHILD_VIEW_ID, WINDOW_ID_1);
+        otherChildNodeInfo.setParent(getMockViewWithA11yAndWindowIds(PARENT_VIEW_ID, WINDOW_ID_1));
+        long parentId = parentNodeInfo.getSourceNodeId();
+        long childId = childNodeInfo.getSourceNodeId();
+        long otherChildId = otherChildNodeInfo.getSourceNodeId();
+        mAccessibilityCache.add(parentNodeInfo);
+        mAccessibilityCache.add(childNodeInfo);
+        mAccessibilityCache.add(otherChildNodeInfo);
+
+        // The app prefetches the parent and the first child only.
+        when(mAccessibilityNodeRefresher.fetchSubTree(anyObject())).thenReturn(Arrays.asList(
+                AccessibilityNodeInfo.obtain(parentNodeInfo),
+                AccessibilityNodeInfo.obtain(childNodeInfo)));
+
+        AccessibilityEvent event = AccessibilityEvent
+                .obtain(AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED);
+        event.setContentChangeTypes(AccessibilityEvent.CONTENT_CHANGE_TYPE_SUBTREE);
+        event.setSource(getMockViewWithA11yAndWindowIds(PARENT_VIEW_ID, WINDOW_ID_1));
+        mAccessibilityCache.onAccessibilityEvent(event);
+        event.recycle();
+        parentNodeInfo.recycle();
+        childNodeInfo.recycle();
+        otherChildNodeInfo.recycle();
+
+        AccessibilityNodeInfo parentFromCache = mAccessibilityCache.getNode(WINDOW_ID_1, parentId);
+        AccessibilityNodeInfo childFromCache = mAccessibilityCache.getNode(WINDOW_ID_1, childId);
+        AccessibilityNodeInfo otherChildFromCache =
+                mAccessibilityCache.getNode(WINDOW_ID_1, otherChildId);
+        try {
+            assertNotNull(parentFromCache);
+            assertNotNull(childFromCache);
+            assertNull(otherChildFromCache);
+            assertEquals(1, mAccessibilityCache.getRefreshedSubTreeCount());
+            assertEquals(1, mAccessibilityCache.getEvictedNodeCount());
+        } finally {
+            if (parentFromCache != null) {
+                parentFromCache.recycle();
+            }
+            if (childFromCache != null) {
+                childFromCache.recycle();
+            }
+        }
+    }
+
+    @Test
+    public void subTreeChangeEvent_whenWindowChangesDuringRefresh_dropsRefreshedNodes() {
+        AccessibilityNodeInfo parentNodeInfo = getParentNode();
+        AccessibilityNodeInfo childNodeInfo = getChildNode();
+        long parentId = parentNodeInfo.getSourceNodeId();
+        long childId = childNodeInfo.getSourceNodeId();
+        mAccessibilityCache.add(parentNodeInfo);
+        mAccessibilityCache.add(childNodeInfo);
+
+        // Another node of the window is evicted while the subtree is fetched.
+        doAnswer(new Answer<List<AccessibilityNodeInfo>>() {
+            public List<AccessibilityNodeInfo> answer(InvocationOnMock invocation) {
+                AccessibilityEvent scrollEvent = AccessibilityEvent
+                        .obtain(AccessibilityEvent.TYPE_VIEW_SCROLLED);
+                scrollEvent.setSource(getMockViewWithA11yAndWindowIds(CHILD_VIEW_ID,
+                        WINDOW_ID_1));
+                mAccessibilityCache.onAccessibilityEvent(scrollEvent);
+                scrollEvent.recycle();
+                return Arrays.asList(AccessibilityNodeInfo.obtain(parentNodeInfo),
+                        AccessibilityNodeInfo.obtain(childNodeInfo));
+            }
+        }).when(mAccessibilityNodeRefresher).fetchSubTree(anyObject());
+
+        AccessibilityEvent event = AccessibilityEvent
+                .obtain(AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED);
+        event.setContentChangeTypes(AccessibilityEvent.CONTENT_CHANGE_TYPE_SUBTREE);
+        event.setSource(getMockViewWithA11yAndWindowIds(PARENT_VIEW_ID, WINDOW_ID_1));
+        mAccessibilityCache.onAccessibilityEvent(event);
+        event.recycle();
+        parentNodeInfo.recycle();
+        childNodeInfo.recycle();
+
+        assertNull(mAccessibilityCache.getNode(WINDOW_ID_1, parentId));
+        assertNull(mAccessibilityCache.getNode(WINDOW_ID_1, childId));
+        assertEquals(0, mAccessibilityCache.getRefreshedSubTreeCount());
+    }
+
+    @Test
+    public void subTreeChangeEvent_fetchesWithoutHoldingLock() throws Exception {
+        AccessibilityNodeInfo nodeInfo = getNodeWithA11yAndWindowId(PARENT_VIEW_ID, WINDOW_ID_1);
+        long id = nodeInfo.getSourceNodeId();
+        mAccessibilityCache.add(nodeInfo);
+
+        // Another thread reads the cache while the subtree is fetched.
+        AtomicBoolean readDuringFetch = new AtomicBoolean();
+        doAnswer(new Answer<List<AccessibilityNodeInfo>>() {
+            public List<AccessibilityNodeInfo> answer(InvocationOnMock invocation)
+                    throws InterruptedException {
+                Thread reader = new Thread(() -> {
+                    AccessibilityNodeInfo cached = mAccessibilityCache.getNode(WINDOW_ID_1, id);
+                    if (cached != null) {
+                        readDuringFetch.set(true);
+                        cached.recycle();
+                    }
+                });
+                reader.start();
+                reader.join(TimeUnit.SECONDS.toMillis(5));
+                return Arrays.asList(AccessibilityNodeInfo.obtain(nodeInfo));
+            }
+        }).when(mAccessibilityNodeRefresher).fetchSubTree(anyObject());
+
+        AccessibilityEvent event = AccessibilityEvent
+                .obtain(AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED);
+        event.setContentChangeTypes(AccessibilityEvent.CONTENT_CHANGE_TYPE_SUBTREE);
+        event.setSource(getMockViewWithA11yAndWindowIds(PARENT_VIEW_ID, WINDOW_ID_1));
+        mAccessibilityCache.onAccessibilityEvent(event);
+        event.recycle();
+        nodeInfo.recycle();
+
+        assertTrue(readDuringFetch.get());
+        assertEquals(1, mAccessibilityCache.getRefreshedSubTreeCount());
+    }
+
+    @Test
+    public void getNode_countsHitsAndMisses() {
+        AccessibilityNodeInfo nodeInfo = getNodeWithA11yAndWindowId(SINGLE_VIEW_ID, WINDOW_ID_1);
+        long id = nodeInfo.getSourceNodeId();
+        mAccessibilityCache.add(nodeInfo);
+        nodeInfo.recycle();
+
+        mAccessibilityCache.getNode(WINDOW_ID_1, id).recycle();
+        assertNull(mAccessibilityCache.getNode(WINDOW_ID_2, id));
+        assertNull(mAccessibilityCache.getNode(WINDOW_ID_1, id + 1));
+        assertEquals(1, mAccessibilityCache.getNodeHitCount());
+        assertEquals(2, mAccessibilityCache.getNodeMissCount());
+    }
+
     @Test
     public void reparentNode_clearsOldParent() {
         AccessibilityNodeInfo parentNodeInfo = getParentNode();
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.server.am;
+
+import static android.content.Intent.FLAG_GRANT_READ_URI_PERMISSION;
+import static android.content.Intent.FLAG_GRANT_WRITE_URI_PERMISSION;
+
+import android.net.Uri;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import com.android.server.am.ActivityManagerService.GrantUri;
+
+/**
+ * Tests for {@link GrantedUriPermissions}.
+ *
+ * <p>Run with: runtest -c com.android.server.am.GrantedUriPermissionsTest frameworks-services
+ */
+public class GrantedUriPermissionsTest extends AndroidTestCase {
+    private static final String TAG = "GrantedUriPermissionsTest";
+
+    private static final int TARGET_UID = 10042;
+    private static final String AUTHORITY = "com.example.documents";
+
+    private static Uri uri(String path) {
+        return Uri.parse("content://" + AUTHORITY + path);
+    }
+
+    private static UriPermission grant(GrantedUriPermissions perms, String path, boolean prefix,
+            int modeFlags) {
+        final GrantUri grantUri = new GrantUri(0, uri(path), prefix);
+        final UriPermission perm = new UriPermission("com.example.source",
+                "com.example.target", TARGET_UID, grantUri);
+        perm.grantModes(modeFlags, null);
+        perms.put(grantUri, perm);
+        return perm;
+    }
+
+    private static boolean check(GrantedUriPermissions perms, String path, int modeFlags) {
+        return perms.hasPrefixPermission(uri(path), modeFlags, UriPermission.STRENGTH_OWNED);
+    }
+
+    @SmallTest
+    public void testPrefixMatch() {
+        final GrantedUriPermissions perms = new GrantedUriPermissions();
+        grant(perms, "/tree/a", true, FLAG_GRANT_READ_URI_PERMISSION);
+
+        assertTrue(check(perms, "/tree/a", FLAG_GRANT_READ_URI_PERMISSION));
+        assertTrue(check(perms, "/tree/a/b/c", FLAG_GRANT_READ_URI_PERMISSION));
+        assertFalse(check(perms, "/tree/ab", FLAG_GRANT_READ_URI_PERMISSION));
+        assertFalse(check(perms, "/tree", FLAG_GRANT_READ_URI_PERMISSION));
+        assertFalse(check(perms, "/tree/a/b", FLAG_GRANT_WRITE_URI_PERMISSION));
+        assertFalse(perms.hasPrefixPermission(
+                Uri.parse("content://com.example.other/tree/a/b"),
+                FLAG_GRANT_READ_URI_PERMISSION, UriPermission.STRENGTH_OWNED));
+    }
+
+    @SmallTest
+    public void testExactGrantIsNotPrefix() {
+        final GrantedUriPermissions perms = new GrantedUriPermissions();
+        grant(perms, "/tree/a", false, FLAG_GRANT_READ_URI_PERMISSION);
+
+        assertNotNull(perms.get(new GrantUri(0, uri("/tree/a"), false)));
+        assertFalse(check(perms, "/tree/a/b", FLAG_GRANT_READ_URI_PERMISSION));
+    }
+
+    @SmallTest
+    public void testRemove() {
+        final GrantedUriPermissions perms = new GrantedUriPermissions();
+        grant(perms, "/tree/a", true, FLAG_GRANT_READ_URI_PERMISSION);
+        grant(perms, "/tree/a/b", true, FLAG_GRANT_WRITE_URI_PERMISSION);
+        assertEquals(2, perms.size());
+
+        perms.remove(new GrantUri(0, uri("/tree/a"), true));
+        assertFalse(check(perms, "/tree/a/b", FLAG_GRANT_READ_URI_PERMISSION));
+        assertTrue(check(perms, "/tree/a/b", FLAG_GRANT_WRITE_URI_PERMISSION));
+
+        perms.removeAt(0);
+        assertTrue(perms.isEmpty());
+        assertFalse(check(perms, "/tree/a/b", FLAG_GRANT_WRITE_URI_PERMISSION));
+    }
+
+    @SmallTest
+    public void testReplace() {
+        final GrantedUriPermissions perms = new GrantedUriPermissions();
+        grant(perms, "/tree/a", true, FLAG_GRANT_READ_URI_PERMISSION);
+        grant(perms, "/tree/a", true, FLAG_GRANT_WRITE_URI_PERMISSION);
+
+        assertEquals(1, perms.size());
+        assertFalse(check(perms, "/tree/a/b", FLAG_GRANT_READ_URI_PERMISSION));
+        assertTrue(check(perms, "/tree/a/b", FLAG_GRANT_WRITE_URI_PERMISSION));
+    }
+
+    /**
+     * Measures prefix checks against a UID holding 10k grants, half of them prefix grants,
+     * for paths that are covered by a grant and paths that are not.
+     */
+    @LargeTest
+    public void testCheckLatencyWith10kGrants() {
+        final GrantedUriPermissions perms = new GrantedUriPermissions();
+        for (int i = 0; i < 10000; i++) {
+            grant(perms, "/tree/" + (i / 100) + "/document/" + i, (i % 2) == 0,
+                    FLAG_GRANT_READ_URI_PERMISSION);
+        }
+
+        final Uri granted = uri("/tree/42/document/4242/child");
+        final Uri missing = uri("/tree/42/document/4243/child");
+        assertTrue(perms.hasPrefixPermission(granted, FLAG_GRANT_READ_URI_PERMISSION,
+                UriPermission.STRENGTH_OWNED));
+        assertFalse(perms.hasPrefixPermission(missing, FLAG_GRANT_READ_URI_PERMISSION,
+                UriPermission.STRENGTH_OWNED));
+
+        final int iterations = 100000;
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < iterations; i++) {
+            perms.hasPrefixPermission(granted, FLAG_GRANT_READ_URI_PERMISSION,
+                    UriPermission.STRENGTH_OWNED);
+        }
+        final long grantedNanos = (SystemClock.elapsedRealtimeNanos() - start) / iterations;
+
+        start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < iterations; i++) {
+            perms.hasPrefixPermission(missing, FLAG_GRANT_READ_URI_PERMISSION,
+                    UriPermission.STRENGTH_OWNED);
+        }
+        final long missingNanos = (SystemClock.elapsedRealtimeNanos() - start) / iterations;
+
+        Log.i(TAG, "Prefix check with 10k grants: granted=" + grantedNanos + "ns, missing="
+                + missingNanos + "ns");
+    }
+}
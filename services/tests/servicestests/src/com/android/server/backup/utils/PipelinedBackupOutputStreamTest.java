@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.backup.utils;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.junit.Assert.fail;
+
+import android.platform.test.annotations.Presubmit;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+@SmallTest
+@Presubmit
+@RunWith(AndroidJUnit4.class)
+public class PipelinedBackupOutputStreamTest {
+    private final Random mRandom = new Random(0);
+
+    /** Data that compresses about as well as a typical app's files. */
+    private byte[] makeData(int size) {
+        final byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (i / 1000) % 3 == 0 ? (byte) mRandom.nextInt()
+                    : (byte) ("backup data " + (i % 97)).hashCode();
+        }
+        return data;
+    }
+
+    /** Writes the data in uneven pieces, with a few flushes. */
+    private byte[] writeThroughPipeline(byte[] data, boolean compress) throws IOException {
+        final ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        final PipelinedBackupOutputStream out =
+                new PipelinedBackupOutputStream(sink, compress, 3);
+        int offset = 0;
+        while (offset < data.length) {
+            final int count = Math.min(data.length - offset, 1 + mRandom.nextInt(70000));
+            out.write(data, offset, count);
+            offset += count;
+            if (mRandom.nextInt(20) == 0) {
+                out.flush();
+            }
+        }
+        out.close();
+
+        final PipelinedBackupOutputStream.Stats stats = out.getStats();
+        assertThat(stats.bytesIn).isEqualTo(data.length);
+        assertThat(stats.bytesOut).isEqualTo(sink.size());
+        return sink.toByteArray();
+    }
+
+    private static byte[] inflate(byte[] compressed) throws IOException {
+        final InflaterInputStream in =
+                new InflaterInputStream(new ByteArrayInputStream(compressed));
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8192];
+        int count;
+        while ((count = in.read(buffer)) > 0) {
+            out.write(buffer, 0, count);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void write_compressed_inflatesToSameData() throws Exception {
+        for (int size : new int[] { 0, 1, 1000, PipelinedBackupOutputStream.BLOCK_SIZE,
+                PipelinedBackupOutputStream.BLOCK_SIZE + 7, 3000000 }) {
+            final byte[] data = makeData(size);
+
+            assertThat(inflate(writeThroughPipeline(data, true))).isEqualTo(data);
+        }
+    }
+
+    @Test
+    public void write_compressed_aboutAsSmallAsSerialDeflater() throws Exception {
+        final byte[] data = makeData(3000000);
+        final ByteArrayOutputStream serial = new ByteArrayOutputStream();
+        final DeflaterOutputStream deflater = new DeflaterOutputStream(serial,
+                new Deflater(Deflater.BEST_COMPRESSION), true);
+        deflater.write(data);
+        deflater.close();
+
+        final byte[] compressed = writeThroughPipeline(data, true);
+
+        assertThat(compressed.length).isAtMost(serial.size() + serial.size() / 100);
+    }
+
+    @Test
+    public void write_uncompressed_passesDataThrough() throws Exception {
+        final byte[] data = makeData(1000000);
+
+        assertThat(writeThroughPipeline(data, false)).isEqualTo(data);
+    }
+
+    @Test
+    public void write_sinkFails_throwsAndCloses() throws Exception {
+        final OutputStream failingSink = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("Broken pipe");
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                throw new IOException("Broken pipe");
+            }
+        };
+        final PipelinedBackupOutputStream out =
+                new PipelinedBackupOutputStream(failingSink, true, 2);
+        final byte[] data = makeData(100000);
+
+        try {
+            for (int i = 0; i < 100; i++) {
+                out.write(data);
+            }
+            fail();
+        } catch (IOException expected) {
+        }
+        try {
+            out.close();
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+}
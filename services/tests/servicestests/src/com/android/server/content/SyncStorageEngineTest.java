@@ -142,6 +142,72 @@ public class SyncStorageEngineTest extends AndroidTestCase {
         assertEquals(0, engine.getIsSyncable(account2, 0, authority2));
     }
 
+    private void runSync(Account account, String authority, long now) {
+        SyncOperation op = new SyncOperation(account, DEFAULT_USER, 0, "foo",
+                SyncOperation.REASON_PERIODIC,
+                SyncStorageEngine.SOURCE_LOCAL,
+                authority,
+                Bundle.EMPTY, true);
+        long historyId = engine.insertStartSyncEvent(op, now);
+        engine.stopSyncEvent(historyId, 100, SyncStorageEngine.MESG_SUCCESS, 0, 0);
+    }
+
+    private void clearState() {
+        new File(getSyncDir(), "accounts.xml").delete();
+        new File(getSyncDir(), "status.bin").delete();
+        engine.clearAndReadState();
+    }
+
+    private int getNumSyncs(Account account, String authority) {
+        return engine.getStatusByAuthority(
+                new SyncStorageEngine.EndPoint(account, authority, DEFAULT_USER)).numSyncs;
+    }
+
+    @MediumTest
+    public void testStatusPersistedIncrementally() throws Exception {
+        clearState();
+        final String authority2 = "testprovider2";
+        engine.setIsSyncable(account1, DEFAULT_USER, authority1, 1);
+        engine.setIsSyncable(account2, DEFAULT_USER, authority2, 1);
+
+        runSync(account1, authority1, 1000);
+        runSync(account2, authority2, 2000);
+        engine.writeAllState();
+        final File statusFile = new File(getSyncDir(), "status.bin");
+        final long fullLength = statusFile.length();
+
+        // Only the changed status is appended.
+        runSync(account1, authority1, 3000);
+        engine.writeAllState();
+        final long appendedLength = statusFile.length() - fullLength;
+        assertTrue(appendedLength > 0);
+        assertTrue(appendedLength < fullLength);
+
+        engine.clearAndReadState();
+        assertEquals(2, getNumSyncs(account1, authority1));
+        assertEquals(1, getNumSyncs(account2, authority2));
+    }
+
+    @MediumTest
+    public void testIncompleteStatusUpdatesIgnored() throws Exception {
+        clearState();
+        engine.setIsSyncable(account1, DEFAULT_USER, authority1, 1);
+        runSync(account1, authority1, 1000);
+        engine.writeAllState();
+        runSync(account1, authority1, 2000);
+        engine.writeAllState();
+
+        // Cut the appended status short, as a crash while writing it would.
+        final File statusFile = new File(getSyncDir(), "status.bin");
+        final byte[] data = new AtomicFile(statusFile).readFully();
+        FileOutputStream fos = new FileOutputStream(statusFile);
+        fos.write(data, 0, data.length - 8);
+        fos.close();
+
+        engine.clearAndReadState();
+        assertEquals(1, getNumSyncs(account1, authority1));
+    }
+
     @MediumTest
     public void testListenForTicklesParsing() throws Exception {
         byte[] accountsFileData = ("<?xml version='1.0' encoding='utf-8' standalone='yes' ?>\n"
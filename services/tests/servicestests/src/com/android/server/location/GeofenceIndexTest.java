@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.location;
+
+import android.location.Geofence;
+import android.location.Location;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Random;
+
+/**
+ * Unit tests for {@link GeofenceIndex}.
+ */
+public class GeofenceIndexTest extends AndroidTestCase {
+    private static final String TAG = "GeofenceIndexTest";
+    private static final double MAX_DISTANCE = 720000;
+
+    private final Random mRandom = new Random(0);
+
+    private GeofenceState makeFence(double latitude, double longitude, float radius) {
+        return new GeofenceState(Geofence.createCircle(latitude, longitude, radius),
+                Long.MAX_VALUE, 0, 0, "package", null);
+    }
+
+    /** Fences around a point, with a few larger ones. */
+    private ArrayList<GeofenceState> makeFences(int count, double latitude, double longitude,
+            double spreadDegrees) {
+        final ArrayList<GeofenceState> fences = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            final float radius = i % 50 == 0 ? 20000 : 50 + mRandom.nextInt(1000);
+            fences.add(makeFence(latitude + (mRandom.nextDouble() - 0.5) * spreadDegrees,
+                    longitude + (mRandom.nextDouble() - 0.5) * spreadDegrees, radius));
+        }
+        return fences;
+    }
+
+    /** A random walk, as from a vehicle reporting a fix every few seconds. */
+    private ArrayList<Location> makeTrace(int count, double latitude, double longitude) {
+        final ArrayList<Location> trace = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            latitude += (mRandom.nextDouble() - 0.5) * 0.002;
+            longitude += (mRandom.nextDouble() - 0.5) * 0.002;
+            final Location location = new Location("test");
+            location.setLatitude(Math.max(-90, Math.min(90, latitude)));
+            location.setLongitude(((longitude + 540) % 360) - 180);
+            location.setAccuracy(i % 20 == 0 ? 3000 : 5 + mRandom.nextInt(50));
+            trace.add(location);
+        }
+        return trace;
+    }
+
+    private static boolean mayContain(GeofenceState state, Location location) {
+        final Location center = new Location("");
+        center.setLatitude(state.mFence.getLatitude());
+        center.setLongitude(state.mFence.getLongitude());
+        return center.distanceTo(location)
+                <= Math.max(state.mFence.getRadius(), location.getAccuracy());
+    }
+
+    /**
+     * Replays the trace against the index and checks that it visits all the fences that each
+     * location may be in, and finds the distance to the nearest boundary.
+     */
+    private void checkTrace(ArrayList<GeofenceState> fences, ArrayList<Location> trace) {
+        final GeofenceIndex index = new GeofenceIndex();
+        for (GeofenceState state : fences) {
+            index.add(state);
+        }
+        assertEquals(fences.size(), index.size());
+
+        for (Location location : trace) {
+            final HashSet<GeofenceState> visited = new HashSet<>();
+            final double nearest = index.visitNearby(location, MAX_DISTANCE, state -> {
+                visited.add(state);
+                state.processLocation(location);
+                return state.getDistanceToBoundary();
+            });
+
+            double expected = Double.MAX_VALUE;
+            for (GeofenceState state : fences) {
+                if (mayContain(state, location)) {
+                    assertTrue(visited.contains(state));
+                }
+                state.processLocation(location);
+                expected = Math.min(expected, state.getDistanceToBoundary());
+            }
+            assertEquals(Math.min(expected, MAX_DISTANCE), Math.min(nearest, MAX_DISTANCE),
+                    1e-6);
+        }
+    }
+
+    @SmallTest
+    public void testVisitNearby() {
+        checkTrace(makeFences(500, 37.4, -122.1, 0.5), makeTrace(200, 37.4, -122.1));
+    }
+
+    @SmallTest
+    public void testVisitNearbyFarAway() {
+        checkTrace(makeFences(500, 37.4, -122.1, 0.5), makeTrace(50, 48.8, 2.3));
+        checkTrace(makeFences(500, 37.4, -122.1, 0.5), makeTrace(50, 40.7, -74.0));
+    }
+
+    @SmallTest
+    public void testVisitNearbyAcrossAntimeridian() {
+        checkTrace(makeFences(500, -17.8, 180, 0.5), makeTrace(200, -17.8, 179.9));
+    }
+
+    @SmallTest
+    public void testVisitNearbyNearPole() {
+        checkTrace(makeFences(500, 89.8, 0, 0.5), makeTrace(200, 89.8, 10));
+    }
+
+    @SmallTest
+    public void testRemove() {
+        final GeofenceIndex index = new GeofenceIndex();
+        final GeofenceState small = makeFence(37.4, -122.1, 100);
+        final GeofenceState large = makeFence(37.4, -122.1, 50000);
+        index.add(small);
+        index.add(large);
+        assertEquals(2, index.size());
+
+        index.remove(small);
+        index.remove(small);
+        assertEquals(1, index.size());
+        index.remove(large);
+        assertTrue(index.isEmpty());
+    }
+
+    /**
+     * Replays a trace against thousands of fences in a city, and logs how long the index and a
+     * scan of all the fences take per location.
+     */
+    @LargeTest
+    public void testReplayTraceTiming() {
+        final ArrayList<Location> trace = makeTrace(2000, 37.4, -122.1);
+        for (int count : new int[] { 1000, 10000 }) {
+            final ArrayList<GeofenceState> fences = makeFences(count, 37.4, -122.1, 0.5);
+            final GeofenceIndex index = new GeofenceIndex();
+            for (GeofenceState state : fences) {
+                index.add(state);
+            }
+
+            final int[] visits = new int[1];
+            long start = System.nanoTime();
+            for (Location location : trace) {
+                index.visitNearby(location, MAX_DISTANCE, state -> {
+                    visits[0]++;
+                    state.processLocation(location);
+                    return state.getDistanceToBoundary();
+                });
+            }
+            final long indexNanos = (System.nanoTime() - start) / trace.size();
+
+            start = System.nanoTime();
+            for (Location location : trace) {
+                for (int i = 0; i < fences.size(); i++) {
+                    fences.get(i).processLocation(location);
+                }
+            }
+            final long scanNanos = (System.nanoTime() - start) / trace.size();
+
+            Log.i(TAG, count + " fences: index " + indexNanos / 1000 + "us/fix ("
+                    + visits[0] / trace.size() + " fences/fix), scan " + scanNanos / 1000
+                    + "us/fix");
+            assertTrue(visits[0] < (long) count * trace.size());
+        }
+    }
+}
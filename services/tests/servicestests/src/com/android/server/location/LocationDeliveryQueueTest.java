@@ -0,0 +1,89 @@
+package com.android.server.location;
+
+import com.android.server.location.LocationDeliveryQueue.Delivery;
+
+import android.location.Location;
+import android.test.AndroidTestCase;
+
+/**
+ * Unit tests for {@link LocationDeliveryQueue}.
+ */
+public class LocationDeliveryQueueTest extends AndroidTestCase {
+    private static final String PROVIDER = "provider";
+    private static final int MAX_SIZE = 3;
+
+    private LocationDeliveryQueue mQueue;
+
+    @Override
+    public void setUp() {
+        mQueue = new LocationDeliveryQueue(MAX_SIZE);
+    }
+
+    private static Delivery location(double latitude) {
+        Location location = new Location(PROVIDER);
+        location.setLatitude(latitude);
+        return new Delivery(PROVIDER, location, 0, null);
+    }
+
+    private static Delivery status(int status) {
+        return new Delivery(PROVIDER, null, status, null);
+    }
+
+    /**
+     * Tests that the changes are polled in the order they were added.
+     */
+    public void testOrder() {
+        assertTrue(mQueue.isEmpty());
+        Delivery first = location(1);
+        Delivery second = status(2);
+        assertNull(mQueue.add(first));
+        assertNull(mQueue.add(second));
+
+        assertSame(first, mQueue.poll());
+        assertSame(second, mQueue.poll());
+        assertNull(mQueue.poll());
+        assertTrue(mQueue.isEmpty());
+    }
+
+    /**
+     * Tests that the oldest location is dropped once the queue is full, and that status changes
+     * are kept.
+     */
+    public void testDropsOldestLocation() {
+        Delivery status = status(1);
+        Delivery oldest = location(2);
+        Delivery newer = location(3);
+        Delivery newest = location(4);
+        mQueue.add(status);
+        mQueue.add(oldest);
+        mQueue.add(newer);
+
+        assertSame(oldest, mQueue.add(newest));
+        assertEquals(MAX_SIZE, mQueue.size());
+        assertSame(status, mQueue.poll());
+        assertSame(newer, mQueue.poll());
+        assertSame(newest, mQueue.poll());
+    }
+
+    /**
+     * Tests that status changes are never dropped, even when the queue is full of them.
+     */
+    public void testKeepsStatusChanges() {
+        for (int i = 0; i < MAX_SIZE + 1; i++) {
+            assertNull(mQueue.add(status(i)));
+        }
+        assertEquals(MAX_SIZE + 1, mQueue.size());
+    }
+
+    /**
+     * Tests that clearing drops all the queued changes.
+     */
+    public void testClear() {
+        mQueue.add(location(1));
+        mQueue.add(status(2));
+        mQueue.clear();
+
+        assertTrue(mQueue.isEmpty());
+        assertNull(mQueue.poll());
+    }
+}
@@ -2061,6 +2061,50 @@ public class ShortcutManagerTest2 extends BaseShortcutManagerTest {
                         assertEquals(12345, si.getIntent().getIntExtra("key", 0));
                     });
         });
+
+        // The package moves to its own file.
+        mService.saveDirtyInfo();
+        assertTrue(new File(mService.getUserPackagesDir(USER_0),
+                ShortcutUser.getPackageFileName(CALLING_PACKAGE_1)).exists());
+    }
+
+    /**
+     * Make sure only the files of the packages that changed are written, and that they're read
+     * back.
+     */
+    public void testSaveChangedPackageFilesOnly() throws Exception {
+        runWithCaller(CALLING_PACKAGE_1, USER_0, () -> {
+            assertTrue(mManager.setDynamicShortcuts(list(makeShortcut("s1"))));
+        });
+        runWithCaller(CALLING_PACKAGE_2, USER_0, () -> {
+            assertTrue(mManager.setDynamicShortcuts(list(makeShortcut("s2"))));
+        });
+        mService.saveDirtyInfo();
+
+        final File dir = mService.getUserPackagesDir(USER_0);
+        final File file1 = new File(dir, ShortcutUser.getPackageFileName(CALLING_PACKAGE_1));
+        final File file2 = new File(dir, ShortcutUser.getPackageFileName(CALLING_PACKAGE_2));
+        assertTrue(file1.setLastModified(0));
+        assertTrue(file2.setLastModified(0));
+
+        runWithCaller(CALLING_PACKAGE_1, USER_0, () -> {
+            assertTrue(mManager.addDynamicShortcuts(list(makeShortcut("s3"))));
+        });
+        mService.saveDirtyInfo();
+
+        // Writing a file replaces it.
+        assertTrue(file1.lastModified() != 0);
+        assertEquals(0, file2.lastModified());
+
+        initService();
+        mService.handleUnlockUser(USER_0);
+
+        runWithCaller(CALLING_PACKAGE_1, USER_0, () -> {
+            assertWith(getCallerShortcuts()).haveIds("s1", "s3");
+        });
+        runWithCaller(CALLING_PACKAGE_2, USER_0, () -> {
+            assertWith(getCallerShortcuts()).haveIds("s2");
+        });
     }
 
     public void testIsUserUnlocked() {
@@ -32,6 +32,8 @@ import static com.google.common.truth.Truth.assertThat;
 
 @RunWith(JUnit4.class)
 public class FileCollectorTest extends AndroidTestCase {
+    private static final int PATH_MAX = 4096;
+
     @Rule
     public TemporaryFolder temporaryFolder;
 
@@ -133,6 +135,89 @@ public class FileCollectorTest extends AndroidTestCase {
         assertThat(result.imagesSize).isEqualTo(4);
     }
 
+    @Test
+    public void testDeeplyNestedFile() throws Exception {
+        File directory = temporaryFolder.getRoot();
+        for (int i = 0; i < 100; i++) {
+            directory = new File(directory, "d");
+            assertThat(directory.mkdir()).isTrue();
+        }
+        writeDataToFile(new File(directory, "test.jpg"), "1234");
+
+        MeasurementResult result = FileCollector.getMeasurementResult(temporaryFolder.getRoot());
+
+        assertThat(result.imagesSize).isEqualTo(4);
+        assertThat(result.scannedDirectoryCount).isEqualTo(101);
+    }
+
+    @Test
+    public void testVeryDeeplyNestedFile() throws Exception {
+        // As deep as the path length limit allows: about two thousand levels, which is more
+        // than a walk recursing once per level can fit on its stack.
+        File directory = temporaryFolder.getRoot();
+        final int depth = (PATH_MAX - directory.getPath().length()) / 2 - "/test.jpg".length();
+        assertThat(depth).isGreaterThan(1000);
+        for (int i = 0; i < depth; i++) {
+            directory = new File(directory, "d");
+            assertThat(directory.mkdir()).isTrue();
+        }
+        writeDataToFile(new File(directory, "test.jpg"), "1234");
+
+        MeasurementResult result = FileCollector.getMeasurementResult(temporaryFolder.getRoot());
+
+        assertThat(result.imagesSize).isEqualTo(4);
+        assertThat(result.scannedDirectoryCount).isEqualTo(depth + 1);
+    }
+
+    @Test
+    public void testUnchangedDirectoryUsesCache() throws Exception {
+        File directory = temporaryFolder.newFolder();
+        File file = new File(directory, "test.jpg");
+        writeDataToFile(file, "1234");
+        final long lastModified = System.currentTimeMillis() - 3600 * 1000;
+        assertThat(directory.setLastModified(lastModified)).isTrue();
+
+        DirectorySizeCache cache = new DirectorySizeCache();
+        MeasurementResult result =
+                FileCollector.getMeasurementResult(temporaryFolder.getRoot(), cache);
+        cache.commit();
+        assertThat(result.imagesSize).isEqualTo(4);
+        assertThat(cache.getHitCount()).isEqualTo(0);
+
+        // Rewriting a file in place doesn't touch its directory, whose size is reused.
+        writeDataToFile(file, "12345678");
+        assertThat(directory.setLastModified(lastModified)).isTrue();
+        result = FileCollector.getMeasurementResult(temporaryFolder.getRoot(), cache);
+        cache.commit();
+        assertThat(result.imagesSize).isEqualTo(4);
+        assertThat(result.cachedDirectoryCount).isEqualTo(1);
+        assertThat(cache.getHitCount()).isEqualTo(1);
+
+        // Adding a file modifies the directory, which is measured again.
+        writeDataToFile(new File(directory, "test.mp3"), "1");
+        result = FileCollector.getMeasurementResult(temporaryFolder.getRoot(), cache);
+        assertThat(result.imagesSize).isEqualTo(8);
+        assertThat(result.audioSize).isEqualTo(1);
+        assertThat(result.cachedDirectoryCount).isEqualTo(0);
+    }
+
+    @Test
+    public void testCachePersistence() throws Exception {
+        File directory = temporaryFolder.newFolder();
+        writeDataToFile(new File(directory, "test.mp4"), "1234");
+        assertThat(directory.setLastModified(System.currentTimeMillis() - 3600 * 1000)).isTrue();
+        File cacheFile = new File(temporaryFolder.newFolder(), "cache");
+
+        DirectorySizeCache cache = new DirectorySizeCache(cacheFile);
+        FileCollector.getMeasurementResult(directory, cache);
+        cache.commit();
+
+        cache = new DirectorySizeCache(cacheFile);
+        MeasurementResult result = FileCollector.getMeasurementResult(directory, cache);
+        assertThat(result.videosSize).isEqualTo(4);
+        assertThat(cache.getHitCount()).isEqualTo(1);
+    }
+
     private void writeDataToFile(File f, String data) throws Exception{
         PrintStream out = new PrintStream(f);
         out.print(data);
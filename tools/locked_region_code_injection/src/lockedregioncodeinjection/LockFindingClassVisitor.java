@@ -33,13 +33,15 @@ import org.objectweb.asm.tree.analysis.BasicValue;
 import org.objectweb.asm.tree.analysis.Frame;
 
 /**
- * This visitor does two things:
+ * This visitor does three things:
  *
  * 1. Finds all the MONITOR_ENTER / MONITOR_EXIT in the byte code and insert the corresponding pre
  * and post methods calls should it matches one of the given target type in the Configuration.
  *
  * 2. Find all methods that are synchronized and insert pre method calls in the beginning and post
  * method calls just before all return instructions.
+ *
+ * 3. Insert the pre acquire method calls, if any, just before the MONITOR_ENTER found in 1.
  */
 class LockFindingClassVisitor extends ClassVisitor {
     private String className = null;
@@ -110,6 +112,11 @@ class LockFindingClassVisitor extends ClassVisitor {
                 handlersMap.add(a.getHandlers(i));
             }
 
+            // MONITOR_ENTER instructions and the calls to insert before them, once the frames
+            // and handlers of the other insertions are no longer needed.
+            List<AbstractInsnNode> acquires = new ArrayList<>();
+            List<MethodInsnNode> acquireCalls = new ArrayList<>();
+
             if (ownerMonitor != null) {
                 AbstractInsnNode s = instructions.getFirst();
                 MethodInsnNode call = new MethodInsnNode(Opcodes.INVOKESTATIC,
@@ -130,6 +137,12 @@ class LockFindingClassVisitor extends ClassVisitor {
                             MethodInsnNode call = new MethodInsnNode(Opcodes.INVOKESTATIC,
                                     target.getPreOwner(), target.getPreMethod(), "()V", false);
                             insertMethodCallAfter(mn, frameMap, handlersMap, s, i, call);
+                            if (target.getPreAcquire() != null) {
+                                acquires.add(s);
+                                acquireCalls.add(new MethodInsnNode(Opcodes.INVOKESTATIC,
+                                        target.getPreAcquireOwner(),
+                                        target.getPreAcquireMethod(), "()V", false));
+                            }
                         }
                     }
                 }
@@ -158,6 +171,12 @@ class LockFindingClassVisitor extends ClassVisitor {
                     i++; // Skip ahead. Otherwise, we will revisit this instruction again.
                 }
             }
+
+            // The call goes right after any label before the MONITOR_ENTER, so it's covered by the
+            // same exception handlers. It takes nothing from the stack, where the lock stays.
+            for (int i = 0; i < acquires.size(); i++) {
+                instructions.insertBefore(acquires.get(i), acquireCalls.get(i));
+            }
             super.visitEnd();
             mn.accept(chain);
         }
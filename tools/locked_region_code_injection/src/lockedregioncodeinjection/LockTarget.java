@@ -16,7 +16,8 @@ package lockedregioncodeinjection;
 /**
  * Represent a specific class that is used for synchronization. A pre and post method can be
  * specified to by the user to be called right after monitor_enter and after monitor_exit
- * respectively.
+ * respectively. A pre acquire method can also be specified to be called right before
+ * monitor_enter, outside of the lock.
  */
 public class LockTarget {
     public static final LockTarget NO_TARGET = new LockTarget("", null, null);
@@ -24,11 +25,17 @@ public class LockTarget {
     private final String targetDesc;
     private final String pre;
     private final String post;
+    private final String preAcquire;
 
     public LockTarget(String targetDesc, String pre, String post) {
+        this(targetDesc, pre, post, null);
+    }
+
+    public LockTarget(String targetDesc, String pre, String post, String preAcquire) {
         this.targetDesc = targetDesc;
         this.pre = pre;
         this.post = post;
+        this.preAcquire = preAcquire;
     }
 
     public String getTargetDesc() {
@@ -58,4 +65,19 @@ public class LockTarget {
     public String getPostMethod() {
         return post.substring(post.lastIndexOf('.') + 1);
     }
+
+    /**
+     * Returns the method to call before monitor_enter, or null if there is none.
+     */
+    public String getPreAcquire() {
+        return preAcquire;
+    }
+
+    public String getPreAcquireOwner() {
+        return preAcquire.substring(0, preAcquire.lastIndexOf('.'));
+    }
+
+    public String getPreAcquireMethod() {
+        return preAcquire.substring(preAcquire.lastIndexOf('.') + 1);
+    }
 }
@@ -35,6 +35,7 @@ public class Main {
         String legacyTargets = null;
         String legacyPreMethods = null;
         String legacyPostMethods = null;
+        String legacyPreAcquireMethods = null;
         for (int i = 0; i < args.length; i++) {
             if ("-i".equals(args[i].trim())) {
                 i++;
@@ -51,6 +52,9 @@ public class Main {
             } else if ("--post".equals(args[i].trim())) {
                 i++;
                 legacyPostMethods = args[i].trim();
+            } else if ("--pre-acquire".equals(args[i].trim())) {
+                i++;
+                legacyPreAcquireMethods = args[i].trim();
             }
 
         }
@@ -65,7 +69,7 @@ public class Main {
         List<LockTarget> targets = null;
         if (legacyTargets != null) {
             targets = Utils.getTargetsFromLegacyJackConfig(legacyTargets, legacyPreMethods,
-                    legacyPostMethods);
+                    legacyPostMethods, legacyPreAcquireMethods);
         } else {
             targets = Collections.emptyList();
         }
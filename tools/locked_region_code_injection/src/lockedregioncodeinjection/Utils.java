@@ -26,19 +26,31 @@ public class Utils {
      */
     public static List<LockTarget> getTargetsFromLegacyJackConfig(String classList,
             String requestList, String resetList) {
+        return getTargetsFromLegacyJackConfig(classList, requestList, resetList, null);
+    }
+
+    /**
+     * Same as above, with an optional comma separated list of methods to call before acquiring
+     * each of the locks.
+     */
+    public static List<LockTarget> getTargetsFromLegacyJackConfig(String classList,
+            String requestList, String resetList, String acquireList) {
 
         String[] classes = classList.split(",");
         String[] requests = requestList.split(",");
         String[] resets = resetList.split(",");
+        String[] acquires = acquireList != null ? acquireList.split(",") : null;
 
         int total = classes.length;
         assert requests.length == total;
         assert resets.length == total;
+        assert acquires == null || acquires.length == total;
 
         List<LockTarget> config = new ArrayList<LockTarget>();
 
         for (int i = 0; i < total; i++) {
-            config.add(new LockTarget(classes[i], requests[i], resets[i]));
+            config.add(new LockTarget(classes[i], requests[i], resets[i],
+                    acquires != null ? acquires[i] : null));
         }
 
         return config;
@@ -45,7 +45,8 @@ import org.junit.Test;
  *     -i out/test_input.jar -o out/test_output.jar \
  *     --targets 'Llockedregioncodeinjection/TestTarget;' \
  *     --pre     'lockedregioncodeinjection/TestTarget.boost' \
- *     --post    'lockedregioncodeinjection/TestTarget.unboost'
+ *     --post    'lockedregioncodeinjection/TestTarget.unboost' \
+ *     --pre-acquire 'lockedregioncodeinjection/TestTarget.acquire'
  *
  * # Run unit tests.
  * java -ea -cp lib/hamcrest-core-1.3.jar:lib/junit-4.12.jar:out/test_output.jar \
@@ -228,4 +229,21 @@ public class TestMain {
         Assert.assertEquals(TestTarget.unboostCount, 1);
         Assert.assertEquals(TestTarget.invokeCount, 1);
     }
+
+    @Test
+    public void testAcquireBeforeSynchronizedBlock() {
+        TestTarget.resetCount();
+        TestTarget t = new TestTarget();
+
+        synchronized (t) {
+            // Called before the lock was acquired, then boosted.
+            Assert.assertEquals(TestTarget.acquireCount, 1);
+            Assert.assertEquals(TestTarget.boostCount, 1);
+        }
+
+        // Synchronized methods are entered with the lock held, so they don't get the call.
+        t.synchronizedCall();
+        Assert.assertEquals(TestTarget.acquireCount, 1);
+        Assert.assertEquals(TestTarget.boostCount, 2);
+    }
 }
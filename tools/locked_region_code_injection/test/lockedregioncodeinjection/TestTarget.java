@@ -17,6 +17,7 @@ public class TestTarget {
   public static int boostCount = 0;
   public static int unboostCount = 0;
   public static int invokeCount = 0;
+  public static int acquireCount = 0;
 
   public static void boost() {
     boostCount++;
@@ -30,10 +31,15 @@ public class TestTarget {
     invokeCount++;
   }
 
+  public static void acquire() {
+    acquireCount++;
+  }
+
   public static void resetCount() {
     boostCount = 0;
     unboostCount = 0;
     invokeCount = 0;
+    acquireCount = 0;
   }
 
   public synchronized void synchronizedCall() {